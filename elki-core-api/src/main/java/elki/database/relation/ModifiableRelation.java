@@ -20,7 +20,12 @@
  */
 package elki.database.relation;
 
+import java.util.Iterator;
+import java.util.List;
+
+import elki.database.ids.DBIDIter;
 import elki.database.ids.DBIDRef;
+import elki.database.ids.DBIDs;
 
 /**
  * Relations that allow modification.
@@ -42,6 +47,20 @@ public interface ModifiableRelation<O> extends Relation<O> {
    */
   void insert(DBIDRef id, O val);
 
+  /**
+   * Set (or insert) the representations of several objects. Relations may
+   * update their indexes in a single batch.
+   *
+   * @param ids Object IDs
+   * @param vals Values, in the same order as the IDs
+   */
+  default void insertAll(DBIDs ids, List<? extends O> vals) {
+    Iterator<? extends O> vi = vals.iterator();
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      insert(it, vi.next());
+    }
+  }
+
   /**
    * Delete an objects values.
    * 
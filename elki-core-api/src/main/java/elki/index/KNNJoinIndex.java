@@ -0,0 +1,56 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index;
+
+import elki.database.datastore.WritableDataStore;
+import elki.database.ids.KNNList;
+import elki.database.query.distance.DistanceQuery;
+
+/**
+ * Index with support for computing the k nearest neighbors of all indexed
+ * objects at once (a kNN self-join).
+ * <p>
+ * This can be much faster than one kNN query per object, as tree indexes can
+ * process nearby query objects together, and share the pruning bounds.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @opt nodefillcolor LemonChiffon
+ *
+ * @param <O> Object type
+ */
+public interface KNNJoinIndex<O> extends Index {
+  /**
+   * Compute the k nearest neighbors of every indexed object, and store them in
+   * the result storage. As with kNN queries, each object is included in its
+   * own neighbors, and ties at the k-th distance are kept.
+   * <p>
+   * This function MAY return false, when the given distance or relation is not
+   * supported; then the result storage is not modified.
+   *
+   * @param distanceQuery Distance query
+   * @param k Number of neighbors
+   * @param result Output storage for the kNN of each object
+   * @return {@code false} if the distance query is not supported
+   */
+  boolean kNNJoin(DistanceQuery<O> distanceQuery, int k, WritableDataStore<KNNList> result);
+}
@@ -42,6 +42,8 @@ public interface Projection<IN, OUT> {
 
   /**
    * Project a single instance.
+   * <p>
+   * This must be thread safe, as indexes may project their data in parallel.
    * 
    * @param data Data to project
    * @return Projected data
@@ -57,9 +57,6 @@ public abstract class AbstractRandomProjectionFamily implements RandomProjection
    * output dimensionality, the column dimensionality is the input
    * dimensionality.
    *
-   * It is <b>not thread safe</b> because it uses an internal buffer to store a
-   * local copy of the vector.
-   *
    * @author Erich Schubert
    */
   public static class MatrixProjection implements Projection {
@@ -69,9 +66,9 @@ public abstract class AbstractRandomProjectionFamily implements RandomProjection
     double[][] matrix;
 
     /**
-     * Shared buffer to use during projections.
+     * Input dimensionality.
      */
-    private double[] buf;
+    private int idim;
 
     /**
      * Constructor.
@@ -81,7 +78,7 @@ public abstract class AbstractRandomProjectionFamily implements RandomProjection
     public MatrixProjection(double[][] matrix) {
       super();
       this.matrix = matrix;
-      this.buf = new double[matrix.length];
+      this.idim = matrix.length > 0 ? matrix[0].length : 0;
     }
 
     @Override
@@ -94,9 +91,10 @@ public abstract class AbstractRandomProjectionFamily implements RandomProjection
       if(in instanceof SparseNumberVector) {
         return projectSparse((SparseNumberVector) in, ret);
       }
-      final int dim = Math.min(buf.length, in.getDimensionality());
+      final int dim = Math.min(idim, in.getDimensionality());
       assert (ret.length >= matrix.length) : "Output buffer too small!";
       // Copy vector into local buffer
+      final double[] buf = new double[dim];
       for(int i = 0; i < dim; i++) {
         buf[i] = in.doubleValue(i);
       }
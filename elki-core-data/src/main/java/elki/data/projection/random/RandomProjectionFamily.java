@@ -41,10 +41,10 @@ public interface RandomProjectionFamily {
   Projection generateProjection(int idim, int odim);
 
   /**
-   * Interface for projection instances (<b>not thread safe</b>).
-   *
-   * To enable the use of internal buffers for faster multiplication, this code
-   * is currently not thread safe.
+   * Interface for projection instances.
+   * <p>
+   * Projections must be thread safe, such that data can be projected in
+   * parallel.
    *
    * @author Erich Schubert
    */
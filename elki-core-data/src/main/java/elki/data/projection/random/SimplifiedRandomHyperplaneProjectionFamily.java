@@ -89,11 +89,6 @@ public class SimplifiedRandomHyperplaneProjectionFamily implements RandomProject
      */
     private int k;
 
-    /**
-     * Shared buffer to use during projections.
-     */
-    private double[] buf;
-
     /**
      * Constructor.
      *
@@ -110,7 +105,6 @@ public class SimplifiedRandomHyperplaneProjectionFamily implements RandomProject
         }
       }
       this.k = k;
-      this.buf = new double[dim];
     }
 
     @Override
@@ -149,7 +143,7 @@ public class SimplifiedRandomHyperplaneProjectionFamily implements RandomProject
      */
     private double[] projectDense(NumberVector in, double[] ret) {
       final int k = this.k;
-      final double dim = Math.min(buf.length, in.getDimensionality());
+      final int dim = Math.min(mat.length, in.getDimensionality());
       for(int i = 0; i < dim; i++) {
         final boolean[] row = mat[i];
         double vali = in.doubleValue(i);
@@ -33,7 +33,8 @@ import elki.utilities.optionhandling.Parameterizer;
  * Sort object along the Hilbert Space Filling curve by mapping them to their
  * Hilbert numbers and sorting them.
  * <p>
- * Objects are mapped using 31 bits per dimension.
+ * Objects are mapped using 31 bits per dimension. The {@code long} keys of
+ * {@link SpatialKeyEncoder} use the same curve, but only 63 bits in total.
  * <p>
  * Reference:
  * <p>
@@ -51,7 +52,7 @@ import elki.utilities.optionhandling.Parameterizer;
     booktitle = "Mathematische Annalen, 38(3)", //
     url = "http://resolver.sub.uni-goettingen.de/purl?GDZPPN002253135", //
     bibkey = "journals/mathann/Hilbert1891")
-public class HilbertSpatialSorter implements SpatialSorter {
+public class HilbertSpatialSorter implements SpatialSorter, SpatialKeyEncoder {
   /**
    * Static instance.
    */
@@ -89,6 +90,56 @@ public class HilbertSpatialSorter implements SpatialSorter {
     }
   }
 
+  @Override
+  public long encode(SpatialComparable obj, double[] minmax, int[] dims) {
+    final int numdim = Math.min((dims != null) ? dims.length : (minmax.length >> 1), Long.SIZE - 1);
+    // At most 62 bits per dimension, as the number of cells must be positive.
+    final int bits = Math.min((Long.SIZE - 1) / numdim, Long.SIZE - 2);
+    // Transposed coordinates: bit j of dimension d at j * numdim + d
+    long trans = 0;
+    for(int d = 0; d < numdim; d++) {
+      final long cell = SpatialKeyEncoder.quantize(obj, minmax, (dims != null) ? dims[d] : d, 1L << bits);
+      for(int j = 0, shift = d; j < bits; j++, shift += numdim) {
+        trans |= ((cell >>> j) & 1L) << shift;
+      }
+    }
+    return transposedToHilbert(trans, numdim, bits);
+  }
+
+  /**
+   * Convert transposed coordinates to a Hilbert address, using a single long
+   * for at most 63 bits. This is the same transformation as
+   * {@link #coordinatesToHilbert(int[], int, int)}.
+   *
+   * @param trans Transposed coordinates, bit j of dimension d at position
+   *        {@code j * numdim + d}
+   * @param numdim Number of dimensions
+   * @param bitsperdim Number of bits per dimension
+   * @return Hilbert address
+   */
+  public static long transposedToHilbert(long trans, int numdim, int bitsperdim) {
+    assert numdim * bitsperdim < Long.SIZE;
+    final long mask = (1L << numdim) - 1;
+    long output = 0, refl = 0;
+    int rotation = 0;
+    for(int shift = (bitsperdim - 1) * numdim; shift >= 0; shift -= numdim) {
+      final long hist = (trans >>> shift) & mask;
+      long bits = hist ^ refl;
+      if(rotation > 0) { // Cycle right within numdim bits
+        bits = ((bits >>> rotation) | (bits << (numdim - rotation))) & mask;
+      }
+      final int nextrot = (rotation + BitsUtil.numberOfTrailingZerosSigned(bits) + 2) % numdim;
+      bits = BitsUtil.invgrayC(bits);
+      output |= bits << shift;
+      refl = hist ^ (1L << rotation);
+      if((bits & 1L) == 0) {
+        refl ^= 1L << ((nextrot - 1 + numdim) % numdim);
+      }
+      rotation = nextrot;
+    }
+    return output;
+  }
+
   /**
    * Object used in spatial sorting, combining the spatial object and the object
    * ID.
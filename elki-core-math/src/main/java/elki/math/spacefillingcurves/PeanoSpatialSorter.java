@@ -61,6 +61,9 @@ import elki.utilities.optionhandling.Parameterizer;
  * 
  * and so on.
  * <p>
+ * The {@code long} keys of {@link SpatialKeyEncoder} are the ternary curve
+ * positions, with 39 ternary digits in total.
+ * <p>
  * Reference:
  * <p>
  * G. Peano<br>
@@ -75,7 +78,12 @@ import elki.utilities.optionhandling.Parameterizer;
     booktitle = "Mathematische Annalen 36(1)", //
     url = "http://resolver.sub.uni-goettingen.de/purl?GDZPPN002252376", //
     bibkey = "journals/mathann/Peano1890")
-public class PeanoSpatialSorter implements SpatialSorter {
+public class PeanoSpatialSorter implements SpatialSorter, SpatialKeyEncoder {
+  /**
+   * Number of ternary digits that fit into a long.
+   */
+  private static final int MAX_DIGITS = 39;
+
   /**
    * Static instance.
    */
@@ -93,6 +101,36 @@ public class PeanoSpatialSorter implements SpatialSorter {
     peanoSort(objs, start, end, minmax, dims, 0, BitsUtil.zero(minmax.length >> 1), false);
   }
 
+  @Override
+  public long encode(SpatialComparable obj, double[] minmax, int[] dims) {
+    final int numdim = Math.min((dims != null) ? dims.length : (minmax.length >> 1), MAX_DIGITS);
+    final int levels = MAX_DIGITS / numdim;
+    long cells = 1;
+    for(int l = 0; l < levels; l++) {
+      cells *= 3;
+    }
+    final long[] cell = new long[numdim];
+    for(int d = 0; d < numdim; d++) {
+      cell[d] = SpatialKeyEncoder.quantize(obj, minmax, (dims != null) ? dims[d] : d, cells);
+    }
+    // A digit is inverted if the digits of the other dimensions so far, i.e.,
+    // the number of middle parts chosen, add up to an odd number.
+    long key = 0, parities = 0;
+    boolean parity = false;
+    for(long div = cells / 3; div > 0; div /= 3) {
+      for(int d = 0; d < numdim; d++) {
+        final int digit = (int) ((cell[d] / div) % 3);
+        final boolean inv = parity ^ ((parities >>> d) & 1L) != 0;
+        key = key * 3 + (inv ? 2 - digit : digit);
+        if(digit == 1) {
+          parity = !parity;
+          parities ^= 1L << d;
+        }
+      }
+    }
+    return key;
+  }
+
   /**
    * Sort by Peano curve.
    *
@@ -0,0 +1,104 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.math.spacefillingcurves;
+
+import elki.data.spatial.SpatialComparable;
+import java.util.Arrays;
+
+/**
+ * Space filling curves that can map objects to primitive {@code long} keys,
+ * such that the curve order is the order of the keys.
+ * <p>
+ * In contrast to {@link SpatialSorter}, the keys can be computed for each
+ * object independently (and hence in parallel), and sorting only needs
+ * primitive comparisons (see {@link #sortByKeys}). The precision is limited to 63 bits: all dimensions
+ * are quantized to the same number of cells, and if there are more dimensions
+ * than the key can hold, only the leading dimensions are used.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public interface SpatialKeyEncoder {
+  /**
+   * Minimum number of keys to use a parallel sort.
+   */
+  int PARALLEL_THRESHOLD = 1 << 14;
+
+  /**
+   * Compute the key of an object, using the center of each dimension.
+   *
+   * @param obj Spatial object
+   * @param minmax Array with dim pairs of (min, max) of value ranges
+   * @param dims Dimensions to use, for indexing vectors <em>and</em>
+   *        {@code minmax}; may be {@code null} for all dimensions.
+   * @return Curve key
+   */
+  long encode(SpatialComparable obj, double[] minmax, int[] dims);
+
+  /**
+   * Quantize the center of an object in one dimension.
+   *
+   * @param obj Spatial object
+   * @param minmax Array with dim pairs of (min, max) of value ranges
+   * @param ed Effective dimension
+   * @param cells Number of cells
+   * @return Cell number, in 0 to cells - 1
+   */
+  static long quantize(SpatialComparable obj, double[] minmax, int ed, long cells) {
+    final int ed2 = ed << 1;
+    final double min = minmax[ed2], width = minmax[ed2 + 1] - min;
+    final double val = ((obj.getMin(ed) + obj.getMax(ed)) * .5 - min) / width;
+    // Also catches NaN values and empty ranges:
+    return val > 0 ? Math.min((long) (val * cells), cells - 1) : 0;
+  }
+
+  /**
+   * Compute the order of a set of keys.
+   * <p>
+   * The positions are stored in the low bits of the keys, such that a
+   * primitive sort of the {@code long} values suffices. The precision of the
+   * keys is reduced by the number of bits needed for the positions; objects
+   * that differ only in the truncated bits are kept in input order.
+   *
+   * @param keys Keys (not modified)
+   * @return Positions, sorted by their keys
+   */
+  static int[] sortByKeys(long[] keys) {
+    final int size = keys.length;
+    final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+    final long mask = (1L << bits) - 1;
+    long[] packed = new long[size];
+    for(int i = 0; i < size; i++) {
+      packed[i] = ((keys[i] >>> bits) << bits) | i;
+    }
+    if(size >= PARALLEL_THRESHOLD) {
+      Arrays.parallelSort(packed);
+    }
+    else {
+      Arrays.sort(packed);
+    }
+    int[] order = new int[size];
+    for(int i = 0; i < size; i++) {
+      order[i] = (int) (packed[i] & mask);
+    }
+    return order;
+  }
+}
@@ -28,11 +28,15 @@ import elki.utilities.optionhandling.Parameterizer;
 /**
  * Class to sort the data set by their Z-index, without doing a full
  * materialization of the Z indexes.
+ * <p>
+ * As {@link SpatialKeyEncoder}, the Z-index is computed by interleaving the
+ * bits of the quantized coordinates, the first dimension being the most
+ * significant.
  * 
  * @author Erich Schubert
  * @since 0.5.0
  */
-public class ZCurveSpatialSorter implements SpatialSorter {
+public class ZCurveSpatialSorter implements SpatialSorter, SpatialKeyEncoder {
   /**
    * Static instance.
    */
@@ -55,6 +59,21 @@ public class ZCurveSpatialSorter implements SpatialSorter {
     zSort(objs, start, end, minmax, dims, 0);
   }
 
+  @Override
+  public long encode(SpatialComparable obj, double[] minmax, int[] dims) {
+    final int numdim = Math.min((dims != null) ? dims.length : (minmax.length >> 1), Long.SIZE - 1);
+    // At most 62 bits per dimension, as the number of cells must be positive.
+    final int bits = Math.min((Long.SIZE - 1) / numdim, Long.SIZE - 2);
+    long key = 0;
+    for(int d = 0; d < numdim; d++) {
+      final long cell = SpatialKeyEncoder.quantize(obj, minmax, (dims != null) ? dims[d] : d, 1L << bits);
+      for(int j = 0, shift = numdim - 1 - d; j < bits; j++, shift += numdim) {
+        key |= ((cell >>> j) & 1L) << shift;
+      }
+    }
+    return key;
+  }
+
   /**
    * The actual Z sorting function
    * 
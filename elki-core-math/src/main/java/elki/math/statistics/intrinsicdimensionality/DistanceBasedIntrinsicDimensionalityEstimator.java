@@ -87,7 +87,12 @@ public interface DistanceBasedIntrinsicDimensionalityEstimator extends Intrinsic
 
   @Override
   default double estimate(KNNSearcher<DBIDRef> knnq, DistanceQuery<? extends Object> distq, DBIDRef cur, int k) {
-    double[] buf = new double[k];
+    return estimate(knnq, distq, cur, k, new double[k]);
+  }
+
+  @Override
+  default double estimate(KNNSearcher<DBIDRef> knnq, DistanceQuery<? extends Object> distq, DBIDRef cur, int k, double[] buf) {
+    buf = buf.length < k ? new double[k] : buf;
     int p = 0;
     for(DoubleDBIDListIter it = knnq.getKNN(cur, k).iter(); it.valid() && p < k; it.advance()) {
       if(it.doubleValue() == 0. || DBIDUtil.equal(cur, it)) {
@@ -45,6 +45,25 @@ public interface IntrinsicDimensionalityEstimator<O> {
    */
   double estimate(KNNSearcher<DBIDRef> knnq, DistanceQuery<? extends O> distq, DBIDRef cur, int k);
 
+  /**
+   * Estimate from a Reference Point, a KNNSearcher and the neighborhood size k,
+   * reusing a scratch buffer where possible.
+   * <p>
+   * This allows callers that process many points (in particular in parallel,
+   * with one buffer per thread) to avoid allocating a new array per point.
+   * Estimators that do not need a buffer simply ignore it.
+   * 
+   * @param knnq KNNSearcher
+   * @param distq Distance query for additional distances
+   * @param cur reference point
+   * @param k neighborhood size
+   * @param buf Scratch buffer, should have at least length k
+   * @return Estimated intrinsic dimensionality
+   */
+  default double estimate(KNNSearcher<DBIDRef> knnq, DistanceQuery<? extends O> distq, DBIDRef cur, int k, double[] buf) {
+    return estimate(knnq, distq, cur, k);
+  }
+
   /**
    * Estimate from a distance list.
    * 
@@ -74,6 +74,11 @@ public class RABIDEstimator implements DistanceBasedIntrinsicDimensionalityEstim
     return computeABID(distq, knnq.getKNN(cur, k), false /* RABID: false */);
   }
 
+  @Override
+  public double estimate(KNNSearcher<DBIDRef> knnq, DistanceQuery<?> distq, DBIDRef cur, int k, double[] buf) {
+    return estimate(knnq, distq, cur, k); // No buffer needed.
+  }
+
   /**
    * Estimate intrinsic dimensionality (both variants).
    *
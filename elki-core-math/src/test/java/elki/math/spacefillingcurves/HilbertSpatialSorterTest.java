@@ -22,6 +22,7 @@ package elki.math.spacefillingcurves;
 
 import static elki.math.spacefillingcurves.ZCurveSpatialSorterTest.assertSameOrder;
 import static elki.math.spacefillingcurves.ZCurveSpatialSorterTest.shuffle;
+import static elki.math.spacefillingcurves.ZCurveSpatialSorterTest.sortByKeys;
 
 import java.util.ArrayList;
 import java.util.Random;
@@ -41,6 +42,26 @@ import elki.math.spacefillingcurves.ZCurveSpatialSorterTest.V;
 public class HilbertSpatialSorterTest {
   @Test
   public void testBasic() {
+    ArrayList<V> vs = makeData();
+    ArrayList<V> x = shuffle(vs, new Random(0L));
+    HilbertSpatialSorter.STATIC.sort(x);
+    assertSameOrder("Hilbert order incorrect", vs, x);
+  }
+
+  @Test
+  public void testKeys() {
+    ArrayList<V> vs = makeData();
+    ArrayList<V> x = shuffle(vs, new Random(0L));
+    x = sortByKeys(x, HilbertSpatialSorter.STATIC);
+    assertSameOrder("Hilbert order of keys incorrect", vs, x);
+  }
+
+  /**
+   * Test data, in the expected order.
+   *
+   * @return Test data
+   */
+  private static ArrayList<V> makeData() {
     ArrayList<V> vs = new ArrayList<>();
     vs.add(new V(0, 0, 0));
     vs.add(new V(0, .25, 0));
@@ -58,8 +79,6 @@ public class HilbertSpatialSorterTest {
     vs.add(new V(0, 2, 0));
     vs.add(new V(0, 0, 2));
     vs.add(new V(0, 0, 3));
-    ArrayList<V> x = shuffle(vs, new Random(0L));
-    HilbertSpatialSorter.STATIC.sort(x);
-    assertSameOrder("Hilbert order incorrect", vs, x);
+    return vs;
   }
 }
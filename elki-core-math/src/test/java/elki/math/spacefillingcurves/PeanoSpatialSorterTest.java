@@ -22,6 +22,7 @@ package elki.math.spacefillingcurves;
 
 import static elki.math.spacefillingcurves.ZCurveSpatialSorterTest.assertSameOrder;
 import static elki.math.spacefillingcurves.ZCurveSpatialSorterTest.shuffle;
+import static elki.math.spacefillingcurves.ZCurveSpatialSorterTest.sortByKeys;
 
 import java.util.ArrayList;
 import java.util.Random;
@@ -41,6 +42,26 @@ import elki.math.spacefillingcurves.ZCurveSpatialSorterTest.V;
 public class PeanoSpatialSorterTest {
   @Test
   public void testBasic() {
+    ArrayList<V> vs = makeData();
+    ArrayList<V> x = shuffle(vs, new Random(0L));
+    PeanoSpatialSorter.STATIC.sort(x);
+    assertSameOrder("Peano order incorrect", vs, x);
+  }
+
+  @Test
+  public void testKeys() {
+    ArrayList<V> vs = makeData();
+    ArrayList<V> x = shuffle(vs, new Random(0L));
+    x = sortByKeys(x, PeanoSpatialSorter.STATIC);
+    assertSameOrder("Peano order of keys incorrect", vs, x);
+  }
+
+  /**
+   * Test data, in the expected order.
+   *
+   * @return Test data
+   */
+  private static ArrayList<V> makeData() {
     ArrayList<V> vs = new ArrayList<>();
     vs.add(new V(0, 0, 0));
     vs.add(new V(0, 0, .5));
@@ -54,8 +75,6 @@ public class PeanoSpatialSorterTest {
     vs.add(new V(0, 2, 0));
     vs.add(new V(1, 0, 0));
     vs.add(new V(2, 0, 0));
-    ArrayList<V> x = shuffle(vs, new Random(0L));
-    PeanoSpatialSorter.STATIC.sort(x);
-    assertSameOrder("Peano order incorrect", vs, x);
+    return vs;
   }
 }
@@ -43,6 +43,26 @@ import elki.data.spatial.SpatialComparable;
 public class ZCurveSpatialSorterTest {
   @Test
   public void testBasic() {
+    ArrayList<V> vs = makeData();
+    ArrayList<V> x = shuffle(vs, new Random(0L));
+    ZCurveSpatialSorter.STATIC.sort(x);
+    assertSameOrder("Z-order incorrect", vs, x);
+  }
+
+  @Test
+  public void testKeys() {
+    ArrayList<V> vs = makeData();
+    ArrayList<V> x = shuffle(vs, new Random(0L));
+    x = sortByKeys(x, ZCurveSpatialSorter.STATIC);
+    assertSameOrder("Z-order of keys incorrect", vs, x);
+  }
+
+  /**
+   * Test data, in the expected order.
+   *
+   * @return Test data
+   */
+  private static ArrayList<V> makeData() {
     ArrayList<V> vs = new ArrayList<>();
     vs.add(new V(0, 0, 0));
     vs.add(new V(0, 0, .1));
@@ -59,9 +79,7 @@ public class ZCurveSpatialSorterTest {
     vs.add(new V(0, 3, 0));
     vs.add(new V(2, 0, 0));
     vs.add(new V(3, 0, 0));
-    ArrayList<V> x = shuffle(vs, new Random(0L));
-    ZCurveSpatialSorter.STATIC.sort(x);
-    assertSameOrder("Z-order incorrect", vs, x);
+    return vs;
   }
 
   /**
@@ -77,6 +95,26 @@ public class ZCurveSpatialSorterTest {
     }
   }
 
+  /**
+   * Sort a list by the keys of a space filling curve.
+   *
+   * @param vs List
+   * @param encoder Curve key encoder
+   * @return Sorted list
+   */
+  public static <X extends SpatialComparable> ArrayList<X> sortByKeys(ArrayList<X> vs, SpatialKeyEncoder encoder) {
+    double[] mms = SpatialSorter.computeMinMax(vs);
+    long[] keys = new long[vs.size()];
+    for(int i = 0; i < keys.length; i++) {
+      keys[i] = encoder.encode(vs.get(i), mms, null);
+    }
+    ArrayList<X> x = new ArrayList<>(vs.size());
+    for(int i : SpatialKeyEncoder.sortByKeys(keys)) {
+      x.add(vs.get(i));
+    }
+    return x;
+  }
+
   /**
    * Shuffle a list, and ensure it has a different order.
    *
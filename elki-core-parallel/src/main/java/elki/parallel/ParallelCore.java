@@ -82,6 +82,19 @@ public class ParallelCore {
     return executor != null ? executor.getMaximumPoolSize() : processors;
   }
 
+  /**
+   * Test whether the current thread is a worker thread of this core.
+   * <p>
+   * Blocking on further tasks from within a worker thread can exhaust the
+   * pool, so nested parallel calls should run in the current thread instead.
+   *
+   * @return {@code true} when called from a worker thread
+   */
+  public boolean isWorkerThread() {
+    Thread t = Thread.currentThread();
+    return t instanceof WorkerThread && ((WorkerThread) t).core == this;
+  }
+
   /**
    * Submit a task to the executor core.
    * 
@@ -98,7 +111,7 @@ public class ParallelCore {
    */
   public synchronized void connect() {
     if(executor == null) {
-      executor = new ThreadPoolExecutor(0, processors, 10L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+      executor = new ThreadPoolExecutor(0, processors, 10L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), r -> new WorkerThread(this, r));
       executor.allowCoreThreadTimeOut(true);
     }
     if(++connected == 1) {
@@ -116,4 +129,27 @@ public class ParallelCore {
       executor.setCorePoolSize(0);
     }
   }
+
+  /**
+   * Worker thread, to detect nested parallel execution.
+   *
+   * @author Erich Schubert
+   */
+  private static class WorkerThread extends Thread {
+    /**
+     * Core this thread belongs to.
+     */
+    private final ParallelCore core;
+
+    /**
+     * Constructor.
+     *
+     * @param core Owning core
+     * @param r Runnable
+     */
+    WorkerThread(ParallelCore core, Runnable r) {
+      super(r, "ELKI-worker");
+      this.core = core;
+    }
+  }
 }
@@ -62,6 +62,12 @@ public final class ParallelExecutor {
    */
   public static void run(DBIDs ids, Processor... procs) {
     ParallelCore core = ParallelCore.getCore();
+    if(core.isWorkerThread()) {
+      // Nested invocation: process in the current thread.
+      ArrayDBIDs aids = DBIDUtil.ensureArray(ids);
+      new BlockArrayRunner(aids, 0, aids.size(), procs).call();
+      return;
+    }
     core.connect();
     try {
       // TODO: try different strategies anyway!
@@ -95,6 +101,57 @@ public final class ParallelExecutor {
     }
   }
 
+  /**
+   * Run independent tasks on all available CPUs.
+   * <p>
+   * This is meant for algorithms that decompose into coarse subproblems (such
+   * as ensemble members or candidate subspaces) rather than per-object work.
+   * When invoked from within a worker thread, the tasks are executed in the
+   * current thread.
+   *
+   * @param tasks Tasks to run
+   * @param <T> Result type
+   * @return Task results, in the order of the tasks
+   */
+  public static <T> List<T> run(List<? extends Callable<T>> tasks) {
+    List<T> results = new ArrayList<>(tasks.size());
+    ParallelCore core = ParallelCore.getCore();
+    if(core.isWorkerThread() || tasks.size() <= 1) {
+      try {
+        for(Callable<T> task : tasks) {
+          results.add(task.call());
+        }
+      }
+      catch(RuntimeException e) {
+        throw e;
+      }
+      catch(Exception e) {
+        throw new RuntimeException("Task execution failed.", e);
+      }
+      return results;
+    }
+    core.connect();
+    try {
+      List<Future<T>> futures = new ArrayList<>(tasks.size());
+      for(Callable<T> task : tasks) {
+        futures.add(core.submit(task));
+      }
+      for(Future<T> fut : futures) {
+        results.add(fut.get());
+      }
+      return results;
+    }
+    catch(ExecutionException e) {
+      throw new RuntimeException("Task execution failed.", e);
+    }
+    catch(InterruptedException e) {
+      throw new RuntimeException("Parallel execution interrupted.");
+    }
+    finally {
+      core.disconnect();
+    }
+  }
+
   /**
    * Run for an array part, without step size.
    *
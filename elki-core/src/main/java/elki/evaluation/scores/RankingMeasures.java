@@ -0,0 +1,192 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.evaluation.scores;
+
+import elki.evaluation.scores.ScoreEvaluation.Adapter;
+
+import net.jafama.FastMath;
+
+/**
+ * Compute several ranking evaluation measures in a single pass over the
+ * ranking: the area under the ROC curve ({@link ROCEvaluation}), the area
+ * under the precision-recall curve ({@link AUPRCEvaluation}), average
+ * precision ({@link AveragePrecisionEvaluation}), precision at k
+ * ({@link PrecisionAtKEvaluation}), and the maximum F1 measure
+ * ({@link MaximumF1Evaluation}).
+ * <p>
+ * The results are identical to running the individual evaluations, but the
+ * adapter is only traversed once, which matters for large rankings.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class RankingMeasures {
+  /**
+   * Area under the ROC curve.
+   */
+  private double auroc;
+
+  /**
+   * Area under the precision-recall curve.
+   */
+  private double auprc;
+
+  /**
+   * Average precision.
+   */
+  private double averagePrecision;
+
+  /**
+   * Precision at k.
+   */
+  private double precisionAtK;
+
+  /**
+   * Maximum F1 measure.
+   */
+  private double maximumF1;
+
+  /**
+   * Constructor.
+   *
+   * @param auroc Area under the ROC curve
+   * @param auprc Area under the precision-recall curve
+   * @param averagePrecision Average precision
+   * @param precisionAtK Precision at k
+   * @param maximumF1 Maximum F1 measure
+   */
+  protected RankingMeasures(double auroc, double auprc, double averagePrecision, double precisionAtK, double maximumF1) {
+    super();
+    this.auroc = auroc;
+    this.auprc = auprc;
+    this.averagePrecision = averagePrecision;
+    this.precisionAtK = precisionAtK;
+    this.maximumF1 = maximumF1;
+  }
+
+  /**
+   * Evaluate a ranking in a single pass.
+   *
+   * @param adapter Input data adapter
+   * @param k Value of k for precision at k, 0 for R-precision
+   * @return Evaluation measures
+   */
+  public static RankingMeasures evaluate(Adapter adapter, int k) {
+    final int postot = adapter.numPositive();
+    k = k > 0 ? k : postot;
+    int pos = 0, rank = 0;
+    double roc = 0., prc = 0., ap = 0., patk = 0., maxf1 = 0.;
+    int patkn = 0;
+    while(adapter.valid()) {
+      final int prevpos = pos, prevrank = rank;
+      // positive or negative match?
+      do {
+        if(adapter.test()) {
+          ++pos;
+        }
+        ++rank;
+        adapter.advance();
+      } // Loop while tied:
+      while(adapter.valid() && adapter.tiedToPrevious());
+      final int newpos = pos - prevpos, ties = rank - prevrank;
+      final int neg = rank - pos, prevneg = prevrank - prevpos;
+      // ROC: trapezoid for each new negative
+      if(neg > prevneg) {
+        roc += (pos + prevpos) * .5 * (neg - prevneg);
+      }
+      // Precision at k, with ties at k broken by expected value
+      if(patkn < k) {
+        if(patkn + ties > k) {
+          patk += newpos / (double) ties * (k - patkn);
+          patkn = k;
+        }
+        else {
+          patk += newpos;
+          patkn += ties;
+        }
+      }
+      // F1 at this threshold
+      final double p = pos / (double) rank, r = pos / (double) postot;
+      final double f1 = 2. * p * r / (p + r);
+      maxf1 = f1 > maxf1 ? f1 : maxf1;
+      if(newpos == 0) {
+        continue;
+      }
+      // Average precision
+      ap += p * newpos;
+      // Precision-recall curve, interpolation based on Davis and Goadrich
+      if(prevrank == 0) {
+        prc = newpos / (double) ties * newpos;
+        continue;
+      }
+      final double l = FastMath.log(rank) - FastMath.log(prevrank);
+      prc += (l * prevpos / (double) newpos - (l * prevrank / (double) ties - 1)) / (double) ties * newpos;
+    }
+    roc /= (rank - pos) * (long) pos;
+    return new RankingMeasures(Double.isNaN(roc) ? .5 : roc, prc / pos, //
+        postot > 0 ? ap / postot : 0., patk / patkn, maxf1);
+  }
+
+  /**
+   * Get the area under the ROC curve.
+   *
+   * @return AUROC
+   */
+  public double getAUROC() {
+    return auroc;
+  }
+
+  /**
+   * Get the area under the precision-recall curve.
+   *
+   * @return AUPRC
+   */
+  public double getAUPRC() {
+    return auprc;
+  }
+
+  /**
+   * Get the average precision.
+   *
+   * @return Average precision
+   */
+  public double getAveragePrecision() {
+    return averagePrecision;
+  }
+
+  /**
+   * Get the precision at k (R-precision if k was 0).
+   *
+   * @return Precision at k
+   */
+  public double getPrecisionAtK() {
+    return precisionAtK;
+  }
+
+  /**
+   * Get the maximum F1 measure.
+   *
+   * @return Maximum F1
+   */
+  public double getMaximumF1() {
+    return maximumF1;
+  }
+}
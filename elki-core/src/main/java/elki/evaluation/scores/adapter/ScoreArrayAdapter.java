@@ -0,0 +1,378 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.evaluation.scores.adapter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import elki.evaluation.scores.ScoreEvaluation;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.datastructures.arrays.DoubleIntegerArrayQuickSort;
+import elki.utilities.datastructures.heap.DoubleIntegerHeap;
+import elki.utilities.datastructures.heap.DoubleIntegerMaxHeap;
+import elki.utilities.datastructures.heap.DoubleIntegerMinHeap;
+import elki.utilities.datastructures.iterator.ArrayIter;
+
+/**
+ * Adapter for evaluating a ranking stored in parallel primitive arrays of
+ * scores and labels (non-zero for positive examples).
+ * <p>
+ * The arrays are sorted in place, without boxing or comparator objects, and
+ * large arrays are sorted in parallel. The sorted adapter can be reused for
+ * multiple measures via {@link #seek(int)}, so the data needs to be sorted
+ * only once. NaN scores are placed first in descending and last in ascending
+ * order, as with {@link Double#compare}, and are never tied.
+ * <p>
+ * If only the top k are of interest (e.g., for precision at k), use
+ * {@link #topK} to select them with a bounded heap instead of sorting all
+ * scores. Such an adapter only iterates over the top k, but still reports the
+ * total number of positive examples and objects.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class ScoreArrayAdapter implements ScoreEvaluation.Adapter, ArrayIter {
+  /**
+   * Minimum size for sorting in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+  /**
+   * Scores, sorted.
+   */
+  private double[] scores;
+
+  /**
+   * Labels, non-zero for positive examples.
+   */
+  private int[] labels;
+
+  /**
+   * Number of valid entries.
+   */
+  private int size;
+
+  /**
+   * Number of positive examples.
+   */
+  private int numPositive;
+
+  /**
+   * Total number of objects.
+   */
+  private int numTotal;
+
+  /**
+   * Current position.
+   */
+  private int pos = 0;
+
+  /**
+   * Constructor, for already sorted arrays.
+   *
+   * @param scores Sorted scores
+   * @param labels Labels, non-zero for positive examples
+   * @param size Number of valid entries
+   * @param numPositive Total number of positive examples
+   * @param numTotal Total number of objects
+   */
+  public ScoreArrayAdapter(double[] scores, int[] labels, int size, int numPositive, int numTotal) {
+    super();
+    this.scores = scores;
+    this.labels = labels;
+    this.size = size;
+    this.numPositive = numPositive;
+    this.numTotal = numTotal;
+  }
+
+  /**
+   * Sort the arrays in place, and build an adapter.
+   *
+   * @param scores Scores (will be sorted)
+   * @param labels Labels, non-zero for positive examples (will be permuted)
+   * @param size Number of valid entries
+   * @param ascending Sort ascending (for inverted scores)
+   * @return Adapter
+   */
+  public static ScoreArrayAdapter sort(double[] scores, int[] labels, int size, boolean ascending) {
+    // Move NaN values to where Double.compare would put them.
+    int start = 0, end = size;
+    if(ascending) {
+      for(int i = end - 1; i >= start; i--) {
+        if(Double.isNaN(scores[i])) {
+          swap(scores, labels, i, --end);
+        }
+      }
+    }
+    else {
+      for(int i = start; i < end; i++) {
+        if(Double.isNaN(scores[i])) {
+          swap(scores, labels, i, start++);
+        }
+      }
+    }
+    sort(scores, labels, start, end, ascending);
+    int numPositive = 0;
+    for(int i = 0; i < size; i++) {
+      numPositive += labels[i] != 0 ? 1 : 0;
+    }
+    return new ScoreArrayAdapter(scores, labels, size, numPositive, size);
+  }
+
+  /**
+   * Select the top k using a bounded heap, and build an adapter.
+   * <p>
+   * Ties at the k-th position are broken arbitrarily.
+   *
+   * @param scores Scores (not modified)
+   * @param labels Labels, non-zero for positive examples (not modified)
+   * @param size Number of valid entries
+   * @param ascending Smaller scores are better (for inverted scores)
+   * @param k Number of top entries to keep
+   * @return Adapter
+   */
+  public static ScoreArrayAdapter topK(double[] scores, int[] labels, int size, boolean ascending, int k) {
+    k = Math.min(k, size);
+    double[] tscores = new double[k];
+    int[] tlabels = new int[k];
+    // NaN values come first in descending order
+    int nans = 0, numPositive = 0;
+    if(!ascending) {
+      for(int i = 0; i < size && nans < k; i++) {
+        if(Double.isNaN(scores[i])) {
+          tscores[nans] = scores[i];
+          tlabels[nans++] = labels[i];
+        }
+      }
+    }
+    // The heap top is the worst of the current top k:
+    DoubleIntegerHeap heap = ascending ? new DoubleIntegerMaxHeap(k - nans) : new DoubleIntegerMinHeap(k - nans);
+    for(int i = 0; i < size; i++) {
+      numPositive += labels[i] != 0 ? 1 : 0;
+      if(nans < k && !Double.isNaN(scores[i])) {
+        heap.add(scores[i], labels[i], k - nans);
+      }
+    }
+    // Pop from worst to best.
+    int p = nans + heap.size();
+    for(int i = p - 1; i >= nans; i--, heap.poll()) {
+      tscores[i] = heap.peekKey();
+      tlabels[i] = heap.peekValue();
+    }
+    // NaN values come last in ascending order
+    for(int i = 0; i < size && p < k; i++) {
+      if(Double.isNaN(scores[i])) {
+        tscores[p] = scores[i];
+        tlabels[p++] = labels[i];
+      }
+    }
+    return new ScoreArrayAdapter(tscores, tlabels, p, numPositive, size);
+  }
+
+  /**
+   * Sort a range of the parallel arrays, in parallel for large arrays.
+   *
+   * @param keys Keys
+   * @param vals Values
+   * @param start Interval start
+   * @param end Interval end (exclusive)
+   * @param ascending Sort ascending
+   */
+  private static void sort(double[] keys, int[] vals, int start, int end, boolean ascending) {
+    final int parallelism = ParallelCore.getCore().getParallelism();
+    if(end - start < PARALLEL_THRESHOLD || parallelism <= 1) {
+      sortRange(keys, vals, start, end, ascending);
+      return;
+    }
+    // Split into disjoint ranges, then sort each range independently.
+    final int target = Math.max(PARALLEL_THRESHOLD >>> 1, (end - start) / (parallelism << 2));
+    List<Callable<Void>> tasks = new ArrayList<>();
+    split(keys, vals, start, end, ascending, target, tasks);
+    ParallelExecutor.run(tasks);
+  }
+
+  /**
+   * Recursively partition until the ranges are small enough.
+   *
+   * @param keys Keys
+   * @param vals Values
+   * @param start Interval start
+   * @param end Interval end (exclusive)
+   * @param ascending Sort ascending
+   * @param target Target range size
+   * @param tasks Output task list
+   */
+  private static void split(double[] keys, int[] vals, int start, int end, boolean ascending, int target, List<Callable<Void>> tasks) {
+    if(end - start <= target) {
+      tasks.add(() -> {
+        sortRange(keys, vals, start, end, ascending);
+        return null;
+      });
+      return;
+    }
+    final int mid = partition(keys, vals, start, end, ascending);
+    split(keys, vals, start, mid, ascending, target, tasks);
+    split(keys, vals, mid, end, ascending, target, tasks);
+  }
+
+  /**
+   * Sort a single range.
+   *
+   * @param keys Keys
+   * @param vals Values
+   * @param start Interval start
+   * @param end Interval end (exclusive)
+   * @param ascending Sort ascending
+   */
+  private static void sortRange(double[] keys, int[] vals, int start, int end, boolean ascending) {
+    if(ascending) {
+      DoubleIntegerArrayQuickSort.sort(keys, vals, start, end);
+    }
+    else {
+      DoubleIntegerArrayQuickSort.sortReverse(keys, vals, start, end);
+    }
+  }
+
+  /**
+   * Hoare partitioning with a median-of-three pivot.
+   * <p>
+   * Afterwards, no key in [start, mid) is after any key in [mid, end), and
+   * both ranges are non-empty.
+   *
+   * @param keys Keys
+   * @param vals Values
+   * @param start Interval start
+   * @param end Interval end (exclusive)
+   * @param ascending Sort ascending
+   * @return Split position
+   */
+  private static int partition(double[] keys, int[] vals, int start, int end, boolean ascending) {
+    final double a = keys[start], b = keys[(start + end) >>> 1], c = keys[end - 1];
+    final double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+    int i = start - 1, j = end;
+    while(true) {
+      do {
+        ++i;
+      }
+      while(ascending ? keys[i] < pivot : keys[i] > pivot);
+      do {
+        --j;
+      }
+      while(ascending ? keys[j] > pivot : keys[j] < pivot);
+      if(i >= j) {
+        return j + 1;
+      }
+      swap(keys, vals, i, j);
+    }
+  }
+
+  /**
+   * Swap two entries.
+   *
+   * @param keys Keys
+   * @param vals Values
+   * @param i First position
+   * @param j Second position
+   */
+  private static void swap(double[] keys, int[] vals, int i, int j) {
+    final double k = keys[i];
+    keys[i] = keys[j];
+    keys[j] = k;
+    final int v = vals[i];
+    vals[i] = vals[j];
+    vals[j] = v;
+  }
+
+  /**
+   * Get the score at the current position.
+   *
+   * @return Score
+   */
+  public double score() {
+    return scores[pos];
+  }
+
+  @Override
+  public boolean valid() {
+    return pos < size && pos >= 0;
+  }
+
+  @Override
+  public ScoreArrayAdapter advance() {
+    ++pos;
+    return this;
+  }
+
+  @Override
+  public int getOffset() {
+    return pos;
+  }
+
+  @Override
+  public ScoreArrayAdapter advance(int count) {
+    pos += count;
+    return this;
+  }
+
+  @Override
+  public ScoreArrayAdapter retract() {
+    --pos;
+    return this;
+  }
+
+  @Override
+  public ScoreArrayAdapter seek(int off) {
+    pos = off;
+    return this;
+  }
+
+  @Override
+  public boolean test() {
+    return labels[pos] != 0;
+  }
+
+  @Override
+  public boolean tiedToPrevious() {
+    return pos > 0 && scores[pos] == scores[pos - 1];
+  }
+
+  /**
+   * Number of entries available for iteration; this may be less than
+   * {@link #numTotal()} for top-k adapters.
+   *
+   * @return Number of entries
+   */
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public int numPositive() {
+    return numPositive;
+  }
+
+  @Override
+  public int numTotal() {
+    return numTotal;
+  }
+}
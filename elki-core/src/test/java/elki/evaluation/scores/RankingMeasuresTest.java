@@ -0,0 +1,59 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.evaluation.scores;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import elki.evaluation.scores.adapter.ScoreArrayAdapter;
+
+/**
+ * Test the single-pass evaluation against the individual measures.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class RankingMeasuresTest {
+  @Test
+  public void testAgainstIndividual() {
+    Random rnd = new Random(0L);
+    final int size = 1000;
+    double[] scores = new double[size];
+    int[] labels = new int[size];
+    for(int i = 0; i < size; i++) {
+      // Few distinct values, to produce many ties
+      scores[i] = rnd.nextInt(50);
+      labels[i] = rnd.nextDouble() < scores[i] / 100. ? 1 : 0;
+    }
+    ScoreArrayAdapter adapter = ScoreArrayAdapter.sort(scores, labels, size, false);
+    RankingMeasures m = RankingMeasures.evaluate(adapter, 0);
+    assertEquals("AUROC", ROCEvaluation.STATIC.evaluate(adapter.seek(0)), m.getAUROC(), 0.);
+    assertEquals("AUPRC", AUPRCEvaluation.STATIC.evaluate(adapter.seek(0)), m.getAUPRC(), 0.);
+    assertEquals("AveP", AveragePrecisionEvaluation.STATIC.evaluate(adapter.seek(0)), m.getAveragePrecision(), 0.);
+    assertEquals("R-Precision", PrecisionAtKEvaluation.RPRECISION.evaluate(adapter.seek(0)), m.getPrecisionAtK(), 0.);
+    assertEquals("Max F1", MaximumF1Evaluation.STATIC.evaluate(adapter.seek(0)), m.getMaximumF1(), 0.);
+    RankingMeasures m10 = RankingMeasures.evaluate(adapter.seek(0), 10);
+    assertEquals("P@10", new PrecisionAtKEvaluation(10).evaluate(adapter.seek(0)), m10.getPrecisionAtK(), 0.);
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.evaluation.scores.adapter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Test the primitive array adapter.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class ScoreArrayAdapterTest {
+  @Test
+  public void testSortLarge() {
+    Random rnd = new Random(0L);
+    final int size = 300000; // Large enough for a parallel sort
+    double[] scores = new double[size];
+    int[] labels = new int[size];
+    for(int i = 0; i < size; i++) {
+      scores[i] = rnd.nextInt(1000);
+      labels[i] = (int) scores[i];
+    }
+    double[] expect = scores.clone();
+    Arrays.sort(expect);
+    ScoreArrayAdapter adapter = ScoreArrayAdapter.sort(scores, labels, size, false);
+    for(int i = 0; adapter.valid(); adapter.advance(), i++) {
+      assertEquals("Not sorted descending.", expect[size - 1 - i], adapter.score(), 0.);
+      assertEquals("Label does not match.", (int) adapter.score(), labels[i]);
+    }
+    ScoreArrayAdapter.sort(scores, labels, size, true);
+    assertTrue("Not sorted ascending.", Arrays.equals(expect, scores));
+  }
+
+  @Test
+  public void testNaNAndTopK() {
+    double[] scores = { 1., Double.NaN, 3., 2., 3., 0. };
+    int[] labels = { 0, 1, 1, 0, 1, 0 };
+    ScoreArrayAdapter top = ScoreArrayAdapter.topK(scores, labels, scores.length, false, 3);
+    assertEquals("Wrong size.", 3, top.size());
+    assertEquals("Wrong positive count.", 3, top.numPositive());
+    assertEquals("Wrong total count.", 6, top.numTotal());
+    assertTrue("NaN not first.", Double.isNaN(top.score()));
+    assertEquals("Wrong second score.", 3., top.advance().score(), 0.);
+    assertEquals("Wrong third score.", 3., top.advance().score(), 0.);
+    assertTrue("Not tied.", top.tiedToPrevious());
+    ScoreArrayAdapter asc = ScoreArrayAdapter.topK(scores, labels, scores.length, true, 2);
+    assertEquals("Wrong first score.", 0., asc.score(), 0.);
+    assertFalse("Wrong first label.", asc.test());
+    assertEquals("Wrong second score.", 1., asc.advance().score(), 0.);
+    ScoreArrayAdapter all = ScoreArrayAdapter.sort(scores, labels, scores.length, true);
+    assertTrue("NaN not last.", Double.isNaN(scores[5]));
+    assertEquals("Wrong positive count.", 3, all.numPositive());
+  }
+}
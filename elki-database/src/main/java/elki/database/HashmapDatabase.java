@@ -22,6 +22,7 @@ package elki.database;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 import elki.data.type.SimpleTypeInformation;
 import elki.database.ids.*;
@@ -128,9 +129,15 @@ public class HashmapDatabase extends AbstractDatabase implements UpdatableDataba
     ArrayModifiableDBIDs newids = DBIDUtil.newArray(objpackages.dataLength());
     Relation<?>[] targets = alignColumns(objpackages);
 
+    for(int i = 0; i < targets.length; i++) {
+      if(!(targets[i] instanceof ModifiableRelation)) {
+        throw new AbortException("Non-modifiable relations have been added to the database.");
+      }
+    }
+
     DBIDVar var = DBIDUtil.newVar();
     for(int j = 0; j < objpackages.dataLength(); j++) {
-      // insert object
+      // assign object id
       if(!objpackages.assignDBID(j, var)) {
         var.set(DBIDUtil.generateSingleDBID());
       }
@@ -138,16 +145,18 @@ public class HashmapDatabase extends AbstractDatabase implements UpdatableDataba
         throw new AbortException("Duplicate DBID conflict.");
       }
       ids.add(var);
-      for(int i = 0; i < targets.length; i++) {
-        if(!(targets[i] instanceof ModifiableRelation)) {
-          throw new AbortException("Non-modifiable relations have been added to the database.");
-        }
-        @SuppressWarnings("unchecked")
-        final ModifiableRelation<Object> relation = (ModifiableRelation<Object>) targets[i];
-        relation.insert(var, objpackages.data(j, i));
-      }
       newids.add(var);
     }
+    // insert objects, such that indexes can be updated in one batch
+    for(int i = 0; i < targets.length; i++) {
+      List<Object> column = new ArrayList<>(objpackages.dataLength());
+      for(int j = 0; j < objpackages.dataLength(); j++) {
+        column.add(objpackages.data(j, i));
+      }
+      @SuppressWarnings("unchecked")
+      final ModifiableRelation<Object> relation = (ModifiableRelation<Object>) targets[i];
+      relation.insertAll(newids, column);
+    }
 
     // fire insertion event
     eventManager.fireObjectsInserted(newids);
@@ -0,0 +1,566 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.database.query;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+
+import elki.data.type.FieldTypeInformation;
+import elki.data.type.TypeInformation;
+import elki.database.ids.DBIDIter;
+import elki.database.ids.DBIDRef;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.DBIDs;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.query.range.RangeSearcher;
+import elki.database.relation.ProxyView;
+import elki.database.relation.Relation;
+import elki.distance.Distance;
+import elki.index.DistancePriorityIndex;
+import elki.index.Index;
+import elki.logging.Logging;
+import elki.result.Metadata;
+import elki.utilities.Alias;
+
+/**
+ * Query optimizer that chooses between a linear scan and the automatically
+ * added indexes based on measured costs rather than fixed rules.
+ * <p>
+ * For each combination of query kind, parameter, distance function and
+ * dimensionality, the candidate plans are benchmarked on two random samples of
+ * the data, and power-law models of the construction and query costs are
+ * fitted to the measurements. These are extrapolated to the full data set,
+ * assuming one query per object, as is the usual access pattern of the
+ * algorithms, and the cheapest plan is chosen. Existing indexes are probed
+ * with a few queries, and skipped if a linear scan is expected to be faster.
+ * <p>
+ * The fitted models are kept in a {@link QueryCostProfile}, which can be
+ * stored in a file given by the environment variable
+ * {@code elki.optimizer.profile}, such that later runs do not need to repeat
+ * the calibration. This optimizer can be enabled by setting the environment
+ * variable {@code elki.optimizer} to {@code calibrated}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - QueryCostProfile
+ */
+@Alias("calibrated")
+public class CalibratedQueryOptimizer extends EmpiricalQueryOptimizer {
+  /**
+   * Class logger.
+   */
+  private static final Logging LOG = Logging.getLogger(CalibratedQueryOptimizer.class);
+
+  /**
+   * Environment variable for the cost profile file.
+   */
+  public static final String PROFILE_ENV = "elki.optimizer.profile";
+
+  /**
+   * Default size of the larger calibration sample.
+   */
+  public static final int DEFAULT_SAMPLE_SIZE = 4096;
+
+  /**
+   * Minimum size of the smaller calibration sample.
+   */
+  private static final int MIN_SAMPLE_SIZE = 64;
+
+  /**
+   * Number of queries to time.
+   */
+  private static final int NUM_QUERIES = 32;
+
+  /**
+   * Number of repetitions of each measurement, of which the fastest is used.
+   */
+  private static final int REPEATS = 3;
+
+  /**
+   * Random seed for sampling, for reproducible plans.
+   */
+  private static final long SEED = 0L;
+
+  /**
+   * Query plans.
+   */
+  enum Plan {
+    /** Linear scan */
+    LINEAR,
+    /** Cover tree */
+    COVER_TREE,
+    /** k-d-tree */
+    KD_TREE;
+  }
+
+  /**
+   * Query kinds.
+   */
+  enum QueryKind {
+    /** kNN queries */
+    KNN("knn"),
+    /** Range queries */
+    RANGE("range");
+
+    /**
+     * Name, as used in the profile keys.
+     */
+    private final String name;
+
+    /**
+     * Constructor.
+     *
+     * @param name Name, as used in the profile keys
+     */
+    QueryKind(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * File to store the profile in, may be {@code null}.
+   */
+  private final Path file;
+
+  /**
+   * Cost profile.
+   */
+  private final QueryCostProfile profile;
+
+  /**
+   * Size of the larger calibration sample.
+   */
+  private final int sampleSize;
+
+  /**
+   * Decisions for existing indexes.
+   */
+  private final Map<Index, Map<String, Boolean>> decisions = Collections.synchronizedMap(new WeakHashMap<>());
+
+  /**
+   * Constructor, using the environment for the profile location.
+   */
+  public CalibratedQueryOptimizer() {
+    this(profileFromEnvironment(), DEFAULT_SAMPLE_SIZE);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file Profile file, may be {@code null}
+   * @param sampleSize Size of the larger calibration sample
+   */
+  public CalibratedQueryOptimizer(Path file, int sampleSize) {
+    super();
+    this.file = file;
+    this.profile = file != null ? QueryCostProfile.load(file) : new QueryCostProfile();
+    this.sampleSize = sampleSize;
+  }
+
+  /**
+   * Get the profile file from the environment.
+   *
+   * @return File, or {@code null}
+   */
+  private static Path profileFromEnvironment() {
+    String name = System.getenv(PROFILE_ENV);
+    return name != null && !name.isEmpty() ? Paths.get(name) : null;
+  }
+
+  /**
+   * Get the cost profile.
+   *
+   * @return Profile
+   */
+  public QueryCostProfile getProfile() {
+    return profile;
+  }
+
+  @Override
+  public <O> KNNSearcher<O> kNNByObject(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, int maxk, int flags) {
+    if((flags & QueryBuilder.FLAG_PRECOMPUTE) != 0) {
+      return super.kNNByObject(relation, distanceQuery, maxk, flags);
+    }
+    Plan plan = choosePlan(relation, distanceQuery.getDistance(), QueryKind.KNN, QueryBuilder.probeK(maxk));
+    if(plan == null) {
+      return super.kNNByObject(relation, distanceQuery, maxk, flags);
+    }
+    DistancePriorityIndex<O> idx = makeIndex(plan, relation, distanceQuery.getDistance(), flags);
+    return idx != null ? idx.kNNByObject(distanceQuery, maxk, flags) : null;
+  }
+
+  @Override
+  public <O> KNNSearcher<DBIDRef> kNNByDBID(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, int maxk, int flags) {
+    if((flags & QueryBuilder.FLAG_PRECOMPUTE) != 0) {
+      return super.kNNByDBID(relation, distanceQuery, maxk, flags);
+    }
+    Plan plan = choosePlan(relation, distanceQuery.getDistance(), QueryKind.KNN, QueryBuilder.probeK(maxk));
+    if(plan == null) {
+      return super.kNNByDBID(relation, distanceQuery, maxk, flags);
+    }
+    DistancePriorityIndex<O> idx = makeIndex(plan, relation, distanceQuery.getDistance(), flags);
+    return idx != null ? idx.kNNByDBID(distanceQuery, maxk, flags) : null;
+  }
+
+  @Override
+  public <O> RangeSearcher<O> rangeByObject(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    if((flags & QueryBuilder.FLAG_PRECOMPUTE) != 0 || maxrange == Double.POSITIVE_INFINITY) {
+      return super.rangeByObject(relation, distanceQuery, maxrange, flags);
+    }
+    Plan plan = choosePlan(relation, distanceQuery.getDistance(), QueryKind.RANGE, maxrange);
+    if(plan == null) {
+      return super.rangeByObject(relation, distanceQuery, maxrange, flags);
+    }
+    DistancePriorityIndex<O> idx = makeIndex(plan, relation, distanceQuery.getDistance(), flags);
+    return idx != null ? idx.rangeByObject(distanceQuery, maxrange, flags) : null;
+  }
+
+  @Override
+  public <O> RangeSearcher<DBIDRef> rangeByDBID(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    if((flags & QueryBuilder.FLAG_PRECOMPUTE) != 0 || maxrange == Double.POSITIVE_INFINITY) {
+      return super.rangeByDBID(relation, distanceQuery, maxrange, flags);
+    }
+    Plan plan = choosePlan(relation, distanceQuery.getDistance(), QueryKind.RANGE, maxrange);
+    if(plan == null) {
+      return super.rangeByDBID(relation, distanceQuery, maxrange, flags);
+    }
+    DistancePriorityIndex<O> idx = makeIndex(plan, relation, distanceQuery.getDistance(), flags);
+    return idx != null ? idx.rangeByDBID(distanceQuery, maxrange, flags) : null;
+  }
+
+  @Override
+  public <O> boolean useIndexForKNN(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, Index index, int k, Consumer<DBIDRef> probe) {
+    return useIndex(relation, distanceQuery, index, QueryKind.KNN, k, probe);
+  }
+
+  @Override
+  public <O> boolean useIndexForRange(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, Index index, double range, Consumer<DBIDRef> probe) {
+    return useIndex(relation, distanceQuery, index, QueryKind.RANGE, range, probe);
+  }
+
+  /**
+   * Decide whether an existing index should be used, by timing a few queries
+   * and comparing to the calibrated cost of a linear scan.
+   *
+   * @param relation Data relation
+   * @param distanceQuery Distance query
+   * @param index Index that offered a searcher
+   * @param kind Query kind
+   * @param param Query parameter
+   * @param probe Callback to run a single query
+   * @param <O> Object type
+   * @return {@code false} if the index should not be used
+   */
+  private <O> boolean useIndex(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, Index index, QueryKind kind, double param, Consumer<DBIDRef> probe) {
+    final int n = relation.size();
+    if(n < MIN_SAMPLE_SIZE << 2) {
+      return true;
+    }
+    final String key = kind + "|" + format(param);
+    Map<String, Boolean> known = decisions.computeIfAbsent(index, x -> Collections.synchronizedMap(new HashMap<>()));
+    Boolean decision = known.get(key);
+    if(decision != null) {
+      return decision;
+    }
+    double[] linear = getModel(Plan.LINEAR, relation, distanceQuery.getDistance(), kind, param);
+    if(file != null) {
+      profile.save(file);
+    }
+    if(linear.length == 0) {
+      return true;
+    }
+    DBIDs queries = DBIDUtil.randomSample(relation.getDBIDs(), Math.min(NUM_QUERIES, n), new Random(SEED));
+    final double indexcost = timeQueries(queries, probe);
+    final double linearcost = predict(linear[2], linear[3], n);
+    decision = indexcost <= linearcost;
+    known.put(key, decision);
+    if(LOG.isVerbose()) {
+      LOG.verbose("Optimizer: " + (decision ? "using" : "not using") + " index " + index + " for " + kind + " queries" //
+          + " (estimated " + formatTime(indexcost) + " per query, linear scan " + formatTime(linearcost) + ")");
+    }
+    return decision;
+  }
+
+  /**
+   * Choose the cheapest plan for a query.
+   *
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param kind Query kind
+   * @param param Query parameter
+   * @param <O> Object type
+   * @return Cheapest plan, or {@code null} if the data is too small to
+   *         calibrate
+   */
+  private <O> Plan choosePlan(Relation<? extends O> relation, Distance<? super O> distance, QueryKind kind, double param) {
+    final int n = relation.size();
+    if(Math.min(n, sampleSize) < MIN_SAMPLE_SIZE << 2) {
+      return null;
+    }
+    Plan best = null;
+    double bestcost = Double.POSITIVE_INFINITY;
+    StringBuilder buf = LOG.isVerbose() ? new StringBuilder(200) : null;
+    for(Plan plan : Plan.values()) {
+      double[] model = getModel(plan, relation, distance, kind, param);
+      if(model.length == 0) {
+        continue;
+      }
+      // Construction cost plus one query per object
+      double cost = predict(model[0], model[1], n) + n * predict(model[2], model[3], n);
+      if(buf != null) {
+        buf.append(buf.length() > 0 ? ", " : "").append(plan).append(": ").append(formatTime(cost));
+      }
+      if(cost < bestcost) {
+        best = plan;
+        bestcost = cost;
+      }
+    }
+    if(file != null) {
+      profile.save(file);
+    }
+    if(buf != null && best != null) {
+      LOG.verbose("Optimizer: chose " + best + " for " + kind + " queries (estimated total " + buf + ")");
+    }
+    return best;
+  }
+
+  /**
+   * Get the cost model of a plan, calibrating it if necessary.
+   *
+   * @param plan Query plan
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param kind Query kind
+   * @param param Query parameter
+   * @param <O> Object type
+   * @return Cost model (construction factor and exponent, query factor and
+   *         exponent), or an empty array if the plan is not applicable
+   */
+  private <O> double[] getModel(Plan plan, Relation<? extends O> relation, Distance<? super O> distance, QueryKind kind, double param) {
+    final TypeInformation type = relation.getDataTypeInformation();
+    final int dim = type instanceof FieldTypeInformation ? ((FieldTypeInformation) type).getDimensionality() : -1;
+    final String key = plan + "|" + kind + "|" + format(param) + "|" + distance.getClass().getName() + "|" + dim;
+    double[] model = profile.get(key);
+    if(model == null) {
+      model = calibrate(plan, relation, distance, kind, param);
+      profile.put(key, model);
+    }
+    return model;
+  }
+
+  /**
+   * Benchmark a plan on two samples, and fit power-law cost models.
+   *
+   * @param plan Query plan
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param kind Query kind
+   * @param param Query parameter
+   * @param <O> Object type
+   * @return Cost model, or an empty array if the plan is not applicable
+   */
+  private <O> double[] calibrate(Plan plan, Relation<? extends O> relation, Distance<? super O> distance, QueryKind kind, double param) {
+    final int m2 = Math.min(relation.size(), sampleSize), m1 = m2 >> 2;
+    // Discard the first measurement, to warm up the JIT compiler.
+    measure(plan, relation, distance, kind, param, m1);
+    double[] t1 = measure(plan, relation, distance, kind, param, m1);
+    if(t1 == null) {
+      return new double[0];
+    }
+    double[] t2 = measure(plan, relation, distance, kind, param, m2);
+    if(t2 == null) {
+      return new double[0];
+    }
+    // Construction is at least linear, queries are at most linear:
+    final double r = Math.log((double) m2 / m1);
+    final double ba = plan == Plan.LINEAR ? 0. : exponent(t1[0], t2[0], r, 1., 2.);
+    final double qa = plan == Plan.LINEAR ? 1. : exponent(t1[1], t2[1], r, 0., 1.);
+    if(LOG.isDebugging()) {
+      LOG.debug("Calibrated " + plan + " for " + kind + " queries: construction ~ n^" + ba + ", query ~ n^" + qa);
+    }
+    return new double[] { t2[0] / Math.pow(m2, ba), ba, t2[1] / Math.pow(m2, qa), qa };
+  }
+
+  /**
+   * Measure the construction and per-query cost of a plan on a sample,
+   * repeatedly, and keep the fastest times.
+   *
+   * @param plan Query plan
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param kind Query kind
+   * @param param Query parameter
+   * @param size Sample size
+   * @param <O> Object type
+   * @return Construction time and time per query, in nanoseconds, or
+   *         {@code null} if the plan is not applicable
+   */
+  @SuppressWarnings("unchecked")
+  private <O> double[] measure(Plan plan, Relation<? extends O> relation, Distance<? super O> distance, QueryKind kind, double param, int size) {
+    DBIDs ids = DBIDUtil.newHashSet(DBIDUtil.randomSample(relation.getDBIDs(), size, new Random(SEED)));
+    Relation<O> sample = new ProxyView<>(ids, (Relation<O>) relation);
+    DistanceQuery<O> dq = distance.instantiate(sample);
+    DBIDs queries = DBIDUtil.randomSample(ids, Math.min(NUM_QUERIES, size), new Random(SEED));
+    double[] best = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+    for(int i = 0; i < REPEATS; i++) {
+      long start = System.nanoTime();
+      DistancePriorityIndex<O> idx = null;
+      if(plan != Plan.LINEAR) {
+        idx = plan == Plan.COVER_TREE ? newCoverTree(sample, distance) : newKDTree(sample, distance);
+        if(idx == null) {
+          return null;
+        }
+        idx.initialize();
+      }
+      best[0] = Math.min(best[0], System.nanoTime() - start);
+      Consumer<DBIDRef> probe = makeProbe(idx, dq, kind, param);
+      if(probe == null) {
+        return null;
+      }
+      best[1] = Math.min(best[1], timeQueries(queries, probe));
+    }
+    return best;
+  }
+
+  /**
+   * Make a callback to run a single query on a sample.
+   *
+   * @param idx Index, {@code null} for a linear scan
+   * @param dq Distance query on the sample
+   * @param kind Query kind
+   * @param param Query parameter
+   * @param <O> Object type
+   * @return Query callback, or {@code null} if not supported
+   */
+  private static <O> Consumer<DBIDRef> makeProbe(DistancePriorityIndex<O> idx, DistanceQuery<O> dq, QueryKind kind, double param) {
+    if(kind == QueryKind.KNN) {
+      final int k = (int) param;
+      KNNSearcher<DBIDRef> s = idx != null ? idx.kNNByDBID(dq, k, 0) : new QueryBuilder<>(dq).linearOnly().kNNByDBID(k);
+      return s != null ? id -> s.getKNN(id, k) : null;
+    }
+    RangeSearcher<DBIDRef> s = idx != null ? idx.rangeByDBID(dq, param, 0) : new QueryBuilder<>(dq).linearOnly().rangeByDBID(param);
+    return s != null ? id -> s.getRange(id, param) : null;
+  }
+
+  /**
+   * Time a set of queries, after running them once to warm up.
+   *
+   * @param queries Query objects
+   * @param probe Query callback
+   * @return Average time per query, in nanoseconds
+   */
+  private static double timeQueries(DBIDs queries, Consumer<DBIDRef> probe) {
+    for(DBIDIter it = queries.iter(); it.valid(); it.advance()) {
+      probe.accept(it);
+    }
+    final long start = System.nanoTime();
+    for(DBIDIter it = queries.iter(); it.valid(); it.advance()) {
+      probe.accept(it);
+    }
+    return (System.nanoTime() - start) / (double) queries.size();
+  }
+
+  /**
+   * Build the index of a plan on the full data.
+   *
+   * @param plan Query plan
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param flags Optimizer flags
+   * @param <O> Object type
+   * @return Index, or {@code null} for a linear scan
+   */
+  private <O> DistancePriorityIndex<O> makeIndex(Plan plan, Relation<? extends O> relation, Distance<? super O> distance, int flags) {
+    if(plan == Plan.LINEAR) {
+      return null;
+    }
+    DistancePriorityIndex<O> idx = plan == Plan.COVER_TREE ? newCoverTree(relation, distance) : newKDTree(relation, distance);
+    if(idx == null) {
+      return null;
+    }
+    LOG.verbose("Optimizer: automatically adding a " + (plan == Plan.COVER_TREE ? "cover tree" : "k-d-tree") + " index.");
+    idx.initialize();
+    if((flags & QueryBuilder.FLAG_NO_CACHE) == 0) {
+      Metadata.hierarchyOf(relation).addWeakChild(idx);
+    }
+    return idx;
+  }
+
+  /**
+   * Fit the exponent of a power law to two measurements.
+   *
+   * @param t1 Smaller measurement
+   * @param t2 Larger measurement
+   * @param r Logarithm of the ratio of the sample sizes
+   * @param min Minimum exponent
+   * @param max Maximum exponent
+   * @return Exponent
+   */
+  private static double exponent(double t1, double t2, double r, double min, double max) {
+    return t1 > 0 && t2 > 0 ? Math.max(min, Math.min(max, Math.log(t2 / t1) / r)) : max;
+  }
+
+  /**
+   * Predict the cost with a power-law model.
+   *
+   * @param factor Factor
+   * @param exponent Exponent
+   * @param n Data size
+   * @return Cost
+   */
+  private static double predict(double factor, double exponent, int n) {
+    return factor * Math.pow(n, exponent);
+  }
+
+  /**
+   * Format a query parameter for use in a key.
+   *
+   * @param param Parameter
+   * @return String
+   */
+  private static String format(double param) {
+    return param == (int) param ? Integer.toString((int) param) : Double.toString(param);
+  }
+
+  /**
+   * Format a duration in nanoseconds.
+   *
+   * @param nanos Duration
+   * @return Formatted duration
+   */
+  private static String formatTime(double nanos) {
+    return String.format(Locale.ROOT, "%.3f ms", nanos * 1e-6);
+  }
+}
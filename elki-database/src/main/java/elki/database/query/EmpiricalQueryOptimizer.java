@@ -333,17 +333,40 @@ public class EmpiricalQueryOptimizer implements QueryOptimizer {
     }
   }
 
-  private <O> DistancePriorityIndex<O> makeCoverTree(Relation<? extends O> relation, Distance<? super O> distance) {
+  /**
+   * Build a cover tree, if applicable.
+   *
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param <O> Object type
+   * @return Initialized index, or {@code null}
+   */
+  protected <O> DistancePriorityIndex<O> makeCoverTree(Relation<? extends O> relation, Distance<? super O> distance) {
     // TODO: make sure there is no such cover tree already!
+    // TODO: auto-tune parameters based on dimensionality or sample?
+    DistancePriorityIndex<O> idx = newCoverTree(relation, distance);
+    if(idx != null) {
+      LOG.verbose("Optimizer: automatically adding a cover tree index.");
+      idx.initialize();
+    }
+    return idx;
+  }
+
+  /**
+   * Instantiate a cover tree, if applicable, without initializing it.
+   *
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param <O> Object type
+   * @return Index, or {@code null}
+   */
+  protected <O> DistancePriorityIndex<O> newCoverTree(Relation<? extends O> relation, Distance<? super O> distance) {
     if(coverIndex == null || !distance.isMetric()) {
       return null;
     }
-    // TODO: auto-tune parameters based on dimensionality or sample?
     try {
       @SuppressWarnings("unchecked")
       DistancePriorityIndex<O> idx = (DistancePriorityIndex<O>) coverIndex.newInstance(relation, distance);
-      LOG.verbose("Optimizer: automatically adding a cover tree index.");
-      idx.initialize();
       return idx;
     }
     catch(InstantiationException | IllegalAccessException
@@ -353,20 +376,46 @@ public class EmpiricalQueryOptimizer implements QueryOptimizer {
     return null;
   }
 
-  private <O> DistancePriorityIndex<O> makeKDTree(Relation<? extends O> relation, Distance<? super O> distance) {
+  /**
+   * Build a k-d-tree, if applicable.
+   *
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param <O> Object type
+   * @return Initialized index, or {@code null}
+   */
+  protected <O> DistancePriorityIndex<O> makeKDTree(Relation<? extends O> relation, Distance<? super O> distance) {
     // TODO: make sure there is no such k-d-tree already!
+    TypeInformation type = relation.getDataTypeInformation();
+    if(type instanceof FieldTypeInformation && ((FieldTypeInformation) type).getDimensionality() > 20) {
+      return null;
+    }
+    DistancePriorityIndex<O> idx = newKDTree(relation, distance);
+    if(idx != null) {
+      LOG.verbose("Optimizer: automatically adding a k-d-tree index.");
+      idx.initialize();
+    }
+    return idx;
+  }
+
+  /**
+   * Instantiate a k-d-tree, if applicable, without initializing it.
+   *
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param <O> Object type
+   * @return Index, or {@code null}
+   */
+  protected <O> DistancePriorityIndex<O> newKDTree(Relation<? extends O> relation, Distance<? super O> distance) {
     TypeInformation type = relation.getDataTypeInformation();
     if(kdIndex == null // not available
         || !TypeUtil.NUMBER_VECTOR_FIELD.isAssignableFromType(type) //
-        || !(distance instanceof LPNormDistance || distance instanceof SquaredEuclideanDistance) //
-        || ((FieldTypeInformation) type).getDimensionality() > 20) {
+        || !(distance instanceof LPNormDistance || distance instanceof SquaredEuclideanDistance)) {
       return null;
     }
     try {
       @SuppressWarnings("unchecked")
       DistancePriorityIndex<O> idx = (DistancePriorityIndex<O>) kdIndex.newInstance(relation, 5);
-      LOG.verbose("Optimizer: automatically adding a k-d-tree index.");
-      idx.initialize();
       return idx;
     }
     catch(InstantiationException | IllegalAccessException
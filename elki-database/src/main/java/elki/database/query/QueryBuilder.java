@@ -21,6 +21,7 @@
 package elki.database.query;
 
 import java.util.Objects;
+import java.util.function.Consumer;
 
 import elki.data.NumberVector;
 import elki.database.ids.DBIDRef;
@@ -114,6 +115,11 @@ public class QueryBuilder<O> {
    */
   private static final QueryOptimizer OPTIMIZER = initStaticOptimizer();
 
+  /**
+   * Number of neighbors used for probing an index, if no maximum k is given.
+   */
+  private static final int PROBE_K = 10;
+
   /**
    * Relation to query.
    */
@@ -347,6 +353,10 @@ public class QueryBuilder<O> {
     flags ^= precompute; // Restore
     for(It<KNNIndex<O>> it = Metadata.hierarchyOf(relation).iterChildrenReverse().filter(KNNIndex.class); it.valid(); it.advance()) {
       KNNSearcher<O> q = it.get().kNNByObject(distanceQuery, maxk, flags);
+      final int k = probeK(maxk);
+      if(q != null && !useIndexForKNN(it.get(), distanceQuery, k, id -> q.getKNN(relation.get(id), k))) {
+        continue;
+      }
       logUsing(it.get(), "kNN", q != null);
       if(q != null) {
         return q;
@@ -398,6 +408,10 @@ public class QueryBuilder<O> {
     flags ^= precompute; // Restore
     for(It<KNNIndex<O>> it = Metadata.hierarchyOf(relation).iterChildrenReverse().filter(KNNIndex.class); it.valid(); it.advance()) {
       KNNSearcher<DBIDRef> q = it.get().kNNByDBID(distanceQuery, maxk, flags);
+      final int k = probeK(maxk);
+      if(q != null && !useIndexForKNN(it.get(), distanceQuery, k, id -> q.getKNN(id, k))) {
+        continue;
+      }
       logUsing(it.get(), "kNN", q != null);
       if(q != null) {
         return q;
@@ -449,6 +463,10 @@ public class QueryBuilder<O> {
     flags ^= precompute; // Restore
     for(It<RangeIndex<O>> it = Metadata.hierarchyOf(relation).iterChildrenReverse().filter(RangeIndex.class); it.valid(); it.advance()) {
       RangeSearcher<O> q = it.get().rangeByObject(distanceQuery, maxrange, flags);
+      if(q != null && maxrange < Double.POSITIVE_INFINITY //
+          && !useIndexForRange(it.get(), distanceQuery, maxrange, id -> q.getRange(relation.get(id), maxrange))) {
+        continue;
+      }
       if(LOG.isDebuggingFinest()) {
         LOG.debugFinest((q != null ? "Using" : "Not using") + " index for range query: " + it.get());
       }
@@ -503,6 +521,10 @@ public class QueryBuilder<O> {
     flags ^= precompute; // Restore
     for(It<RangeIndex<O>> it = Metadata.hierarchyOf(relation).iterChildrenReverse().filter(RangeIndex.class); it.valid(); it.advance()) {
       RangeSearcher<DBIDRef> q = it.get().rangeByDBID(distanceQuery, maxrange, flags);
+      if(q != null && maxrange < Double.POSITIVE_INFINITY //
+          && !useIndexForRange(it.get(), distanceQuery, maxrange, id -> q.getRange(id, maxrange))) {
+        continue;
+      }
       if(LOG.isDebuggingFinest()) {
         LOG.debugFinest((q != null ? "Using" : "Not using") + " index for range query: " + it.get());
       }
@@ -818,6 +840,63 @@ public class QueryBuilder<O> {
     return new LinearScanPrioritySearcher.ByDBID<>(distanceQuery);
   }
 
+  /**
+   * Ask the optimizer whether an existing index should be used for kNN
+   * queries, or a linear scan is expected to be faster.
+   *
+   * @param index Index
+   * @param distanceQuery Distance query
+   * @param k Number of neighbors to probe with
+   * @param probe Callback to run a single query
+   * @return true if the index should be used
+   */
+  private boolean useIndexForKNN(Index index, DistanceQuery<O> distanceQuery, int k, Consumer<DBIDRef> probe) {
+    return (flags & (FLAGS_NO_OPTIMIZER | FLAG_OPTIMIZED_ONLY)) != 0 //
+        || OPTIMIZER.useIndexForKNN(relation, distanceQuery, index, k, probe) //
+        || logIndexSkipped(index, "kNN");
+  }
+
+  /**
+   * Ask the optimizer whether an existing index should be used for range
+   * queries, or a linear scan is expected to be faster.
+   *
+   * @param index Index
+   * @param distanceQuery Distance query
+   * @param range Query radius
+   * @param probe Callback to run a single query
+   * @return true if the index should be used
+   */
+  private boolean useIndexForRange(Index index, DistanceQuery<O> distanceQuery, double range, Consumer<DBIDRef> probe) {
+    return (flags & (FLAGS_NO_OPTIMIZER | FLAG_OPTIMIZED_ONLY)) != 0 //
+        || OPTIMIZER.useIndexForRange(relation, distanceQuery, index, range, probe) //
+        || logIndexSkipped(index, "range");
+  }
+
+  /**
+   * Log that an index is not used, because a linear scan is expected to be
+   * faster.
+   *
+   * @param index Index
+   * @param kind Query kind, for logging
+   * @return false
+   */
+  private static boolean logIndexSkipped(Index index, String kind) {
+    if(LOG.isDebuggingFinest()) {
+      LOG.debugFinest("Not using index for " + kind + " query, a linear scan is expected to be faster: " + index);
+    }
+    return false;
+  }
+
+  /**
+   * Number of neighbors to use for probing an index.
+   *
+   * @param maxk Maximum k
+   * @return k to probe with
+   */
+  static int probeK(int maxk) {
+    return maxk < Integer.MAX_VALUE ? maxk : PROBE_K;
+  }
+
   /**
    * Log if we use a particular index.
    *
@@ -0,0 +1,172 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.database.query;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import elki.logging.Logging;
+
+/**
+ * Measured costs of query plans, used by the {@link CalibratedQueryOptimizer}.
+ * <p>
+ * The profile is a text file with one entry per line, consisting of a key and
+ * tab-separated numbers. Lines starting with {@code #} are comments. The file
+ * is replaced atomically when saved, so it can be shared by subsequent runs.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class QueryCostProfile {
+  /**
+   * Class logger.
+   */
+  private static final Logging LOG = Logging.getLogger(QueryCostProfile.class);
+
+  /**
+   * Cost entries.
+   */
+  private final Map<String, double[]> costs = new HashMap<>();
+
+  /**
+   * Flag for changes since loading.
+   */
+  private boolean modified = false;
+
+  /**
+   * Get the costs stored for a key.
+   *
+   * @param key Key
+   * @return Costs, or {@code null}
+   */
+  public synchronized double[] get(String key) {
+    return costs.get(key);
+  }
+
+  /**
+   * Store the costs for a key.
+   *
+   * @param key Key, must not contain tabs or line breaks
+   * @param values Costs
+   */
+  public synchronized void put(String key, double... values) {
+    assert key.indexOf('\t') < 0 && key.indexOf('\n') < 0 : "Invalid key: " + key;
+    costs.put(key, values);
+    modified = true;
+  }
+
+  /**
+   * Number of entries.
+   *
+   * @return Size
+   */
+  public synchronized int size() {
+    return costs.size();
+  }
+
+  /**
+   * Load a cost profile. If the file does not exist or cannot be read, an
+   * empty profile is returned.
+   *
+   * @param file File name
+   * @return Profile
+   */
+  public static QueryCostProfile load(Path file) {
+    QueryCostProfile profile = new QueryCostProfile();
+    if(!Files.exists(file)) {
+      return profile;
+    }
+    try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      for(String line; (line = in.readLine()) != null;) {
+        if(line.isEmpty() || line.charAt(0) == '#') {
+          continue;
+        }
+        String[] parts = line.split("\t", -1);
+        double[] values = new double[parts.length - 1];
+        for(int i = 1; i < parts.length; i++) {
+          values[i - 1] = Double.parseDouble(parts[i]);
+        }
+        profile.costs.put(parts[0], values);
+      }
+      if(LOG.isVerbose()) {
+        LOG.verbose("Loaded " + profile.costs.size() + " query cost entries from " + file);
+      }
+    }
+    catch(IOException | NumberFormatException e) {
+      LOG.warning("Query cost profile " + file + " could not be read: " + e.getMessage());
+      profile.costs.clear();
+    }
+    return profile;
+  }
+
+  /**
+   * Save the cost profile, if it was modified.
+   *
+   * @param file File name
+   */
+  public synchronized void save(Path file) {
+    if(!modified) {
+      return;
+    }
+    List<String> keys = new ArrayList<>(costs.keySet());
+    Collections.sort(keys);
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+        out.append("# ELKI query cost profile").append('\n');
+        for(String key : keys) {
+          out.append(key);
+          for(double v : costs.get(key)) {
+            out.append('\t').append(Double.toString(v));
+          }
+          out.append('\n');
+        }
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch(AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      modified = false;
+    }
+    catch(IOException e) {
+      LOG.warning("Query cost profile " + file + " could not be written: " + e.getMessage());
+      try {
+        Files.deleteIfExists(tmp);
+      }
+      catch(IOException e2) {
+        // Ignore.
+      }
+    }
+  }
+}
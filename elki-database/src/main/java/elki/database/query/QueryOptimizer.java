@@ -20,6 +20,8 @@
  */
 package elki.database.query;
 
+import java.util.function.Consumer;
+
 import elki.database.ids.DBIDRef;
 import elki.database.query.distance.DistanceQuery;
 import elki.database.query.knn.KNNSearcher;
@@ -28,6 +30,7 @@ import elki.database.query.rknn.RKNNSearcher;
 import elki.database.query.similarity.SimilarityQuery;
 import elki.database.relation.Relation;
 import elki.distance.Distance;
+import elki.index.Index;
 import elki.similarity.Similarity;
 
 /**
@@ -203,4 +206,36 @@ public interface QueryOptimizer {
   default <O> PrioritySearcher<DBIDRef> priorityByDBID(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, double maxrange, int flags) {
     return null;
   };
+
+  /**
+   * Decide whether an existing index should be used to answer kNN queries, or
+   * if a linear scan is expected to be faster.
+   *
+   * @param <O> Object type
+   * @param relation Data relation
+   * @param distanceQuery distance query
+   * @param index Index that offered a searcher
+   * @param k Number of neighbors to query
+   * @param probe Callback to run a single query for an object of the relation
+   * @return {@code false} if the index should not be used
+   */
+  default <O> boolean useIndexForKNN(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, Index index, int k, Consumer<DBIDRef> probe) {
+    return true;
+  }
+
+  /**
+   * Decide whether an existing index should be used to answer range queries,
+   * or if a linear scan is expected to be faster.
+   *
+   * @param <O> Object type
+   * @param relation Data relation
+   * @param distanceQuery distance query
+   * @param index Index that offered a searcher
+   * @param range Query radius
+   * @param probe Callback to run a single query for an object of the relation
+   * @return {@code false} if the index should not be used
+   */
+  default <O> boolean useIndexForRange(Relation<? extends O> relation, DistanceQuery<O> distanceQuery, Index index, double range, Consumer<DBIDRef> probe) {
+    return true;
+  }
 }
@@ -20,6 +20,9 @@
  */
 package elki.database.relation;
 
+import java.util.Iterator;
+import java.util.List;
+
 import elki.data.type.SimpleTypeInformation;
 import elki.database.datastore.DataStore;
 import elki.database.datastore.DataStoreFactory;
@@ -129,6 +132,24 @@ public class MaterializedRelation<O> implements ModifiableRelation<O> {
     }
   }
 
+  @Override
+  public void insertAll(DBIDs ids, List<? extends O> vals) {
+    if(!(content instanceof WritableDataStore)) {
+      throw new AbortException("Data is stored in a non-writable data store. Modifications are not possible.");
+    }
+    Iterator<? extends O> vi = vals.iterator();
+    for(DBIDIter iter = ids.iter(); iter.valid(); iter.advance()) {
+      assert (this.ids.contains(iter)) : "Object not yet in DBIDs.";
+      ((WritableDataStore<O>) content).put(iter, vi.next());
+    }
+    for(It<Index> it = Metadata.hierarchyOf(this).iterDescendants().filter(Index.class); it.valid(); it.advance()) {
+      if(!(it.get() instanceof DynamicIndex)) {
+        throw new AbortException("A non-dynamic index was added to this database. Modifications are not allowed, unless this index is removed.");
+      }
+      ((DynamicIndex) it.get()).insertAll(ids);
+    }
+  }
+
   /**
    * Delete an objects values.
    *
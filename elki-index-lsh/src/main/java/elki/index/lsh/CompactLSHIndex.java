@@ -0,0 +1,500 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.lsh;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import elki.data.type.TypeInformation;
+import elki.database.ids.*;
+import elki.database.query.QueryBuilder;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.query.range.RangeSearcher;
+import elki.database.relation.Relation;
+import elki.index.AbstractRefiningIndex;
+import elki.index.IndexFactory;
+import elki.index.KNNIndex;
+import elki.index.RangeIndex;
+import elki.index.lsh.hashfamilies.LocalitySensitiveHashFunctionFamily;
+import elki.index.lsh.hashfunctions.LocalitySensitiveHashFunction;
+import elki.index.snapshot.Fingerprint;
+import elki.logging.Logging;
+import elki.logging.statistics.Duration;
+import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.exceptions.AbortException;
+import elki.utilities.optionhandling.OptionID;
+import elki.utilities.optionhandling.Parameterizer;
+import elki.utilities.optionhandling.constraints.CommonConstraints;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
+import elki.utilities.optionhandling.parameters.IntParameter;
+import elki.utilities.optionhandling.parameters.ObjectParameter;
+
+/**
+ * Locality Sensitive Hashing with compact hash tables.
+ * <p>
+ * Instead of a hash map of buckets, each table is stored as two integer
+ * arrays: the hash codes of all objects in sorted order, and the offsets of the
+ * corresponding objects in the relation. A bucket is found by binary search.
+ * This needs only two integers per object and table, the tables are built in
+ * parallel by sorting, and they can be written to a file and memory-mapped
+ * from there again in a later run. Because the tables store the full hash
+ * codes, no bucket count needs to be chosen.
+ * <p>
+ * Hash functions are not stored in the file, but regenerated from the hash
+ * family; so the random seed of the family needs to be fixed when reusing a
+ * file. The file header contains a {@link Fingerprint} of all objects and of
+ * the hash functions; a file that does not match is rebuilt.
+ * <p>
+ * Multi-probe querying is supported as in {@link InMemoryLSHIndex}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - LocalitySensitiveHashFunctionFamily
+ * @has - - - Instance
+ *
+ * @param <V> Object type to index
+ */
+public class CompactLSHIndex<V> implements IndexFactory<V> {
+  /**
+   * Class logger
+   */
+  private static final Logging LOG = Logging.getLogger(CompactLSHIndex.class);
+
+  /**
+   * Magic number of the file format.
+   */
+  private static final int MAGIC = 0x4C534832;
+
+  /**
+   * Size of the file header, in integers: magic, number of tables, number of
+   * objects, and the two halves of the fingerprint.
+   */
+  private static final int HEADER_SIZE = 5;
+
+  /**
+   * LSH hash function family to use.
+   */
+  LocalitySensitiveHashFunctionFamily<? super V> family;
+
+  /**
+   * Number of hash tables to use.
+   */
+  int l;
+
+  /**
+   * Number of buckets to probe in each hash table.
+   */
+  int probes;
+
+  /**
+   * File to store the tables in, may be {@code null}.
+   */
+  Path file;
+
+  /**
+   * Constructor.
+   *
+   * @param family Projection family
+   * @param l Number of hash tables to use
+   * @param probes Number of buckets to probe in each hash table
+   * @param file File to store the tables in, may be {@code null}
+   */
+  public CompactLSHIndex(LocalitySensitiveHashFunctionFamily<? super V> family, int l, int probes, Path file) {
+    super();
+    this.family = family;
+    this.l = l;
+    this.probes = probes;
+    this.file = file;
+  }
+
+  @Override
+  public Instance instantiate(Relation<V> relation) {
+    return new Instance(relation, family.generateHashFunctions(relation, l));
+  }
+
+  @Override
+  public TypeInformation getInputTypeRestriction() {
+    return family.getInputTypeRestriction();
+  }
+
+  /**
+   * Instance of a LSH index for a single relation.
+   * <p>
+   * The data layout is: a header, then for each table the sorted hash codes
+   * followed by the corresponding object offsets.
+   *
+   * @author Erich Schubert
+   *
+   * @has - - - LocalitySensitiveHashFunction
+   */
+  public class Instance extends AbstractRefiningIndex<V> implements KNNIndex<V>, RangeIndex<V> {
+    /**
+     * Hash functions to use.
+     */
+    ArrayList<? extends LocalitySensitiveHashFunction<? super V>> hashfunctions;
+
+    /**
+     * Objects, in offset order.
+     */
+    ArrayDBIDs ids;
+
+    /**
+     * Hash tables, see the class documentation for the layout.
+     */
+    IntBuffer data;
+
+    /**
+     * Constructor.
+     *
+     * @param relation Relation to index.
+     * @param hashfunctions Hash functions.
+     */
+    public Instance(Relation<V> relation, ArrayList<? extends LocalitySensitiveHashFunction<? super V>> hashfunctions) {
+      super(relation);
+      this.hashfunctions = hashfunctions;
+    }
+
+    @Override
+    public void initialize() {
+      ids = DBIDUtil.ensureArray(relation.getDBIDs());
+      final int size = ids.size(), numhash = hashfunctions.size();
+      if(HEADER_SIZE + 2L * numhash * size > Integer.MAX_VALUE >>> 2) {
+        throw new AbortException("Too many hash tables or objects for a compact LSH index.");
+      }
+      Duration dur = LOG.isStatistics() ? LOG.newDuration(CompactLSHIndex.class.getName() + ".construction-time").begin() : null;
+      final long fingerprint = file != null ? fingerprint() : 0L;
+      if(file == null || !load(fingerprint)) {
+        int[] buf = build(fingerprint);
+        data = file != null ? write(buf) : IntBuffer.wrap(buf);
+      }
+      if(dur != null) {
+        LOG.statistics(dur.end());
+        LOG.statistics(new LongStatistic(CompactLSHIndex.class.getName() + ".hashtables", numhash));
+      }
+    }
+
+    /**
+     * Fingerprint of the data and the hash functions, to validate stored
+     * tables.
+     *
+     * @return Fingerprint
+     */
+    private long fingerprint() {
+      Fingerprint fp = new Fingerprint(CompactLSHIndex.class) //
+          .add(family.getClass().getName()).add(relation);
+      return InMemoryLSHIndex.addHashFunctions(fp, relation, hashfunctions).get();
+    }
+
+    /**
+     * Build the hash tables in parallel, one task per table.
+     *
+     * @param fingerprint Fingerprint of data and hash functions
+     * @return Table data
+     */
+    private int[] build(long fingerprint) {
+      final int size = ids.size(), numhash = hashfunctions.size();
+      final int[] buf = new int[HEADER_SIZE + 2 * numhash * size];
+      buf[0] = MAGIC;
+      buf[1] = numhash;
+      buf[2] = size;
+      buf[3] = (int) (fingerprint >>> 32);
+      buf[4] = (int) fingerprint;
+      List<Callable<Void>> tasks = new ArrayList<>(numhash);
+      for(int i = 0; i < numhash; i++) {
+        final LocalitySensitiveHashFunction<? super V> hashfunc = hashfunctions.get(i);
+        final int start = tableStart(i);
+        tasks.add(() -> {
+          double[] pbuf = new double[hashfunc.getNumberOfProjections()];
+          // Sort by hash code, then by offset:
+          long[] pairs = new long[size];
+          for(DBIDArrayIter it = ids.iter(); it.valid(); it.advance()) {
+            pairs[it.getOffset()] = ((long) hashfunc.hashObject(relation.get(it), pbuf) << 32) | it.getOffset();
+          }
+          Arrays.sort(pairs);
+          for(int j = 0; j < size; j++) {
+            buf[start + j] = (int) (pairs[j] >>> 32);
+            buf[start + size + j] = (int) pairs[j];
+          }
+          return null;
+        });
+      }
+      ParallelExecutor.run(tasks);
+      return buf;
+    }
+
+    /**
+     * Write the tables to the file, and map them from there.
+     *
+     * @param buf Table data
+     * @return Mapped table data
+     */
+    private IntBuffer write(int[] buf) {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, //
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0, buf.length * (long) Integer.BYTES);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(buf);
+        buffer.force();
+        return ints;
+      }
+      catch(IOException e) {
+        throw new AbortException("I/O error writing the LSH tables: " + e.getMessage(), e);
+      }
+    }
+
+    /**
+     * Map the tables from the file, if it matches the relation and hash
+     * functions.
+     *
+     * @param fingerprint Fingerprint of data and hash functions
+     * @return {@code true} when the tables were loaded
+     */
+    private boolean load(long fingerprint) {
+      if(!Files.exists(file)) {
+        return false;
+      }
+      final int size = ids.size(), numhash = hashfunctions.size();
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        final long expected = (HEADER_SIZE + 2L * numhash * size) * Integer.BYTES;
+        if(channel.size() != expected) {
+          LOG.warning("LSH table file size does not match, rebuilding.");
+          return false;
+        }
+        IntBuffer ints = channel.map(MapMode.READ_ONLY, 0, expected).asIntBuffer();
+        if(ints.get(0) != MAGIC || ints.get(1) != numhash || ints.get(2) != size) {
+          LOG.warning("LSH table file does not match the relation, rebuilding.");
+          return false;
+        }
+        if(ints.get(3) != (int) (fingerprint >>> 32) || ints.get(4) != (int) fingerprint) {
+          LOG.warning("LSH table file does not match the data or hash functions, rebuilding.");
+          return false;
+        }
+        data = ints;
+        return true;
+      }
+      catch(IOException e) {
+        throw new AbortException("I/O error reading the LSH tables: " + e.getMessage(), e);
+      }
+    }
+
+    /**
+     * Get the start of a hash table in the data.
+     *
+     * @param i Table number
+     * @return Position of the first hash code
+     */
+    private int tableStart(int i) {
+      return HEADER_SIZE + 2 * i * ids.size();
+    }
+
+    @Override
+    public Logging getLogger() {
+      return LOG;
+    }
+
+    @Override
+    public KNNSearcher<V> kNNByObject(DistanceQuery<V> distanceQuery, int maxk, int flags) {
+      return (flags & QueryBuilder.FLAG_EXACT_ONLY) == 0 && // approximate
+          family.isCompatible(distanceQuery.getDistance()) ? // compatible
+              new LSHKNNQuery(distanceQuery) : null;
+    }
+
+    @Override
+    public RangeSearcher<V> rangeByObject(DistanceQuery<V> distanceQuery, double maxradius, int flags) {
+      return (flags & QueryBuilder.FLAG_EXACT_ONLY) == 0 && // approximate
+          family.isCompatible(distanceQuery.getDistance()) ? // compatible
+              new LSHRangeQuery(distanceQuery) : null;
+    }
+
+    /**
+     * Get the candidates: points which have at least one hash bucket in common,
+     * or that are in one of the probed neighboring buckets.
+     *
+     * @param obj Query object
+     * @return Candidates
+     */
+    protected DBIDs getCandidates(V obj) {
+      final int size = ids.size(), numhash = hashfunctions.size();
+      ModifiableDBIDs candidates = DBIDUtil.newHashSet();
+      DBIDArrayIter it = ids.iter();
+      double[] buf = new double[hashfunctions.get(0).getNumberOfProjections()];
+      int[] hashes = new int[probes];
+      for(int i = 0; i < numhash; i++) {
+        final int start = tableStart(i), end = start + size;
+        final int numprobes = hashfunctions.get(i).hashProbes(obj, buf, hashes);
+        for(int j = 0; j < numprobes; j++) {
+          final int hash = hashes[j];
+          for(int p = firstIndex(start, end, hash); p < end && data.get(p) == hash; p++) {
+            candidates.add(it.seek(data.get(p + size)));
+          }
+        }
+      }
+      return candidates;
+    }
+
+    /**
+     * Find the first position of a hash code in a table.
+     *
+     * @param start Table start
+     * @param end Table end
+     * @param hash Hash code
+     * @return First position with a hash code of at least {@code hash}
+     */
+    private int firstIndex(int start, int end, int hash) {
+      while(start < end) {
+        final int mid = (start + end) >>> 1;
+        if(data.get(mid) < hash) {
+          start = mid + 1;
+        }
+        else {
+          end = mid;
+        }
+      }
+      return start;
+    }
+
+    /**
+     * Class for handling kNN queries against the LSH index.
+     *
+     * @author Erich Schubert
+     */
+    protected class LSHKNNQuery extends AbstractRefiningQuery implements KNNSearcher<V> {
+      /**
+       * Constructor.
+       *
+       * @param distanceQuery
+       */
+      public LSHKNNQuery(DistanceQuery<V> distanceQuery) {
+        super(distanceQuery);
+      }
+
+      @Override
+      public KNNList getKNN(V obj, int k) {
+        DBIDs candidates = getCandidates(obj);
+        // Refine.
+        KNNHeap heap = DBIDUtil.newHeap(k);
+        for(DBIDIter iter = candidates.iter(); iter.valid(); iter.advance()) {
+          final double dist = distanceQuery.distance(obj, iter);
+          super.incRefinements(1);
+          heap.insert(dist, iter);
+        }
+        return heap.toKNNList();
+      }
+    }
+
+    /**
+     * Class for handling range queries against the LSH index.
+     *
+     * @author Erich Schubert
+     */
+    protected class LSHRangeQuery extends AbstractRefiningQuery implements RangeSearcher<V> {
+      /**
+       * Constructor.
+       *
+       * @param distanceQuery
+       */
+      public LSHRangeQuery(DistanceQuery<V> distanceQuery) {
+        super(distanceQuery);
+      }
+
+      @Override
+      public ModifiableDoubleDBIDList getRange(V obj, double range, ModifiableDoubleDBIDList result) {
+        DBIDs candidates = getCandidates(obj);
+        // Refine.
+        for(DBIDIter iter = candidates.iter(); iter.valid(); iter.advance()) {
+          final double dist = distanceQuery.distance(obj, iter);
+          super.incRefinements(1);
+          if(dist <= range) {
+            result.add(dist, iter);
+          }
+        }
+        return result;
+      }
+    }
+  }
+
+  /**
+   * Parameterization class.
+   *
+   * @author Erich Schubert
+   */
+  public static class Par<V> implements Parameterizer {
+    /**
+     * File to store the hash tables in.
+     */
+    public static final OptionID FILE_ID = new OptionID("lsh.file", "File to store the hash tables in. If it exists and matches the data and hash functions, the tables are memory-mapped from the file instead of being rebuilt.");
+
+    /**
+     * LSH hash function family to use.
+     */
+    LocalitySensitiveHashFunctionFamily<? super V> family;
+
+    /**
+     * Number of hash tables.
+     */
+    int l;
+
+    /**
+     * Number of buckets to probe in each hash table.
+     */
+    int probes;
+
+    /**
+     * File to store the tables in.
+     */
+    Path file;
+
+    @Override
+    public void configure(Parameterization config) {
+      new ObjectParameter<LocalitySensitiveHashFunctionFamily<? super V>>(InMemoryLSHIndex.Par.FAMILY_ID, LocalitySensitiveHashFunctionFamily.class) //
+          .grab(config, x -> family = x);
+      new IntParameter(InMemoryLSHIndex.Par.L_ID) //
+          .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+          .grab(config, x -> l = x);
+      new IntParameter(InMemoryLSHIndex.Par.PROBES_ID, 1) //
+          .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+          .grab(config, x -> probes = x);
+      new FileParameter(FILE_ID, FileParameter.FileType.OUTPUT_FILE) //
+          .setOptional(true) //
+          .grab(config, x -> file = Paths.get(x));
+    }
+
+    @Override
+    public CompactLSHIndex<V> make() {
+      return new CompactLSHIndex<>(family, l, probes, file);
+    }
+  }
+}
@@ -20,8 +20,14 @@
  */
 package elki.index.lsh;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.List;
 
+import elki.data.type.FieldTypeInformation;
+import elki.data.type.SimpleTypeInformation;
 import elki.data.type.TypeInformation;
 import elki.database.ids.*;
 import elki.database.query.QueryBuilder;
@@ -35,6 +41,10 @@ import elki.index.KNNIndex;
 import elki.index.RangeIndex;
 import elki.index.lsh.hashfamilies.LocalitySensitiveHashFunctionFamily;
 import elki.index.lsh.hashfunctions.LocalitySensitiveHashFunction;
+import elki.index.snapshot.Fingerprint;
+import elki.index.snapshot.IndexSnapshot;
+import elki.index.snapshot.SnapshotInput;
+import elki.index.snapshot.SnapshotOutput;
 import elki.logging.Logging;
 import elki.logging.progress.FiniteProgress;
 import elki.logging.statistics.LongStatistic;
@@ -42,13 +52,25 @@ import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.Parameterizer;
 import elki.utilities.optionhandling.constraints.CommonConstraints;
 import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
 import elki.utilities.optionhandling.parameters.IntParameter;
 import elki.utilities.optionhandling.parameters.ObjectParameter;
 
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 
 /**
  * Locality Sensitive Hashing.
+ * <p>
+ * With multi-probe querying, neighboring buckets that are likely to contain
+ * near neighbors are probed, too. This needs far fewer hash tables for the
+ * same recall.
+ * <p>
+ * The hash tables can be stored in an {@link IndexSnapshot}, and are loaded
+ * from there in later runs on the same data. As the hash functions are not
+ * stored, but regenerated, the random seed of the hash family needs to be
+ * fixed for this; the snapshot is only used if the regenerated hash functions
+ * are identical.
  *
  * @author Erich Schubert
  * @since 0.6.0
@@ -79,6 +101,16 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
    */
   int numberOfBuckets;
 
+  /**
+   * Number of buckets to probe in each hash table.
+   */
+  int probes;
+
+  /**
+   * Snapshot file, may be {@code null}.
+   */
+  Path snapshot;
+
   /**
    * Constructor.
    *
@@ -87,10 +119,37 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
    * @param numberOfBuckets Number of buckets to use.
    */
   public InMemoryLSHIndex(LocalitySensitiveHashFunctionFamily<? super V> family, int l, int numberOfBuckets) {
+    this(family, l, numberOfBuckets, 1);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param family Projection family
+   * @param l Number of hash tables to use
+   * @param numberOfBuckets Number of buckets to use.
+   * @param probes Number of buckets to probe in each hash table
+   */
+  public InMemoryLSHIndex(LocalitySensitiveHashFunctionFamily<? super V> family, int l, int numberOfBuckets, int probes) {
+    this(family, l, numberOfBuckets, probes, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param family Projection family
+   * @param l Number of hash tables to use
+   * @param numberOfBuckets Number of buckets to use.
+   * @param probes Number of buckets to probe in each hash table
+   * @param snapshot Snapshot file, may be {@code null}
+   */
+  public InMemoryLSHIndex(LocalitySensitiveHashFunctionFamily<? super V> family, int l, int numberOfBuckets, int probes, Path snapshot) {
     super();
     this.family = family;
     this.l = l;
     this.numberOfBuckets = numberOfBuckets;
+    this.probes = probes;
+    this.snapshot = snapshot;
   }
 
   @Override
@@ -140,6 +199,88 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
 
     @Override
     public void initialize() {
+      if(snapshot == null) {
+        build();
+      }
+      else {
+        final long fingerprint = fingerprint();
+        if(!IndexSnapshot.load(snapshot, fingerprint, LOG, this::readSnapshot)) {
+          build();
+          IndexSnapshot.save(snapshot, fingerprint, LOG, this::writeSnapshot);
+        }
+      }
+      if(LOG.isStatistics()) {
+        final int numhash = hashtables.size();
+        int min = Integer.MAX_VALUE, max = 0;
+        for(int i = 0; i < numhash; i++) {
+          final Int2ObjectOpenHashMap<DBIDs> table = hashtables.get(i);
+          for(DBIDs set : table.values()) {
+            final int size = set.size();
+            min = size < min ? size : min;
+            max = size > max ? size : max;
+          }
+        }
+        LOG.statistics(new LongStatistic(this.getClass().getName() + ".fill.min", min));
+        LOG.statistics(new LongStatistic(this.getClass().getName() + ".fill.max", max));
+        LOG.statistics(new LongStatistic(this.getClass().getName() + ".hashtables", hashtables.size()));
+      }
+    }
+
+    /**
+     * Fingerprint of the data and parameters, including the regenerated hash
+     * functions.
+     *
+     * @return Fingerprint
+     */
+    private long fingerprint() {
+      Fingerprint fp = new Fingerprint(InMemoryLSHIndex.class) //
+          .add(family.getClass().getName()).add(numberOfBuckets).add(relation);
+      return addHashFunctions(fp, relation, hashfunctions).get();
+    }
+
+    /**
+     * Write the hash tables to a snapshot.
+     *
+     * @param out Snapshot output
+     * @throws IOException on write errors
+     */
+    private void writeSnapshot(SnapshotOutput out) throws IOException {
+      for(Int2ObjectOpenHashMap<DBIDs> table : hashtables) {
+        out.writeInt(table.size());
+        for(Int2ObjectMap.Entry<DBIDs> e : table.int2ObjectEntrySet()) {
+          out.writeInt(e.getIntKey());
+          out.writeDBIDs(e.getValue());
+        }
+      }
+    }
+
+    /**
+     * Read the hash tables from a snapshot.
+     *
+     * @param in Snapshot input
+     * @throws IOException on read errors
+     */
+    private void readSnapshot(SnapshotInput in) throws IOException {
+      final int numhash = hashfunctions.size();
+      ArrayList<Int2ObjectOpenHashMap<DBIDs>> tables = new ArrayList<>(numhash);
+      for(int i = 0; i < numhash; i++) {
+        final int size = in.readSize();
+        Int2ObjectOpenHashMap<DBIDs> table = new Int2ObjectOpenHashMap<>(Math.max(size, numberOfBuckets));
+        for(int j = 0; j < size; j++) {
+          final int bucket = in.readInt();
+          ArrayModifiableDBIDs ids = in.readDBIDs();
+          // Single objects are stored as DBID, as in the construction.
+          table.put(bucket, ids.size() == 1 ? DBIDUtil.deref(ids.iter()) : ids);
+        }
+        tables.add(table);
+      }
+      hashtables = tables;
+    }
+
+    /**
+     * Build the hash tables.
+     */
+    private void build() {
       final int numhash = hashfunctions.size();
       hashtables = new ArrayList<>(numhash);
       for(int i = 0; i < numhash; i++) {
@@ -176,20 +317,6 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
         LOG.incrementProcessed(progress);
       }
       LOG.ensureCompleted(progress);
-      if(LOG.isStatistics()) {
-        int min = Integer.MAX_VALUE, max = 0;
-        for(int i = 0; i < numhash; i++) {
-          final Int2ObjectOpenHashMap<DBIDs> table = hashtables.get(i);
-          for(DBIDs set : table.values()) {
-            final int size = set.size();
-            min = size < min ? size : min;
-            max = size > max ? size : max;
-          }
-        }
-        LOG.statistics(new LongStatistic(this.getClass().getName() + ".fill.min", min));
-        LOG.statistics(new LongStatistic(this.getClass().getName() + ".fill.max", max));
-        LOG.statistics(new LongStatistic(this.getClass().getName() + ".hashtables", hashtables.size()));
-      }
     }
 
     @Override
@@ -207,12 +334,13 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
     @Override
     public RangeSearcher<V> rangeByObject(DistanceQuery<V> distanceQuery, double maxradius, int flags) {
       return (flags & QueryBuilder.FLAG_EXACT_ONLY) == 0 && // approximate
-          !family.isCompatible(distanceQuery.getDistance()) ? // compatible
+          family.isCompatible(distanceQuery.getDistance()) ? // compatible
               new LSHRangeQuery(distanceQuery) : null;
     }
 
     /**
-     * Get the candidates: points which have at least one hash bucket in common.
+     * Get the candidates: points which have at least one hash bucket in common,
+     * or that are in one of the probed neighboring buckets.
      * 
      * @param obj Query object
      * @return Candidates
@@ -221,19 +349,22 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
       ModifiableDBIDs candidates = null;
       final int numhash = hashtables.size();
       double[] buf = new double[hashfunctions.get(0).getNumberOfProjections()];
+      int[] hashes = new int[probes];
       for(int i = 0; i < numhash; i++) {
         final Int2ObjectOpenHashMap<DBIDs> table = hashtables.get(i);
         final LocalitySensitiveHashFunction<? super V> hashfunc = hashfunctions.get(i);
-        // Get the initial (unbounded) hash code:
-        int hash = hashfunc.hashObject(obj, buf);
-        // Reduce to hash table size
-        int bucket = hash % numberOfBuckets;
-        DBIDs cur = table.get(bucket);
-        if(cur != null) {
-          if(candidates == null) {
-            candidates = DBIDUtil.newHashSet(cur.size() * numhash);
+        // Get the initial (unbounded) hash codes:
+        final int numprobes = hashfunc.hashProbes(obj, buf, hashes);
+        for(int j = 0; j < numprobes; j++) {
+          // Reduce to hash table size
+          int bucket = hashes[j] % numberOfBuckets;
+          DBIDs cur = table.get(bucket);
+          if(cur != null) {
+            if(candidates == null) {
+              candidates = DBIDUtil.newHashSet(cur.size() * numhash * numprobes);
+            }
+            candidates.addDBIDs(cur);
           }
-          candidates.addDBIDs(cur);
         }
       }
       return (candidates == null) ? DBIDUtil.EMPTYDBIDS : candidates;
@@ -299,6 +430,26 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
     }
   }
 
+  /**
+   * Add the hash functions to a fingerprint.
+   *
+   * @param <V> Object type
+   * @param fp Fingerprint
+   * @param relation Relation, for the dimensionality
+   * @param hashfunctions Hash functions
+   * @return Fingerprint
+   */
+  static <V> Fingerprint addHashFunctions(Fingerprint fp, Relation<? extends V> relation, List<? extends LocalitySensitiveHashFunction<? super V>> hashfunctions) {
+    final SimpleTypeInformation<?> type = relation.getDataTypeInformation();
+    final int dim = type instanceof FieldTypeInformation ? ((FieldTypeInformation) type).getDimensionality() : -1;
+    fp.add(hashfunctions.size());
+    for(LocalitySensitiveHashFunction<? super V> hashfunc : hashfunctions) {
+      fp.add(hashfunc.getClass().getName());
+      hashfunc.fingerprint(fp, dim);
+    }
+    return fp;
+  }
+
   /**
    * Parameterization class.
    *
@@ -320,6 +471,11 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
      */
     public static final OptionID BUCKETS_ID = new OptionID("lsh.buckets", "Number of hash buckets to use.");
 
+    /**
+     * Number of buckets to probe in each hash table (multi-probe LSH).
+     */
+    public static final OptionID PROBES_ID = new OptionID("lsh.probes", "Number of buckets to probe in each hash table (multi-probe LSH), including the bucket of the query itself.");
+
     /**
      * LSH hash function family to use.
      */
@@ -335,6 +491,16 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
      */
     int numberOfBuckets;
 
+    /**
+     * Number of buckets to probe in each hash table.
+     */
+    int probes;
+
+    /**
+     * Snapshot file.
+     */
+    Path snapshot;
+
     @Override
     public void configure(Parameterization config) {
       new ObjectParameter<LocalitySensitiveHashFunctionFamily<? super V>>(FAMILY_ID, LocalitySensitiveHashFunctionFamily.class) //
@@ -346,11 +512,17 @@ public class InMemoryLSHIndex<V> implements IndexFactory<V> {
           .setDefaultValue(7919) // Primes work best, apparently.
           .addConstraint(CommonConstraints.GREATER_THAN_ONE_INT) //
           .grab(config, x -> numberOfBuckets = x);
+      new IntParameter(PROBES_ID, 1) //
+          .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+          .grab(config, x -> probes = x);
+      new FileParameter(IndexSnapshot.SNAPSHOT_ID, FileParameter.FileType.OUTPUT_FILE) //
+          .setOptional(true) //
+          .grab(config, x -> snapshot = Paths.get(x));
     }
 
     @Override
     public InMemoryLSHIndex<V> make() {
-      return new InMemoryLSHIndex<>(family, l, numberOfBuckets);
+      return new InMemoryLSHIndex<>(family, l, numberOfBuckets, probes, snapshot);
     }
   }
 }
@@ -23,6 +23,7 @@ package elki.index.lsh.hashfunctions;
 import elki.data.NumberVector;
 import elki.data.projection.random.RandomProjectionFamily;
 import elki.data.projection.random.RandomProjectionFamily.Projection;
+import elki.index.snapshot.Fingerprint;
 import elki.utilities.documentation.Reference;
 
 /**
@@ -85,4 +86,9 @@ public class CosineLocalitySensitiveHashFunction implements LocalitySensitiveHas
   public int getNumberOfProjections() {
     return projection.getOutputDimensionality();
   }
+
+  @Override
+  public void fingerprint(Fingerprint fp, int dim) {
+    fp.add(projection, dim);
+  }
 }
@@ -20,6 +20,8 @@
  */
 package elki.index.lsh.hashfunctions;
 
+import elki.index.snapshot.Fingerprint;
+
 /**
  * Hash functions as used by locality sensitive hashing.
  *
@@ -46,10 +48,36 @@ public interface LocalitySensitiveHashFunction<V> {
    */
   int hashObject(V obj, double[] buf);
 
+  /**
+   * Compute the hash values to probe for an object (multi-probe LSH): the hash
+   * value of the object itself, followed by the hash values of the neighboring
+   * buckets in the order of their likelihood to contain near neighbors.
+   * <p>
+   * The default implementation only produces the hash value of the object.
+   *
+   * @param obj Object to hash
+   * @param buf Buffer, sized according to the number of projections.
+   * @param hashes Output array, sized according to the number of probes.
+   * @return Number of hash values produced
+   */
+  default int hashProbes(V obj, double[] buf, int[] hashes) {
+    hashes[0] = hashObject(obj, buf);
+    return 1;
+  }
+
   /**
    * Get the number of projections performed.
    *
    * @return Number of projections.
    */
   int getNumberOfProjections();
+
+  /**
+   * Add the hash function to a fingerprint, to validate stored hash tables
+   * against regenerated hash functions.
+   *
+   * @param fp Fingerprint
+   * @param dim Dimensionality of the input vectors, {@code -1} if unknown
+   */
+  void fingerprint(Fingerprint fp, int dim);
 }
@@ -20,10 +20,14 @@
  */
 package elki.index.lsh.hashfunctions;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import elki.data.NumberVector;
 import elki.data.projection.random.RandomProjectionFamily;
+import elki.index.snapshot.Fingerprint;
+import elki.utilities.datastructures.arrays.DoubleIntegerArrayQuickSort;
+import elki.utilities.datastructures.heap.DoubleObjectMinHeap;
 import elki.utilities.documentation.Reference;
 
 /**
@@ -35,6 +39,13 @@ import elki.utilities.documentation.Reference;
  * M. Datar, N. Immorlica, P. Indyk, V. S. Mirrokni<br>
  * Locality-sensitive hashing scheme based on p-stable distributions<br>
  * Proc. 20th Annual Symposium on Computational Geometry<br>
+ * <p>
+ * Multi-probe querying follows:
+ * <p>
+ * Q. Lv, W. Josephson, Z. Wang, M. Charikar, K. Li<br>
+ * Multi-Probe LSH: Efficient Indexing for High-Dimensional Similarity
+ * Search<br>
+ * Proc. 33rd Int. Conf. on Very Large Data Bases (VLDB'07)
  *
  * @author Erich Schubert
  * @since 0.6.0
@@ -44,6 +55,11 @@ import elki.utilities.documentation.Reference;
     booktitle = "Proc. 20th Annual Symposium on Computational Geometry", //
     url = "https://doi.org/10.1145/997817.997857", //
     bibkey = "DBLP:conf/compgeom/DatarIIM04")
+@Reference(authors = "Q. Lv, W. Josephson, Z. Wang, M. Charikar, K. Li", //
+    title = "Multi-Probe LSH: Efficient Indexing for High-Dimensional Similarity Search", //
+    booktitle = "Proc. 33rd Int. Conf. on Very Large Data Bases (VLDB'07)", //
+    url = "http://www.vldb.org/conf/2007/papers/research/p950-lv.pdf", //
+    bibkey = "DBLP:conf/vldb/LvJWCL07")
 public class MultipleProjectionsLocalitySensitiveHashFunction implements LocalitySensitiveHashFunction<NumberVector> {
   /**
    * Projection matrix.
@@ -118,6 +134,85 @@ public class MultipleProjectionsLocalitySensitiveHashFunction implements Localit
     return fastModPrime(t1sum);
   }
 
+  /**
+   * Compute the hash values to probe, using query-directed perturbation
+   * sequences: a perturbation moves the query by one bin along some of the
+   * projections, and is scored by the sum of squared distances of the query to
+   * the bin boundaries crossed. Perturbation sets are generated in increasing
+   * order of their score using shift and expand operations on a heap.
+   */
+  @Override
+  public int hashProbes(NumberVector vec, double[] buf, int[] hashes) {
+    projection.project(vec, buf);
+    final int num = shift.length, m = num << 1;
+    // Distances to the bin boundaries, and the corresponding perturbations
+    double[] z = new double[m];
+    int[] pert = new int[m];
+    long t1sum = 0L;
+    for(int i = 0; i < num; i++) {
+      final double p = (buf[i] + shift[i]) * iwidth, f = Math.floor(p);
+      t1sum += (randoms1[i] & MASK32) * (int) f; // unsigned math!
+      final double lower = p - f;
+      z[i << 1] = lower * lower; // Move to the previous bin
+      z[(i << 1) + 1] = (1 - lower) * (1 - lower); // Move to the next bin
+      pert[i << 1] = i << 1;
+      pert[(i << 1) + 1] = (i << 1) + 1;
+    }
+    hashes[0] = fastModPrime(t1sum);
+    if(hashes.length == 1) {
+      return 1;
+    }
+    DoubleIntegerArrayQuickSort.sort(z, pert, m);
+    DoubleObjectMinHeap<int[]> heap = new DoubleObjectMinHeap<>(hashes.length << 1);
+    heap.add(z[0], new int[] { 0 });
+    int n = 1;
+    while(n < hashes.length && !heap.isEmpty()) {
+      final double score = heap.peekKey();
+      final int[] set = heap.peekValue();
+      heap.poll();
+      final int last = set[set.length - 1];
+      if(last + 1 < m) {
+        // Shift: replace the last perturbation with the next one
+        int[] shifted = set.clone();
+        shifted[set.length - 1] = last + 1;
+        heap.add(score - z[last] + z[last + 1], shifted);
+        // Expand: add the next perturbation
+        int[] expanded = Arrays.copyOf(set, set.length + 1);
+        expanded[set.length] = last + 1;
+        heap.add(score + z[last + 1], expanded);
+      }
+      if(isValid(set, pert)) {
+        long t = t1sum;
+        for(int j : set) {
+          final int p = pert[j];
+          final long r = randoms1[p >>> 1] & MASK32; // unsigned math!
+          t += (p & 1) == 0 ? -r : r;
+        }
+        hashes[n++] = fastModPrime(t);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Check that a perturbation set moves along each projection at most once.
+   *
+   * @param set Perturbation set, as indexes into the sorted perturbations
+   * @param pert Sorted perturbations
+   * @return {@code true} if valid
+   */
+  private static boolean isValid(int[] set, int[] pert) {
+    for(int j = 1; j < set.length; j++) {
+      final int i = pert[set[j]] >>> 1;
+      for(int j2 = 0; j2 < j; j2++) {
+        if(pert[set[j2]] >>> 1 == i) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   /**
    * Fast modulo operation for the largest unsigned integer prime.
    *
@@ -140,4 +235,9 @@ public class MultipleProjectionsLocalitySensitiveHashFunction implements Localit
   public int getNumberOfProjections() {
     return this.projection.getOutputDimensionality();
   }
+
+  @Override
+  public void fingerprint(Fingerprint fp, int dim) {
+    fp.add(iwidth).add(shift).add(randoms1).add(projection, dim);
+  }
 }
@@ -0,0 +1,87 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.lsh;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import elki.index.AbstractIndexStructureTest;
+import elki.index.lsh.hashfamilies.EuclideanHashFunctionFamily;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Unit test for the {@link CompactLSHIndex}.
+ * <p>
+ * LSH is approximate, but with multi-probing and wide bins, it finds the exact
+ * neighbors on this small data set.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class CompactLSHIndexTest extends AbstractIndexStructureTest {
+  @Test
+  public void testCompactLSH() {
+    assertExactEuclidean(makeFactory(null), CompactLSHIndex.Instance.LSHKNNQuery.class, CompactLSHIndex.Instance.LSHRangeQuery.class);
+  }
+
+  @Test
+  public void testCompactLSHFile() throws IOException {
+    File file = File.createTempFile("elki-lsh", ".bin");
+    file.delete();
+    try {
+      // First run writes the file, second run maps it.
+      assertExactEuclidean(makeFactory(file.toPath()), CompactLSHIndex.Instance.LSHKNNQuery.class, CompactLSHIndex.Instance.LSHRangeQuery.class);
+      assertTrue("Index file was not written.", file.length() > 0);
+      assertExactEuclidean(makeFactory(file.toPath()), CompactLSHIndex.Instance.LSHKNNQuery.class, CompactLSHIndex.Instance.LSHRangeQuery.class);
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testStaleFile() throws IOException {
+    assertSnapshot(CompactLSHIndexTest::makeFactory);
+  }
+
+  /**
+   * Make the index factory. A new factory is needed for every run, so that the
+   * same hash functions are generated.
+   *
+   * @param file File to store the tables in, may be {@code null}
+   * @return Index factory
+   */
+  private static CompactLSHIndex<?> makeFactory(Path file) {
+    ELKIBuilder<CompactLSHIndex<?>> builder = new ELKIBuilder<CompactLSHIndex<?>>(CompactLSHIndex.class) //
+        .with(InMemoryLSHIndex.Par.FAMILY_ID, EuclideanHashFunctionFamily.class) //
+        .with(EuclideanHashFunctionFamily.Par.RANDOM_ID, 0L) //
+        .with(EuclideanHashFunctionFamily.Par.WIDTH_ID, .5) //
+        .with(EuclideanHashFunctionFamily.Par.NUMPROJ_ID, 3) //
+        .with(InMemoryLSHIndex.Par.L_ID, 3) //
+        .with(InMemoryLSHIndex.Par.PROBES_ID, 10);
+    return file != null ? builder.with(CompactLSHIndex.Par.FILE_ID, file.toString()).build() : builder.build();
+  }
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.lsh.hashfunctions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+import elki.data.DoubleVector;
+import elki.data.projection.random.GaussianRandomProjectionFamily;
+import elki.distance.minkowski.EuclideanDistance;
+import elki.utilities.datastructures.arrays.DoubleIntegerArrayQuickSort;
+import elki.utilities.random.RandomFactory;
+
+/**
+ * Unit test for multi-probing with
+ * {@link MultipleProjectionsLocalitySensitiveHashFunction}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class MultipleProjectionsLocalitySensitiveHashFunctionTest {
+  /**
+   * Dimensionality and number of projections.
+   */
+  private static final int DIM = 10, NUMPROJ = 4;
+
+  /**
+   * Bin width.
+   */
+  private static final double WIDTH = .5;
+
+  @Test
+  public void testFirstProbe() {
+    ArrayList<MultipleProjectionsLocalitySensitiveHashFunction> fs = makeHashFunctions(3);
+    DoubleVector[] data = makeData(100, new Random(0L));
+    double[] buf = new double[NUMPROJ];
+    int[] probes = new int[10];
+    for(MultipleProjectionsLocalitySensitiveHashFunction f : fs) {
+      for(DoubleVector v : data) {
+        assertEquals("Wrong number of probes", probes.length, f.hashProbes(v, buf, probes));
+        assertEquals("First probe is not the bucket of the object", f.hashObject(v), probes[0]);
+      }
+    }
+  }
+
+  @Test
+  public void testProbeRecall() {
+    final int l = 3, k = 10;
+    ArrayList<MultipleProjectionsLocalitySensitiveHashFunction> fs = makeHashFunctions(l);
+    DoubleVector[] data = makeData(1000, new Random(0L));
+    // Bucket of every object in every table:
+    int[][] buckets = new int[l][data.length];
+    for(int j = 0; j < l; j++) {
+      for(int i = 0; i < data.length; i++) {
+        buckets[j][i] = fs.get(j).hashObject(data[i]);
+      }
+    }
+    int found1 = 0, found10 = 0;
+    double[] dists = new double[data.length];
+    int[] order = new int[data.length];
+    for(int q = 0; q < data.length; q += 10) {
+      // Exact neighbors by linear scan, skipping the query itself:
+      for(int i = 0; i < data.length; i++) {
+        dists[i] = EuclideanDistance.STATIC.distance(data[q], data[i]);
+        order[i] = i;
+      }
+      DoubleIntegerArrayQuickSort.sort(dists, order, data.length);
+      found1 += countFound(fs, buckets, data[q], order, k, 1);
+      found10 += countFound(fs, buckets, data[q], order, k, 10);
+    }
+    assertTrue("Single probe finds all neighbors, test is not meaningful: " + found1, found1 < k * 100);
+    assertTrue("Multi-probing found fewer neighbors: " + found10 + " < " + found1, found10 >= found1);
+    assertTrue("Multi-probing did not find more neighbors: " + found10, found10 > found1);
+  }
+
+  /**
+   * Count the true neighbors in any of the probed buckets.
+   *
+   * @param fs Hash functions
+   * @param buckets Buckets of the data objects
+   * @param q Query object
+   * @param order Objects, sorted by distance to the query
+   * @param k Number of neighbors
+   * @param numprobes Number of probes
+   * @return Number of neighbors found
+   */
+  private static int countFound(ArrayList<MultipleProjectionsLocalitySensitiveHashFunction> fs, int[][] buckets, DoubleVector q, int[] order, int k, int numprobes) {
+    double[] buf = new double[NUMPROJ];
+    int[][] probes = new int[fs.size()][numprobes];
+    int[] nprobes = new int[fs.size()];
+    for(int j = 0; j < fs.size(); j++) {
+      nprobes[j] = fs.get(j).hashProbes(q, buf, probes[j]);
+    }
+    int found = 0;
+    for(int n = 1; n <= k; n++) {
+      candidates: for(int j = 0; j < fs.size(); j++) {
+        for(int p = 0; p < nprobes[j]; p++) {
+          if(buckets[j][order[n]] == probes[j][p]) {
+            found++;
+            break candidates;
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Generate hash functions with a fixed seed.
+   *
+   * @param l Number of hash functions
+   * @return Hash functions
+   */
+  private static ArrayList<MultipleProjectionsLocalitySensitiveHashFunction> makeHashFunctions(int l) {
+    GaussianRandomProjectionFamily proj = new GaussianRandomProjectionFamily(RandomFactory.get(0L));
+    Random rnd = new Random(0L);
+    ArrayList<MultipleProjectionsLocalitySensitiveHashFunction> fs = new ArrayList<>(l);
+    for(int i = 0; i < l; i++) {
+      fs.add(new MultipleProjectionsLocalitySensitiveHashFunction(proj.generateProjection(DIM, NUMPROJ), WIDTH, rnd));
+    }
+    return fs;
+  }
+
+  /**
+   * Generate uniform random data.
+   *
+   * @param size Data set size
+   * @param rnd Random generator
+   * @return Data
+   */
+  private static DoubleVector[] makeData(int size, Random rnd) {
+    DoubleVector[] data = new DoubleVector[size];
+    for(int i = 0; i < size; i++) {
+      double[] v = new double[DIM];
+      for(int d = 0; d < DIM; d++) {
+        v[d] = rnd.nextDouble();
+      }
+      data[i] = DoubleVector.wrap(v);
+    }
+    return data;
+  }
+}
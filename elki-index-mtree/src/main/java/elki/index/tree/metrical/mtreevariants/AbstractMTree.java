@@ -34,6 +34,7 @@ import elki.index.tree.metrical.MetricalIndexTree;
 import elki.index.tree.metrical.mtreevariants.strategies.split.distribution.Assignments;
 import elki.index.tree.metrical.mtreevariants.strategies.split.distribution.DistanceEntry;
 import elki.logging.Logging;
+import elki.logging.statistics.AtomicLongCounter;
 import elki.logging.statistics.Counter;
 import elki.logging.statistics.LongStatistic;
 import elki.persistent.PageFile;
@@ -145,7 +146,6 @@ public abstract class AbstractMTree<O, N extends AbstractMTreeNode<O, N, E>, E e
    * @param withPreInsert if this flag is true, the preInsert method will be
    *        called before inserting the object
    */
-  // todo: implement a bulk load for M-Tree and remove this method
   public void insert(E entry, boolean withPreInsert) {
     final Logging log = getLogger();
     if(log.isDebugging()) {
@@ -186,6 +186,10 @@ public abstract class AbstractMTree<O, N extends AbstractMTreeNode<O, N, E>, E e
    * @param entries Entries to insert
    */
   public void insertAll(List<E> entries) {
+    if(canBulkLoad(entries)) {
+      bulkLoad(entries);
+      return;
+    }
     if(!initialized && !entries.isEmpty()) {
       initialize(entries.get(0));
     }
@@ -194,6 +198,63 @@ public abstract class AbstractMTree<O, N extends AbstractMTreeNode<O, N, E>, E e
     }
   }
 
+  /**
+   * Test whether a bulk load is possible: a bulk loading strategy must be
+   * configured, and the tree must be empty.
+   * 
+   * @param entries Entries to insert
+   * @return {@code true} if the entries can be bulk loaded
+   */
+  protected boolean canBulkLoad(List<E> entries) {
+    return settings.bulkSplit != null && !entries.isEmpty() && //
+        (!initialized || getNode(getRootID()).getNumEntries() == 0);
+  }
+
+  /**
+   * Bulk load the tree bottom-up: the entries of each level are partitioned
+   * with the bulk loading strategy, and every group becomes a node of the
+   * next level, until the remaining entries fit into the root. Hence, all
+   * leaves are at the same depth.
+   * 
+   * @param entries Leaf entries, the tree must be empty
+   */
+  protected void bulkLoad(List<E> entries) {
+    if(!initialized) {
+      initialize(entries.get(0));
+    }
+    List<E> level = entries;
+    boolean leaf = true;
+    // Nodes may contain at most capacity - 1 entries.
+    while(level.size() >= (leaf ? leafCapacity : dirCapacity)) {
+      List<List<E>> groups = settings.bulkSplit.partition(this, level, (leaf ? leafCapacity : dirCapacity) - 1);
+      List<E> next = new ArrayList<>(groups.size());
+      for(List<E> group : groups) {
+        N node = leaf ? createNewLeafNode() : createNewDirectoryNode();
+        for(E e : group) {
+          node.addEntry(e);
+        }
+        writeNode(node);
+        next.add(createNewDirectoryEntry(node, group.get(0).getRoutingObjectID(), 0.));
+      }
+      if(getLogger().isDebugging()) {
+        getLogger().debugFine("Bulk load: " + next.size() + (leaf ? " leaf" : " directory") + " nodes");
+      }
+      level = next;
+      leaf = false;
+    }
+    // Replace the empty root:
+    N root = leaf ? createNewLeafNode() : createNewDirectoryNode();
+    root.setPageID(getRootID());
+    for(E e : level) {
+      e.setParentDistance(Double.NaN); // As for insertions into the root.
+      root.addEntry(e);
+    }
+    writeNode(root);
+    E rootEntry = getRootEntry();
+    root.adjustEntry(rootEntry, rootEntry.getRoutingObjectID(), rootEntry.getParentDistance(), this);
+    doExtraIntegrityChecks();
+  }
+
   @Override
   protected final void createEmptyRoot(E exampleLeaf) {
     writeNode(createNewLeafNode());
@@ -490,9 +551,10 @@ public abstract class AbstractMTree<O, N extends AbstractMTreeNode<O, N, E>, E e
     public Statistics() {
       super();
       Logging log = getLogger();
-      distanceCalcs = log.isStatistics() ? log.newCounter(this.getClass().getName() + ".distancecalcs") : null;
-      knnQueries = log.isStatistics() ? log.newCounter(this.getClass().getName() + ".knnqueries") : null;
-      rangeQueries = log.isStatistics() ? log.newCounter(this.getClass().getName() + ".rangequeries") : null;
+      // Atomic counters, as queries may run concurrently.
+      distanceCalcs = log.isStatistics() ? new AtomicLongCounter(this.getClass().getName() + ".distancecalcs") : null;
+      knnQueries = log.isStatistics() ? new AtomicLongCounter(this.getClass().getName() + ".knnqueries") : null;
+      rangeQueries = log.isStatistics() ? new AtomicLongCounter(this.getClass().getName() + ".rangequeries") : null;
     }
 
     /**
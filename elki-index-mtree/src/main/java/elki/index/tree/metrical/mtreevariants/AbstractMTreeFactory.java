@@ -24,6 +24,7 @@ import elki.data.type.TypeInformation;
 import elki.distance.Distance;
 import elki.distance.minkowski.EuclideanDistance;
 import elki.index.PagedIndexFactory;
+import elki.index.tree.metrical.mtreevariants.strategies.bulk.MTreeBulkSplit;
 import elki.index.tree.metrical.mtreevariants.strategies.insert.MTreeInsert;
 import elki.index.tree.metrical.mtreevariants.strategies.insert.MinimumEnlargementInsert;
 import elki.index.tree.metrical.mtreevariants.strategies.split.MLBDistSplit;
@@ -91,6 +92,11 @@ public abstract class AbstractMTreeFactory<O, N extends AbstractMTreeNode<O, N,
      */
     public static final OptionID INSERT_STRATEGY_ID = new OptionID("mtree.insert", "Insertion strategy to use for constructing the M-tree.");
 
+    /**
+     * Parameter to specify the bulk loading strategy.
+     */
+    public static final OptionID BULK_SPLIT_ID = new OptionID("mtree.bulkstrategy", "Bulk loading strategy to use for constructing the M-tree.");
+
     /**
      * Tree settings.
      */
@@ -106,6 +112,9 @@ public abstract class AbstractMTreeFactory<O, N extends AbstractMTreeNode<O, N,
           .grab(config, x -> settings.splitStrategy = x);
       new ObjectParameter<MTreeInsert<E, N>>(INSERT_STRATEGY_ID, MTreeInsert.class, MinimumEnlargementInsert.class) //
           .grab(config, x -> settings.insertStrategy = x);
+      new ObjectParameter<MTreeBulkSplit>(BULK_SPLIT_ID, MTreeBulkSplit.class) //
+          .setOptional(true) //
+          .grab(config, x -> settings.bulkSplit = x);
     }
 
     protected abstract S makeSettings();
@@ -21,6 +21,7 @@
 package elki.index.tree.metrical.mtreevariants;
 
 import elki.distance.Distance;
+import elki.index.tree.metrical.mtreevariants.strategies.bulk.MTreeBulkSplit;
 import elki.index.tree.metrical.mtreevariants.strategies.insert.MTreeInsert;
 import elki.index.tree.metrical.mtreevariants.strategies.split.MTreeSplit;
 
@@ -49,4 +50,9 @@ public class MTreeSettings<O, N extends AbstractMTreeNode<O, N, E>, E extends MT
    * Insertion strategy.
    */
   protected MTreeInsert<E, N> insertStrategy;
+
+  /**
+   * Bulk loading strategy, may be {@code null}.
+   */
+  protected MTreeBulkSplit bulkSplit;
 }
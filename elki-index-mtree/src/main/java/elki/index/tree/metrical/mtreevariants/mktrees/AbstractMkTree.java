@@ -20,8 +20,11 @@
  */
 package elki.index.tree.metrical.mtreevariants.mktrees;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 import elki.database.ids.*;
 import elki.database.query.distance.DistanceQuery;
@@ -32,6 +35,8 @@ import elki.index.tree.metrical.mtreevariants.AbstractMTreeNode;
 import elki.index.tree.metrical.mtreevariants.MTreeEntry;
 import elki.index.tree.metrical.mtreevariants.MTreeSettings;
 import elki.index.tree.metrical.mtreevariants.query.MTreeKNNByDBID;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
 import elki.persistent.PageFile;
 
 /**
@@ -47,6 +52,11 @@ import elki.persistent.PageFile;
  * @param <S> the type of Settings kept.
  */
 public abstract class AbstractMkTree<O, N extends AbstractMTreeNode<O, N, E>, E extends MTreeEntry, S extends MTreeSettings<O, N, E>> extends AbstractMTree<O, N, E, S> {
+  /**
+   * Minimum number of kNN queries to run in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 8;
+
   /**
    * Internal class for performing knn queries
    */
@@ -105,11 +115,46 @@ public abstract class AbstractMkTree<O, N extends AbstractMTreeNode<O, N, E>, E
    */
   @Deprecated
   protected final Map<DBID, KNNList> batchNN(N node, DBIDs ids, int kmax) {
-    Map<DBID, KNNList> res = new HashMap<>(ids.size());
-    for(DBIDIter iter = ids.iter(); iter.valid(); iter.advance()) {
-      DBID id = DBIDUtil.deref(iter);
-      res.put(id, knnq.getKNN(id, kmax));
+    final ArrayDBIDs aids = DBIDUtil.ensureArray(ids);
+    final int size = aids.size();
+    final KNNList[] knns = new KNNList[size];
+    final ParallelCore core = ParallelCore.getCore();
+    final int parallelism = core.getParallelism();
+    if(size < PARALLEL_THRESHOLD || parallelism <= 1 || core.isWorkerThread()) {
+      batchNN(aids, kmax, knns, 0, size);
+    }
+    else {
+      // The queries are independent, and the tree is not modified meanwhile.
+      final int blocksize = (size + (parallelism << 2) - 1) / (parallelism << 2);
+      List<Callable<Void>> tasks = new ArrayList<>();
+      for(int start = 0; start < size; start += blocksize) {
+        final int s = start, e = Math.min(size, start + blocksize);
+        tasks.add(() -> {
+          batchNN(aids, kmax, knns, s, e);
+          return null;
+        });
+      }
+      ParallelExecutor.run(tasks);
+    }
+    Map<DBID, KNNList> res = new HashMap<>(size);
+    for(DBIDArrayIter iter = aids.iter(); iter.valid(); iter.advance()) {
+      res.put(DBIDUtil.deref(iter), knns[iter.getOffset()]);
     }
     return res;
   }
+
+  /**
+   * Perform the kNN queries for a range of objects.
+   * 
+   * @param ids Object ids
+   * @param kmax Maximum k value
+   * @param knns Output array
+   * @param start First offset
+   * @param end End offset (exclusive)
+   */
+  private void batchNN(ArrayDBIDs ids, int kmax, KNNList[] knns, int start, int end) {
+    for(DBIDArrayIter iter = ids.iter().seek(start); iter.getOffset() < end; iter.advance()) {
+      knns[iter.getOffset()] = knnq.getKNN(iter, kmax);
+    }
+  }
 }
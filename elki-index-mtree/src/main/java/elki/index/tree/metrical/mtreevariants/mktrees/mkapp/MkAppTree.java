@@ -112,11 +112,17 @@ public abstract class MkAppTree<O> extends AbstractMkTree<O, MkAppTreeNode<O>, M
     }
 
     ModifiableDBIDs ids = DBIDUtil.newArray(entries.size());
-    // insert
     for(MkAppEntry entry : entries) {
       ids.add(entry.getRoutingObjectID());
-      // insert the object
-      super.insert(entry, false);
+    }
+    if(canBulkLoad(entries)) {
+      bulkLoad(entries);
+    }
+    else {
+      // insert
+      for(MkAppEntry entry : entries) {
+        super.insert(entry, false);
+      }
     }
 
     Map<DBID, KNNList> knnLists = batchNN(getNode(getRootID()), ids, settings.kmax + 1);
@@ -333,6 +339,11 @@ public abstract class MkAppTree<O> extends AbstractMkTree<O, MkAppTreeNode<O>, M
       }
     }
 
+    // All neighbors are duplicates, log(0) in log-log space:
+    if(k_0 == settings.kmax) {
+      return new PolynomialApproximation(new double[] { Double.NEGATIVE_INFINITY });
+    }
+
     double[] x = new double[settings.kmax - k_0];
     double[] y = new double[settings.kmax - k_0];
 
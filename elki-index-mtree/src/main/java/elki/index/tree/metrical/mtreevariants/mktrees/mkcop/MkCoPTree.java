@@ -115,11 +115,17 @@ public abstract class MkCoPTree<O> extends AbstractMkTree<O, MkCoPTreeNode<O>, M
     }
 
     ModifiableDBIDs ids = DBIDUtil.newArray(entries.size());
-    // insert
     for(MkCoPEntry entry : entries) {
       ids.add(entry.getRoutingObjectID());
-      // insert the object
-      super.insert(entry, false);
+    }
+    if(canBulkLoad(entries)) {
+      bulkLoad(entries);
+    }
+    else {
+      // insert
+      for(MkCoPEntry entry : entries) {
+        super.insert(entry, false);
+      }
     }
 
     Map<DBID, KNNList> knnLists = batchNN(getNode(getRootID()), ids, settings.kmax);
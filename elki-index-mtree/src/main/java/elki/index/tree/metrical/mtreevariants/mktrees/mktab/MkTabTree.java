@@ -20,6 +20,7 @@
  */
 package elki.index.tree.metrical.mtreevariants.mktrees.mktab;
 
+import java.util.Arrays;
 import java.util.Map;
 
 import elki.database.ids.DBID;
@@ -138,11 +139,13 @@ public abstract class MkTabTree<O> extends AbstractMkTreeUnified<O, MkTabTreeNod
       for(int i = 0; i < node.getNumEntries(); i++) {
         MkTabLeafEntry leafEntry = (MkTabLeafEntry) node.getEntry(i);
         KNNList knns = knnLists.get(leafEntry.getDBID());
-        double[] distances = new double[knns.size()];
+        double[] distances = new double[getKmax()];
         int j = 0;
-        for(DoubleDBIDListIter iter = knns.iter(); iter.valid(); iter.advance(), j++) {
+        for(DoubleDBIDListIter iter = knns.iter(); iter.valid() && j < distances.length; iter.advance(), j++) {
           distances[j] = iter.doubleValue();
         }
+        // Too few neighbors, any object may be a reverse neighbor:
+        Arrays.fill(distances, j, distances.length, Double.POSITIVE_INFINITY);
         leafEntry.setKnnDistances(distances);
         // FIXME: save copy
         knnDistances_node = max(knnDistances_node, leafEntry.getKnnDistances());
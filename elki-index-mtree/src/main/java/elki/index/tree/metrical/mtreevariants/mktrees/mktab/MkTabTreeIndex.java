@@ -96,8 +96,8 @@ public class MkTabTreeIndex<O> extends MkTabTree<O> implements RangeIndex<O>, KN
     super.initialize();
     List<MkTabEntry> objs = new ArrayList<>(relation.size());
     for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
-      DBID id = DBIDUtil.deref(iter);
-      objs.add(createNewLeafEntry(id, id, Double.NaN));
+      // The kNN distances are computed after insertion, the tree is empty.
+      objs.add(new MkTabLeafEntry(DBIDUtil.deref(iter), Double.NaN, new double[getKmax()]));
     }
     insertAll(objs);
   }
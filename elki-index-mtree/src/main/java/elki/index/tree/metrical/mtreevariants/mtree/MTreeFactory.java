@@ -54,7 +54,7 @@ public class MTreeFactory<O> extends AbstractMTreeFactory<O, MTreeNode<O>, MTree
 
   @Override
   public MTreeIndex<O> instantiate(Relation<O> relation) {
-    PageFile<MTreeNode<O>> pagefile = makePageFile(getNodeClass());
+    PageFile<MTreeNode<O>> pagefile = makePageFile(getNodeClass(), new MTreeNodeSerializer<>());
     return new MTreeIndex<>(relation, pagefile, settings);
   }
 
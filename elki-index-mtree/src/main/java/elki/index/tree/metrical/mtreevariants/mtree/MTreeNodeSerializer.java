@@ -0,0 +1,109 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.metrical.mtreevariants.mtree;
+
+import java.nio.ByteBuffer;
+
+import elki.database.ids.DBIDUtil;
+import elki.index.tree.metrical.mtreevariants.MTreeDirectoryEntry;
+import elki.index.tree.metrical.mtreevariants.MTreeEntry;
+import elki.index.tree.metrical.mtreevariants.MTreeLeafEntry;
+import elki.utilities.io.ByteArrayUtil;
+import elki.utilities.io.ByteBufferSerializer;
+
+/**
+ * Binary serializer for M-tree nodes, using a fixed layout that can be decoded
+ * directly from a (memory-mapped) buffer.
+ * <p>
+ * Layout: page id, leaf flag, number of entries and capacity, followed by the
+ * entries. Leaf entries consist of the object id and the parent distance,
+ * directory entries of the page id, the routing object id, the parent
+ * distance and the covering radius.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @param <O> Object type
+ */
+public class MTreeNodeSerializer<O> implements ByteBufferSerializer<MTreeNode<O>> {
+  /**
+   * Size of the node header.
+   */
+  private static final int HEADER_SIZE = 3 * ByteArrayUtil.SIZE_INT + 1;
+
+  /**
+   * Size of a leaf entry.
+   */
+  private static final int LEAF_SIZE = ByteArrayUtil.SIZE_INT + ByteArrayUtil.SIZE_DOUBLE;
+
+  /**
+   * Size of a directory entry.
+   */
+  private static final int DIRECTORY_SIZE = 2 * ByteArrayUtil.SIZE_INT + 2 * ByteArrayUtil.SIZE_DOUBLE;
+
+  @Override
+  public MTreeNode<O> fromByteBuffer(ByteBuffer buffer) {
+    final int id = buffer.getInt();
+    final boolean isLeaf = buffer.get() != 0;
+    final int num = buffer.getInt(), capacity = buffer.getInt();
+    MTreeNode<O> node = new MTreeNode<>(capacity, isLeaf);
+    node.setPageID(id);
+    if(isLeaf) {
+      for(int i = 0; i < num; i++) {
+        final int dbid = buffer.getInt();
+        node.addEntry(new MTreeLeafEntry(DBIDUtil.importInteger(dbid), buffer.getDouble()));
+      }
+    }
+    else {
+      for(int i = 0; i < num; i++) {
+        final int child = buffer.getInt(), routing = buffer.getInt();
+        final double parentDistance = buffer.getDouble();
+        node.addEntry(new MTreeDirectoryEntry(DBIDUtil.importInteger(routing), parentDistance, child, buffer.getDouble()));
+      }
+    }
+    return node;
+  }
+
+  @Override
+  public void toByteBuffer(ByteBuffer buffer, MTreeNode<O> node) {
+    final int num = node.getNumEntries();
+    buffer.putInt(node.getPageID()).put((byte) (node.isLeaf() ? 1 : 0)) //
+        .putInt(num).putInt(node.getCapacity());
+    if(node.isLeaf()) {
+      for(int i = 0; i < num; i++) {
+        MTreeEntry e = node.getEntry(i);
+        buffer.putInt(DBIDUtil.asInteger(e.getRoutingObjectID())).putDouble(e.getParentDistance());
+      }
+    }
+    else {
+      for(int i = 0; i < num; i++) {
+        MTreeDirectoryEntry e = (MTreeDirectoryEntry) node.getEntry(i);
+        buffer.putInt(e.getPageID()).putInt(DBIDUtil.asInteger(e.getRoutingObjectID())) //
+            .putDouble(e.getParentDistance()).putDouble(e.getCoveringRadius());
+      }
+    }
+  }
+
+  @Override
+  public int getByteSize(MTreeNode<O> node) {
+    return HEADER_SIZE + node.getNumEntries() * (node.isLeaf() ? LEAF_SIZE : DIRECTORY_SIZE);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.metrical.mtreevariants.strategies.bulk;
+
+import java.util.List;
+
+import elki.index.tree.metrical.mtreevariants.AbstractMTree;
+import elki.index.tree.metrical.mtreevariants.MTreeEntry;
+
+/**
+ * Interface for partitioning the entries of one level of an M-tree bulk load.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public interface MTreeBulkSplit {
+  /**
+   * Partition the entries into groups of at most the given size. The first
+   * entry of each group is the routing object of the group, and the parent
+   * distances of all entries are set to the distance to the routing object.
+   *
+   * @param tree Tree to use
+   * @param entries Entries to partition
+   * @param maxEntries Maximum number of entries per group
+   * @param <E> Entry type
+   * @return Groups, routing object first
+   */
+  <E extends MTreeEntry> List<List<E>> partition(AbstractMTree<?, ?, E, ?> tree, List<E> entries, int maxEntries);
+}
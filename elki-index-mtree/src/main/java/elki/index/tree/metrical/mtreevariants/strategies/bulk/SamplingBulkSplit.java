@@ -0,0 +1,293 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.metrical.mtreevariants.strategies.bulk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import elki.index.tree.metrical.mtreevariants.AbstractMTree;
+import elki.index.tree.metrical.mtreevariants.MTreeEntry;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.documentation.Reference;
+import elki.utilities.optionhandling.OptionID;
+import elki.utilities.optionhandling.Parameterizer;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.RandomParameter;
+import elki.utilities.random.RandomFactory;
+
+/**
+ * Sampling-based bulk split for the M-tree.
+ * <p>
+ * A sample of seeds is drawn, and every entry is assigned to its nearest seed.
+ * Seeds with too few entries are dropped, and their entries reassigned.
+ * Clusters that are still too large are split recursively. With a fan-out of
+ * {@code f}, this needs {@code O(n f log n)} distance computations. The
+ * assignment to the seeds is done in parallel for large inputs.
+ * <p>
+ * Used level by level from the leaves upwards, this yields a balanced tree.
+ * <p>
+ * Reference:
+ * <p>
+ * P. Ciaccia, M. Patella<br>
+ * Bulk loading the M-tree<br>
+ * Proc. 9th Australasian Database Conference (ADC'98)
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+@Reference(authors = "P. Ciaccia, M. Patella", //
+    title = "Bulk loading the M-tree", //
+    booktitle = "Proc. 9th Australasian Database Conference (ADC'98)", //
+    bibkey = "DBLP:conf/adc/CiacciaP98")
+public class SamplingBulkSplit implements MTreeBulkSplit {
+  /**
+   * Minimum relative fill of a cluster, smaller clusters are dissolved.
+   */
+  private static final double MIN_FILL = 0.25;
+
+  /**
+   * Minimum number of entries to assign in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 10;
+
+  /**
+   * Random generator.
+   */
+  private RandomFactory rnd;
+
+  /**
+   * Constructor.
+   *
+   * @param rnd Random generator
+   */
+  public SamplingBulkSplit(RandomFactory rnd) {
+    super();
+    this.rnd = rnd;
+  }
+
+  @Override
+  public <E extends MTreeEntry> List<List<E>> partition(AbstractMTree<?, ?, E, ?> tree, List<E> entries, int maxEntries) {
+    List<List<E>> groups = new ArrayList<>();
+    split(tree, new ArrayList<>(entries), maxEntries, rnd.getSingleThreadedRandom(), groups);
+    return groups;
+  }
+
+  /**
+   * Recursively split a set of entries.
+   *
+   * @param tree Tree
+   * @param objs Entries, will be reordered
+   * @param maxEntries Maximum group size
+   * @param random Random generator
+   * @param groups Output groups
+   * @param <E> Entry type
+   */
+  private static <E extends MTreeEntry> void split(AbstractMTree<?, ?, E, ?> tree, List<E> objs, int maxEntries, Random random, List<List<E>> groups) {
+    final int n = objs.size();
+    if(n <= maxEntries) {
+      Collections.swap(objs, 0, random.nextInt(n));
+      groups.add(route(tree, objs));
+      return;
+    }
+    // Draw the seeds, by a partial shuffle:
+    final int f = Math.min(maxEntries, (n + maxEntries - 1) / maxEntries);
+    for(int i = 0; i < f; i++) {
+      Collections.swap(objs, i, i + random.nextInt(n - i));
+    }
+    final int[] assign = new int[n];
+    final boolean[] dead = new boolean[f];
+    for(int i = 0; i < f; i++) {
+      assign[i] = i;
+      objs.get(i).setParentDistance(0.);
+    }
+    assign(tree, objs, f, dead, assign, f, n);
+    int[] sizes = new int[f];
+    for(int i = 0; i < n; i++) {
+      ++sizes[assign[i]];
+    }
+    // Dissolve underfull clusters, smallest first:
+    final int minEntries = Math.max(1, (int) (maxEntries * MIN_FILL));
+    for(int live = f; live > 1;) {
+      int smallest = -1;
+      for(int c = 0; c < f; c++) {
+        if(!dead[c] && sizes[c] < minEntries && (smallest < 0 || sizes[c] < sizes[smallest])) {
+          smallest = c;
+        }
+      }
+      if(smallest < 0) {
+        break;
+      }
+      dead[smallest] = true;
+      --live;
+      for(int i = 0; i < n; i++) {
+        if(assign[i] == smallest) {
+          assign(tree, objs, f, dead, assign, i, i + 1);
+          ++sizes[assign[i]];
+        }
+      }
+      sizes[smallest] = 0;
+    }
+    // Collect the clusters, seeds first:
+    List<List<E>> clusters = new ArrayList<>(f);
+    int[] map = new int[f];
+    for(int c = 0; c < f; c++) {
+      map[c] = clusters.size();
+      if(!dead[c]) {
+        List<E> cluster = new ArrayList<>(sizes[c]);
+        cluster.add(objs.get(c));
+        clusters.add(cluster);
+      }
+    }
+    for(int i = 0; i < n; i++) {
+      if(i >= f || dead[i]) { // Live seeds were already added.
+        clusters.get(map[assign[i]]).add(objs.get(i));
+      }
+    }
+    if(clusters.size() == 1) {
+      // No progress, e.g., because of duplicates: split in input order.
+      for(int start = 0; start < n; start += maxEntries) {
+        groups.add(route(tree, new ArrayList<>(objs.subList(start, Math.min(n, start + maxEntries)))));
+      }
+      return;
+    }
+    for(List<E> cluster : clusters) {
+      if(cluster.size() <= maxEntries) {
+        groups.add(cluster);
+      }
+      else {
+        split(tree, cluster, maxEntries, random, groups);
+      }
+    }
+  }
+
+  /**
+   * Assign a range of entries to the nearest live seed, and store the
+   * distance as parent distance. Large ranges are processed in parallel.
+   *
+   * @param tree Tree
+   * @param objs Entries, seeds first
+   * @param f Number of seeds
+   * @param dead Dissolved seeds
+   * @param assign Output assignment
+   * @param start First entry
+   * @param end End entry (exclusive)
+   * @param <E> Entry type
+   */
+  private static <E extends MTreeEntry> void assign(AbstractMTree<?, ?, E, ?> tree, List<E> objs, int f, boolean[] dead, int[] assign, int start, int end) {
+    final ParallelCore core = ParallelCore.getCore();
+    final int parallelism = core.getParallelism();
+    if(end - start < PARALLEL_THRESHOLD || parallelism <= 1 || core.isWorkerThread()) {
+      assignBlock(tree, objs, f, dead, assign, start, end);
+      return;
+    }
+    final int blocksize = Math.max(PARALLEL_THRESHOLD >>> 2, (end - start + (parallelism << 2) - 1) / (parallelism << 2));
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for(int s = start; s < end; s += blocksize) {
+      final int s2 = s, e2 = Math.min(end, s + blocksize);
+      tasks.add(() -> {
+        assignBlock(tree, objs, f, dead, assign, s2, e2);
+        return null;
+      });
+    }
+    ParallelExecutor.run(tasks);
+  }
+
+  /**
+   * Assign a block of entries to the nearest live seed.
+   *
+   * @param tree Tree
+   * @param objs Entries, seeds first
+   * @param f Number of seeds
+   * @param dead Dissolved seeds
+   * @param assign Output assignment
+   * @param start First entry
+   * @param end End entry (exclusive)
+   * @param <E> Entry type
+   */
+  private static <E extends MTreeEntry> void assignBlock(AbstractMTree<?, ?, E, ?> tree, List<E> objs, int f, boolean[] dead, int[] assign, int start, int end) {
+    for(int i = start; i < end; i++) {
+      final E e = objs.get(i);
+      double best = Double.POSITIVE_INFINITY;
+      int bestc = -1;
+      for(int c = 0; c < f; c++) {
+        if(dead[c]) {
+          continue;
+        }
+        final double d = tree.distance(objs.get(c), e);
+        if(d < best || bestc < 0) {
+          best = d;
+          bestc = c;
+        }
+      }
+      assign[i] = bestc;
+      e.setParentDistance(best);
+    }
+  }
+
+  /**
+   * Use the first entry as routing object of a group, and compute the parent
+   * distances.
+   *
+   * @param tree Tree
+   * @param group Group
+   * @param <E> Entry type
+   * @return group
+   */
+  private static <E extends MTreeEntry> List<E> route(AbstractMTree<?, ?, E, ?> tree, List<E> group) {
+    final E first = group.get(0);
+    first.setParentDistance(0.);
+    for(int i = 1; i < group.size(); i++) {
+      group.get(i).setParentDistance(tree.distance(first, group.get(i)));
+    }
+    return group;
+  }
+
+  /**
+   * Parameterization class.
+   *
+   * @author Erich Schubert
+   */
+  public static class Par implements Parameterizer {
+    /**
+     * Option ID for the random generator.
+     */
+    public static final OptionID RANDOM_ID = new OptionID("mtree.bulk.random", "Random generator / seed for sampling the bulk load seeds.");
+
+    /**
+     * Random generator
+     */
+    RandomFactory rnd = RandomFactory.DEFAULT;
+
+    @Override
+    public void configure(Parameterization config) {
+      new RandomParameter(RANDOM_ID).grab(config, x -> rnd = x);
+    }
+
+    @Override
+    public SamplingBulkSplit make() {
+      return new SamplingBulkSplit(rnd);
+    }
+  }
+}
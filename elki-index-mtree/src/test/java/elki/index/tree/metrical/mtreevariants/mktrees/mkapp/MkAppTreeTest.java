@@ -0,0 +1,70 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.metrical.mtreevariants.mktrees.mkapp;
+
+import org.junit.Test;
+
+import elki.data.DoubleVector;
+import elki.index.AbstractIndexStructureTest;
+import elki.index.tree.metrical.mtreevariants.AbstractMTreeFactory;
+import elki.index.tree.metrical.mtreevariants.query.MTreeKNNByDBID;
+import elki.index.tree.metrical.mtreevariants.query.MTreeKNNByObject;
+import elki.index.tree.metrical.mtreevariants.query.MTreeRangeByDBID;
+import elki.index.tree.metrical.mtreevariants.query.MTreeRangeByObject;
+import elki.index.tree.metrical.mtreevariants.strategies.bulk.SamplingBulkSplit;
+import elki.persistent.AbstractPageFileFactory;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Unit test for the {@link MkAppTree}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class MkAppTreeTest extends AbstractIndexStructureTest {
+  /**
+   * Test {@link MkAppTree} built by insertion.
+   */
+  @Test
+  public void testEuclidean() {
+    MkAppTreeFactory<DoubleVector> factory = new ELKIBuilder<>(MkAppTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .with(MkAppTreeFactory.Par.K_ID, 5) //
+        .with(MkAppTreeFactory.Par.P_ID, 2).build();
+    assertExactEuclidean(factory, MTreeKNNByObject.class, MTreeRangeByObject.class);
+    assertSinglePoint(factory, MTreeKNNByDBID.class, MTreeRangeByDBID.class);
+  }
+
+  /**
+   * Test {@link MkAppTree} built with a bulk load.
+   */
+  @Test
+  public void testBulkLoad() {
+    MkAppTreeFactory<DoubleVector> factory = new ELKIBuilder<>(MkAppTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .with(MkAppTreeFactory.Par.K_ID, 5) //
+        .with(MkAppTreeFactory.Par.P_ID, 2) //
+        .with(AbstractMTreeFactory.Par.BULK_SPLIT_ID, SamplingBulkSplit.class) //
+        .with(SamplingBulkSplit.Par.RANDOM_ID, 0L).build();
+    assertExactEuclidean(factory, MTreeKNNByObject.class, MTreeRangeByObject.class);
+    assertSinglePoint(factory, MTreeKNNByDBID.class, MTreeRangeByDBID.class);
+  }
+}
@@ -24,10 +24,12 @@ import org.junit.Test;
 
 import elki.data.DoubleVector;
 import elki.index.AbstractIndexStructureTest;
+import elki.index.tree.metrical.mtreevariants.AbstractMTreeFactory;
 import elki.index.tree.metrical.mtreevariants.query.MTreeKNNByDBID;
 import elki.index.tree.metrical.mtreevariants.query.MTreeKNNByObject;
 import elki.index.tree.metrical.mtreevariants.query.MTreeRangeByDBID;
 import elki.index.tree.metrical.mtreevariants.query.MTreeRangeByObject;
+import elki.index.tree.metrical.mtreevariants.strategies.bulk.SamplingBulkSplit;
 import elki.persistent.AbstractPageFileFactory;
 import elki.utilities.ELKIBuilder;
 
@@ -48,4 +50,27 @@ public class MTreeTest extends AbstractIndexStructureTest {
     assertExactEuclidean(factory, MTreeKNNByObject.class, MTreeRangeByObject.class);
     assertSinglePoint(factory, MTreeKNNByDBID.class, MTreeRangeByDBID.class);
   }
+
+  /**
+   * Test {@link MTree} built with a bulk load.
+   */
+  @Test
+  public void testBulkLoad() {
+    MTreeFactory<DoubleVector> factory = new ELKIBuilder<>(MTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .with(AbstractMTreeFactory.Par.BULK_SPLIT_ID, SamplingBulkSplit.class) //
+        .with(SamplingBulkSplit.Par.RANDOM_ID, 0L).build();
+    assertExactEuclidean(factory, MTreeKNNByObject.class, MTreeRangeByObject.class);
+    assertSinglePoint(factory, MTreeKNNByDBID.class, MTreeRangeByDBID.class);
+  }
+
+  /**
+   * Test concurrent queries on a {@link MTree}.
+   */
+  @Test
+  public void testConcurrentQueries() {
+    MTreeFactory<DoubleVector> factory = new ELKIBuilder<>(MTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300).build();
+    assertConcurrentKNNEuclidean(factory, MTreeKNNByObject.class);
+  }
 }
@@ -121,7 +121,7 @@ public class MaterializeKNNAndRKNNPreprocessor<O> extends MaterializeKNNPreproce
 
     // update the old kNNs and RkNNs
     LOG.beginStep(stepprog, 2, "New insertions ocurred, update the affected kNNs and RkNNs.");
-    DBIDs rkNN_ids = updateKNNsAndRkNNs(ids);
+    DBIDs rkNN_ids = updateKNNsAfterInsertion(ids);
 
     // inform listener
     LOG.beginStep(stepprog, 3, "New insertions ocurred, inform listeners.");
@@ -130,80 +130,57 @@ public class MaterializeKNNAndRKNNPreprocessor<O> extends MaterializeKNNPreproce
   }
 
   /**
-   * Updates the kNNs and RkNNs after insertion of the specified ids.
+   * Updates the RkNNs after the kNNs of an object changed due to insertions.
    *
-   * @param ids the ids of newly inserted objects causing a change of
-   *        materialized kNNs and RkNNs
-   * @return the RkNNs of the specified ids, i.e. the kNNs which have been
-   *         updated
+   * @param id Object
+   * @param oldkNNs Previous neighbors
+   * @param newkNNs New neighbors
    */
-  private DBIDs updateKNNsAndRkNNs(DBIDs ids) {
-    ArrayModifiableDBIDs rkNN_ids = DBIDUtil.newArray();
-    DBIDs oldids = DBIDUtil.difference(relation.getDBIDs(), ids);
-    for(DBIDIter id = oldids.iter(); id.valid(); id.advance()) {
-      KNNList oldkNNs = storage.get(id);
-      double knnDist = oldkNNs.getKNNDistance();
-      // look for new kNNs
-      KNNHeap heap = null;
-      for(DBIDIter newid = ids.iter(); newid.valid(); newid.advance()) {
-        double dist = distanceQuery.distance(id, newid);
-        if(dist <= knnDist) {
-          // New id changes the kNNs of oldid.
-          heap = heap != null ? heap : DBIDUtil.newHeap(oldkNNs);
-          heap.insert(dist, newid);
-        }
+  @Override
+  protected void kNNChanged(DBIDRef id, KNNList oldkNNs, KNNList newkNNs) {
+    super.kNNChanged(id, oldkNNs, newkNNs);
+    // get the difference
+    ModifiableDoubleDBIDList added = DBIDUtil.newDistanceDBIDList(),
+        removed = DBIDUtil.newDistanceDBIDList();
+    DoubleDBIDListIter olditer = oldkNNs.iter(), newiter = newkNNs.iter();
+    while(olditer.valid() && newiter.valid()) {
+      if(DBIDUtil.equal(olditer, newiter)) {
+        olditer.advance();
+        newiter.advance();
+        continue;
       }
-      // kNNs for oldid have changed:
-      if(heap != null) {
-        KNNList newkNNs = heap.toKNNList();
-        storage.put(id, newkNNs);
-
-        // get the difference
-        ModifiableDoubleDBIDList added = DBIDUtil.newDistanceDBIDList(),
-            removed = DBIDUtil.newDistanceDBIDList();
-        DoubleDBIDListIter olditer = oldkNNs.iter(), newiter = newkNNs.iter();
-        while(olditer.valid() && newiter.valid()) {
-          if(DBIDUtil.equal(olditer, newiter)) {
-            olditer.advance();
-            newiter.advance();
-            continue;
-          }
-          double newd = newiter.doubleValue(), oldd = olditer.doubleValue();
-          if(newd < oldd || (newd == oldd && !oldkNNs.contains(newiter))) {
-            added.add(newiter.doubleValue(), newiter);
-            newiter.advance();
-          }
-          else if(oldd < newd || (oldd == newd && !newkNNs.contains(olditer))) {
-            removed.add(olditer.doubleValue(), olditer);
-            olditer.advance();
-          }
-          else {
-            throw new IllegalStateException("Unexpected third case, needs debug!");
-          }
-        }
-        for(; olditer.valid(); olditer.advance()) {
-          removed.add(olditer.doubleValue(), olditer);
-        }
-        for(; newiter.valid(); newiter.advance()) {
-          added.add(newiter.doubleValue(), newiter);
-        }
-        // add new RkNN
-        for(DoubleDBIDListIter newnn = added.iter(); newnn.valid(); newnn.advance()) {
-          storageRkNN.get(newnn).add(newnn.doubleValue(), id);
-        }
-        // remove old RkNN
-        for(DoubleDBIDListIter oldnn = removed.iter(); oldnn.valid(); oldnn.advance()) {
-          for(DoubleDBIDListMIter iter = storageRkNN.get(oldnn).iter(); iter.valid(); iter.advance()) {
-            if(DBIDUtil.equal(iter, id)) {
-              iter.remove();
-              break;
-            }
-          }
+      double newd = newiter.doubleValue(), oldd = olditer.doubleValue();
+      if(newd < oldd || (newd == oldd && !oldkNNs.contains(newiter))) {
+        added.add(newiter.doubleValue(), newiter);
+        newiter.advance();
+      }
+      else if(oldd < newd || (oldd == newd && !newkNNs.contains(olditer))) {
+        removed.add(olditer.doubleValue(), olditer);
+        olditer.advance();
+      }
+      else {
+        throw new IllegalStateException("Unexpected third case, needs debug!");
+      }
+    }
+    for(; olditer.valid(); olditer.advance()) {
+      removed.add(olditer.doubleValue(), olditer);
+    }
+    for(; newiter.valid(); newiter.advance()) {
+      added.add(newiter.doubleValue(), newiter);
+    }
+    // add new RkNN
+    for(DoubleDBIDListIter newnn = added.iter(); newnn.valid(); newnn.advance()) {
+      storageRkNN.get(newnn).add(newnn.doubleValue(), id);
+    }
+    // remove old RkNN
+    for(DoubleDBIDListIter oldnn = removed.iter(); oldnn.valid(); oldnn.advance()) {
+      for(DoubleDBIDListMIter iter = storageRkNN.get(oldnn).iter(); iter.valid(); iter.advance()) {
+        if(DBIDUtil.equal(iter, id)) {
+          iter.remove();
+          break;
         }
-        rkNN_ids.add(id);
       }
     }
-    return rkNN_ids;
   }
 
   @Override
@@ -20,21 +20,34 @@
  */
 package elki.index.preprocessed.knn;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import javax.swing.event.EventListenerList;
 
+import elki.database.datastore.DataStoreFactory;
+import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.QueryBuilder;
 import elki.database.query.distance.DistanceQuery;
 import elki.database.query.knn.KNNSearcher;
 import elki.database.query.knn.PreprocessorKNNQuery;
+import elki.database.query.range.RangeSearcher;
 import elki.database.relation.Relation;
 import elki.distance.Distance;
 import elki.index.DynamicIndex;
+import elki.index.KNNJoinIndex;
 import elki.logging.Logging;
 import elki.logging.progress.FiniteProgress;
 import elki.logging.progress.StepProgress;
 import elki.logging.statistics.Duration;
 import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.result.Metadata;
+import elki.utilities.datastructures.iterator.It;
 import elki.utilities.documentation.Description;
 import elki.utilities.documentation.Title;
 
@@ -43,6 +56,12 @@ import elki.utilities.documentation.Title;
  * distances) to each database object.
  * <p>
  * Automatically added by the query optimizer if memory permits.
+ * <p>
+ * Insertions are processed in batches: the objects whose neighbors may change
+ * are found with range queries around the new objects, using an upper bound of
+ * the k-distances as radius, such that an existing range index can be used.
+ * These queries run in parallel, and a single {@link KNNChangeEvent} is sent
+ * for the entire batch.
  *
  * @author Erich Schubert
  * @since 0.2
@@ -61,6 +80,11 @@ public class MaterializeKNNPreprocessor<O> extends AbstractMaterializeKNNPreproc
    */
   private static final Logging LOG = Logging.getLogger(MaterializeKNNPreprocessor.class);
 
+  /**
+   * Minimum number of inserted objects per block of a parallel update.
+   */
+  private static final int MIN_BLOCK_SIZE = 16;
+
   /**
    * KNNSearcher instance to use.
    */
@@ -113,6 +137,13 @@ public class MaterializeKNNPreprocessor<O> extends AbstractMaterializeKNNPreproc
       log.statistics(new LongStatistic(this.getClass().getName() + ".k", k));
     }
     Duration duration = log.isStatistics() ? log.newDuration(this.getClass().getName() + ".precomputation-time").begin() : null;
+    // Use an all-kNN join of an existing index, if available:
+    if(preprocessByJoin()) {
+      if(duration != null) {
+        log.statistics(duration.end());
+      }
+      return;
+    }
     FiniteProgress progress = getLogger().isVerbose() ? new FiniteProgress("Materializing k nearest neighbors (k=" + k + ")", ids.size(), getLogger()) : null;
     // Try bulk
     final boolean ismetric = getDistanceQuery().getDistance().isMetric();
@@ -136,6 +167,23 @@ public class MaterializeKNNPreprocessor<O> extends AbstractMaterializeKNNPreproc
     }
   }
 
+  /**
+   * Try to compute all k nearest neighbors with a join of an index on the
+   * same relation.
+   *
+   * @return {@code true} if the storage has been filled
+   */
+  @SuppressWarnings("unchecked")
+  private boolean preprocessByJoin() {
+    for(It<KNNJoinIndex<?>> it = Metadata.hierarchyOf(relation).iterDescendants().filter(KNNJoinIndex.class); it.valid(); it.advance()) {
+      if(it.get() != this && ((KNNJoinIndex<O>) it.get()).kNNJoin(getDistanceQuery(), k, storage)) {
+        getLogger().verbose("Materialized k nearest neighbors using " + it.get().getClass().getSimpleName());
+        return true;
+      }
+    }
+    return false;
+  }
+
   @Override
   public final void insert(DBIDRef id) {
     objectsInserted(DBIDUtil.deref(id));
@@ -191,35 +239,134 @@ public class MaterializeKNNPreprocessor<O> extends AbstractMaterializeKNNPreproc
 
   /**
    * Updates the kNNs of the RkNNs of the specified ids.
+   * <p>
+   * An existing object can only obtain a new object as neighbor if their
+   * distance is at most its k-distance. Hence, a range query around each new
+   * object, with the largest k-distance of the existing objects as radius,
+   * finds all affected objects. This radius is recomputed from the current
+   * lists for every batch, as insertions can only shrink the k-distances.
+   * The queries are processed in parallel blocks, each with its own searcher.
+   * The kNN of the new objects must already be stored.
    *
    * @param ids the ids of newly inserted objects causing a change of
    *        materialized kNNs
    * @return the RkNNs of the specified ids, i.e. the kNNs which have been
    *         updated
    */
-  private ArrayDBIDs updateKNNsAfterInsertion(DBIDs ids) {
-    ArrayModifiableDBIDs rkNN_ids = DBIDUtil.newArray();
-    DBIDs oldids = DBIDUtil.difference(relation.getDBIDs(), ids);
-    for(DBIDIter iter = oldids.iter(); iter.valid(); iter.advance()) {
-      KNNList kNNs = storage.get(iter);
-      double knnDist = kNNs.getKNNDistance();
-      // look for new kNNs
-      KNNHeap heap = null;
-      for(DBIDIter iter2 = ids.iter(); iter2.valid(); iter2.advance()) {
-        final double dist = distanceQuery.distance(iter, iter2);
-        if(dist <= knnDist) {
-          heap = heap != null ? heap : DBIDUtil.newHeap(kNNs);
-          heap.insert(dist, iter2);
+  protected ArrayDBIDs updateKNNsAfterInsertion(DBIDs ids) {
+    final ArrayDBIDs aids = DBIDUtil.ensureArray(ids);
+    final SetDBIDs newids = DBIDUtil.ensureSet(ids);
+    final double radius = maxKNNDistance(newids);
+    final int size = aids.size();
+    // Find the affected objects for each new object:
+    final List<DoubleDBIDList[]> blocks;
+    final ParallelCore core = ParallelCore.getCore();
+    final int parallelism = core.getParallelism();
+    if(size < MIN_BLOCK_SIZE << 1 || parallelism <= 1 || core.isWorkerThread()) {
+      blocks = new ArrayList<>(1);
+      blocks.add(findAffected(aids, 0, size, newids, radius));
+    }
+    else {
+      final int blocksize = Math.max(MIN_BLOCK_SIZE, (size + (parallelism << 2) - 1) / (parallelism << 2));
+      List<Callable<DoubleDBIDList[]>> tasks = new ArrayList<>((size + blocksize - 1) / blocksize);
+      for(int start = 0; start < size; start += blocksize) {
+        final int s = start, e = Math.min(size, start + blocksize);
+        tasks.add(() -> findAffected(aids, s, e, newids, radius));
+      }
+      blocks = ParallelExecutor.run(tasks);
+    }
+    // Collect the new neighbors of each affected object:
+    ModifiableDBIDs affected = DBIDUtil.newHashSet();
+    for(DoubleDBIDList[] block : blocks) {
+      for(DoubleDBIDList cands : block) {
+        if(cands != null) {
+          affected.addDBIDs(cands);
         }
       }
-      if(heap != null) {
-        storage.put(iter, kNNs = heap.toKNNList());
-        rkNN_ids.add(iter);
+    }
+    WritableDataStore<KNNHeap> heaps = DataStoreUtil.makeStorage(affected, DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, KNNHeap.class);
+    DBIDArrayIter newid = aids.iter();
+    for(DoubleDBIDList[] block : blocks) {
+      for(DoubleDBIDList cands : block) {
+        if(cands != null) {
+          for(DoubleDBIDListIter it = cands.iter(); it.valid(); it.advance()) {
+            KNNHeap heap = heaps.get(it);
+            if(heap == null) {
+              heaps.put(it, heap = DBIDUtil.newHeap(storage.get(it)));
+            }
+            heap.insert(it.doubleValue(), newid);
+          }
+        }
+        newid.advance();
       }
     }
+    ArrayModifiableDBIDs rkNN_ids = DBIDUtil.newArray(affected.size());
+    for(DBIDIter iter = affected.iter(); iter.valid(); iter.advance()) {
+      kNNChanged(iter, storage.get(iter), heaps.get(iter).toKNNList());
+      rkNN_ids.add(iter);
+    }
+    heaps.destroy();
     return rkNN_ids;
   }
 
+  /**
+   * Find the existing objects that obtain a new object as neighbor.
+   *
+   * @param ids New objects
+   * @param start First new object to process
+   * @param end End of the new objects to process (exclusive)
+   * @param newids Set of all new objects
+   * @param radius Upper bound of the k-distances
+   * @return Affected objects with their distances, for each new object, or
+   *         {@code null} if there are none
+   */
+  private DoubleDBIDList[] findAffected(ArrayDBIDs ids, int start, int end, SetDBIDs newids, double radius) {
+    // Searchers are not thread safe, and the optimizer should not build an
+    // index for every block, so use existing indexes or a linear scan:
+    RangeSearcher<DBIDRef> rangeQuery = new QueryBuilder<>(distanceQuery).noCache().cheapOnly().rangeByDBID(radius);
+    DoubleDBIDList[] result = new DoubleDBIDList[end - start];
+    DBIDArrayIter iter = ids.iter();
+    for(int i = start; i < end; i++) {
+      ModifiableDoubleDBIDList cands = null;
+      for(DoubleDBIDListIter it = rangeQuery.getRange(iter.seek(i), radius).iter(); it.valid(); it.advance()) {
+        if(newids.contains(it) || it.doubleValue() > storage.get(it).getKNNDistance()) {
+          continue;
+        }
+        (cands = cands != null ? cands : DBIDUtil.newDistanceDBIDList()).add(it.doubleValue(), it);
+      }
+      result[i - start] = cands;
+    }
+    return result;
+  }
+
+  /**
+   * Get the largest k-distance of the existing objects.
+   *
+   * @param newids New objects, to ignore
+   * @return Largest k-distance
+   */
+  private double maxKNNDistance(SetDBIDs newids) {
+    double max = 0.;
+    for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
+      if(!newids.contains(iter)) {
+        KNNList knn = storage.get(iter);
+        max = knn != null ? Math.max(max, knn.getKNNDistance()) : max;
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Called when the kNN of an existing object changed due to an insertion.
+   *
+   * @param id Object
+   * @param oldkNNs Previous neighbors
+   * @param newkNNs New neighbors
+   */
+  protected void kNNChanged(DBIDRef id, KNNList oldkNNs, KNNList newkNNs) {
+    storage.put(id, newkNNs);
+  }
+
   /**
    * Updates the kNNs of the RkNNs of the specified ids.
    *
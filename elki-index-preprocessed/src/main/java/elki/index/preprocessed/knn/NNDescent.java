@@ -20,20 +20,27 @@
  */
 package elki.index.preprocessed.knn;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import elki.database.datastore.DataStoreFactory;
 import elki.database.datastore.WritableDataStore;
+import elki.database.datastore.memory.MapIntegerDBIDStore;
 import elki.database.ids.*;
 import elki.database.query.QueryBuilder;
 import elki.database.query.distance.DistanceQuery;
 import elki.database.query.knn.KNNSearcher;
 import elki.database.relation.Relation;
 import elki.distance.Distance;
+import elki.index.DynamicIndex;
 import elki.logging.Logging;
 import elki.logging.progress.IndefiniteProgress;
 import elki.logging.statistics.DoubleStatistic;
 import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.documentation.Reference;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.constraints.CommonConstraints;
@@ -43,6 +50,7 @@ import elki.utilities.optionhandling.parameters.Flag;
 import elki.utilities.optionhandling.parameters.IntParameter;
 import elki.utilities.optionhandling.parameters.RandomParameter;
 import elki.utilities.random.RandomFactory;
+import elki.utilities.random.Xoroshiro128NonThreadsafeRandom;
 
 /**
  * NN-descent (also known as KNNGraph) is an approximate nearest neighbor search
@@ -56,6 +64,11 @@ import elki.utilities.random.RandomFactory;
  * measures<br>
  * Proc. 20th Int. Conf. on World Wide Web (WWW'11)
  * <p>
+ * The local join is performed in parallel, with reproducible results
+ * independent of the number of threads. When objects are inserted or deleted,
+ * the existing graph is refined instead of being rebuilt, processing only the
+ * objects with changed neighbors and their neighbors.
+ * <p>
  * TODO: collect and log some query statistics.
  *
  * @author Evelyn Kirner
@@ -68,12 +81,17 @@ import elki.utilities.random.RandomFactory;
     booktitle = "Proc. 20th Int. Conf. on World Wide Web (WWW'11)", //
     url = "https://doi.org/10.1145/1963405.1963487", //
     bibkey = "DBLP:conf/www/DongCL11")
-public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
+public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> implements DynamicIndex {
   /**
    * Logger
    */
   private static final Logging LOG = Logging.getLogger(NNDescent.class);
 
+  /**
+   * Number of objects to join before applying the buffered updates.
+   */
+  private static final int CHUNK_SIZE = 1 << 10;
+
   /**
    * Log prefix.
    */
@@ -109,6 +127,11 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
    */
   private WritableDataStore<KNNHeap> store;
 
+  /**
+   * Reverse neighbors of each object, only built on the first update.
+   */
+  private WritableDataStore<ArrayModifiableDBIDs> rknn;
+
   /**
    * Constructor.
    *
@@ -134,28 +157,24 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
   protected void preprocess() {
     final DBIDs ids = relation.getDBIDs();
     final long starttime = System.currentTimeMillis();
-    IndefiniteProgress progress = LOG.isVerbose() ? new IndefiniteProgress("KNNGraph iteration", LOG) : null;
 
     // to add query point itself in the end, internally (k-1) is used
     final int internal_k = k - 1;
 
+    rknn = null;
     // kNN store
     store = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, KNNHeap.class);
-    // store for new reverse neighbors
-    WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, HashSetModifiableDBIDs.class);
-    // store for new reverse neighbors
-    WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, HashSetModifiableDBIDs.class);
-    // Sample of new forward neighbors.
-    WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, HashSetModifiableDBIDs.class);
-    // data structures for new and sampled new neighbors
-    WritableDataStore<HashSetModifiableDBIDs> flag = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, HashSetModifiableDBIDs.class);
-
-    // Initialize data structures:
     for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
       store.put(iditer, DBIDUtil.newHeap(internal_k));
-      newReverseNeighbors.put(iditer, DBIDUtil.newHashSet(internal_k));
-      oldReverseNeighbors.put(iditer, DBIDUtil.newHashSet(internal_k));
     }
+    // store for new reverse neighbors
+    WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors = makeSets(ids);
+    // store for old reverse neighbors
+    WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors = makeSets(ids);
+    // Sample of new forward neighbors.
+    WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors = makeSets(ids);
+    // data structures for new and sampled new neighbors
+    WritableDataStore<HashSetModifiableDBIDs> flag = makeSets(ids);
 
     // this variable is the sampling size
     final int items = (int) Math.ceil(rho * internal_k);
@@ -168,12 +187,9 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
     for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
       // initialize sampled NN
       ModifiableDBIDs sampleNew = DBIDUtil.randomSampleExcept(ids, iditer, items, rand);
-      sampleNewNeighbors.put(iditer, DBIDUtil.newHashSet(sampleNew));
+      sampleNewNeighbors.get(iditer).addDBIDs(sampleNew);
       // initialize RNN
-      ModifiableDBIDs sampleRev = DBIDUtil.randomSampleExcept(ids, iditer, items, rand);
-      newReverseNeighbors.put(iditer, DBIDUtil.newHashSet(sampleRev));
-      // initialize new neighbors
-      flag.put(iditer, DBIDUtil.newHashSet());
+      newReverseNeighbors.get(iditer).addDBIDs(DBIDUtil.randomSampleExcept(ids, iditer, items, rand));
       // initialize store
       if(!noInitialNeighbors) {
         HashSetModifiableDBIDs flags = flag.get(iditer);
@@ -186,55 +202,61 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
       }
     }
 
-    final int size = relation.size();
+    refine(ids, flag, sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors, items, rand, counter_all, ids.size());
+    materialize(ids);
+    final long end = System.currentTimeMillis();
+    if(LOG.isStatistics()) {
+      LOG.statistics(new LongStatistic(prefix + ".construction-time.ms", end - starttime));
+    }
+  }
+
+  /**
+   * Iteratively refine the neighbor heaps until convergence.
+   * <p>
+   * The local join of each iteration is performed in parallel, see
+   * {@link #join}; the sampling
+   * and the computation of reverse neighbors in between are sequential.
+   *
+   * @param ids Objects to process
+   * @param flag New neighbors not yet sampled, per object
+   * @param sampleNewNeighbors Sampled new forward neighbors
+   * @param newReverseNeighbors New reverse neighbors
+   * @param oldReverseNeighbors Old reverse neighbors
+   * @param items Sample size
+   * @param rand Random generator
+   * @param counter_all Number of distance computations so far
+   * @param active Number of objects the refinement started from, for the
+   *        termination criteria
+   */
+  private void refine(DBIDs ids, WritableDataStore<HashSetModifiableDBIDs> flag, WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors, WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors, WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors, int items, Random rand, long counter_all, int active) {
+    IndefiniteProgress progress = LOG.isVerbose() ? new IndefiniteProgress("KNNGraph iteration", LOG) : null;
+    final int internal_k = k - 1;
+    final ArrayDBIDs aids = DBIDUtil.ensureArray(ids);
+    final int size = ids.size();
     double rate = 0.0;
     int iter = 0;
 
     for(; iter < iterations; iter++) {
-      long counter = 0;
-
       // iterate through dataset
-      for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
-        // determine new and old neighbors
-        HashSetModifiableDBIDs newNeighbors = flag.get(iditer);
-        HashSetModifiableDBIDs oldNeighbors = DBIDUtil.newHashSet();
-        KNNHeap heap = store.get(iditer);
-        for(DoubleDBIDIter heapiter = heap.unorderedIterator(); heapiter.valid(); heapiter.advance()) {
-          if(!newNeighbors.contains(heapiter)) {
-            oldNeighbors.add(heapiter);
-          }
-        }
-
-        // Sampling
-        HashSetModifiableDBIDs sampleNew = sampleNewNeighbors.get(iditer);
-
-        HashSetModifiableDBIDs newRev = newReverseNeighbors.get(iditer);
-        newRev.removeDBIDs(sampleNew);
-        boundSize(newRev, items);
-
-        HashSetModifiableDBIDs oldRev = oldReverseNeighbors.get(iditer);
-        oldRev.removeDBIDs(oldNeighbors);
-        boundSize(oldRev, items);
-        counter += processNewNeighbors(flag, sampleNew, oldNeighbors, newRev, oldRev);
-      }
+      final long counter = join(aids, flag, sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors, items, rand.nextLong());
       counter_all += counter;
       if(LOG.isStatistics()) {
         LOG.statistics(new DoubleStatistic(prefix + ".scan-rate", counter_all * .5 / (size * (size - 1L))));
       }
 
       // t is the number of new neighbors
-      int t = sampleNew(ids, sampleNewNeighbors, flag, items);
+      int t = sampleNew(ids, sampleNewNeighbors, flag, items, rand);
 
       // calculate old and new reverse neighbors
       clearAll(ids, newReverseNeighbors);
       clearAll(ids, oldReverseNeighbors);
-      reverse(sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors);
+      reverse(ids, sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors);
 
-      rate = (double) t / (double) (internal_k * size);
+      rate = (double) t / (double) (internal_k * active);
       if(LOG.isStatistics()) {
         LOG.statistics(new DoubleStatistic(prefix + ".update-rate", rate));
       }
-      if(counter < delta * internal_k * size) {
+      if(counter < delta * internal_k * active) {
         LOG.verbose("KNNGraph terminated because we performaned delta*k*size distance computations.");
         break;
       }
@@ -248,9 +270,18 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
       LOG.verbose("KNNGraph terminated because the maximum number of iterations was reached.");
     }
     LOG.setCompleted(progress);
-    // convert store to storage
-    storage = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_DB, KNNList.class);
-    for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
+  }
+
+  /**
+   * Convert the neighbor heaps to the kNN storage.
+   *
+   * @param ids Objects to update
+   */
+  private void materialize(DBIDs ids) {
+    if(storage == null) {
+      storage = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_DB, KNNList.class);
+    }
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
       KNNHeap tempHeap = DBIDUtil.newHeap(k);
       // Add query point and convert heap to list:
       KNNHeap heap = store.get(iditer);
@@ -258,128 +289,303 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
       for(DoubleDBIDIter heapiter = heap.unorderedIterator(); heapiter.valid(); heapiter.advance()) {
         tempHeap.insert(heapiter.doubleValue(), heapiter);
       }
-      storage.put(iditer, tempHeap.toKNNList());
+      KNNList newlist = tempHeap.toKNNList(), oldlist = storage.put(iditer, newlist);
+      if(rknn != null) {
+        updateReverse(iditer, oldlist, newlist);
+      }
     }
-    final long end = System.currentTimeMillis();
-    if(LOG.isStatistics()) {
-      LOG.statistics(new LongStatistic(prefix + ".construction-time.ms", end - starttime));
+  }
+
+  /**
+   * Update the reverse neighbors after the neighbors of an object changed.
+   *
+   * @param id Object
+   * @param oldlist Previous neighbors, may be {@code null}
+   * @param newlist New neighbors
+   */
+  private void updateReverse(DBIDRef id, KNNList oldlist, KNNList newlist) {
+    if(oldlist != null) {
+      for(DBIDIter it = oldlist.iter(); it.valid(); it.advance()) {
+        ArrayModifiableDBIDs rev = rknn.get(it);
+        if(rev != null && !DBIDUtil.equal(it, id) && !newlist.contains(it)) {
+          rev.remove(id);
+        }
+      }
+    }
+    for(DBIDIter it = newlist.iter(); it.valid(); it.advance()) {
+      if(!DBIDUtil.equal(it, id) && (oldlist == null || !oldlist.contains(it))) {
+        getOrCreateList(it).add(id);
+      }
+    }
+  }
+
+  @Override
+  public void insert(DBIDRef id) {
+    insertAll(DBIDUtil.deref(id));
+  }
+
+  @Override
+  public void insertAll(DBIDs ids) {
+    if(storage == null) {
+      if(relation.size() > 0) {
+        preprocess();
+      }
+      return;
+    }
+    initReverse();
+    final DBIDs all = relation.getDBIDs();
+    final int internal_k = k - 1;
+    final int items = (int) Math.ceil(rho * internal_k);
+    Random rand = rnd.getSingleThreadedRandom();
+    WritableDataStore<HashSetModifiableDBIDs> flag = new MapIntegerDBIDStore<>();
+    HashSetModifiableDBIDs changed = DBIDUtil.newHashSet(ids);
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      store.put(iditer, DBIDUtil.newHeap(internal_k));
     }
+    // Link the new objects to random neighbors, in both directions:
+    long counter_all = 0;
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      ModifiableDBIDs sample = DBIDUtil.randomSampleExcept(all, iditer, items, rand);
+      for(DBIDIter siter = sample.iter(); siter.valid(); siter.advance()) {
+        final double dist = distanceQuery.distance(iditer, siter);
+        if(add(iditer, siter, dist)) {
+          getOrCreate(flag, iditer).add(siter);
+        }
+        if(add(siter, iditer, dist)) {
+          getOrCreate(flag, siter).add(iditer);
+          changed.add(siter);
+        }
+      }
+      counter_all += sample.size();
+    }
+    refineChanged(changed, flag, items, rand, counter_all);
+  }
+
+  @Override
+  public boolean delete(DBIDRef id) {
+    deleteAll(DBIDUtil.deref(id));
+    return true;
+  }
+
+  @Override
+  public void deleteAll(DBIDs ids) {
+    if(storage == null) {
+      return;
+    }
+    initReverse();
+    final SetDBIDs removed = DBIDUtil.ensureSet(ids);
+    // The affected objects are the reverse neighbors of the removed objects:
+    HashSetModifiableDBIDs changed = DBIDUtil.newHashSet();
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      for(DoubleDBIDIter heapiter = store.get(iditer).unorderedIterator(); heapiter.valid(); heapiter.advance()) {
+        ArrayModifiableDBIDs rev = rknn.get(heapiter);
+        if(rev != null) {
+          rev.remove(iditer);
+        }
+      }
+      ArrayModifiableDBIDs rev = rknn.get(iditer);
+      if(rev != null) {
+        for(DBIDIter riter = rev.iter(); riter.valid(); riter.advance()) {
+          if(!removed.contains(riter)) {
+            changed.add(riter);
+          }
+        }
+      }
+    }
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      store.delete(iditer);
+      storage.delete(iditer);
+      rknn.delete(iditer);
+    }
+    if(changed.isEmpty()) {
+      return;
+    }
+    final int internal_k = k - 1;
+    final int items = (int) Math.ceil(rho * internal_k);
+    WritableDataStore<HashSetModifiableDBIDs> flag = new MapIntegerDBIDStore<>(changed.size());
+    // Remove the deleted objects from the heaps, and search again from the
+    // remaining neighbors:
+    for(DBIDIter iditer = changed.iter(); iditer.valid(); iditer.advance()) {
+      KNNHeap newheap = DBIDUtil.newHeap(internal_k);
+      HashSetModifiableDBIDs flags = getOrCreate(flag, iditer);
+      for(DoubleDBIDIter heapiter = store.get(iditer).unorderedIterator(); heapiter.valid(); heapiter.advance()) {
+        if(!removed.contains(heapiter)) {
+          newheap.insert(heapiter.doubleValue(), heapiter);
+          flags.add(heapiter);
+        }
+      }
+      store.put(iditer, newheap);
+    }
+    refineChanged(changed, flag, items, rnd.getSingleThreadedRandom(), 0);
   }
 
   /**
-   * Clear (but reuse) all sets in the given storage.
-   * 
-   * @param ids Ids to process
-   * @param sets Sets to clear
+   * Build the reverse neighbors from the current graph, if not yet available.
    */
-  private void clearAll(DBIDs ids, WritableDataStore<HashSetModifiableDBIDs> sets) {
-    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
-      sets.get(it).clear();
+  private void initReverse() {
+    if(rknn != null) {
+      return;
+    }
+    rknn = DataStoreFactory.FACTORY.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT, ArrayModifiableDBIDs.class);
+    for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
+      KNNHeap heap = store.get(iditer);
+      if(heap == null) {
+        continue; // Objects being inserted
+      }
+      for(DoubleDBIDIter heapiter = heap.unorderedIterator(); heapiter.valid(); heapiter.advance()) {
+        getOrCreateList(heapiter).add(iditer);
+      }
     }
   }
 
   /**
-   * Bound the size of a set by random sampling.
-   * 
-   * @param set Set to process
-   * @param items Maximum size
+   * Get the reverse neighbors of an object, allocating the list on demand.
+   *
+   * @param id Object
+   * @return Reverse neighbors
    */
-  private void boundSize(HashSetModifiableDBIDs set, int items) {
-    if(set.size() > items) {
-      DBIDs sample = DBIDUtil.randomSample(set, items, rnd);
-      set.clear().addDBIDs(sample);
+  private ArrayModifiableDBIDs getOrCreateList(DBIDRef id) {
+    ArrayModifiableDBIDs rev = rknn.get(id);
+    if(rev == null) {
+      rknn.put(id, rev = DBIDUtil.newArray());
     }
+    return rev;
   }
 
   /**
-   * Process new neighbors.
-   * 
-   * This is a complex join, because we do not need to join old neighbors with
-   * old neighbors, and we have forward- and reverse neighbors each.
+   * Refine the graph after some neighbors were flagged as new, then update
+   * the kNN storage.
+   * <p>
+   * Only the objects with new neighbors and their neighbors take part in each
+   * iteration, and their sets are allocated on demand. Old reverse neighbors
+   * are taken from the reverse neighbor index, which is updated when the
+   * refined neighbors are stored.
    *
-   * @param flag Flags to mark new neighbors.
-   * @param newFwd New forward neighbors
-   * @param oldFwd Old forward neighbors
-   * @param newRev New reverse neighbors
-   * @param oldRev Old reverse neighbors
-   * @return Number of new neighbors
+   * @param changed Objects whose neighbors changed
+   * @param flag Objects flagged as new neighbors, only for changed objects
+   * @param items Sample size
+   * @param rand Random generator
+   * @param counter_all Number of distance computations so far
    */
-  private int processNewNeighbors(WritableDataStore<HashSetModifiableDBIDs> flag, HashSetModifiableDBIDs newFwd, HashSetModifiableDBIDs oldFwd, HashSetModifiableDBIDs newRev, HashSetModifiableDBIDs oldRev) {
-    int counter = 0;
-    // nn_new
-    if(!newFwd.isEmpty()) {
-      for(DBIDIter sniter = newFwd.iter(); sniter.valid(); sniter.advance()) {
-        // nn_new X nn_new
-        for(DBIDIter niter2 = newFwd.iter(); niter2.valid(); niter2.advance()) {
-          if(DBIDUtil.compare(sniter, niter2) < 0) { // Only x < y.
-            addpair(flag, sniter, niter2);
-            counter++;
-          }
-        }
-        // nn_new X nn_old
-        for(DBIDMIter niter2 = oldFwd.iter(); niter2.valid(); niter2.advance()) {
-          if(DBIDUtil.equal(sniter, niter2)) {
-            continue;
-          }
-          addpair(flag, sniter, niter2);
-          counter++;
+  private void refineChanged(DBIDs changed, WritableDataStore<HashSetModifiableDBIDs> flag, int items, Random rand, long counter_all) {
+    final int internal_k = k - 1, active = changed.size();
+    HashSetModifiableDBIDs updated = DBIDUtil.newHashSet(changed);
+    HashSetModifiableDBIDs current = DBIDUtil.newHashSet(changed);
+    for(int iter = 0; iter < iterations && !current.isEmpty(); iter++) {
+      // Objects to join: the changed objects and their neighbors.
+      HashSetModifiableDBIDs scope = DBIDUtil.newHashSet(current);
+      for(DBIDIter iditer = current.iter(); iditer.valid(); iditer.advance()) {
+        for(DoubleDBIDIter heapiter = store.get(iditer).unorderedIterator(); heapiter.valid(); heapiter.advance()) {
+          scope.add(heapiter);
         }
       }
-    }
-    // rnn_new
-    if(!newRev.isEmpty()) {
-      for(DBIDIter nriter = newRev.iter(); nriter.valid(); nriter.advance()) {
-        // rnn_new X rnn_new
-        for(DBIDIter niter2 = newRev.iter(); niter2.valid(); niter2.advance()) {
-          if(DBIDUtil.compare(nriter, niter2) < 0) { // Only x < y
-            addpair(flag, nriter, niter2);
-            counter++;
-          }
+      WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors = new MapIntegerDBIDStore<>(scope.size());
+      WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors = new MapIntegerDBIDStore<>(scope.size());
+      WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors = new MapIntegerDBIDStore<>(scope.size());
+      // The join only updates the scope and their neighbors; allocate their
+      // flags now, as the parallel join must not modify the map.
+      HashSetModifiableDBIDs targets = DBIDUtil.newHashSet(scope);
+      for(DBIDIter iditer = scope.iter(); iditer.valid(); iditer.advance()) {
+        sampleNewNeighbors.put(iditer, DBIDUtil.newHashSet());
+        newReverseNeighbors.put(iditer, DBIDUtil.newHashSet());
+        for(DoubleDBIDIter heapiter = store.get(iditer).unorderedIterator(); heapiter.valid(); heapiter.advance()) {
+          targets.add(heapiter);
         }
-        // rnn_new X rnn_old
-        for(DBIDIter niter2 = oldRev.iter(); niter2.valid(); niter2.advance()) {
-          if(DBIDUtil.equal(nriter, niter2)) {
-            continue;
-          }
-          addpair(flag, nriter, niter2);
-          counter++;
+        // Reverse neighbors as of the last update; may be slightly outdated.
+        HashSetModifiableDBIDs oldRev = DBIDUtil.newHashSet();
+        ArrayModifiableDBIDs rev = rknn.get(iditer);
+        if(rev != null) {
+          oldRev.addDBIDs(rev);
+          targets.addDBIDs(rev);
         }
+        oldReverseNeighbors.put(iditer, oldRev);
       }
-    }
-
-    // nn_new
-    if(!newFwd.isEmpty()) {
-      for(DBIDIter sniter2 = newFwd.iter(); sniter2.valid(); sniter2.advance()) {
-        // nn_new X rnn_old
-        for(DBIDIter niter2 = oldRev.iter(); niter2.valid(); niter2.advance()) {
-          if(!DBIDUtil.equal(sniter2, niter2)) {
-            addpair(flag, sniter2, niter2);
-            counter++;
-          }
+      for(DBIDIter iditer = targets.iter(); iditer.valid(); iditer.advance()) {
+        getOrCreate(flag, iditer);
+      }
+      final int t = sampleNew(current, sampleNewNeighbors, flag, items, rand);
+      reverse(current, sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors);
+      final long counter = join(DBIDUtil.ensureArray(scope), flag, sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors, items, rand.nextLong());
+      counter_all += counter;
+      // Objects with new neighbors, for the next iteration:
+      current.clear();
+      for(DBIDIter iditer = targets.iter(); iditer.valid(); iditer.advance()) {
+        if(flag.get(iditer).isEmpty()) {
+          flag.delete(iditer);
         }
-        // nn_new X rnn_new
-        for(DBIDIter niter2 = newRev.iter(); niter2.valid(); niter2.advance()) {
-          if(DBIDUtil.compare(sniter2, niter2) < 0) {
-            addpair(flag, sniter2, niter2);
-            counter++;
-          }
+        else {
+          current.add(iditer);
         }
       }
-    }
-    // nn_old
-    if(!newRev.isEmpty() && !oldFwd.isEmpty()) {
-      for(DBIDIter niter = oldFwd.iter(); niter.valid(); niter.advance()) {
-        // nn_old X rnn_new
-        for(DBIDIter niter2 = newRev.iter(); niter2.valid(); niter2.advance()) {
-          if(DBIDUtil.equal(niter, niter2)) {
-            continue;
-          }
-          addpair(flag, niter, niter2);
-          counter++;
-        }
+      updated.addDBIDs(current);
+      final double rate = (double) t / (double) (internal_k * active);
+      if(LOG.isStatistics()) {
+        LOG.statistics(new DoubleStatistic(prefix + ".update-rate", rate));
+      }
+      if(counter < delta * internal_k * active || rate < delta) {
+        break;
       }
     }
-    return counter;
+    if(LOG.isStatistics()) {
+      LOG.statistics(new LongStatistic(prefix + ".update.distance-computations", counter_all));
+      LOG.statistics(new LongStatistic(prefix + ".update.objects", updated.size()));
+    }
+    materialize(updated);
+  }
+
+  /**
+   * Get the set of an object, allocating it on demand.
+   *
+   * @param sets Storage
+   * @param id Object
+   * @return Set
+   */
+  private static HashSetModifiableDBIDs getOrCreate(WritableDataStore<HashSetModifiableDBIDs> sets, DBIDRef id) {
+    HashSetModifiableDBIDs set = sets.get(id);
+    if(set == null) {
+      sets.put(id, set = DBIDUtil.newHashSet());
+    }
+    return set;
+  }
+
+  /**
+   * Allocate an empty set for each object.
+   *
+   * @param ids Objects
+   * @return Storage
+   */
+  private static WritableDataStore<HashSetModifiableDBIDs> makeSets(DBIDs ids) {
+    WritableDataStore<HashSetModifiableDBIDs> sets = DataStoreFactory.FACTORY.makeStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, HashSetModifiableDBIDs.class);
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      sets.put(iditer, DBIDUtil.newHashSet());
+    }
+    return sets;
+  }
+
+  /**
+   * Clear (but reuse) all sets in the given storage.
+   *
+   * @param ids Ids to process
+   * @param sets Sets to clear
+   */
+  private void clearAll(DBIDs ids, WritableDataStore<HashSetModifiableDBIDs> sets) {
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      sets.get(it).clear();
+    }
+  }
+
+  /**
+   * Bound the size of a set by random sampling.
+   *
+   * @param set Set to process
+   * @param items Maximum size
+   * @param rand Random generator
+   */
+  private static void boundSize(HashSetModifiableDBIDs set, int items, Random rand) {
+    if(set.size() > items) {
+      DBIDs sample = DBIDUtil.randomSample(set, items, rand);
+      set.clear().addDBIDs(sample);
+    }
   }
 
   /**
@@ -399,16 +605,6 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
     return (distance <= newKDistance);
   }
 
-  private void addpair(WritableDataStore<HashSetModifiableDBIDs> newNeighbors, DBIDRef o1, DBIDRef o2) {
-    final double distance = distanceQuery.distance(o1, o2);
-    if(add(o1, o2, distance)) {
-      newNeighbors.get(o1).add(o2);
-    }
-    if(add(o2, o1, distance)) {
-      newNeighbors.get(o2).add(o1);
-    }
-  }
-
   /**
    * samples newNeighbors for every object
    *
@@ -416,9 +612,10 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
    * @param sampleNewNeighbors Output of sampled new neighbors
    * @param newNeighborHash - new neighbors for every object
    * @param items Number of items to collect
+   * @param rand Random generator
    * @return Number of new neighbors
    */
-  private int sampleNew(DBIDs ids, WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors, WritableDataStore<HashSetModifiableDBIDs> newNeighborHash, int items) {
+  private int sampleNew(DBIDs ids, WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors, WritableDataStore<HashSetModifiableDBIDs> newNeighborHash, int items, Random rand) {
     int t = 0;
     for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
       KNNHeap realNeighbors = store.get(iditer);
@@ -430,7 +627,7 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
           t++;
         }
       }
-      boundSize(realNewNeighbors, items);
+      boundSize(realNewNeighbors, items, rand);
 
       newNeighbors.removeDBIDs(realNewNeighbors);
       newNeighborHash.put(iditer, newNeighbors);
@@ -440,13 +637,14 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
 
   /**
    * calculates new and old neighbors for database
-   * 
+   *
+   * @param ids All ids
    * @param sampleNewHash new neighbors for every object
    * @param newReverseNeighbors new reverse neighbors
    * @param oldReverseNeighbors old reverse neighbors
    */
-  private void reverse(WritableDataStore<HashSetModifiableDBIDs> sampleNewHash, WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors, WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors) {
-    for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
+  private void reverse(DBIDs ids, WritableDataStore<HashSetModifiableDBIDs> sampleNewHash, WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors, WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors) {
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
       KNNHeap heap = store.get(iditer);
       HashSetDBIDs newNeighbors = sampleNewHash.get(iditer);
       for(DoubleDBIDIter heapiter = heap.unorderedIterator(); heapiter.valid(); heapiter.advance()) {
@@ -455,6 +653,257 @@ public class NNDescent<O> extends AbstractMaterializeKNNPreprocessor<O> {
     }
   }
 
+  /**
+   * Perform the local join of one iteration.
+   * <p>
+   * The objects are processed in chunks. Within a chunk, candidate distances
+   * are computed in parallel into thread-local buffers, while the heaps are
+   * not modified. Then the buffered updates are applied in parallel, with each
+   * thread responsible for a disjoint stripe of target objects. Because every
+   * heap receives its updates in the same order regardless of the number of
+   * threads, the result is reproducible.
+   *
+   * @param ids Objects to process
+   * @param flag Flags to mark new neighbors
+   * @param sampleNewNeighbors Sampled new forward neighbors
+   * @param newReverseNeighbors New reverse neighbors
+   * @param oldReverseNeighbors Old reverse neighbors
+   * @param items Sample size
+   * @param seed Random seed for this iteration
+   * @return Number of distance computations
+   */
+  private long join(ArrayDBIDs ids, WritableDataStore<HashSetModifiableDBIDs> flag, WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors, WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors, WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors, int items, long seed) {
+    final int size = ids.size();
+    final int parallelism = Math.max(1, ParallelCore.getCore().getParallelism());
+    List<JoinTask> tasks = new ArrayList<>(parallelism);
+    for(int i = 0; i < parallelism; i++) {
+      tasks.add(new JoinTask(flag, sampleNewNeighbors, newReverseNeighbors, oldReverseNeighbors, items, seed));
+    }
+    List<Callable<Void>> apply = new ArrayList<>(parallelism);
+    for(int i = 0; i < parallelism; i++) {
+      final int group = i;
+      apply.add(() -> {
+        apply(tasks, flag, group, parallelism);
+        return null;
+      });
+    }
+    long counter = 0;
+    for(int start = 0; start < size; start += CHUNK_SIZE) {
+      final int end = Math.min(size, start + CHUNK_SIZE);
+      final int step = (end - start + parallelism - 1) / parallelism;
+      for(int i = 0; i < parallelism; i++) {
+        final int s = Math.min(end, start + i * step);
+        tasks.get(i).reset(ids.slice(s, Math.min(end, s + step)));
+      }
+      ParallelExecutor.run(tasks);
+      ParallelExecutor.run(apply);
+    }
+    for(JoinTask task : tasks) {
+      counter += task.counter;
+    }
+    return counter;
+  }
+
+  /**
+   * Apply the buffered updates for one stripe of target objects.
+   *
+   * @param tasks Join tasks, in object order
+   * @param flag Flags to mark new neighbors
+   * @param group Stripe to process
+   * @param groups Number of stripes
+   */
+  private void apply(List<JoinTask> tasks, WritableDataStore<HashSetModifiableDBIDs> flag, int group, int groups) {
+    for(JoinTask task : tasks) {
+      DBIDArrayIter target = task.targets.iter();
+      for(DoubleDBIDListIter cand = task.candidates.iter(); cand.valid(); cand.advance(), target.advance()) {
+        if((target.internalGetIndex() & 0x7FFFFFFF) % groups == group //
+            && add(target, cand, cand.doubleValue())) {
+          flag.get(target).add(cand);
+        }
+      }
+    }
+  }
+
+  /**
+   * Local join for a range of objects, buffering the heap updates.
+   * <p>
+   * The random generator is reseeded for every object, so that the sampling
+   * does not depend on how the objects are distributed to threads.
+   *
+   * @author Erich Schubert
+   */
+  private class JoinTask implements Callable<Void> {
+    /**
+     * Flags to mark new neighbors.
+     */
+    WritableDataStore<HashSetModifiableDBIDs> flag;
+
+    /**
+     * Sampled new forward neighbors.
+     */
+    WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors;
+
+    /**
+     * New reverse neighbors.
+     */
+    WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors;
+
+    /**
+     * Old reverse neighbors.
+     */
+    WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors;
+
+    /**
+     * Sample size.
+     */
+    int items;
+
+    /**
+     * Random seed of the iteration.
+     */
+    long seed;
+
+    /**
+     * Random generator, reseeded for each object.
+     */
+    Random rand = new Xoroshiro128NonThreadsafeRandom(0L);
+
+    /**
+     * Objects to process.
+     */
+    DBIDs range;
+
+    /**
+     * Target objects of the buffered updates.
+     */
+    ArrayModifiableDBIDs targets = DBIDUtil.newArray();
+
+    /**
+     * Candidates and distances of the buffered updates.
+     */
+    ModifiableDoubleDBIDList candidates = DBIDUtil.newDistanceDBIDList();
+
+    /**
+     * Old neighbors of the current object.
+     */
+    HashSetModifiableDBIDs oldNeighbors = DBIDUtil.newHashSet();
+
+    /**
+     * Candidate buffers.
+     */
+    ArrayModifiableDBIDs newFwd = DBIDUtil.newArray(), oldFwd = DBIDUtil.newArray(), //
+        newRev = DBIDUtil.newArray(), oldRev = DBIDUtil.newArray();
+
+    /**
+     * Number of distance computations.
+     */
+    long counter;
+
+    /**
+     * Constructor.
+     *
+     * @param flag Flags to mark new neighbors
+     * @param sampleNewNeighbors Sampled new forward neighbors
+     * @param newReverseNeighbors New reverse neighbors
+     * @param oldReverseNeighbors Old reverse neighbors
+     * @param items Sample size
+     * @param seed Random seed of the iteration
+     */
+    JoinTask(WritableDataStore<HashSetModifiableDBIDs> flag, WritableDataStore<HashSetModifiableDBIDs> sampleNewNeighbors, WritableDataStore<HashSetModifiableDBIDs> newReverseNeighbors, WritableDataStore<HashSetModifiableDBIDs> oldReverseNeighbors, int items, long seed) {
+      this.flag = flag;
+      this.sampleNewNeighbors = sampleNewNeighbors;
+      this.newReverseNeighbors = newReverseNeighbors;
+      this.oldReverseNeighbors = oldReverseNeighbors;
+      this.items = items;
+      this.seed = seed;
+    }
+
+    /**
+     * Set the objects to process next, and clear the update buffers.
+     *
+     * @param range Objects to process
+     */
+    void reset(DBIDs range) {
+      this.range = range;
+      targets.clear();
+      candidates.clear();
+    }
+
+    @Override
+    public Void call() {
+      for(DBIDIter id = range.iter(); id.valid(); id.advance()) {
+        rand.setSeed(seed ^ (id.internalGetIndex() * 0x9E3779B97F4A7C15L));
+        // determine new and old neighbors
+        oldNeighbors.clear();
+        HashSetModifiableDBIDs newNeighbors = flag.get(id);
+        for(DoubleDBIDIter heapiter = store.get(id).unorderedIterator(); heapiter.valid(); heapiter.advance()) {
+          if(!newNeighbors.contains(heapiter)) {
+            oldNeighbors.add(heapiter);
+          }
+        }
+        // Sampling
+        HashSetModifiableDBIDs sampleNew = sampleNewNeighbors.get(id);
+
+        HashSetModifiableDBIDs nRev = newReverseNeighbors.get(id);
+        nRev.removeDBIDs(sampleNew);
+        boundSize(nRev, items, rand);
+
+        HashSetModifiableDBIDs oRev = oldReverseNeighbors.get(id);
+        oRev.removeDBIDs(oldNeighbors);
+        boundSize(oRev, items, rand);
+
+        newFwd.clear().addDBIDs(sampleNew);
+        oldFwd.clear().addDBIDs(oldNeighbors);
+        newRev.clear().addDBIDs(nRev);
+        oldRev.clear().addDBIDs(oRev);
+        // This is a complex join, because we do not need to join old neighbors
+        // with old neighbors, and we have forward- and reverse neighbors each.
+        counter += join(newFwd, newFwd, true) + join(newFwd, oldFwd, false) //
+            + join(newRev, newRev, true) + join(newRev, oldRev, false) //
+            + join(newFwd, oldRev, false) + join(newFwd, newRev, true) //
+            + join(oldFwd, newRev, false);
+      }
+      return null;
+    }
+
+    /**
+     * Join two candidate lists.
+     *
+     * @param a First list
+     * @param b Second list
+     * @param ordered Only join pairs with x &lt; y, otherwise x != y
+     * @return Number of distance computations
+     */
+    private int join(ArrayDBIDs a, ArrayDBIDs b, boolean ordered) {
+      int counter = 0;
+      for(DBIDArrayIter x = a.iter(); x.valid(); x.advance()) {
+        for(DBIDArrayIter y = b.iter(); y.valid(); y.advance()) {
+          if(ordered ? DBIDUtil.compare(x, y) < 0 : !DBIDUtil.equal(x, y)) {
+            final double distance = distanceQuery.distance(x, y);
+            buffer(x, y, distance);
+            buffer(y, x, distance);
+            counter++;
+          }
+        }
+      }
+      return counter;
+    }
+
+    /**
+     * Buffer an update, unless it cannot improve the current neighbors.
+     *
+     * @param cur Current object
+     * @param cand Neighbor candidate
+     * @param distance Distance
+     */
+    private void buffer(DBIDRef cur, DBIDRef cand, double distance) {
+      if(distance <= store.get(cur).getKNNDistance()) {
+        targets.add(cur);
+        candidates.add(distance, cand);
+      }
+    }
+  }
+
   @Override
   protected Logging getLogger() {
     return LOG;
@@ -21,9 +21,10 @@
 package elki.index.preprocessed.knn;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import elki.data.DoubleVector;
 import elki.data.NumberVector;
@@ -45,7 +46,9 @@ import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
 import elki.logging.statistics.LongStatistic;
 import elki.math.Mean;
+import elki.math.spacefillingcurves.SpatialKeyEncoder;
 import elki.math.spacefillingcurves.SpatialSorter;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.documentation.Reference;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.Parameterizer;
@@ -62,6 +65,10 @@ import elki.utilities.random.RandomFactory;
  * sizes k) than {@link SpacefillingMaterializeKNNPreprocessor}, but will also
  * be slower.
  * <p>
+ * The curves are built in parallel. Curves that are a
+ * {@link SpatialKeyEncoder} are sorted by primitive keys, without sorting
+ * object pairs.
+ * <p>
  * Reference:
  * <p>
  * Erich Schubert, Arthur Zimek, Hans-Peter Kriegel<br>
@@ -110,9 +117,14 @@ public class SpacefillingKNNPreprocessor<O extends NumberVector> implements KNNI
   final int variants;
 
   /**
-   * Curve storage
+   * Indexed objects.
+   */
+  ArrayDBIDs ids = null;
+
+  /**
+   * Curve storage, as offsets into {@link #ids}.
    */
-  List<List<SpatialPair<DBID, NumberVector>>> curves = null;
+  int[][] curves = null;
 
   /**
    * Curve position storage
@@ -173,40 +185,39 @@ public class SpacefillingKNNPreprocessor<O extends NumberVector> implements KNNI
 
   protected void preprocess() {
     final long starttime = System.currentTimeMillis();
-    final int size = relation.size();
+    ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final int size = ids.size();
 
     final int numgen = curvegen.size();
     final int numcurves = variants; // numgen * variants;
-    curves = new ArrayList<>(numcurves);
-    for(int i = 0; i < numcurves; i++) {
-      curves.add(new ArrayList<SpatialPair<DBID, NumberVector>>(size));
+    // Position index, DBID -> position in the curves
+    positions = DataStoreUtil.makeStorage(ids, DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, int[].class);
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      positions.put(it, new int[numcurves]);
     }
-
+    // Draw all random parameters first, then build the curves in parallel.
+    List<Callable<int[]>> tasks = new ArrayList<>(numcurves);
     if(proj == null) {
-      for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
-        final NumberVector v = relation.get(iditer);
-        SpatialPair<DBID, NumberVector> ref = new SpatialPair<DBID, NumberVector>(DBIDUtil.deref(iditer), v);
-        for(List<SpatialPair<DBID, NumberVector>> curve : curves) {
-          curve.add(ref);
-        }
+      final List<O> vecs = new ArrayList<>(size);
+      for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+        vecs.add(relation.get(iditer));
       }
 
       // Sort spatially
-      final double[] mms = SpatialSorter.computeMinMax(curves.get(0));
+      final double[] mms = SpatialSorter.computeMinMax(vecs);
       // Find maximum extend.
       double extend = 0;
       for(int d2 = 0, e = mms.length - 1; d2 < e; d2 += 2) {
         extend = Math.max(extend, mms[d2 + 1] - mms[d2]);
       }
-      final double[] mmscratch = new double[mms.length];
       final int idim = mms.length >>> 1;
       final int dim = (odim < 0) ? idim : Math.min(odim, idim);
       final int[] permutation = range(0, idim);
-      final int[] apermutation = (dim != idim) ? new int[dim] : permutation;
       for(int j = 0; j < numcurves; j++) {
-        final int ctype = numgen > 1 ? random.nextInt(numgen) : 0;
+        final SpatialSorter sorter = curvegen.get(numgen > 1 ? random.nextInt(numgen) : 0);
         // Scale all axes by the same factor:
         final double scale = 1. + random.nextDouble();
+        final double[] mmscratch = new double[mms.length];
         for(int d2 = 0, e = mms.length - 1; d2 < e; d2 += 2) {
           // Note: use global extend, to be unbiased against different scales.
           mmscratch[d2] = mms[d2] - extend * random.nextDouble();
@@ -214,8 +225,9 @@ public class SpacefillingKNNPreprocessor<O extends NumberVector> implements KNNI
         }
         // Generate permutation:
         randomPermutation(permutation, random);
-        System.arraycopy(permutation, 0, apermutation, 0, dim);
-        curvegen.get(ctype).sort(curves.get(j), 0, size, mmscratch, apermutation);
+        final int[] apermutation = Arrays.copyOf(permutation, dim);
+        final int cnum = j;
+        tasks.add(() -> storePositions(cnum, sortAlongCurve(vecs, sorter, mmscratch, apermutation)));
       }
     }
     else {
@@ -223,70 +235,120 @@ public class SpacefillingKNNPreprocessor<O extends NumberVector> implements KNNI
       final int idim = RelationUtil.dimensionality(relation);
       final int dim = (odim < 0) ? idim : odim;
       final int[] permutation = range(0, dim);
-      NumberVector.Factory<O> factory = RelationUtil.getNumberVectorFactory(relation);
-      final double[] mms = new double[odim << 1];
-
       for(int j = 0; j < numcurves; j++) {
-        final List<SpatialPair<DBID, NumberVector>> curve = curves.get(j);
         final RandomProjectionFamily.Projection mat = proj.generateProjection(idim, dim);
-        final int ctype = numgen > 1 ? random.nextInt(numgen) : 0;
-
-        // Initialize min/max:
-        for(int d2 = 0; d2 < mms.length; d2 += 2) {
-          mms[d2] = Double.POSITIVE_INFINITY;
-          mms[d2 + 1] = Double.NEGATIVE_INFINITY;
-        }
-        // Project data set:
-        for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
-          double[] proj = mat.project(relation.get(iditer));
-          curve.add(new SpatialPair<DBID, NumberVector>(DBIDUtil.deref(iditer), factory.newNumberVector(proj)));
-          for(int d2 = 0, d = 0; d2 < mms.length; d2 += 2, d++) {
-            mms[d2] = Math.min(mms[d2], proj[d]);
-            mms[d2 + 1] = Math.max(mms[d2 + 1], proj[d]);
-          }
-        }
-        // Find maximum extend.
-        double extend = 0.;
-        for(int d2 = 0; d2 < mms.length; d2 += 2) {
-          extend = Math.max(extend, mms[d2 + 1] - mms[d2]);
-        }
+        final SpatialSorter sorter = curvegen.get(numgen > 1 ? random.nextInt(numgen) : 0);
         // Scale all axes by the same factor:
         final double scale = 1. + random.nextDouble();
-        for(int d2 = 0; d2 < mms.length; d2 += 2) {
-          // Note: use global extend, to be unbiased against different scales.
-          mms[d2] -= extend * random.nextDouble();
-          mms[d2 + 1] = mms[d2] + extend * scale;
+        final double[] shift = new double[dim];
+        for(int d = 0; d < dim; d++) {
+          shift[d] = random.nextDouble();
         }
         // Generate permutation:
         randomPermutation(permutation, random);
-        // Sort spatially.
-        curvegen.get(ctype).sort(curve, 0, size, mms, permutation);
-      }
-    }
-
-    // Build position index, DBID -> position in the three curves
-    positions = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, int[].class);
-    for(int cnum = 0; cnum < numcurves; cnum++) {
-      Iterator<SpatialPair<DBID, NumberVector>> it = curves.get(cnum).iterator();
-      for(int i = 0; it.hasNext(); i++) {
-        SpatialPair<DBID, NumberVector> r = it.next();
-        final int[] data;
-        if(cnum == 0) {
-          data = new int[numcurves];
-          positions.put(r.first, data);
-        }
-        else {
-          data = positions.get(r.first);
-        }
-        data[cnum] = i;
+        final int[] apermutation = permutation.clone();
+        final int cnum = j;
+        tasks.add(() -> storePositions(cnum, projectAndSort(mat, sorter, scale, shift, apermutation)));
       }
     }
+    curves = ParallelExecutor.run(tasks).toArray(new int[numcurves][]);
     final long end = System.currentTimeMillis();
     if(LOG.isStatistics()) {
       LOG.statistics(new LongStatistic(this.getClass().getCanonicalName() + ".construction-time.ms", end - starttime));
     }
   }
 
+  /**
+   * Store the positions of the objects in a curve. Each curve only writes its
+   * own entry of the position arrays, so this can be done in parallel.
+   *
+   * @param cnum Curve number
+   * @param curve Offsets of the objects, in curve order
+   * @return {@code curve}
+   */
+  private int[] storePositions(int cnum, int[] curve) {
+    final DBIDArrayIter it = ids.iter();
+    for(int i = 0; i < curve.length; i++) {
+      positions.get(it.seek(curve[i]))[cnum] = i;
+    }
+    return curve;
+  }
+
+  /**
+   * Project the data set, and sort the projected data along a curve.
+   *
+   * @param mat Projection
+   * @param sorter Space filling curve
+   * @param scale Scaling factor of the value range
+   * @param shift Random shifts of the value range, relative to the extend
+   * @param permutation Dimension permutation
+   * @return Offsets of the objects, in curve order
+   */
+  private int[] projectAndSort(RandomProjectionFamily.Projection mat, SpatialSorter sorter, double scale, double[] shift, int[] permutation) {
+    final int dim = shift.length;
+    final double[] mms = new double[dim << 1];
+    // Initialize min/max:
+    for(int d2 = 0; d2 < mms.length; d2 += 2) {
+      mms[d2] = Double.POSITIVE_INFINITY;
+      mms[d2 + 1] = Double.NEGATIVE_INFINITY;
+    }
+    // Project data set:
+    List<DoubleVector> vecs = new ArrayList<>(ids.size());
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      double[] proj = mat.project(relation.get(iditer));
+      vecs.add(DoubleVector.wrap(proj));
+      for(int d2 = 0, d = 0; d2 < mms.length; d2 += 2, d++) {
+        mms[d2] = Math.min(mms[d2], proj[d]);
+        mms[d2 + 1] = Math.max(mms[d2 + 1], proj[d]);
+      }
+    }
+    // Find maximum extend.
+    double extend = 0.;
+    for(int d2 = 0; d2 < mms.length; d2 += 2) {
+      extend = Math.max(extend, mms[d2 + 1] - mms[d2]);
+    }
+    for(int d2 = 0, d = 0; d2 < mms.length; d2 += 2, d++) {
+      // Note: use global extend, to be unbiased against different scales.
+      mms[d2] -= extend * shift[d];
+      mms[d2 + 1] = mms[d2] + extend * scale;
+    }
+    // Sort spatially.
+    return sortAlongCurve(vecs, sorter, mms, permutation);
+  }
+
+  /**
+   * Sort objects along a space filling curve. Curves that are a
+   * {@link SpatialKeyEncoder} are sorted by their primitive keys, other curves
+   * by sorting the objects.
+   *
+   * @param vecs Objects to sort
+   * @param sorter Space filling curve
+   * @param mms Minimum and maximum of each dimension, used as scratch space
+   * @param dims Dimensions to use
+   * @return Offsets of the objects, in curve order
+   */
+  static int[] sortAlongCurve(List<? extends NumberVector> vecs, SpatialSorter sorter, double[] mms, int[] dims) {
+    final int size = vecs.size();
+    if(sorter instanceof SpatialKeyEncoder) {
+      final SpatialKeyEncoder encoder = (SpatialKeyEncoder) sorter;
+      long[] keys = new long[size];
+      for(int i = 0; i < size; i++) {
+        keys[i] = encoder.encode(vecs.get(i), mms, dims);
+      }
+      return SpatialKeyEncoder.sortByKeys(keys);
+    }
+    List<SpatialPair<Integer, NumberVector>> pairs = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      pairs.add(new SpatialPair<Integer, NumberVector>(i, vecs.get(i)));
+    }
+    sorter.sort(pairs, 0, size, mms, dims);
+    int[] order = new int[size];
+    for(int i = 0; i < size; i++) {
+      order[i] = pairs.get(i).first;
+    }
+    return order;
+  }
+
   /**
    * Initialize an integer value range.
    *
@@ -363,14 +425,15 @@ public class SpacefillingKNNPreprocessor<O extends NumberVector> implements KNNI
     public KNNList getKNN(DBIDRef id, int k) {
       final int wsize = (int) Math.ceil(window * k);
       // Build candidates
-      ModifiableDBIDs cands = DBIDUtil.newHashSet(2 * wsize * curves.size());
+      ModifiableDBIDs cands = DBIDUtil.newHashSet(2 * wsize * curves.length);
       final int[] posi = positions.get(id);
+      final DBIDArrayIter it = ids.iter();
       for(int i = 0; i < posi.length; i++) {
-        List<SpatialPair<DBID, NumberVector>> curve = curves.get(i);
+        final int[] curve = curves[i];
         final int start = Math.max(0, posi[i] - wsize);
-        final int end = Math.min(posi[i] + wsize + 1, curve.size());
+        final int end = Math.min(posi[i] + wsize + 1, curve.length);
         for(int j = start; j < end; j++) {
-          cands.add(curve.get(j).first);
+          cands.add(it.seek(curve[j]));
         }
       }
       // Refine:
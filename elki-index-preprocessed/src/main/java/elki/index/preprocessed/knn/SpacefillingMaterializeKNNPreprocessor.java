@@ -21,16 +21,15 @@
 package elki.index.preprocessed.knn;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import elki.data.NumberVector;
 import elki.data.type.TypeInformation;
 import elki.data.type.TypeUtil;
 import elki.database.datastore.DataStoreFactory;
 import elki.database.datastore.DataStoreUtil;
-import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.QueryBuilder;
 import elki.database.query.distance.DistanceQuery;
@@ -41,7 +40,10 @@ import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
 import elki.logging.statistics.LongStatistic;
 import elki.math.Mean;
+import elki.math.spacefillingcurves.SpatialKeyEncoder;
 import elki.math.spacefillingcurves.SpatialSorter;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.documentation.Reference;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.constraints.CommonConstraints;
@@ -59,6 +61,10 @@ import elki.utilities.random.RandomFactory;
  * neighbors for every object, then discards the curves. This is usually more
  * memory intensive but faster than {@link SpacefillingKNNPreprocessor}.
  * <p>
+ * The curves are built in parallel, using primitive keys for curves that are a
+ * {@link SpatialKeyEncoder}, and the candidates of the objects are refined in
+ * parallel blocks.
+ * <p>
  * Reference:
  * <p>
  * Erich Schubert, Arthur Zimek, Hans-Peter Kriegel<br>
@@ -70,8 +76,6 @@ import elki.utilities.random.RandomFactory;
  * @author Erich Schubert
  * @since 0.7.0
  *
- * @has - - - SpatialPair
- *
  * @param <O> Vector type indexed
  */
 @Reference(authors = "Erich Schubert, Arthur Zimek, Hans-Peter Kriegel", //
@@ -100,6 +104,11 @@ public class SpacefillingMaterializeKNNPreprocessor<O extends NumberVector> exte
    */
   final int variants;
 
+  /**
+   * Minimum number of objects per block of a parallel refinement.
+   */
+  private static final int MIN_BLOCK_SIZE = 64;
+
   /**
    * Mean number of distance computations
    */
@@ -133,29 +142,23 @@ public class SpacefillingMaterializeKNNPreprocessor<O extends NumberVector> exte
   protected void preprocess() {
     // Prepare space filling curve:
     final long starttime = System.currentTimeMillis();
-    final int size = relation.size();
+    final ArrayDBIDs ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final int size = ids.size();
 
     final int numgen = curvegen.size();
     final int numcurves = numgen * variants;
-    List<List<SpatialPair<DBID, NumberVector>>> curves = new ArrayList<>(numcurves);
-    for(int i = 0; i < numcurves; i++) {
-      curves.add(new ArrayList<SpatialPair<DBID, NumberVector>>(size));
+    final List<O> vecs = new ArrayList<>(size);
+    for(DBIDIter iditer = ids.iter(); iditer.valid(); iditer.advance()) {
+      vecs.add(relation.get(iditer));
     }
 
-    for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
-      final NumberVector v = relation.get(iditer);
-      SpatialPair<DBID, NumberVector> ref = new SpatialPair<DBID, NumberVector>(DBIDUtil.deref(iditer), v);
-      for(List<SpatialPair<DBID, NumberVector>> curve : curves) {
-        curve.add(ref);
-      }
-    }
-
-    // Sort spatially
-    final double[] mms = SpatialSorter.computeMinMax(curves.get(0));
-    final double[] mmscratch = new double[mms.length];
+    // Sort spatially, building the curves in parallel
+    final double[] mms = SpatialSorter.computeMinMax(vecs);
     final int numdim = mms.length >>> 1;
     final int[] permutation = new int[numdim];
+    List<Callable<int[]>> tasks = new ArrayList<>(numcurves);
     for(int j = 0; j < variants; j++) {
+      final double[] mmscratch = new double[mms.length];
       for(int i = 0, e = mms.length - 1; i < e; i += 2) {
         double len = mms[i + 1] - mms[i];
         mmscratch[i] = mms[i] - len * random.nextDouble();
@@ -173,62 +176,98 @@ public class SpacefillingMaterializeKNNPreprocessor<O extends NumberVector> exte
         permutation[ri] = permutation[i];
         permutation[i] = tmp;
       }
+      final int[] cpermutation = permutation.clone();
       for(int i = 0; i < numgen; i++) {
-        curvegen.get(i).sort(curves.get(i + numgen * j), 0, size, mmscratch, permutation);
+        final SpatialSorter sorter = curvegen.get(i);
+        tasks.add(() -> SpacefillingKNNPreprocessor.sortAlongCurve(vecs, sorter, mmscratch.clone(), cpermutation));
       }
     }
+    final List<int[]> curves = ParallelExecutor.run(tasks);
 
-    // Build position index, DBID -> position in the three curves
-    WritableDataStore<int[]> positions = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, int[].class);
+    // Build position index, offset -> position in the curves
+    final int[][] positions = new int[size][numcurves];
     for(int cnum = 0; cnum < numcurves; cnum++) {
-      Iterator<SpatialPair<DBID, NumberVector>> it = curves.get(cnum).iterator();
-      for(int i = 0; it.hasNext(); i++) {
-        SpatialPair<DBID, NumberVector> r = it.next();
-        final int[] data;
-        if(cnum == 0) {
-          data = new int[numcurves];
-          positions.put(r.first, data);
-        }
-        else {
-          data = positions.get(r.first);
-        }
-        data[cnum] = i;
+      final int[] curve = curves.get(cnum);
+      for(int i = 0; i < size; i++) {
+        positions[curve[i]][cnum] = i;
       }
     }
 
-    // Convert to final storage
+    // Refine the candidates of each object, in parallel blocks
     final int wsize = (int) Math.ceil(window * k);
-    storage = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_STATIC, KNNList.class);
-    HashSetModifiableDBIDs cands = DBIDUtil.newHashSet(2 * wsize * numcurves);
-    for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
+    final int[] distc = new int[size];
+    final List<KNNList[]> blocks;
+    final ParallelCore core = ParallelCore.getCore();
+    final int parallelism = core.getParallelism();
+    if(size < MIN_BLOCK_SIZE << 1 || parallelism <= 1 || core.isWorkerThread()) {
+      blocks = new ArrayList<>(1);
+      blocks.add(refine(ids, 0, size, curves, positions, wsize, distc));
+    }
+    else {
+      final int blocksize = Math.max(MIN_BLOCK_SIZE, (size + (parallelism << 2) - 1) / (parallelism << 2));
+      List<Callable<KNNList[]>> rtasks = new ArrayList<>((size + blocksize - 1) / blocksize);
+      for(int start = 0; start < size; start += blocksize) {
+        final int s = start, e = Math.min(size, start + blocksize);
+        rtasks.add(() -> refine(ids, s, e, curves, positions, wsize, distc));
+      }
+      blocks = ParallelExecutor.run(rtasks);
+    }
+
+    // Convert to final storage
+    storage = DataStoreUtil.makeStorage(ids, DataStoreFactory.HINT_STATIC, KNNList.class);
+    DBIDArrayIter iditer = ids.iter();
+    for(KNNList[] block : blocks) {
+      for(KNNList knns : block) {
+        storage.put(iditer, knns);
+        mean.put(distc[iditer.getOffset()] / (double) k);
+        iditer.advance();
+      }
+    }
+
+    final long end = System.currentTimeMillis();
+    if(LOG.isStatistics()) {
+      LOG.statistics(new LongStatistic(this.getClass().getCanonicalName() + ".construction-time.ms", end - starttime));
+    }
+  }
+
+  /**
+   * Refine the candidates of a block of objects.
+   *
+   * @param ids Object ids
+   * @param start First offset
+   * @param end End offset (exclusive)
+   * @param curves Curves, as offsets in curve order
+   * @param positions Positions of each offset in the curves
+   * @param wsize Window size
+   * @param distc Output array for the number of distance computations
+   * @return kNN lists of the block
+   */
+  private KNNList[] refine(ArrayDBIDs ids, int start, int end, List<int[]> curves, int[][] positions, int wsize, int[] distc) {
+    KNNList[] knns = new KNNList[end - start];
+    HashSetModifiableDBIDs cands = DBIDUtil.newHashSet(2 * wsize * curves.size());
+    DBIDArrayIter iditer = ids.iter(), cand = ids.iter();
+    for(int off = start; off < end; off++) {
       // Get candidates.
       cands.clear();
-      int[] posi = positions.get(iditer);
+      int[] posi = positions[off];
       for(int i = 0; i < posi.length; i++) {
-        List<SpatialPair<DBID, NumberVector>> curve = curves.get(i);
-        final int start = Math.max(0, posi[i] - wsize);
-        final int end = Math.min(posi[i] + wsize + 1, curve.size());
-        for(int pos = start; pos < end; pos++) {
-          cands.add(curve.get(pos).first);
+        final int[] curve = curves.get(i);
+        final int cstart = Math.max(0, posi[i] - wsize);
+        final int cend = Math.min(posi[i] + wsize + 1, curve.length);
+        for(int pos = cstart; pos < cend; pos++) {
+          cands.add(cand.seek(curve[pos]));
         }
       }
 
-      int distc = 0;
       KNNHeap heap = DBIDUtil.newHeap(k);
-      O vec = relation.get(iditer);
+      O vec = relation.get(iditer.seek(off));
       for(DBIDIter iter = cands.iter(); iter.valid(); iter.advance()) {
         heap.insert(distanceQuery.distance(vec, iter), iter);
-        distc++;
       }
-
-      storage.put(iditer, heap.toKNNList());
-      mean.put(distc / (double) k);
-    }
-
-    final long end = System.currentTimeMillis();
-    if(LOG.isStatistics()) {
-      LOG.statistics(new LongStatistic(this.getClass().getCanonicalName() + ".construction-time.ms", end - starttime));
+      knns[off - start] = heap.toKNNList();
+      distc[off] = cands.size();
     }
+    return knns;
   }
 
   @Override
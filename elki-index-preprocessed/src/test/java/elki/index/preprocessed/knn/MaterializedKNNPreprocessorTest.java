@@ -121,6 +121,46 @@ public class MaterializedKNNPreprocessorTest {
     testKNNQueries(relation, lin_knn_query, preproc_knn_query, k);
   }
 
+  @Test
+  public void testBatchInsertion() {
+    UpdatableDatabase db = new ELKIBuilder<>(HashmapDatabase.class) //
+        .with(FileBasedDatabaseConnection.Par.INPUT_ID, getClass().getClassLoader().getResource(dataset)) //
+        .build();
+    db.initialize();
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    DistanceQuery<DoubleVector> distanceQuery = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    KNNSearcher<DBIDRef> lin_knn_query = new LinearScanKNNByDBID<>(distanceQuery);
+    // Without optimizer, to not use a static index for the new objects.
+    MaterializeKNNPreprocessor<DoubleVector> preproc = new MaterializeKNNPreprocessor<>(relation, distanceQuery, k, true);
+    preproc.initialize();
+    Metadata.hierarchyOf(relation).addChild(preproc);
+    List<KNNChangeEvent> events = new ArrayList<>();
+    preproc.addKNNListener(events::add);
+
+    // insert enough objects to be processed in parallel blocks, in two
+    // batches, such that the second uses the k-distances updated by the first
+    NumberVector.Factory<DoubleVector> o = RelationUtil.getNumberVectorFactory(relation);
+    Random random = new Random(seed);
+    for(int b = 0; b < 2; b++) {
+      List<DoubleVector> insertions = new ArrayList<>();
+      for(int i = 0; i < 200; i++) {
+        insertions.add(VectorUtil.randomVector(o, RelationUtil.dimensionality(relation), random));
+      }
+      DBIDs inserted = db.insert(MultipleObjectsBundle.makeSimple(relation.getDataTypeInformation(), insertions));
+      assertEquals("Insertions were not batched.", b + 1, events.size());
+      assertEquals("Wrong event type.", KNNChangeEvent.Type.INSERT, events.get(b).getType());
+      assertEquals("Wrong number of objects.", inserted.size(), events.get(b).getObjects().size());
+    }
+
+    for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
+      KNNList lin_knn = lin_knn_query.getKNN(iter, k), pre_knn = preproc.get(iter);
+      assertEquals("kNN sizes do not agree.", lin_knn.size(), pre_knn.size());
+      for(int j = 0; j < lin_knn.size(); j++) {
+        assertEquals("kNNs of linear scan and preprocessor do not match!", lin_knn.doubleValue(j), pre_knn.doubleValue(j), 1e-15);
+      }
+    }
+  }
+
   public static void testKNNQueries(Relation<DoubleVector> rep, KNNSearcher<DBIDRef> lin_knn_query, KNNSearcher<DBIDRef> preproc_knn_query, int k) {
     assertNotEquals("Preprocessor knn query class incorrect.", lin_knn_query.getClass(), preproc_knn_query.getClass());
     for(DBIDIter iter = rep.iterDBIDs(); iter.valid(); iter.advance()) {
@@ -20,21 +20,34 @@
  */
 package elki.index.preprocessed.knn;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
 import elki.algorithm.AbstractSimpleAlgorithmTest;
 import elki.data.DoubleVector;
+import elki.data.NumberVector;
+import elki.data.VectorUtil;
 import elki.data.type.TypeUtil;
 import elki.database.Database;
-import elki.database.ids.DBIDRef;
+import elki.database.HashmapDatabase;
+import elki.database.UpdatableDatabase;
+import elki.database.ids.*;
 import elki.database.query.QueryBuilder;
 import elki.database.query.distance.DistanceQuery;
 import elki.database.query.knn.KNNSearcher;
 import elki.database.query.knn.LinearScanKNNByDBID;
 import elki.database.query.knn.LinearScanKNNByObject;
 import elki.database.relation.Relation;
+import elki.database.relation.RelationUtil;
+import elki.datasource.FileBasedDatabaseConnection;
+import elki.datasource.bundle.MultipleObjectsBundle;
 import elki.distance.minkowski.EuclideanDistance;
 import elki.result.Metadata;
 import elki.utilities.ELKIBuilder;
@@ -88,4 +101,62 @@ public class NNDescentTest {
     // also test partial queries, forward only
     MaterializedKNNPreprocessorTest.testKNNQueries(relation, lin_knn_query, preproc_knn_query, k / 2, 6);
   }
+
+  @Test
+  public void testUpdates() {
+    UpdatableDatabase db = new ELKIBuilder<>(HashmapDatabase.class) //
+        .with(FileBasedDatabaseConnection.Par.INPUT_ID, getClass().getClassLoader().getResource(dataset)) //
+        .build();
+    db.initialize();
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    DistanceQuery<DoubleVector> distanceQuery = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    KNNSearcher<DBIDRef> lin_knn_query = new LinearScanKNNByDBID<>(distanceQuery);
+
+    NNDescent<DoubleVector> preproc = new ELKIBuilder<NNDescent.Factory<DoubleVector>>(NNDescent.Factory.class) //
+        .with(NNDescent.Factory.DISTANCE_FUNCTION_ID, distanceQuery.getDistance()) //
+        .with(NNDescent.Factory.K_ID, k) //
+        .with(NNDescent.Factory.Par.SEED_ID, 0) //
+        .with(NNDescent.Factory.Par.DELTA_ID, 0.1) //
+        .with(NNDescent.Factory.Par.RHO_ID, 0.5) //
+        .build().instantiate(relation);
+    KNNSearcher<DBIDRef> preproc_knn_query = preproc.kNNByDBID(distanceQuery, k, 0);
+    Metadata.hierarchyOf(relation).addChild(preproc);
+    preproc.initialize();
+    assertTrue("Too many incorrect kNN.", countErrors(relation, lin_knn_query, preproc_knn_query, k) <= 10);
+
+    // insert new objects, which are refined incrementally
+    List<DoubleVector> insertions = new ArrayList<>();
+    NumberVector.Factory<DoubleVector> o = RelationUtil.getNumberVectorFactory(relation);
+    int dim = RelationUtil.dimensionality(relation);
+    Random random = new Random(seed);
+    for(int i = 0; i < updatesize; i++) {
+      insertions.add(VectorUtil.randomVector(o, dim, random));
+    }
+    DBIDs deletions = db.insert(MultipleObjectsBundle.makeSimple(relation.getDataTypeInformation(), insertions));
+    assertTrue("Too many incorrect kNN after insertion.", countErrors(relation, lin_knn_query, preproc_knn_query, k) <= 10);
+
+    // delete objects again
+    db.delete(deletions);
+    assertTrue("Too many incorrect kNN after deletion.", countErrors(relation, lin_knn_query, preproc_knn_query, k) <= 10);
+  }
+
+  /**
+   * Count the number of objects with an incorrect k-distance.
+   *
+   * @param relation Data relation
+   * @param lin_knn_query Exact kNN query
+   * @param preproc_knn_query Approximate kNN query
+   * @param k Number of neighbors
+   * @return Number of objects with errors
+   */
+  private static int countErrors(Relation<DoubleVector> relation, KNNSearcher<DBIDRef> lin_knn_query, KNNSearcher<DBIDRef> preproc_knn_query, int k) {
+    int errors = 0;
+    for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
+      KNNList lin_knn = lin_knn_query.getKNN(iter, k);
+      KNNList pre_knn = preproc_knn_query.getKNN(iter, k);
+      assertEquals("kNN sizes do not agree.", lin_knn.size(), pre_knn.size());
+      errors += lin_knn.getKNNDistance() < pre_knn.getKNNDistance() ? 1 : 0;
+    }
+    return errors;
+  }
 }
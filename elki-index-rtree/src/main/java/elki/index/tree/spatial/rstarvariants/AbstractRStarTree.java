@@ -39,6 +39,7 @@ import elki.index.tree.spatial.SpatialEntry;
 import elki.index.tree.spatial.SpatialPointLeafEntry;
 import elki.index.tree.spatial.rstarvariants.util.NodeArrayAdapter;
 import elki.logging.Logging;
+import elki.logging.statistics.AtomicLongCounter;
 import elki.logging.statistics.Counter;
 import elki.logging.statistics.LongStatistic;
 import elki.persistent.PageFile;
@@ -812,9 +813,10 @@ public abstract class AbstractRStarTree<N extends AbstractRStarTreeNode<N, E>, E
       super();
       Logging log = getLogger();
       final String prefix = AbstractRStarTree.this.getClass().getName();
-      distanceCalcs = log.isStatistics() ? log.newCounter(prefix + ".distancecalcs") : null;
-      knnQueries = log.isStatistics() ? log.newCounter(prefix + ".knnqueries") : null;
-      rangeQueries = log.isStatistics() ? log.newCounter(prefix + ".rangequeries") : null;
+      // Atomic counters, as queries may run concurrently.
+      distanceCalcs = log.isStatistics() ? new AtomicLongCounter(prefix + ".distancecalcs") : null;
+      knnQueries = log.isStatistics() ? new AtomicLongCounter(prefix + ".knnqueries") : null;
+      rangeQueries = log.isStatistics() ? new AtomicLongCounter(prefix + ".rangequeries") : null;
     }
 
     /**
@@ -826,6 +828,17 @@ public abstract class AbstractRStarTree<N extends AbstractRStarTreeNode<N, E>, E
       }
     }
 
+    /**
+     * Count several distance computations.
+     *
+     * @param n Number of distance computations
+     */
+    public void countDistanceCalculations(int n) {
+      if(distanceCalcs != null) {
+        distanceCalcs.increment(n);
+      }
+    }
+
     /**
      * Count a knn query invocation.
      */
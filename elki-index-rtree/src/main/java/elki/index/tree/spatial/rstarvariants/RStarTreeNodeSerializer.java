@@ -0,0 +1,164 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants;
+
+import java.nio.ByteBuffer;
+
+import elki.data.ModifiableHyperBoundingBox;
+import elki.database.ids.DBIDUtil;
+import elki.index.tree.spatial.SpatialDirectoryEntry;
+import elki.index.tree.spatial.SpatialEntry;
+import elki.index.tree.spatial.SpatialPointLeafEntry;
+import elki.utilities.io.ByteArrayUtil;
+import elki.utilities.io.ByteBufferSerializer;
+
+/**
+ * Binary serializer for R*-tree nodes with point leaf entries, using a fixed
+ * layout that can be decoded directly from a (memory-mapped) buffer.
+ * <p>
+ * Layout: page id, leaf flag, number of entries, capacity and
+ * dimensionality, followed by the entries. Leaf entries consist of the
+ * object id and the coordinates, directory entries of the page id and the
+ * minimum and maximum coordinates of the bounding box.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @param <N> Node type
+ */
+public class RStarTreeNodeSerializer<N extends AbstractRStarTreeNode<N, SpatialEntry>> implements ByteBufferSerializer<N> {
+  /**
+   * Size of the node header.
+   */
+  private static final int HEADER_SIZE = 4 * ByteArrayUtil.SIZE_INT + 1;
+
+  /**
+   * Node factory.
+   */
+  private final NodeFactory<N> factory;
+
+  /**
+   * Constructor.
+   *
+   * @param factory Node factory
+   */
+  public RStarTreeNodeSerializer(NodeFactory<N> factory) {
+    super();
+    this.factory = factory;
+  }
+
+  @Override
+  public N fromByteBuffer(ByteBuffer buffer) {
+    final int id = buffer.getInt();
+    final boolean isLeaf = buffer.get() != 0;
+    final int num = buffer.getInt(), capacity = buffer.getInt(), dim = buffer.getInt();
+    N node = factory.make(capacity, isLeaf);
+    node.setPageID(id);
+    if(isLeaf) {
+      for(int i = 0; i < num; i++) {
+        final int dbid = buffer.getInt();
+        double[] values = new double[dim];
+        for(int d = 0; d < dim; d++) {
+          values[d] = buffer.getDouble();
+        }
+        node.addEntry(new SpatialPointLeafEntry(DBIDUtil.importInteger(dbid), values));
+      }
+    }
+    else {
+      for(int i = 0; i < num; i++) {
+        final int child = buffer.getInt();
+        double[] min = new double[dim], max = new double[dim];
+        for(int d = 0; d < dim; d++) {
+          min[d] = buffer.getDouble();
+        }
+        for(int d = 0; d < dim; d++) {
+          max[d] = buffer.getDouble();
+        }
+        node.addEntry(new SpatialDirectoryEntry(child, new ModifiableHyperBoundingBox(min, max)));
+      }
+    }
+    return node;
+  }
+
+  @Override
+  public void toByteBuffer(ByteBuffer buffer, N node) {
+    final int num = node.getNumEntries(), dim = dimensionality(node);
+    buffer.putInt(node.getPageID()).put((byte) (node.isLeaf() ? 1 : 0)) //
+        .putInt(num).putInt(node.getCapacity()).putInt(dim);
+    if(node.isLeaf()) {
+      for(int i = 0; i < num; i++) {
+        SpatialPointLeafEntry e = (SpatialPointLeafEntry) node.getEntry(i);
+        buffer.putInt(DBIDUtil.asInteger(e.getDBID()));
+        for(int d = 0; d < dim; d++) {
+          buffer.putDouble(e.doubleValue(d));
+        }
+      }
+    }
+    else {
+      for(int i = 0; i < num; i++) {
+        SpatialDirectoryEntry e = (SpatialDirectoryEntry) node.getEntry(i);
+        buffer.putInt(e.getPageID());
+        for(int d = 0; d < dim; d++) {
+          buffer.putDouble(e.getMin(d));
+        }
+        for(int d = 0; d < dim; d++) {
+          buffer.putDouble(e.getMax(d));
+        }
+      }
+    }
+  }
+
+  @Override
+  public int getByteSize(N node) {
+    final int dim = dimensionality(node);
+    return HEADER_SIZE + node.getNumEntries() * (ByteArrayUtil.SIZE_INT + //
+        (node.isLeaf() ? dim : 2 * dim) * ByteArrayUtil.SIZE_DOUBLE);
+  }
+
+  /**
+   * Dimensionality of the entries of a node.
+   *
+   * @param node Node
+   * @return Dimensionality, 0 for empty nodes
+   */
+  private static int dimensionality(AbstractRStarTreeNode<?, SpatialEntry> node) {
+    return node.getNumEntries() > 0 ? node.getEntry(0).getDimensionality() : 0;
+  }
+
+  /**
+   * Factory for empty nodes.
+   *
+   * @author Erich Schubert
+   *
+   * @param <N> Node type
+   */
+  @FunctionalInterface
+  public interface NodeFactory<N> {
+    /**
+     * Create an empty node.
+     *
+     * @param capacity Capacity
+     * @param isLeaf Leaf flag
+     * @return New node
+     */
+    N make(int capacity, boolean isLeaf);
+  }
+}
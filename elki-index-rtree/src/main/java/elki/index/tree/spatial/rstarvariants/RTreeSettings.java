@@ -65,6 +65,11 @@ public class RTreeSettings {
    */
   protected double relativeMinFill = 0.4;
 
+  /**
+   * Answer queries from a packed copy of the tree.
+   */
+  protected boolean packed = false;
+
   /**
    * Constructor with default values.
    */
@@ -125,6 +130,23 @@ public class RTreeSettings {
     this.relativeMinFill = relative;
   }
 
+  /**
+   * Answer queries from a packed, read-only copy of the tree. This is only
+   * beneficial for trees kept in memory.
+   * 
+   * @param packed Flag to enable packed queries
+   */
+  public void setPacked(boolean packed) {
+    this.packed = packed;
+  }
+
+  /**
+   * @return whether queries use a packed copy of the tree
+   */
+  public boolean isPacked() {
+    return packed;
+  }
+
   /**
    * @return the overflowTreatment
    */
@@ -55,7 +55,7 @@ public class EuclideanRStarTreeDistancePrioritySearcher<O extends SpatialCompara
   /**
    * Relation we query.
    */
-  protected Relation<? extends O> relation;
+  protected final Relation<? extends O> relation;
 
   /**
    * Query object
@@ -0,0 +1,238 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import elki.data.spatial.SpatialComparable;
+import elki.database.ids.ArrayModifiableDBIDs;
+import elki.database.ids.DBIDUtil;
+import elki.index.tree.spatial.SpatialDirectoryEntry;
+import elki.index.tree.spatial.SpatialPointLeafEntry;
+import elki.index.tree.spatial.rstarvariants.AbstractRStarTree;
+import elki.index.tree.spatial.rstarvariants.AbstractRStarTreeNode;
+
+/**
+ * Packed, read-only copy of an R*-tree for in-memory queries.
+ * <p>
+ * Instead of node objects with one object per entry, all entries are stored in
+ * a few primitive arrays in breadth-first order, such that the entries of a
+ * node are contiguous: the rectangles of the directory entries as
+ * {@code min, max} pairs of each dimension, the child references, and the
+ * coordinates of the leaf points. The distance computations for a node then
+ * are a sequential loop over a single array.
+ * <p>
+ * Child references are directory node numbers, or the bitwise complement of
+ * leaf node numbers. The tree must store points in the leaves, and the copy
+ * needs to be rebuilt when the tree is modified. Searchers therefore obtain
+ * the current copy from a {@link Provider} for every query.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class PackedRStarTree {
+  /**
+   * Dimensionality.
+   */
+  final int dim;
+
+  /**
+   * Reference to the root node.
+   */
+  final int root;
+
+  /**
+   * First entry of each directory node, and the end.
+   */
+  final int[] dirStart;
+
+  /**
+   * Rectangles of the directory entries, stride {@code 2 * dim}.
+   */
+  final double[] dirMBR;
+
+  /**
+   * Child references of the directory entries.
+   */
+  final int[] dirChild;
+
+  /**
+   * First entry of each leaf node, and the end.
+   */
+  final int[] leafStart;
+
+  /**
+   * Coordinates of the leaf entries, stride {@code dim}.
+   */
+  final double[] leafPoints;
+
+  /**
+   * Object ids of the leaf entries.
+   */
+  final ArrayModifiableDBIDs leafIDs;
+
+  /**
+   * Tree the copy was made of, for statistics.
+   */
+  final AbstractRStarTree<?, ?, ?> tree;
+
+  /**
+   * Build a packed copy of a tree.
+   *
+   * @param tree Tree to copy
+   */
+  public PackedRStarTree(AbstractRStarTree<?, ?, ?> tree) {
+    this.tree = tree;
+    // Collect the nodes in breadth-first order.
+    List<AbstractRStarTreeNode<?, ?>> dirs = new ArrayList<>(), leaves = new ArrayList<>();
+    AbstractRStarTreeNode<?, ?> rootnode = tree.getNode(tree.getRootID());
+    root = rootnode.isLeaf() ? ~0 : 0;
+    (rootnode.isLeaf() ? leaves : dirs).add(rootnode);
+    int[] refs = new int[16];
+    int numdir = 0, numleaf = 0;
+    for(int i = 0; i < dirs.size(); i++) {
+      AbstractRStarTreeNode<?, ?> node = dirs.get(i);
+      for(int j = 0; j < node.getNumEntries(); j++) {
+        AbstractRStarTreeNode<?, ?> child = tree.getNode(((SpatialDirectoryEntry) node.getEntry(j)).getPageID());
+        if(numdir == refs.length) {
+          refs = Arrays.copyOf(refs, numdir + (numdir >>> 1));
+        }
+        refs[numdir++] = child.isLeaf() ? ~leaves.size() : dirs.size();
+        (child.isLeaf() ? leaves : dirs).add(child);
+      }
+    }
+    for(AbstractRStarTreeNode<?, ?> leaf : leaves) {
+      numleaf += leaf.getNumEntries();
+    }
+    SpatialComparable first = rootnode.getNumEntries() > 0 ? rootnode.getEntry(0) : null;
+    dim = first != null ? first.getDimensionality() : 0;
+    // Pack the directory entries:
+    dirStart = new int[dirs.size() + 1];
+    dirMBR = new double[numdir * 2 * dim];
+    dirChild = Arrays.copyOf(refs, numdir);
+    for(int i = 0, e = 0, off = 0; i < dirs.size(); i++) {
+      AbstractRStarTreeNode<?, ?> node = dirs.get(i);
+      dirStart[i] = e;
+      for(int j = 0; j < node.getNumEntries(); j++, e++) {
+        SpatialComparable mbr = node.getEntry(j);
+        for(int d = 0; d < dim; d++) {
+          dirMBR[off++] = mbr.getMin(d);
+          dirMBR[off++] = mbr.getMax(d);
+        }
+      }
+      dirStart[i + 1] = e;
+    }
+    // Pack the leaf entries:
+    leafStart = new int[leaves.size() + 1];
+    leafPoints = new double[numleaf * dim];
+    leafIDs = DBIDUtil.newArray(numleaf);
+    for(int i = 0, e = 0, off = 0; i < leaves.size(); i++) {
+      AbstractRStarTreeNode<?, ?> node = leaves.get(i);
+      leafStart[i] = e;
+      for(int j = 0; j < node.getNumEntries(); j++, e++) {
+        SpatialPointLeafEntry entry = (SpatialPointLeafEntry) node.getEntry(j);
+        for(int d = 0; d < dim; d++) {
+          leafPoints[off++] = entry.doubleValue(d);
+        }
+        leafIDs.add(entry.getDBID());
+      }
+      leafStart[i + 1] = e;
+    }
+  }
+
+  /**
+   * Squared Euclidean minimum distance of a query point to a directory entry.
+   *
+   * @param q Query point
+   * @param e Entry number
+   * @return Squared distance
+   */
+  double minDistDirectory(double[] q, int e) {
+    final double[] mbr = dirMBR;
+    double agg = 0.;
+    for(int d = 0, off = e * 2 * dim; d < dim; d++, off += 2) {
+      final double v = q[d], min = mbr[off], max = mbr[off + 1];
+      final double delta = v < min ? min - v : v > max ? v - max : 0.;
+      agg += delta * delta;
+    }
+    return agg;
+  }
+
+  /**
+   * Squared Euclidean distance of a query point to a leaf entry.
+   *
+   * @param q Query point
+   * @param e Entry number
+   * @return Squared distance
+   */
+  double distanceLeaf(double[] q, int e) {
+    final double[] points = leafPoints;
+    double agg = 0.;
+    for(int d = 0, off = e * dim; d < dim; d++, off++) {
+      final double delta = q[d] - points[off];
+      agg += delta * delta;
+    }
+    return agg;
+  }
+
+  /**
+   * Number of directory nodes.
+   *
+   * @return Number of directory nodes
+   */
+  public int numDirectoryNodes() {
+    return dirStart.length - 1;
+  }
+
+  /**
+   * Number of leaf nodes.
+   *
+   * @return Number of leaves
+   */
+  public int numLeafNodes() {
+    return leafStart.length - 1;
+  }
+
+  /**
+   * Number of indexed objects.
+   *
+   * @return Number of leaf entries
+   */
+  public int size() {
+    return leafIDs.size();
+  }
+
+  /**
+   * Source of the current packed copy of a tree.
+   *
+   * @author Erich Schubert
+   */
+  public interface Provider {
+    /**
+     * Get the packed copy of the current tree, building it if necessary.
+     *
+     * @return Packed tree, or {@code null} if not enabled.
+     */
+    PackedRStarTree getPackedTree();
+  }
+}
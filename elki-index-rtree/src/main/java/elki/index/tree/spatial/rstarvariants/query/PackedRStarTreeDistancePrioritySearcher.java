@@ -0,0 +1,194 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants.query;
+
+import elki.data.NumberVector;
+import elki.database.ids.DBIDArrayIter;
+import elki.database.query.PrioritySearcher;
+import elki.utilities.datastructures.heap.DoubleIntegerMinHeap;
+
+import net.jafama.FastMath;
+
+/**
+ * Euclidean priority search on a packed R*-tree.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @assoc - - - PackedRStarTree
+ */
+public class PackedRStarTreeDistancePrioritySearcher<O extends NumberVector> implements PrioritySearcher<O> {
+  /**
+   * Source of the packed tree, queried for every search
+   */
+  protected final PackedRStarTree.Provider provider;
+
+  /**
+   * The packed tree of the current search
+   */
+  protected PackedRStarTree packed;
+
+  /**
+   * Iterator over the leaf entries
+   */
+  private DBIDArrayIter iter;
+
+  /**
+   * Query point
+   */
+  double[] query;
+
+  /**
+   * Stopping distance threshold, squared
+   */
+  double threshold = Double.POSITIVE_INFINITY;
+
+  /**
+   * Priority queue
+   */
+  DoubleIntegerMinHeap pq = new DoubleIntegerMinHeap();
+
+  /**
+   * Current entry, and the end of the current leaf
+   */
+  int pos = 0, end = 0;
+
+  /**
+   * Squared distance to the current leaf
+   */
+  private double mindist;
+
+  /**
+   * Constructor.
+   *
+   * @param provider Source of the packed tree to use
+   */
+  public PackedRStarTreeDistancePrioritySearcher(PackedRStarTree.Provider provider) {
+    super();
+    this.provider = provider;
+  }
+
+  @Override
+  public PackedRStarTreeDistancePrioritySearcher<O> search(O query) {
+    final PackedRStarTree current = provider.getPackedTree();
+    if(current != packed) {
+      this.packed = current;
+      this.iter = current.leafIDs.iter();
+    }
+    this.query = query.toArray();
+    this.threshold = Double.POSITIVE_INFINITY;
+    this.pos = this.end = 0;
+    pq.clear();
+    pq.add(0., packed.root);
+    advance(); // Find first
+    return this;
+  }
+
+  @Override
+  public PackedRStarTreeDistancePrioritySearcher<O> decreaseCutoff(double threshold) {
+    threshold *= threshold; // square
+    assert threshold <= this.threshold;
+    this.threshold = threshold;
+    return this;
+  }
+
+  @Override
+  public boolean valid() {
+    return pos < end;
+  }
+
+  @Override
+  public PackedRStarTreeDistancePrioritySearcher<O> advance() {
+    // Advance the main iterator, if defined:
+    if(++pos < end) {
+      return this;
+    }
+    while(advanceQueue()) {
+      if(pos < end) {
+        break;
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Expand the next node of the priority heap.
+   *
+   * @return {@code false} when the heap is exhausted
+   */
+  protected boolean advanceQueue() {
+    if(pq.isEmpty()) {
+      pos = end = 0;
+      return false;
+    }
+    // Poll from heap (optimized, hence key and value separate):
+    mindist = pq.peekKey(); // Minimum distance to cover
+    if(mindist > threshold) {
+      pq.clear();
+      pos = end = 0;
+      return false;
+    }
+    final int node = pq.peekValue();
+    pq.poll(); // Remove
+
+    // data node
+    if(node < 0) {
+      pos = packed.leafStart[~node];
+      end = packed.leafStart[~node + 1];
+    }
+    // directory node
+    else {
+      final int start = packed.dirStart[node], stop = packed.dirStart[node + 1];
+      for(int e = start; e < stop; e++) {
+        double distance = packed.minDistDirectory(query, e);
+        if(distance <= threshold) {
+          pq.add(distance, packed.dirChild[e]);
+        }
+      }
+      packed.tree.statistics.countDistanceCalculations(stop - start);
+      pos = end = 0;
+    }
+    return true;
+  }
+
+  @Override
+  public double getLowerBound() {
+    return FastMath.sqrt(mindist);
+  }
+
+  @Override
+  public double allLowerBound() {
+    return FastMath.sqrt(mindist);
+  }
+
+  @Override
+  public double computeExactDistance() {
+    assert valid();
+    packed.tree.statistics.countDistanceCalculation();
+    return FastMath.sqrt(packed.distanceLeaf(query, pos));
+  }
+
+  @Override
+  public int internalGetIndex() {
+    assert valid();
+    return iter.seek(pos).internalGetIndex();
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants.query;
+
+import elki.data.NumberVector;
+import elki.database.ids.DBIDArrayIter;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.KNNHeap;
+import elki.database.ids.KNNList;
+import elki.database.query.knn.KNNSearcher;
+import elki.utilities.datastructures.heap.DoubleIntegerMinHeap;
+import elki.utilities.documentation.Reference;
+
+/**
+ * Euclidean kNN search on a packed R*-tree.
+ * <p>
+ * Reference:
+ * <p>
+ * G. R. Hjaltason, H. Samet<br>
+ * Ranking in spatial databases<br>
+ * 4th Symp. Advances in Spatial Databases (SSD'95)
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @assoc - - - PackedRStarTree
+ */
+@Reference(authors = "G. R. Hjaltason, H. Samet", //
+    title = "Ranking in spatial databases", //
+    booktitle = "4th Symp. Advances in Spatial Databases (SSD'95)", //
+    url = "https://doi.org/10.1007/3-540-60159-7_6", //
+    bibkey = "DBLP:conf/ssd/HjaltasonS95")
+public class PackedRStarTreeKNNSearcher<O extends NumberVector> implements KNNSearcher<O> {
+  /**
+   * Source of the packed tree, queried for every search
+   */
+  protected final PackedRStarTree.Provider provider;
+
+  /**
+   * Constructor.
+   *
+   * @param provider Source of the packed tree to use
+   */
+  public PackedRStarTreeKNNSearcher(PackedRStarTree.Provider provider) {
+    super();
+    this.provider = provider;
+  }
+
+  @Override
+  public KNNList getKNN(O obj, int k) {
+    if(k < 1) {
+      throw new IllegalArgumentException("At least one neighbor has to be requested!");
+    }
+    final PackedRStarTree packed = provider.getPackedTree();
+    packed.tree.statistics.countKNNQuery();
+    final double[] q = obj.toArray();
+    final KNNHeap knnList = DBIDUtil.newHeap(k);
+    final DoubleIntegerMinHeap pq = new DoubleIntegerMinHeap(Math.min(knnList.getK() << 1, 21));
+    final DBIDArrayIter iter = packed.leafIDs.iter();
+
+    // expand root
+    double maxDist = expandNode(packed, q, knnList, pq, iter, Double.POSITIVE_INFINITY, packed.root);
+
+    // search in tree
+    while(!pq.isEmpty()) {
+      double mindist = pq.peekKey();
+      if(mindist > maxDist) {
+        break;
+      }
+      int node = pq.peekValue();
+      pq.poll(); // Remove from heap.
+      maxDist = expandNode(packed, q, knnList, pq, iter, maxDist, node);
+    }
+    return knnList.toKNNListSqrt();
+  }
+
+  /**
+   * Expand a node.
+   *
+   * @param packed Packed tree
+   * @param q Query point
+   * @param knnList kNN heap
+   * @param pq Priority queue
+   * @param iter Iterator over the leaf entries
+   * @param maxDist Current squared kNN distance
+   * @param node Node reference
+   * @return New squared kNN distance
+   */
+  private double expandNode(PackedRStarTree packed, double[] q, KNNHeap knnList, DoubleIntegerMinHeap pq, DBIDArrayIter iter, double maxDist, int node) {
+    // data node
+    if(node < 0) {
+      final int start = packed.leafStart[~node], end = packed.leafStart[~node + 1];
+      for(int e = start; e < end; e++) {
+        double distance = packed.distanceLeaf(q, e);
+        maxDist = distance <= maxDist ? knnList.insert(distance, iter.seek(e)) : maxDist;
+      }
+      packed.tree.statistics.countDistanceCalculations(end - start);
+    }
+    // directory node
+    else {
+      final int start = packed.dirStart[node], end = packed.dirStart[node + 1];
+      for(int e = start; e < end; e++) {
+        double distance = packed.minDistDirectory(q, e);
+        // Greedy expand, bypassing the queue
+        if(distance <= 0) {
+          maxDist = expandNode(packed, q, knnList, pq, iter, maxDist, packed.dirChild[e]);
+        }
+        else if(distance <= maxDist) {
+          pq.add(distance, packed.dirChild[e]);
+        }
+      }
+      packed.tree.statistics.countDistanceCalculations(end - start);
+    }
+    return maxDist;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants.query;
+
+import java.util.Arrays;
+
+import elki.data.NumberVector;
+import elki.database.ids.DBIDArrayIter;
+import elki.database.ids.ModifiableDoubleDBIDList;
+import elki.database.query.range.RangeSearcher;
+
+import net.jafama.FastMath;
+
+/**
+ * Euclidean range search on a packed R*-tree.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @assoc - - - PackedRStarTree
+ */
+public class PackedRStarTreeRangeSearcher<O extends NumberVector> implements RangeSearcher<O> {
+  /**
+   * Source of the packed tree, queried for every search
+   */
+  protected final PackedRStarTree.Provider provider;
+
+  /**
+   * Constructor.
+   *
+   * @param provider Source of the packed tree to use
+   */
+  public PackedRStarTreeRangeSearcher(PackedRStarTree.Provider provider) {
+    super();
+    this.provider = provider;
+  }
+
+  @Override
+  public ModifiableDoubleDBIDList getRange(O obj, double range, ModifiableDoubleDBIDList result) {
+    final PackedRStarTree packed = provider.getPackedTree();
+    final double sqepsilon = range * range;
+    final double[] q = obj.toArray();
+    final DBIDArrayIter iter = packed.leafIDs.iter();
+    packed.tree.statistics.countRangeQuery();
+
+    // Processing queue.
+    int[] pq = new int[101];
+    int ps = 0;
+    pq[ps++] = packed.root;
+
+    // search in tree
+    while(ps > 0) {
+      final int node = pq[--ps]; // Pop last.
+      if(node < 0) {
+        final int start = packed.leafStart[~node], end = packed.leafStart[~node + 1];
+        for(int e = start; e < end; e++) {
+          double distance = packed.distanceLeaf(q, e);
+          if(distance <= sqepsilon) {
+            result.add(FastMath.sqrt(distance), iter.seek(e));
+          }
+        }
+        packed.tree.statistics.countDistanceCalculations(end - start);
+      }
+      else {
+        for(int e = packed.dirStart[node], end = packed.dirStart[node + 1]; e < end; e++) {
+          if(packed.minDistDirectory(q, e) <= sqepsilon) {
+            if(ps == pq.length) { // Resize:
+              pq = Arrays.copyOf(pq, pq.length + (pq.length >>> 1));
+            }
+            pq[ps++] = packed.dirChild[e];
+          }
+        }
+      }
+    }
+    return result;
+  }
+}
@@ -57,7 +57,7 @@ public class RStarTreeDistancePrioritySearcher<O extends SpatialComparable> impl
   /**
    * Relation we query.
    */
-  protected Relation<? extends O> relation;
+  protected final Relation<? extends O> relation;
 
   /**
    * Query object
@@ -68,7 +68,7 @@ public class RStarTreeKNNSearcher<O extends SpatialComparable> implements KNNSea
   /**
    * Relation we query.
    */
-  protected Relation<? extends O> relation;
+  protected final Relation<? extends O> relation;
 
   /**
    * Constructor.
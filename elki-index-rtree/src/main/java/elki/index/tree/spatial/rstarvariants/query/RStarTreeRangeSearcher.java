@@ -67,7 +67,7 @@ public class RStarTreeRangeSearcher<O extends SpatialComparable> implements Rang
   /**
    * Relation we query.
    */
-  protected Relation<? extends O> relation;
+  protected final Relation<? extends O> relation;
 
   /**
    * Constructor.
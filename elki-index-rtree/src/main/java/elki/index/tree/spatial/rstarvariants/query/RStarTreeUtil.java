@@ -44,6 +44,7 @@ import elki.index.tree.spatial.rstarvariants.AbstractRStarTree;
  * @assoc - - - EuclideanRStarTreeRangeQuery
  * @assoc - - - RStarTreeKNNSearcher
  * @assoc - - - RStarTreeRangeSearcher
+ * @assoc - - - PackedRStarTree
  * @has - - - RangeSearcher
  * @has - - - KNNSearcher
  */
@@ -75,6 +76,25 @@ public final class RStarTreeUtil {
     return new RStarTreeRangeSearcher<>(tree, distanceQuery.getRelation(), df);
   }
 
+  /**
+   * Get an RTree range query, using the packed tree for Euclidean distances if
+   * available.
+   * 
+   * @param <O> Object type
+   * @param tree Tree to query
+   * @param packed Source of the packed copy of the tree, may be {@code null}
+   * @param distanceQuery distance query
+   * @param hints Optimizer hints
+   * @return Query object
+   */
+  @SuppressWarnings("unchecked")
+  public static <O extends SpatialComparable> RangeSearcher<O> getRangeQuery(AbstractRStarTree<?, ?, ?> tree, PackedRStarTree.Provider packed, SpatialDistanceQuery<O> distanceQuery, Object... hints) {
+    if(packed != null && packed.getPackedTree() != null && EuclideanDistance.STATIC.equals(distanceQuery.getDistance())) {
+      return (RangeSearcher<O>) new PackedRStarTreeRangeSearcher<NumberVector>(packed);
+    }
+    return getRangeQuery(tree, distanceQuery, hints);
+  }
+
   /**
    * Get an RTree knn query, using an optimized version for Euclidean distances.
    * 
@@ -94,6 +114,25 @@ public final class RStarTreeUtil {
     return new RStarTreeKNNSearcher<>(tree, distanceQuery.getRelation(), df);
   }
 
+  /**
+   * Get an RTree knn query, using the packed tree for Euclidean distances if
+   * available.
+   * 
+   * @param <O> Object type
+   * @param tree Tree to query
+   * @param packed Source of the packed copy of the tree, may be {@code null}
+   * @param distanceQuery distance query
+   * @param hints Optimizer hints
+   * @return Query object
+   */
+  @SuppressWarnings("unchecked")
+  public static <O extends SpatialComparable> KNNSearcher<O> getKNNQuery(AbstractRStarTree<?, ?, ?> tree, PackedRStarTree.Provider packed, SpatialDistanceQuery<O> distanceQuery, Object... hints) {
+    if(packed != null && packed.getPackedTree() != null && EuclideanDistance.STATIC.equals(distanceQuery.getDistance())) {
+      return (KNNSearcher<O>) new PackedRStarTreeKNNSearcher<NumberVector>(packed);
+    }
+    return getKNNQuery(tree, distanceQuery, hints);
+  }
+
   /**
    * Get an RTree priority searcher.
    * 
@@ -112,4 +151,23 @@ public final class RStarTreeUtil {
     }
     return new RStarTreeDistancePrioritySearcher<>(tree, distanceQuery.getRelation(), df);
   }
+
+  /**
+   * Get an RTree priority searcher, using the packed tree for Euclidean
+   * distances if available.
+   * 
+   * @param <O> Object type
+   * @param tree Tree to query
+   * @param packed Source of the packed copy of the tree, may be {@code null}
+   * @param distanceQuery distance query
+   * @param hints Optimizer hints
+   * @return Query object
+   */
+  @SuppressWarnings("unchecked")
+  public static <O extends SpatialComparable> PrioritySearcher<O> getDistancePrioritySearcher(AbstractRStarTree<?, ?, ?> tree, PackedRStarTree.Provider packed, SpatialDistanceQuery<O> distanceQuery, Object... hints) {
+    if(packed != null && packed.getPackedTree() != null && EuclideanDistance.STATIC.equals(distanceQuery.getDistance())) {
+      return (PrioritySearcher<O>) new PackedRStarTreeDistancePrioritySearcher<NumberVector>(packed);
+    }
+    return getDistancePrioritySearcher(tree, distanceQuery, hints);
+  }
 }
@@ -24,10 +24,14 @@ import elki.data.NumberVector;
 import elki.database.relation.Relation;
 import elki.index.tree.spatial.SpatialEntry;
 import elki.index.tree.spatial.rstarvariants.AbstractRStarTreeFactory;
+import elki.index.tree.spatial.rstarvariants.RStarTreeNodeSerializer;
 import elki.index.tree.spatial.rstarvariants.RTreeSettings;
 import elki.persistent.PageFile;
 import elki.persistent.PageFileFactory;
 import elki.utilities.Alias;
+import elki.utilities.optionhandling.OptionID;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.Flag;
 
 /**
  * Factory for regular R*-Trees.
@@ -54,7 +58,7 @@ public class RStarTreeFactory<O extends NumberVector> extends AbstractRStarTreeF
 
   @Override
   public RStarTreeIndex<O> instantiate(Relation<O> relation) {
-    PageFile<RStarTreeNode> pagefile = makePageFile(getNodeClass());
+    PageFile<RStarTreeNode> pagefile = makePageFile(getNodeClass(), new RStarTreeNodeSerializer<>(RStarTreeNode::new));
     return new RStarTreeIndex<>(relation, pagefile, settings);
   }
 
@@ -72,6 +76,17 @@ public class RStarTreeFactory<O extends NumberVector> extends AbstractRStarTreeF
    * @param <O> Object type
    */
   public static class Par<O extends NumberVector> extends AbstractRStarTreeFactory.Par<O, RTreeSettings> {
+    /**
+     * Flag to answer queries from a packed copy of the tree.
+     */
+    public static final OptionID PACKED_ID = new OptionID("rtree.packed", "Answer Euclidean queries from a packed, read-only copy of the tree, for trees kept in memory.");
+
+    @Override
+    public void configure(Parameterization config) {
+      super.configure(config);
+      new Flag(PACKED_ID).grab(config, settings::setPacked);
+    }
+
     @Override
     public RStarTreeFactory<O> make() {
       return new RStarTreeFactory<>(pageFileFactory, settings);
@@ -40,6 +40,7 @@ import elki.index.tree.IndexTreePath;
 import elki.index.tree.spatial.SpatialEntry;
 import elki.index.tree.spatial.SpatialPointLeafEntry;
 import elki.index.tree.spatial.rstarvariants.RTreeSettings;
+import elki.index.tree.spatial.rstarvariants.query.PackedRStarTree;
 import elki.index.tree.spatial.rstarvariants.query.RStarTreeUtil;
 import elki.logging.Logging;
 import elki.persistent.PageFile;
@@ -52,7 +53,7 @@ import elki.persistent.PageFile;
  * 
  * @param <O> Object type
  */
-public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements DistancePriorityIndex<O>, DynamicIndex {
+public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements DistancePriorityIndex<O>, DynamicIndex, PackedRStarTree.Provider {
   /**
    * The appropriate logger for this index.
    */
@@ -63,6 +64,11 @@ public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements
    */
   private Relation<O> relation;
 
+  /**
+   * Packed copy of the tree, if enabled and up to date.
+   */
+  private volatile PackedRStarTree packed;
+
   /**
    * Constructor.
    * 
@@ -89,6 +95,24 @@ public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements
   public void initialize() {
     super.initialize();
     insertAll(relation.getDBIDs()); // Will check for actual bulk load!
+    getPackedTree();
+  }
+
+  @Override
+  public PackedRStarTree getPackedTree() {
+    if(!settings.isPacked()) {
+      return null;
+    }
+    PackedRStarTree p = packed;
+    if(p == null) {
+      synchronized(this) {
+        p = packed;
+        if(p == null) {
+          packed = p = new PackedRStarTree(this);
+        }
+      }
+    }
+    return p;
   }
 
   /**
@@ -98,6 +122,7 @@ public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements
    */
   @Override
   public void insert(DBIDRef id) {
+    packed = null;
     insertLeaf(createNewLeafEntry(id));
   }
 
@@ -112,6 +137,7 @@ public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements
     if(ids.isEmpty()) {
       return;
     }
+    packed = null;
 
     // Make an example leaf
     if(canBulkLoad()) {
@@ -144,6 +170,7 @@ public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements
     if(deletionPath == null) {
       return false;
     }
+    packed = null;
     deletePath(deletionPath);
     return true;
   }
@@ -159,21 +186,21 @@ public class RStarTreeIndex<O extends NumberVector> extends RStarTree implements
   public KNNSearcher<O> kNNByObject(DistanceQuery<O> distanceQuery, int maxk, int flags) {
     // Can we support this distance function - spatial distances only!
     return distanceQuery.getRelation() == relation && distanceQuery instanceof SpatialDistanceQuery ? //
-        RStarTreeUtil.getKNNQuery(this, (SpatialDistanceQuery<O>) distanceQuery, maxk, flags) : null;
+        RStarTreeUtil.getKNNQuery(this, this, (SpatialDistanceQuery<O>) distanceQuery, maxk, flags) : null;
   }
 
   @Override
   public RangeSearcher<O> rangeByObject(DistanceQuery<O> distanceQuery, double maxradius, int flags) {
     // Can we support this distance function - spatial distances only!
     return distanceQuery.getRelation() == relation && distanceQuery instanceof SpatialDistanceQuery ? //
-        RStarTreeUtil.getRangeQuery(this, (SpatialDistanceQuery<O>) distanceQuery, maxradius, flags) : null;
+        RStarTreeUtil.getRangeQuery(this, this, (SpatialDistanceQuery<O>) distanceQuery, maxradius, flags) : null;
   }
 
   @Override
   public PrioritySearcher<O> priorityByObject(DistanceQuery<O> distanceQuery, double maxradius, int flags) {
     // Can we support this distance function - spatial distances only!
     return distanceQuery.getRelation() == relation && distanceQuery instanceof SpatialDistanceQuery ? //
-        RStarTreeUtil.getDistancePrioritySearcher(this, (SpatialDistanceQuery<O>) distanceQuery, maxradius, flags) : null;
+        RStarTreeUtil.getDistancePrioritySearcher(this, this, (SpatialDistanceQuery<O>) distanceQuery, maxradius, flags) : null;
   }
 
   @Override
@@ -0,0 +1,187 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants.strategies.bulk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import elki.data.spatial.SpatialComparable;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.Alias;
+import elki.utilities.documentation.Reference;
+import elki.utilities.optionhandling.Parameterizer;
+import net.jafama.FastMath;
+
+/**
+ * Parallel variant of Sort-Tile-Recursive bulk loading.
+ * <p>
+ * Instead of selecting quantiles in lists of objects, the centers are encoded
+ * into a primitive {@code long} array together with the object index, such
+ * that sorting needs neither comparators nor object access. The key precision
+ * is reduced by the number of bits needed for the index, which can only affect
+ * the order of nearly identical centers. The first dimension is sorted with a
+ * parallel sort, the resulting slabs are then tiled independently by parallel
+ * tasks. As the split is used both for the leaves and for every directory
+ * level, all levels of the bulk load benefit.
+ * <p>
+ * Reference:
+ * <p>
+ * S. T. Leutenegger, M. A. Lopez, J. Edgington<br>
+ * STR: A simple and efficient algorithm for R-tree packing<br>
+ * Proc. 13th International Conference on Data Engineering (ICDE 1997)
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+@Reference(authors = "S. T. Leutenegger, M. A. Lopez, J. Edgington", //
+    title = "STR: A simple and efficient algorithm for R-tree packing", //
+    booktitle = "Proc. 13th International Conference on Data Engineering (ICDE 1997)", //
+    url = "https://doi.org/10.1109/ICDE.1997.582015", //
+    bibkey = "DBLP:conf/icde/LeuteneggerEL97")
+@Alias({ "pstr", "PSTR" })
+public class ParallelSortTileRecursiveBulkSplit extends AbstractBulkSplit {
+  /**
+   * Static instance.
+   */
+  public static final ParallelSortTileRecursiveBulkSplit STATIC = new ParallelSortTileRecursiveBulkSplit();
+
+  /**
+   * Minimum number of objects to partition in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+  @Override
+  public <T extends SpatialComparable> List<List<T>> partition(List<T> spatialObjects, int minEntries, int maxEntries) {
+    final int size = spatialObjects.size();
+    final int dims = spatialObjects.get(0).getDimensionality();
+    // Low bits store the object index, high bits the sort key.
+    final int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+    final long[] keys = new long[size];
+    for(int i = 0; i < size; i++) {
+      keys[i] = i;
+    }
+    final boolean[] cut = new boolean[size + 1];
+    final ParallelCore core = ParallelCore.getCore();
+    if(size >= PARALLEL_THRESHOLD && core.getParallelism() > 1 && !core.isWorkerThread()) {
+      List<Callable<Void>> tasks = new ArrayList<>();
+      strPartition(spatialObjects, keys, 0, size, 0, dims, bits, maxEntries, cut, tasks);
+      ParallelExecutor.run(tasks);
+    }
+    else {
+      strPartition(spatialObjects, keys, 0, size, 0, dims, bits, maxEntries, cut, null);
+    }
+    // Materialize the sorted order, and split at the slab boundaries.
+    final long mask = (1L << bits) - 1;
+    List<T> sorted = new ArrayList<>(size);
+    for(int i = 0; i < size; i++) {
+      sorted.add(spatialObjects.get((int) (keys[i] & mask)));
+    }
+    List<List<T>> ret = new ArrayList<>((int) FastMath.ceil(size / (double) maxEntries));
+    for(int i = 1, start = 0; i <= size; i++) {
+      if(cut[i]) {
+        if(i > start) {
+          ret.add(sorted.subList(start, i));
+        }
+        start = i;
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Recursively partition.
+   *
+   * @param objs Object list
+   * @param keys Sort keys, with the object index in the low bits
+   * @param start Subinterval start
+   * @param end Subinterval end
+   * @param depth Iteration depth (must be less than dimensionality!)
+   * @param dims Total number of dimensions
+   * @param bits Number of bits used for the object index
+   * @param maxEntries Maximum page size
+   * @param cut Output: slab ends
+   * @param tasks Task list to defer the next level to, may be {@code null}
+   * @param <T> data type
+   */
+  private static <T extends SpatialComparable> void strPartition(List<T> objs, long[] keys, int start, int end, int depth, int dims, int bits, int maxEntries, boolean[] cut, List<Callable<Void>> tasks) {
+    final long mask = (1L << bits) - 1;
+    for(int i = start; i < end; i++) {
+      final int j = (int) (keys[i] & mask);
+      final SpatialComparable o = objs.get(j);
+      keys[i] = encode((o.getMin(depth) + o.getMax(depth)) * .5, bits) | j;
+    }
+    if(tasks != null) {
+      Arrays.parallelSort(keys, start, end);
+    }
+    else {
+      Arrays.sort(keys, start, end);
+    }
+    final int p = (int) FastMath.ceil((end - start) / (double) maxEntries);
+    final int s = (int) FastMath.ceil(FastMath.pow(p, 1.0 / (dims - depth)));
+
+    final double len = end - start; // double intentional!
+    for(int i = 0; i < s; i++) {
+      final int s2 = start + (int) ((i * len) / s);
+      final int e2 = start + (int) (((i + 1) * len) / s);
+      if(depth + 1 == dims) {
+        cut[e2] = true; // Distinct slabs, no synchronization needed.
+      }
+      else if(tasks != null) {
+        tasks.add(() -> {
+          strPartition(objs, keys, s2, e2, depth + 1, dims, bits, maxEntries, cut, null);
+          return null;
+        });
+      }
+      else {
+        strPartition(objs, keys, s2, e2, depth + 1, dims, bits, maxEntries, cut, null);
+      }
+    }
+  }
+
+  /**
+   * Encode a double such that the signed order of the result is the order of
+   * the doubles, and clear the low bits.
+   *
+   * @param v Value
+   * @param bits Number of bits to clear
+   * @return Encoded value
+   */
+  private static long encode(double v, int bits) {
+    long b = Double.doubleToLongBits(v);
+    b ^= (b >> 63) & Long.MAX_VALUE;
+    return (b >> bits) << bits;
+  }
+
+  /**
+   * Parameterization class.
+   *
+   * @author Erich Schubert
+   */
+  public static class Par implements Parameterizer {
+    @Override
+    public ParallelSortTileRecursiveBulkSplit make() {
+      return STATIC;
+    }
+  }
+}
@@ -20,19 +20,35 @@
  */
 package elki.index.tree.spatial.rstarvariants.rstar;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
 import elki.algorithm.AbstractSimpleAlgorithmTest;
 import elki.data.NumberVector;
+import elki.data.type.TypeUtil;
 import elki.database.Database;
 import elki.database.StaticArrayDatabase;
+import elki.database.ids.DBIDIter;
+import elki.database.ids.DBIDRef;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.DoubleDBIDList;
+import elki.database.query.PrioritySearcher;
+import elki.database.query.QueryBuilder;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
 import elki.database.query.knn.WrappedKNNDBIDByLookup;
+import elki.database.query.range.RangeSearcher;
 import elki.database.query.range.WrappedRangeDBIDByLookup;
+import elki.database.relation.Relation;
+import elki.distance.minkowski.EuclideanDistance;
 import elki.index.AbstractIndexStructureTest;
 import elki.index.tree.spatial.rstarvariants.AbstractRStarTreeFactory;
 import elki.index.tree.spatial.rstarvariants.query.EuclideanRStarTreeDistancePrioritySearcher;
+import elki.index.tree.spatial.rstarvariants.query.PackedRStarTreeDistancePrioritySearcher;
+import elki.index.tree.spatial.rstarvariants.query.PackedRStarTreeKNNSearcher;
+import elki.index.tree.spatial.rstarvariants.query.PackedRStarTreeRangeSearcher;
 import elki.index.tree.spatial.rstarvariants.query.RStarTreeKNNSearcher;
 import elki.index.tree.spatial.rstarvariants.query.RStarTreeRangeSearcher;
 import elki.index.tree.spatial.rstarvariants.strategies.insert.ApproximativeLeastOverlapInsertionStrategy;
@@ -81,6 +97,102 @@ public class RStarTreeTest extends AbstractIndexStructureTest {
     assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
   }
 
+  /**
+   * Test {@link RStarTree} answering queries from a packed copy.
+   */
+  @Test
+  public void testRStarTreePacked() {
+    RStarTreeFactory<NumberVector> factory = new ELKIBuilder<>(RStarTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .with(RStarTreeFactory.Par.PACKED_ID) //
+        .build();
+    assertExactEuclidean(factory, PackedRStarTreeKNNSearcher.class, PackedRStarTreeRangeSearcher.class);
+    assertPrioritySearchEuclidean(factory, PackedRStarTreeDistancePrioritySearcher.class);
+    assertExactCosine(factory, RStarTreeKNNSearcher.class, RStarTreeRangeSearcher.class);
+    assertConcurrentKNNEuclidean(factory, PackedRStarTreeKNNSearcher.class);
+  }
+
+  /**
+   * Test that searchers see the packed copy rebuilt after a modification, even
+   * when they were created before.
+   */
+  @Test
+  public void testPackedModification() {
+    RStarTreeFactory<NumberVector> factory = new ELKIBuilder<>(RStarTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .with(RStarTreeFactory.Par.PACKED_ID) //
+        .build();
+    ListParameterization inputparams = new ListParameterization() //
+        .addParameter(StaticArrayDatabase.Par.INDEX_ID, factory);
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase("elki/testdata/unittests/hierarchical-3d2d1d.csv", 600, inputparams);
+    Relation<NumberVector> relation = db.getRelation(TypeUtil.NUMBER_VECTOR_FIELD);
+    It<RStarTreeIndex<NumberVector>> it = Metadata.hierarchyOf(db).iterDescendants().filter(RStarTreeIndex.class);
+    assertTrue("No R*-tree found?", it.valid());
+    RStarTreeIndex<NumberVector> tree = it.get();
+    DistanceQuery<NumberVector> dq = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    KNNSearcher<NumberVector> knnq = tree.kNNByObject(dq, 1, 0);
+    RangeSearcher<NumberVector> rangeq = tree.rangeByObject(dq, 0., 0);
+    PrioritySearcher<NumberVector> prioq = tree.priorityByObject(dq, Double.POSITIVE_INFINITY, 0);
+    DBIDIter first = relation.iterDBIDs();
+    NumberVector obj = relation.get(first);
+    assertTrue("Object not found.", DBIDUtil.equal(knnq.getKNN(obj, 1).iter(), first));
+    assertTrue("Object not found.", containsDBID(rangeq.getRange(obj, 0.), first));
+    assertTrue("Object not found.", containsDBID(prioq.search(obj), first));
+
+    assertTrue("Object not deleted.", tree.delete(first));
+    assertFalse("Deleted object found.", DBIDUtil.equal(knnq.getKNN(obj, 1).iter(), first));
+    assertFalse("Deleted object found.", containsDBID(rangeq.getRange(obj, 0.), first));
+    assertFalse("Deleted object found.", containsDBID(prioq.search(obj), first));
+
+    tree.insert(first);
+    assertTrue("Inserted object not found.", DBIDUtil.equal(knnq.getKNN(obj, 1).iter(), first));
+    assertTrue("Inserted object not found.", containsDBID(rangeq.getRange(obj, 0.), first));
+    assertTrue("Inserted object not found.", containsDBID(prioq.search(obj), first));
+  }
+
+  /**
+   * Check if a result list contains an object.
+   *
+   * @param list Result list
+   * @param id Object to find
+   * @return {@code true} if contained
+   */
+  private static boolean containsDBID(DoubleDBIDList list, DBIDRef id) {
+    for(DBIDIter iter = list.iter(); iter.valid(); iter.advance()) {
+      if(DBIDUtil.equal(iter, id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Check if a priority search finds an object at distance zero.
+   *
+   * @param iter Priority searcher
+   * @param id Object to find
+   * @return {@code true} if found
+   */
+  private static boolean containsDBID(PrioritySearcher<?> iter, DBIDRef id) {
+    for(iter.decreaseCutoff(0.); iter.valid(); iter.advance()) {
+      if(DBIDUtil.equal(iter, id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Test concurrent queries on a {@link RStarTree}.
+   */
+  @Test
+  public void testConcurrentQueries() {
+    RStarTreeFactory<NumberVector> factory = new ELKIBuilder<>(RStarTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .build();
+    assertConcurrentKNNEuclidean(factory, RStarTreeKNNSearcher.class);
+  }
+
   /**
    * Trigger some additional integrity checks on the tree.
    */
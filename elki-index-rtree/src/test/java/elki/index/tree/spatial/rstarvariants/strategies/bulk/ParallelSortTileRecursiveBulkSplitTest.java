@@ -0,0 +1,85 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.rstarvariants.strategies.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import elki.data.HyperBoundingBox;
+import elki.data.NumberVector;
+import elki.data.spatial.SpatialComparable;
+import elki.database.query.knn.WrappedKNNDBIDByLookup;
+import elki.database.query.range.WrappedRangeDBIDByLookup;
+import elki.index.AbstractIndexStructureTest;
+import elki.index.tree.spatial.rstarvariants.query.EuclideanRStarTreeDistancePrioritySearcher;
+import elki.index.tree.spatial.rstarvariants.query.RStarTreeKNNSearcher;
+import elki.index.tree.spatial.rstarvariants.query.RStarTreeRangeSearcher;
+import elki.index.tree.spatial.rstarvariants.rstar.RStarTree;
+import elki.index.tree.spatial.rstarvariants.rstar.RStarTreeFactory;
+import elki.persistent.AbstractPageFileFactory;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Test {@link RStarTree} bulk loaded using
+ * {@link ParallelSortTileRecursiveBulkSplit}
+ *
+ * @author Erich Schubert
+ */
+public class ParallelSortTileRecursiveBulkSplitTest extends AbstractIndexStructureTest {
+  @Test
+  public void testParallelSortTileRecursiveBulkSplit() {
+    RStarTreeFactory<NumberVector> factory = new ELKIBuilder<>(RStarTreeFactory.class) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .with(RStarTreeFactory.Par.BULK_SPLIT_ID, ParallelSortTileRecursiveBulkSplit.class) //
+        .build();
+    assertExactEuclidean(factory, RStarTreeKNNSearcher.class, RStarTreeRangeSearcher.class);
+    assertPrioritySearchEuclidean(factory, EuclideanRStarTreeDistancePrioritySearcher.class);
+    assertExactCosine(factory, RStarTreeKNNSearcher.class, RStarTreeRangeSearcher.class);
+    assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
+  }
+
+  @Test
+  public void testLargePartition() {
+    Random rnd = new Random(0L);
+    List<SpatialComparable> objs = new ArrayList<>();
+    for(int i = 0; i < 50000; i++) {
+      double x = rnd.nextDouble() * 2 - 1, y = rnd.nextGaussian() * 1e6;
+      objs.add(new HyperBoundingBox(new double[] { x, y, 0 }, new double[] { x + rnd.nextDouble() * .01, y, 1 }));
+    }
+    List<List<SpatialComparable>> parts = ParallelSortTileRecursiveBulkSplit.STATIC.partition(objs, 10, 25);
+    IdentityHashMap<SpatialComparable, Boolean> seen = new IdentityHashMap<>();
+    for(List<SpatialComparable> part : parts) {
+      assertTrue("Partition too large.", part.size() <= 25 && !part.isEmpty());
+      for(SpatialComparable o : part) {
+        assertTrue("Object assigned twice.", seen.put(o, Boolean.TRUE) == null);
+      }
+    }
+    assertEquals("Objects lost.", objs.size(), seen.size());
+    assertTrue("Too few partitions.", parts.size() >= 2000);
+  }
+}
@@ -0,0 +1,1102 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import elki.data.type.TypeInformation;
+import elki.database.ids.*;
+import elki.database.query.PrioritySearcher;
+import elki.database.query.QueryBuilder;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.query.range.RangeSearcher;
+import elki.database.relation.Relation;
+import elki.distance.Distance;
+import elki.index.DistancePriorityIndex;
+import elki.index.IndexFactory;
+import elki.logging.Logging;
+import elki.logging.progress.FiniteProgress;
+import elki.logging.statistics.DoubleStatistic;
+import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.datastructures.arrays.DoubleIntegerArrayQuickSort;
+import elki.utilities.datastructures.heap.DoubleIntegerMaxHeap;
+import elki.utilities.datastructures.heap.DoubleIntegerMinHeap;
+import elki.utilities.documentation.Reference;
+import elki.utilities.optionhandling.OptionID;
+import elki.utilities.optionhandling.Parameterizer;
+import elki.utilities.optionhandling.constraints.CommonConstraints;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.IntParameter;
+import elki.utilities.optionhandling.parameters.ObjectParameter;
+import elki.utilities.optionhandling.parameters.RandomParameter;
+import elki.utilities.random.RandomFactory;
+
+import net.jafama.FastMath;
+
+/**
+ * Hierarchical Navigable Small World (HNSW) graph for <em>approximate</em>
+ * nearest neighbor search.
+ * <p>
+ * Every object is assigned a random level with exponentially decaying
+ * probability, and is linked to its (heuristically diversified) neighbors on
+ * every layer up to its level. Queries greedily descend through the sparse
+ * upper layers, then perform a beam search with a candidate list of size
+ * {@code efSearch} on the bottom layer.
+ * <p>
+ * Reference:
+ * <p>
+ * Yu. A. Malkov, D. A. Yashunin<br>
+ * Efficient and Robust Approximate Nearest Neighbor Search Using Hierarchical
+ * Navigable Small World Graphs<br>
+ * IEEE Trans. Pattern Analysis and Machine Intelligence 42(4)
+ * <p>
+ * The bottom layer is stored as a single flat array of fixed-size adjacency
+ * lists, the upper layers only for the few objects that are part of them. The
+ * graph is built in parallel, using striped locks on the adjacency lists;
+ * the result then depends on the thread scheduling, and is only reproducible
+ * when running single-threaded.
+ * <p>
+ * Because results are approximate, this index does not answer queries that
+ * require exact results. Use {@link elki.index.ValidateApproximativeKNNIndex}
+ * to measure the recall obtained with a parameterization.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - HNSWPrioritySearcher
+ *
+ * @param <O> Object type
+ */
+@Reference(authors = "Yu. A. Malkov, D. A. Yashunin", //
+    title = "Efficient and Robust Approximate Nearest Neighbor Search Using Hierarchical Navigable Small World Graphs", //
+    booktitle = "IEEE Trans. Pattern Analysis and Machine Intelligence 42(4)", //
+    url = "https://doi.org/10.1109/TPAMI.2018.2889473", //
+    bibkey = "DBLP:journals/pami/MalkovY20")
+public class HNSW<O> implements DistancePriorityIndex<O> {
+  /**
+   * Class logger.
+   */
+  private static final Logging LOG = Logging.getLogger(HNSW.class);
+
+  /**
+   * Number of lock stripes used during construction (power of two).
+   */
+  private static final int NUM_LOCKS = 1 << 12;
+
+  /**
+   * Number of objects a worker claims at a time during construction.
+   */
+  private static final int BLOCK_SIZE = 256;
+
+  /**
+   * Maximum level.
+   */
+  private static final int MAX_LEVEL = 31;
+
+  /**
+   * The bottom layer is stored in segments of 2^SEGMENT_SHIFT nodes each, as a
+   * single array would exceed the maximum array size for large data sets.
+   */
+  private static final int SEGMENT_SHIFT = 16;
+
+  /**
+   * Mask to get the position of a node within its segment.
+   */
+  private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+  /**
+   * Data relation.
+   */
+  private Relation<O> relation;
+
+  /**
+   * Distance function.
+   */
+  private Distance<? super O> distance;
+
+  /**
+   * Distance query.
+   */
+  private DistanceQuery<O> distanceQuery;
+
+  /**
+   * Maximum number of neighbors on the upper layers.
+   */
+  private int m;
+
+  /**
+   * Maximum number of neighbors on the bottom layer.
+   */
+  private int m0;
+
+  /**
+   * Candidate list size during construction.
+   */
+  private int efConstruction;
+
+  /**
+   * Candidate list size during search.
+   */
+  private int efSearch;
+
+  /**
+   * Random generator for the level assignment.
+   */
+  private RandomFactory random;
+
+  /**
+   * Indexed objects; nodes are identified by their offset.
+   */
+  private ArrayDBIDs ids;
+
+  /**
+   * Adjacency lists of the bottom layer, {@code m0 + 1} entries per node: the
+   * number of neighbors, followed by the neighbors. Segmented, see
+   * {@link #SEGMENT_SHIFT}.
+   */
+  private int[][] links0;
+
+  /**
+   * Nodes with a level above 0, sorted.
+   */
+  private int[] upperNodes;
+
+  /**
+   * Adjacency lists of the upper layers, {@code m + 1} entries per layer, for
+   * each of the upper nodes.
+   */
+  private int[][] upperLinks;
+
+  /**
+   * Entry point of the search.
+   */
+  private volatile int entryPoint = -1;
+
+  /**
+   * Level of the entry point.
+   */
+  private volatile int maxLevel = -1;
+
+  /**
+   * Lock stripes, only during construction.
+   */
+  private Object[] locks;
+
+  /**
+   * Constructor.
+   *
+   * @param relation Data relation
+   * @param distance Distance function
+   * @param m Maximum number of neighbors on the upper layers
+   * @param efConstruction Candidate list size during construction
+   * @param efSearch Candidate list size during search
+   * @param random Random generator for the level assignment
+   */
+  public HNSW(Relation<O> relation, Distance<? super O> distance, int m, int efConstruction, int efSearch, RandomFactory random) {
+    super();
+    this.relation = relation;
+    this.distance = distance;
+    this.distanceQuery = distance.instantiate(relation);
+    this.m = m;
+    this.m0 = m << 1;
+    this.efConstruction = efConstruction;
+    this.efSearch = efSearch;
+    this.random = random;
+  }
+
+  @Override
+  public void initialize() {
+    ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final int size = ids.size();
+    links0 = new int[(int) ((size + (long) SEGMENT_MASK) >>> SEGMENT_SHIFT)][];
+    for(int i = 0; i < links0.length; i++) {
+      links0[i] = new int[Math.min(size - (i << SEGMENT_SHIFT), SEGMENT_MASK + 1) * (m0 + 1)];
+    }
+    final int[] levels = drawLevels(size);
+    if(size == 0) {
+      return;
+    }
+    locks = new Object[NUM_LOCKS];
+    for(int i = 0; i < NUM_LOCKS; i++) {
+      locks[i] = new Object();
+    }
+    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("Building HNSW graph", size, LOG) : null;
+    entryPoint = 0;
+    maxLevel = levels[0];
+    LOG.incrementProcessed(prog);
+    // Workers claim blocks of objects, so insertion roughly follows the order.
+    final AtomicInteger next = new AtomicInteger(1);
+    final int parallelism = ParallelCore.getCore().getParallelism();
+    List<Callable<Void>> tasks = new ArrayList<>(parallelism);
+    for(int t = 0; t < parallelism; t++) {
+      tasks.add(() -> {
+        Inserter ins = new Inserter();
+        for(int start; (start = next.getAndAdd(BLOCK_SIZE)) < size;) {
+          for(int i = start, end = Math.min(size, start + BLOCK_SIZE); i < end; i++) {
+            ins.insert(i, levels[i]);
+            LOG.incrementProcessed(prog);
+          }
+        }
+        return null;
+      });
+    }
+    ParallelExecutor.run(tasks);
+    LOG.ensureCompleted(prog);
+    locks = null;
+  }
+
+  /**
+   * Draw the random levels, and allocate the upper layers.
+   *
+   * @param size Number of objects
+   * @return Level of each object
+   */
+  private int[] drawLevels(int size) {
+    final Random rnd = random.getSingleThreadedRandom();
+    final double ml = 1. / FastMath.log(m);
+    int[] levels = new int[size];
+    int numUpper = 0;
+    for(int i = 0; i < size; i++) {
+      final int l = (int) (-FastMath.log(1. - rnd.nextDouble()) * ml);
+      numUpper += (levels[i] = l < MAX_LEVEL ? l : MAX_LEVEL) > 0 ? 1 : 0;
+    }
+    upperNodes = new int[numUpper];
+    upperLinks = new int[numUpper][];
+    for(int i = 0, j = 0; i < size; i++) {
+      if(levels[i] > 0) {
+        upperNodes[j] = i;
+        upperLinks[j++] = new int[levels[i] * (m + 1)];
+      }
+    }
+    return levels;
+  }
+
+  /**
+   * Get the array containing the adjacency list of a node.
+   *
+   * @param node Node
+   * @param layer Layer
+   * @return Array
+   */
+  private int[] linkArray(int node, int layer) {
+    return layer == 0 ? links0[node >>> SEGMENT_SHIFT] : upperLinks[Arrays.binarySearch(upperNodes, node)];
+  }
+
+  /**
+   * Get the offset of the adjacency list of a node in its array.
+   *
+   * @param node Node
+   * @param layer Layer
+   * @return Offset
+   */
+  private int linkOffset(int node, int layer) {
+    return layer == 0 ? (node & SEGMENT_MASK) * (m0 + 1) : (layer - 1) * (m + 1);
+  }
+
+  @Override
+  public void logStatistics() {
+    long edges = 0;
+    for(int[] segment : links0) {
+      for(int i = 0; i < segment.length; i += m0 + 1) {
+        edges += segment[i];
+      }
+    }
+    LOG.statistics(new LongStatistic(getClass().getName() + ".levels", maxLevel + 1));
+    LOG.statistics(new LongStatistic(getClass().getName() + ".upper-nodes", upperNodes.length));
+    LOG.statistics(new DoubleStatistic(getClass().getName() + ".mean-degree", edges / (double) ids.size()));
+  }
+
+  /**
+   * Test if queries with the given parameters can be answered.
+   *
+   * @param distanceQuery Distance query
+   * @param flags Optimizer hints
+   * @return {@code true} if supported
+   */
+  private boolean isApplicable(DistanceQuery<O> distanceQuery, int flags) {
+    return (flags & (QueryBuilder.FLAG_EXACT_ONLY | QueryBuilder.FLAG_PRECOMPUTE)) == 0 && // approximate
+        distanceQuery.getRelation() == relation && this.distance.equals(distanceQuery.getDistance());
+  }
+
+  @Override
+  public KNNSearcher<O> kNNByObject(DistanceQuery<O> distanceQuery, int maxk, int flags) {
+    return isApplicable(distanceQuery, flags) ? new HNSWPriorityObjectSearcher() : null;
+  }
+
+  @Override
+  public KNNSearcher<DBIDRef> kNNByDBID(DistanceQuery<O> distanceQuery, int maxk, int flags) {
+    return isApplicable(distanceQuery, flags) ? new HNSWPriorityDBIDSearcher() : null;
+  }
+
+  @Override
+  public RangeSearcher<O> rangeByObject(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new HNSWPriorityObjectSearcher() : null;
+  }
+
+  @Override
+  public RangeSearcher<DBIDRef> rangeByDBID(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new HNSWPriorityDBIDSearcher() : null;
+  }
+
+  @Override
+  public PrioritySearcher<O> priorityByObject(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new HNSWPriorityObjectSearcher() : null;
+  }
+
+  @Override
+  public PrioritySearcher<DBIDRef> priorityByDBID(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new HNSWPriorityDBIDSearcher() : null;
+  }
+
+  /**
+   * Common search functionality for construction and queries.
+   *
+   * @author Erich Schubert
+   */
+  abstract class GraphSearcher {
+    /**
+     * Visited markers.
+     */
+    private int[] visited = new int[ids.size()];
+
+    /**
+     * Current visited tag.
+     */
+    private int tag = 0;
+
+    /**
+     * Buffer for copying adjacency lists.
+     */
+    int[] nbuf = new int[m0 + 1];
+
+    /**
+     * Candidates to expand.
+     */
+    DoubleIntegerMinHeap candidates = new DoubleIntegerMinHeap();
+
+    /**
+     * Best results found.
+     */
+    DoubleIntegerMaxHeap results = new DoubleIntegerMaxHeap();
+
+    /**
+     * Iterator for accessing the objects.
+     */
+    DBIDArrayIter iter = ids.iter();
+
+    /**
+     * Distance of the current entry point.
+     */
+    double epDist;
+
+    /**
+     * Compute the distance to the query.
+     *
+     * @param node Node
+     * @return Distance
+     */
+    protected abstract double queryDistance(int node);
+
+    /**
+     * Copy the adjacency list of a node into {@link #nbuf}.
+     *
+     * @param node Node
+     * @param layer Layer
+     * @return Number of neighbors
+     */
+    protected int neighbors(int node, int layer) {
+      final int[] arr = linkArray(node, layer);
+      final int off = linkOffset(node, layer), c = arr[off];
+      System.arraycopy(arr, off + 1, nbuf, 0, c);
+      return c;
+    }
+
+    /**
+     * Start a new set of visited nodes.
+     */
+    protected void newVisited() {
+      if(++tag == 0) { // Overflow
+        Arrays.fill(visited, 0);
+        tag = 1;
+      }
+    }
+
+    /**
+     * Mark a node as visited.
+     *
+     * @param node Node
+     * @return {@code false} if it had been visited before
+     */
+    protected boolean visit(int node) {
+      if(visited[node] == tag) {
+        return false;
+      }
+      visited[node] = tag;
+      return true;
+    }
+
+    /**
+     * Find the entry point into a layer, by greedy search on the layers above.
+     * The distance of the entry point is returned in {@link #epDist}.
+     *
+     * @param top Top layer to start from
+     * @param ep Entry point on the top layer
+     * @param stop Target layer
+     * @return Entry point on the target layer
+     */
+    protected int descend(int top, int ep, int stop) {
+      double d = epDist = queryDistance(ep);
+      for(int layer = top; layer > stop; layer--) {
+        for(boolean changed = true; changed;) {
+          changed = false;
+          for(int i = 0, c = neighbors(ep, layer); i < c; i++) {
+            final int nb = nbuf[i];
+            final double dn = queryDistance(nb);
+            if(dn < d) {
+              d = dn;
+              ep = nb;
+              changed = true;
+            }
+          }
+        }
+      }
+      epDist = d;
+      return ep;
+    }
+
+    /**
+     * Beam search on a single layer. The (at most ef) results are stored in
+     * {@link #results}.
+     *
+     * @param ep Entry point
+     * @param epd Distance of the entry point
+     * @param ef Candidate list size
+     * @param layer Layer
+     */
+    protected void searchLayer(int ep, double epd, int ef, int layer) {
+      newVisited();
+      candidates.clear();
+      results.clear();
+      visit(ep);
+      candidates.add(epd, ep);
+      results.add(epd, ep);
+      while(!candidates.isEmpty()) {
+        final double cd = candidates.peekKey();
+        if(cd > results.peekKey() && results.size() >= ef) {
+          break;
+        }
+        final int cur = candidates.peekValue();
+        candidates.poll();
+        for(int i = 0, c = neighbors(cur, layer); i < c; i++) {
+          final int nb = nbuf[i];
+          if(!visit(nb)) {
+            continue;
+          }
+          final double dn = queryDistance(nb);
+          if(results.size() < ef || dn < results.peekKey()) {
+            candidates.add(dn, nb);
+            results.add(dn, nb, ef);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Worker for inserting objects into the graph.
+   *
+   * @author Erich Schubert
+   */
+  private class Inserter extends GraphSearcher {
+    /**
+     * Object currently inserted.
+     */
+    private DBIDArrayIter qiter = ids.iter();
+
+    /**
+     * Second iterator, for distances between nodes.
+     */
+    private DBIDArrayIter iter2 = ids.iter();
+
+    /**
+     * Candidate neighbors.
+     */
+    private int[] cids = new int[Math.max(efConstruction, m0) + 1];
+
+    /**
+     * Candidate distances.
+     */
+    private double[] cdists = new double[cids.length];
+
+    /**
+     * Buffer for shrinking adjacency lists.
+     */
+    private int[] sids = new int[m0 + 1];
+
+    /**
+     * Distances for shrinking adjacency lists.
+     */
+    private double[] sdists = new double[m0 + 1];
+
+    @Override
+    protected double queryDistance(int node) {
+      return distanceQuery.distance(qiter, iter.seek(node));
+    }
+
+    /**
+     * Distance between two nodes.
+     *
+     * @param a First node
+     * @param b Second node
+     * @return Distance
+     */
+    private double distance(int a, int b) {
+      return distanceQuery.distance(iter.seek(a), iter2.seek(b));
+    }
+
+    /**
+     * Get the lock for a node.
+     *
+     * @param node Node
+     * @return Lock
+     */
+    private Object lock(int node) {
+      return locks[node & (NUM_LOCKS - 1)];
+    }
+
+    @Override
+    protected int neighbors(int node, int layer) {
+      synchronized(lock(node)) {
+        return super.neighbors(node, layer);
+      }
+    }
+
+    /**
+     * Insert a node into the graph.
+     *
+     * @param q Node
+     * @param level Level of the node
+     */
+    protected void insert(int q, int level) {
+      qiter.seek(q);
+      final int top = maxLevel; // Read before the entry point!
+      int ep = descend(top, entryPoint, level);
+      for(int layer = Math.min(top, level); layer >= 0; layer--) {
+        searchLayer(ep, epDist, efConstruction, layer);
+        // Sort ascending, skipping the node itself (if linked concurrently):
+        int n = 0;
+        for(; !results.isEmpty(); results.poll()) {
+          if(results.peekValue() != q) {
+            cdists[n] = results.peekKey();
+            cids[n++] = results.peekValue();
+          }
+        }
+        if(n == 0) {
+          continue;
+        }
+        reverse(n);
+        ep = cids[0];
+        epDist = cdists[0];
+        n = selectNeighbors(cids, cdists, n, m);
+        setLinks(q, layer, n);
+        for(int i = 0; i < n; i++) {
+          connect(cids[i], q, cdists[i], layer);
+        }
+      }
+      if(level > top) {
+        synchronized(HNSW.this) {
+          if(level > maxLevel) {
+            entryPoint = q; // Write before the level!
+            maxLevel = level;
+          }
+        }
+      }
+    }
+
+    /**
+     * Reverse the order of the candidates.
+     *
+     * @param n Number of candidates
+     */
+    private void reverse(int n) {
+      for(int i = 0, j = n - 1; i < j; i++, j--) {
+        final int t = cids[i];
+        cids[i] = cids[j];
+        cids[j] = t;
+        final double d = cdists[i];
+        cdists[i] = cdists[j];
+        cdists[j] = d;
+      }
+    }
+
+    /**
+     * Neighbor selection heuristic: keep a candidate only if it is closer to
+     * the base node than to all previously kept candidates.
+     *
+     * @param cand Candidates, sorted by distance (will be compacted)
+     * @param dists Candidate distances
+     * @param n Number of candidates
+     * @param max Maximum number of neighbors
+     * @return Number of selected neighbors, at the beginning of the arrays
+     */
+    private int selectNeighbors(int[] cand, double[] dists, int n, int max) {
+      int res = 0;
+      for(int i = 0; i < n && res < max; i++) {
+        final int c = cand[i];
+        final double dc = dists[i];
+        boolean good = true;
+        for(int j = 0; j < res; j++) {
+          if(distance(c, cand[j]) < dc) {
+            good = false;
+            break;
+          }
+        }
+        if(good) {
+          cand[res] = c;
+          dists[res++] = dc;
+        }
+      }
+      return res;
+    }
+
+    /**
+     * Set the neighbors of a newly inserted node, keeping links added
+     * concurrently by other threads.
+     *
+     * @param q Node
+     * @param layer Layer
+     * @param n Number of neighbors (in {@link #cids})
+     */
+    private void setLinks(int q, int layer, int n) {
+      final int[] arr = linkArray(q, layer);
+      final int off = linkOffset(q, layer), mmax = layer == 0 ? m0 : m;
+      synchronized(lock(q)) {
+        final int old = arr[off];
+        System.arraycopy(arr, off + 1, nbuf, 0, old);
+        System.arraycopy(cids, 0, arr, off + 1, n);
+        int c = n;
+        for(int j = 0; j < old && c < mmax; j++) {
+          if(!contains(cids, n, nbuf[j])) {
+            arr[off + 1 + c++] = nbuf[j];
+          }
+        }
+        arr[off] = c;
+      }
+    }
+
+    /**
+     * Add a reverse link, shrinking the adjacency list if necessary.
+     *
+     * @param e Node to add the link to
+     * @param q New neighbor
+     * @param dist Distance
+     * @param layer Layer
+     */
+    private void connect(int e, int q, double dist, int layer) {
+      final int[] arr = linkArray(e, layer);
+      final int off = linkOffset(e, layer), mmax = layer == 0 ? m0 : m;
+      synchronized(lock(e)) {
+        final int c = arr[off];
+        if(contains(arr, off + 1, off + 1 + c, q)) {
+          return;
+        }
+        if(c < mmax) {
+          arr[off + 1 + c] = q;
+          arr[off] = c + 1;
+          return;
+        }
+        // Full: choose the new neighbors among the old and the new.
+        sids[0] = q;
+        sdists[0] = dist;
+        for(int i = 0; i < c; i++) {
+          final int nb = sids[i + 1] = arr[off + 1 + i];
+          sdists[i + 1] = distance(e, nb);
+        }
+        DoubleIntegerArrayQuickSort.sort(sdists, sids, 0, c + 1);
+        final int n = selectNeighbors(sids, sdists, c + 1, mmax);
+        System.arraycopy(sids, 0, arr, off + 1, n);
+        arr[off] = n;
+      }
+    }
+
+    /**
+     * Test if an array prefix contains a value.
+     *
+     * @param arr Array
+     * @param n Prefix length
+     * @param v Value
+     * @return {@code true} if contained
+     */
+    private boolean contains(int[] arr, int n, int v) {
+      return contains(arr, 0, n, v);
+    }
+
+    /**
+     * Test if an array range contains a value.
+     *
+     * @param arr Array
+     * @param start Range start
+     * @param end Range end (exclusive)
+     * @param v Value
+     * @return {@code true} if contained
+     */
+    private boolean contains(int[] arr, int start, int end, int v) {
+      for(int i = start; i < end; i++) {
+        if(arr[i] == v) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Priority search on the bottom layer of the graph.
+   * <p>
+   * Nodes are returned in best-first order of the graph traversal, which is
+   * not strictly by distance. Without a cutoff, all nodes reachable in the
+   * graph are returned. With a cutoff, the search stops when no candidate is
+   * within the cutoff, nor among the {@code efSearch} best nodes seen.
+   * <p>
+   * k-nearest-neighbor queries use the standard HNSW search with a candidate
+   * list of size {@code max(efSearch, k)}.
+   *
+   * @author Erich Schubert
+   *
+   * @param <Q> Query type
+   */
+  public abstract class HNSWPrioritySearcher<Q> extends GraphSearcher implements PrioritySearcher<Q> {
+    /**
+     * Query object.
+     */
+    Q query;
+
+    /**
+     * Stopping distance threshold.
+     */
+    private double threshold = Double.POSITIVE_INFINITY;
+
+    /**
+     * Current node, -1 when done.
+     */
+    private int cur = -1;
+
+    /**
+     * Distance of the current node.
+     */
+    private double curDist;
+
+    /**
+     * Constructor.
+     */
+    public HNSWPrioritySearcher() {
+      super();
+    }
+
+    @Override
+    public PrioritySearcher<Q> search(Q query) {
+      this.query = query;
+      threshold = Double.POSITIVE_INFINITY;
+      cur = -1;
+      candidates.clear();
+      results.clear();
+      if(ids.isEmpty()) {
+        return this;
+      }
+      final int top = maxLevel;
+      final int ep = descend(top, entryPoint, 0);
+      newVisited();
+      visit(ep);
+      candidates.add(epDist, ep);
+      results.add(epDist, ep, efSearch);
+      return advance();
+    }
+
+    @Override
+    public KNNList getKNN(Q query, int k) {
+      this.query = query;
+      final KNNHeap heap = DBIDUtil.newHeap(k);
+      if(ids.isEmpty()) {
+        return heap.toKNNList();
+      }
+      final int top = maxLevel;
+      final int ep = descend(top, entryPoint, 0);
+      searchLayer(ep, epDist, Math.max(efSearch, k), 0);
+      while(results.size() > k) {
+        results.poll();
+      }
+      for(; !results.isEmpty(); results.poll()) {
+        heap.insert(results.peekKey(), iter.seek(results.peekValue()));
+      }
+      cur = -1;
+      return heap.toKNNList();
+    }
+
+    @Override
+    public PrioritySearcher<Q> decreaseCutoff(double threshold) {
+      assert threshold <= this.threshold;
+      this.threshold = threshold;
+      return this;
+    }
+
+    @Override
+    public double allLowerBound() {
+      return 0.; // Graph traversal does not provide a useful bound.
+    }
+
+    @Override
+    public boolean valid() {
+      return cur >= 0;
+    }
+
+    @Override
+    public PrioritySearcher<Q> advance() {
+      if(cur >= 0) {
+        // Expand the previous node:
+        for(int i = 0, c = neighbors(cur, 0); i < c; i++) {
+          final int nb = nbuf[i];
+          if(visit(nb)) {
+            final double dn = queryDistance(nb);
+            candidates.add(dn, nb);
+            results.add(dn, nb, efSearch);
+          }
+        }
+        cur = -1;
+      }
+      if(candidates.isEmpty()) {
+        return this;
+      }
+      final double d = candidates.peekKey();
+      if(d > threshold && d > results.peekKey() && results.size() >= efSearch) {
+        candidates.clear();
+        return this;
+      }
+      cur = candidates.peekValue();
+      curDist = d;
+      candidates.poll();
+      return this;
+    }
+
+    @Override
+    public double getApproximateDistance() {
+      return curDist;
+    }
+
+    @Override
+    public double getApproximateAccuracy() {
+      return 0.;
+    }
+
+    @Override
+    public double getLowerBound() {
+      return curDist;
+    }
+
+    @Override
+    public double getUpperBound() {
+      return curDist;
+    }
+
+    @Override
+    public double computeExactDistance() {
+      return curDist;
+    }
+
+    @Override
+    public int internalGetIndex() {
+      return iter.seek(cur).internalGetIndex();
+    }
+  }
+
+  /**
+   * Priority search for query objects.
+   *
+   * @author Erich Schubert
+   */
+  public class HNSWPriorityObjectSearcher extends HNSWPrioritySearcher<O> {
+    @Override
+    protected double queryDistance(int node) {
+      return distanceQuery.distance(query, iter.seek(node));
+    }
+  }
+
+  /**
+   * Priority search for database objects.
+   *
+   * @author Erich Schubert
+   */
+  public class HNSWPriorityDBIDSearcher extends HNSWPrioritySearcher<DBIDRef> {
+    @Override
+    protected double queryDistance(int node) {
+      return distanceQuery.distance(query, iter.seek(node));
+    }
+  }
+
+  /**
+   * Index factory.
+   *
+   * @author Erich Schubert
+   *
+   * @has - - - HNSW
+   *
+   * @param <O> Object type
+   */
+  public static class Factory<O> implements IndexFactory<O> {
+    /**
+     * Distance function.
+     */
+    protected Distance<? super O> distance;
+
+    /**
+     * Maximum number of neighbors on the upper layers.
+     */
+    protected int m;
+
+    /**
+     * Candidate list size during construction.
+     */
+    protected int efConstruction;
+
+    /**
+     * Candidate list size during search.
+     */
+    protected int efSearch;
+
+    /**
+     * Random generator for the level assignment.
+     */
+    protected RandomFactory random;
+
+    /**
+     * Constructor.
+     *
+     * @param distance Distance function
+     * @param m Maximum number of neighbors on the upper layers
+     * @param efConstruction Candidate list size during construction
+     * @param efSearch Candidate list size during search
+     * @param random Random generator for the level assignment
+     */
+    public Factory(Distance<? super O> distance, int m, int efConstruction, int efSearch, RandomFactory random) {
+      super();
+      this.distance = distance;
+      this.m = m;
+      this.efConstruction = efConstruction;
+      this.efSearch = efSearch;
+      this.random = random;
+    }
+
+    @Override
+    public HNSW<O> instantiate(Relation<O> relation) {
+      return new HNSW<>(relation, distance, m, efConstruction, efSearch, random);
+    }
+
+    @Override
+    public TypeInformation getInputTypeRestriction() {
+      return distance.getInputTypeRestriction();
+    }
+
+    /**
+     * Parameterization class.
+     *
+     * @author Erich Schubert
+     */
+    public static class Par<O> implements Parameterizer {
+      /**
+       * Distance function to use.
+       */
+      public static final OptionID DISTANCE_FUNCTION_ID = new OptionID("hnsw.distancefunction", "Distance function to determine the distance between objects.");
+
+      /**
+       * Maximum number of neighbors.
+       */
+      public static final OptionID M_ID = new OptionID("hnsw.m", "Maximum number of neighbors per node on the upper layers; the bottom layer allows twice as many.");
+
+      /**
+       * Candidate list size during construction.
+       */
+      public static final OptionID EF_CONSTRUCTION_ID = new OptionID("hnsw.efconstruction", "Size of the candidate list during construction.");
+
+      /**
+       * Candidate list size during search.
+       */
+      public static final OptionID EF_SEARCH_ID = new OptionID("hnsw.efsearch", "Size of the candidate list during search. Larger values improve recall at the cost of run time.");
+
+      /**
+       * Random generator seed.
+       */
+      public static final OptionID SEED_ID = new OptionID("hnsw.seed", "Random generator seed for the level assignment.");
+
+      /**
+       * Distance function.
+       */
+      protected Distance<? super O> distance;
+
+      /**
+       * Maximum number of neighbors on the upper layers.
+       */
+      protected int m = 16;
+
+      /**
+       * Candidate list size during construction.
+       */
+      protected int efConstruction = 200;
+
+      /**
+       * Candidate list size during search.
+       */
+      protected int efSearch = 50;
+
+      /**
+       * Random generator.
+       */
+      protected RandomFactory random;
+
+      @Override
+      public void configure(Parameterization config) {
+        new ObjectParameter<Distance<? super O>>(DISTANCE_FUNCTION_ID, Distance.class) //
+            .grab(config, x -> distance = x);
+        new IntParameter(M_ID, 16) //
+            .addConstraint(CommonConstraints.GREATER_THAN_ONE_INT) //
+            .grab(config, x -> m = x);
+        new IntParameter(EF_CONSTRUCTION_ID, 200) //
+            .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+            .grab(config, x -> efConstruction = x);
+        new IntParameter(EF_SEARCH_ID, 50) //
+            .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+            .grab(config, x -> efSearch = x);
+        new RandomParameter(SEED_ID).grab(config, x -> random = x);
+      }
+
+      @Override
+      public HNSW.Factory<O> make() {
+        return new HNSW.Factory<>(distance, m, efConstruction, efSearch, random);
+      }
+    }
+  }
+}
@@ -21,14 +21,15 @@
 package elki.index.invertedlist;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import elki.data.NumberVector;
 import elki.data.SparseNumberVector;
 import elki.data.type.TypeInformation;
 import elki.data.type.TypeUtil;
-import elki.database.datastore.DataStoreFactory;
-import elki.database.datastore.DataStoreUtil;
-import elki.database.datastore.WritableDoubleDataStore;
+import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.distance.DistanceQuery;
 import elki.database.query.knn.KNNSearcher;
@@ -39,9 +40,15 @@ import elki.distance.CosineDistance;
 import elki.distance.Distance;
 import elki.index.IndexFactory;
 import elki.index.KNNIndex;
+import elki.index.KNNJoinIndex;
 import elki.index.RangeIndex;
 import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
+import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.datastructures.heap.DoubleMinHeap;
+import elki.utilities.documentation.Reference;
 import elki.utilities.optionhandling.Parameterizer;
 
 import net.jafama.FastMath;
@@ -49,38 +56,72 @@ import net.jafama.FastMath;
 /**
  * Simple index using inverted lists, for cosine distance only.
  * <p>
+ * The posting lists store the gaps of the document numbers compressed, and the
+ * weights of the length-normalized vectors as floats. Queries are processed
+ * document-at-a-time with WAND, using the maximum weight of each list and of
+ * each block of postings to skip documents that cannot reach the current
+ * threshold. As the weights are only stored with float precision, the
+ * threshold is lowered by a small error bound, and the remaining candidates
+ * are refined with the exact distance. As in {@link CosineDistance}, the
+ * absolute value of the cosine is used.
+ * <p>
+ * Only objects that share at least one non-zero dimension with the query
+ * object are returned.
+ * <p>
  * TODO: support additional distances.
  * 
  * @author Erich Schubert
  * @since 0.7.0
  *
- * @has - - - ArcCosineKNNQuery
- * @has - - - ArcCosineRangeQuery
  * @has - - - CosineKNNQuery
+ * @has - - - ArcCosineRangeQuery
  * @has - - - CosineRangeQuery
+ * @composed - - - PostingList
  *
  * @param <V> Vector type
  */
-public class InMemoryInvertedIndex<V extends NumberVector> implements KNNIndex<V>, RangeIndex<V> {
+@Reference(authors = "A. Z. Broder, D. Carmel, M. Herscovici, A. Soffer, J. Zien", //
+    title = "Efficient query evaluation using a two-level retrieval process", //
+    booktitle = "Proc. 12th Int. Conf. Information and Knowledge Management (CIKM 2003)", //
+    url = "https://doi.org/10.1145/956863.956944", //
+    bibkey = "DBLP:conf/cikm/BroderCHSZ03")
+@Reference(authors = "S. Ding, T. Suel", //
+    title = "Faster top-k document retrieval using block-max indexes", //
+    booktitle = "Proc. 34th Int. ACM SIGIR Conf. Research and Development in Information Retrieval", //
+    url = "https://doi.org/10.1145/2009916.2010048", //
+    bibkey = "DBLP:conf/sigir/DingS11")
+public class InMemoryInvertedIndex<V extends NumberVector> implements KNNIndex<V>, RangeIndex<V>, KNNJoinIndex<V> {
   /**
    * Class logger.
    */
   private static final Logging LOG = Logging.getLogger(InMemoryInvertedIndex.class);
 
+  /**
+   * Tolerance for the rounding of the weights to floats: the score of a
+   * document is a dot product of unit vectors, with a relative error of each
+   * weight of at most 2^-24.
+   */
+  private static final double SLACK = 0x1p-20;
+
+  /**
+   * Minimum number of queries per parallel task.
+   */
+  private static final int MIN_BATCH_SIZE = 64;
+
   /**
    * The representation we are bound to.
    */
   protected final Relation<V> relation;
 
   /**
-   * Inverted index.
+   * Objects, by document number.
    */
-  protected ArrayList<ModifiableDoubleDBIDList> index;
+  protected ArrayDBIDs ids;
 
   /**
-   * Length storage.
+   * Inverted index.
    */
-  protected WritableDoubleDataStore length;
+  protected ArrayList<PostingList> index;
 
   /**
    * Constructor.
@@ -97,20 +138,21 @@ public class InMemoryInvertedIndex<V extends NumberVector> implements KNNIndex<V
       LOG.warning("Index was already initialized!");
     }
     index = new ArrayList<>();
-    length = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_DB);
-    for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
+    ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    int doc = 0;
+    for(DBIDArrayIter iter = ids.iter(); iter.valid(); iter.advance(), doc++) {
       V obj = relation.get(iter);
       if(obj instanceof SparseNumberVector) {
-        indexSparse(iter, (SparseNumberVector) obj);
+        indexSparse(doc, (SparseNumberVector) obj);
       }
       else {
-        indexDense(iter, obj);
+        indexDense(doc, obj);
       }
     }
-    // Sort indexes
     long count = 0L;
-    for(ModifiableDoubleDBIDList column : index) {
-      count += column.sort().size();
+    for(PostingList column : index) {
+      column.trim();
+      count += column.size();
     }
     double sparsity = count / (index.size() * (double) relation.size());
     if(sparsity > .2) {
@@ -121,40 +163,52 @@ public class InMemoryInvertedIndex<V extends NumberVector> implements KNNIndex<V
   /**
    * Index a single (sparse) instance.
    * 
-   * @param ref Object reference
+   * @param doc Document number
    * @param obj Object to index.
    */
-  private void indexSparse(DBIDRef ref, SparseNumberVector obj) {
+  private void indexSparse(int doc, SparseNumberVector obj) {
     double len = 0.;
     for(int iter = obj.iter(); obj.iterValid(iter); iter = obj.iterAdvance(iter)) {
-      final int dim = obj.iterDim(iter);
       final double val = obj.iterDoubleValue(iter);
       if(val == 0. || val != val) {
         continue;
       }
       len += val * val;
-      getOrCreateColumn(dim).add(val, ref);
     }
-    length.put(ref, len);
+    final double f = 1. / FastMath.sqrt(len);
+    for(int iter = obj.iter(); obj.iterValid(iter); iter = obj.iterAdvance(iter)) {
+      final double val = obj.iterDoubleValue(iter);
+      if(val == 0. || val != val) {
+        continue;
+      }
+      getOrCreateColumn(obj.iterDim(iter)).add(doc, (float) (val * f));
+    }
   }
 
   /**
    * Index a single (dense) instance.
    * 
-   * @param ref Object reference
+   * @param doc Document number
    * @param obj Object to index.
    */
-  private void indexDense(DBIDRef ref, V obj) {
+  private void indexDense(int doc, V obj) {
+    final int max = obj.getDimensionality();
     double len = 0.;
-    for(int dim = 0, max = obj.getDimensionality(); dim < max; dim++) {
+    for(int dim = 0; dim < max; dim++) {
       final double val = obj.doubleValue(dim);
       if(val == 0. || val != val) {
         continue;
       }
       len += val * val;
-      getOrCreateColumn(dim).add(val, ref);
     }
-    length.put(ref, FastMath.sqrt(len));
+    final double f = 1. / FastMath.sqrt(len);
+    for(int dim = 0; dim < max; dim++) {
+      final double val = obj.doubleValue(dim);
+      if(val == 0. || val != val) {
+        continue;
+      }
+      getOrCreateColumn(dim).add(doc, (float) (val * f));
+    }
   }
 
   /**
@@ -163,179 +217,378 @@ public class InMemoryInvertedIndex<V extends NumberVector> implements KNNIndex<V
    * @param dim Dimension
    * @return Column
    */
-  private ModifiableDoubleDBIDList getOrCreateColumn(int dim) {
+  private PostingList getOrCreateColumn(int dim) {
     while(dim >= index.size()) {
-      index.add(DBIDUtil.newDistanceDBIDList());
+      index.add(new PostingList());
     }
     return index.get(dim);
   }
 
   /**
-   * Query the most similar objects, sparse version.
+   * Open cursors on the posting lists of the non-zero dimensions of the
+   * query, weighted with the normalized query vector.
    * 
    * @param obj Query object
-   * @param scores Score storage
-   * @param cands Non-zero objects set
-   * @return Result
+   * @return Cursors, sorted by document
    */
-  private double naiveQuerySparse(SparseNumberVector obj, WritableDoubleDataStore scores, HashSetModifiableDBIDs cands) {
-    double len = 0.; // Length of query object, for final normalization
-    for(int iter = obj.iter(); obj.iterValid(iter); iter = obj.iterAdvance(iter)) {
-      final int dim = obj.iterDim(iter);
-      final double val = obj.iterDoubleValue(iter);
-      if(val == 0. || val != val) {
-        continue;
+  private PostingList.Cursor[] cursors(V obj) {
+    ArrayList<PostingList.Cursor> cur = new ArrayList<>();
+    if(obj instanceof SparseNumberVector) {
+      SparseNumberVector sobj = (SparseNumberVector) obj;
+      double len = 0.;
+      for(int iter = sobj.iter(); sobj.iterValid(iter); iter = sobj.iterAdvance(iter)) {
+        final double val = sobj.iterDoubleValue(iter);
+        len += val == val ? val * val : 0.;
       }
-      len += val * val;
-      // No matching documents in index:
-      if(dim >= index.size()) {
-        continue;
+      final double f = 1. / FastMath.sqrt(len);
+      for(int iter = sobj.iter(); sobj.iterValid(iter); iter = sobj.iterAdvance(iter)) {
+        addCursor(cur, sobj.iterDim(iter), sobj.iterDoubleValue(iter) * f);
       }
-      ModifiableDoubleDBIDList column = index.get(dim);
-      for(DoubleDBIDListIter n = column.iter(); n.valid(); n.advance()) {
-        scores.increment(n, n.doubleValue() * val);
-        cands.add(n);
+    }
+    else {
+      final int max = obj.getDimensionality();
+      double len = 0.;
+      for(int dim = 0; dim < max; dim++) {
+        final double val = obj.doubleValue(dim);
+        len += val == val ? val * val : 0.;
+      }
+      final double f = 1. / FastMath.sqrt(len);
+      for(int dim = 0; dim < max; dim++) {
+        addCursor(cur, dim, obj.doubleValue(dim) * f);
       }
     }
-    return FastMath.sqrt(len);
+    PostingList.Cursor[] cursors = cur.toArray(new PostingList.Cursor[cur.size()]);
+    Arrays.sort(cursors, (x, y) -> Integer.compare(x.doc, y.doc));
+    return cursors;
   }
 
   /**
-   * Query the most similar objects, dense version.
+   * Open a cursor for a query dimension, unless the dimension is zero or not
+   * indexed.
    * 
-   * @param obj Query object
-   * @param scores Score storage
-   * @param cands Non-zero objects set
-   * @return Result
+   * @param cur Output list of cursors
+   * @param dim Dimension
+   * @param q Normalized query weight
    */
-  private double naiveQueryDense(NumberVector obj, WritableDoubleDataStore scores, HashSetModifiableDBIDs cands) {
-    double len = 0.; // Length of query object, for final normalization
-    for(int dim = 0, max = obj.getDimensionality(); dim < max; dim++) {
-      final double val = obj.doubleValue(dim);
-      if(val == 0. || val != val) {
-        continue;
-      }
-      len += val * val;
-      // No matching documents in index:
-      if(dim >= index.size()) {
-        continue;
-      }
-      ModifiableDoubleDBIDList column = index.get(dim);
-      for(DoubleDBIDListIter n = column.iter(); n.valid(); n.advance()) {
-        scores.increment(n, n.doubleValue() * val);
-        cands.add(n);
-      }
+  private void addCursor(ArrayList<PostingList.Cursor> cur, int dim, double q) {
+    if(q != 0. && q == q && dim < index.size() && index.get(dim).size() > 0) {
+      cur.add(new PostingList.Cursor(index.get(dim), q));
     }
-    return FastMath.sqrt(len);
   }
 
   /**
-   * Query the most similar objects, abstract version.
+   * Move a cursor whose document has increased to its sorted position. The
+   * cursors after it must be sorted.
    * 
-   * @param obj Query object
-   * @param scores Score storage (must be initialized with zeros!)
-   * @param cands Non-zero objects set (must be empty)
-   * @return Result
+   * @param cur Cursors
+   * @param i Cursor that has advanced
    */
-  private double naiveQuery(V obj, WritableDoubleDataStore scores, HashSetModifiableDBIDs cands) {
-    if(obj instanceof SparseNumberVector) {
-      return naiveQuerySparse((SparseNumberVector) obj, scores, cands);
+  private static void sift(PostingList.Cursor[] cur, int i) {
+    final PostingList.Cursor c = cur[i];
+    for(; i + 1 < cur.length && cur[i + 1].doc < c.doc; i++) {
+      cur[i] = cur[i + 1];
     }
-    else {
-      return naiveQueryDense(obj, scores, cands);
+    cur[i] = c;
+  }
+
+  /**
+   * Find all documents whose score may reach the threshold of the candidate
+   * collector (WAND with block-max bounds).
+   * 
+   * @param cur Cursors, sorted by document
+   * @param cands Candidate collector
+   */
+  private static void wand(PostingList.Cursor[] cur, Candidates cands) {
+    final int n = cur.length;
+    while(true) {
+      final double threshold = cands.threshold();
+      // Find the pivot, the first document that may reach the threshold:
+      double ub = 0.;
+      int p = -1;
+      for(int i = 0; i < n && cur[i].doc != PostingList.END; i++) {
+        if((ub += cur[i].ub) >= threshold) {
+          p = i;
+          break;
+        }
+      }
+      if(p < 0) {
+        return; // No further document can reach the threshold.
+      }
+      final int pivot = cur[p].doc;
+      while(p + 1 < n && cur[p + 1].doc == pivot) {
+        ++p;
+      }
+      // Refine the bound with the blocks containing the pivot:
+      double bub = 0.;
+      int next = p + 1 < n ? cur[p + 1].doc : PostingList.END, best = 0;
+      for(int i = 0; i <= p; i++) {
+        bub += cur[i].blockBound(pivot);
+        final int end = cur[i].blockEnd(pivot);
+        next = end < next ? end + 1 : next;
+        best = cur[i].ub > cur[best].ub ? i : best;
+      }
+      if(bub < threshold) {
+        // No document before next can reach the threshold.
+        cur[best].advance(next);
+        sift(cur, best);
+        continue;
+      }
+      if(cur[0].doc == pivot) {
+        double score = 0.;
+        for(int i = 0; i <= p; i++) {
+          score += cur[i].score();
+          cur[i].next();
+        }
+        for(int i = p; i >= 0; i--) {
+          sift(cur, i);
+        }
+        cands.add(pivot, Math.abs(score));
+      }
+      else {
+        // Advance the most important list before the pivot:
+        best = -1;
+        for(int i = 0; cur[i].doc < pivot; i++) {
+          best = best < 0 || cur[i].ub > cur[best].ub ? i : best;
+        }
+        cur[best].advance(pivot);
+        sift(cur, best);
+      }
     }
   }
 
   @Override
   public void logStatistics() {
-    long count = 0L;
-    for(ModifiableDoubleDBIDList column : index) {
+    long count = 0L, bytes = 0L;
+    for(PostingList column : index) {
       count += column.size();
+      bytes += column.byteSize();
     }
     double sparsity = count / (index.size() * (double) relation.size());
     LOG.statistics(new DoubleStatistic(this.getClass().getName() + ".sparsity", sparsity));
+    LOG.statistics(new LongStatistic(this.getClass().getName() + ".postings.bytes", bytes));
   }
 
   @Override
   public KNNSearcher<V> kNNByObject(DistanceQuery<V> distanceQuery, int maxk, int flags) {
     Distance<? super V> df = distanceQuery.getDistance();
-    return df instanceof CosineDistance ? new CosineKNNQuery() : //
-        df instanceof ArcCosineDistance ? new ArcCosineKNNQuery() : null;
+    return distanceQuery.getRelation() == relation && //
+        (df instanceof CosineDistance || df instanceof ArcCosineDistance) ? //
+            new CosineKNNQuery(distanceQuery) : null;
   }
 
   @Override
   public RangeSearcher<V> rangeByObject(DistanceQuery<V> distanceQuery, double maxradius, int flags) {
     Distance<? super V> df = distanceQuery.getDistance();
-    return df instanceof CosineDistance ? new CosineRangeQuery() : //
-        df instanceof ArcCosineDistance ? new ArcCosineRangeQuery() : null;
+    return distanceQuery.getRelation() != relation ? null : //
+        df instanceof CosineDistance ? new CosineRangeQuery(distanceQuery) : //
+            df instanceof ArcCosineDistance ? new ArcCosineRangeQuery(distanceQuery) : null;
+  }
+
+  @Override
+  public boolean kNNJoin(DistanceQuery<V> distanceQuery, int k, WritableDataStore<KNNList> result) {
+    final CosineKNNQuery knnq = (CosineKNNQuery) kNNByObject(distanceQuery, k, 0);
+    if(knnq == null) {
+      return false;
+    }
+    // Process batches of queries in parallel:
+    final int size = ids.size(), parallelism = ParallelCore.getCore().getParallelism();
+    final int batch = Math.max(MIN_BATCH_SIZE, (size + (parallelism << 2) - 1) / (parallelism << 2));
+    List<Callable<KNNList[]>> tasks = new ArrayList<>();
+    for(int start = 0; start < size; start += batch) {
+      final int s = start, e = Math.min(size, start + batch);
+      tasks.add(() -> {
+        KNNList[] res = new KNNList[e - s];
+        for(DBIDArrayIter it = ids.iter().seek(s); it.getOffset() < e; it.advance()) {
+          res[it.getOffset() - s] = knnq.getKNN(relation.get(it), k);
+        }
+        return res;
+      });
+    }
+    DBIDArrayIter it = ids.iter();
+    for(KNNList[] res : ParallelExecutor.run(tasks)) {
+      for(KNNList knn : res) {
+        result.put(it, knn);
+        it.advance();
+      }
+    }
+    return true;
   }
 
   /**
-   * kNN query object, for cosine distance.
+   * Collector of the candidates of a query, whose approximate score reaches
+   * the threshold.
    * 
    * @author Erich Schubert
    */
-  protected class CosineKNNQuery implements KNNSearcher<V> {
-    @Override
-    public KNNList getKNN(V obj, int k) {
-      HashSetModifiableDBIDs cands = DBIDUtil.newHashSet();
-      WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(cands, //
-          DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, 0.);
-      double len = naiveQuery(obj, scores, cands);
-      // TODO: delay the division by len!
-      KNNHeap heap = DBIDUtil.newHeap(k);
-      for(DBIDIter n = cands.iter(); n.valid(); n.advance()) {
-        double dist = 1. - scores.doubleValue(n) / (length.doubleValue(n) * len);
-        if(heap.getKNNDistance() >= dist) {
-          heap.insert(dist, n);
+  private static class Candidates {
+    /**
+     * Number of neighbors, 0 for a fixed threshold.
+     */
+    private final int k;
+
+    /**
+     * Fixed threshold, for range queries.
+     */
+    private final double fixed;
+
+    /**
+     * The k largest scores.
+     */
+    private final DoubleMinHeap top;
+
+    /**
+     * Candidate documents.
+     */
+    int[] docs = new int[16];
+
+    /**
+     * Approximate scores of the candidates.
+     */
+    double[] scores = new double[16];
+
+    /**
+     * Number of candidates.
+     */
+    int size;
+
+    /**
+     * Constructor.
+     * 
+     * @param k Number of neighbors, 0 for a fixed threshold
+     * @param fixed Fixed threshold
+     */
+    Candidates(int k, double fixed) {
+      this.k = k;
+      this.fixed = fixed;
+      this.top = k > 0 ? new DoubleMinHeap(k) : null;
+    }
+
+    /**
+     * Current threshold: the approximate score of the k-th candidate, less
+     * twice the maximum approximation error.
+     * 
+     * @return Threshold
+     */
+    double threshold() {
+      return k == 0 ? fixed : top.size() < k ? Double.NEGATIVE_INFINITY : top.peek() - 2 * SLACK;
+    }
+
+    /**
+     * Add a candidate, if it reaches the threshold.
+     * 
+     * @param doc Document
+     * @param score Approximate score
+     */
+    void add(int doc, double score) {
+      if(k > 0) {
+        top.add(score, k);
+      }
+      final double threshold = threshold();
+      if(score < threshold) {
+        return;
+      }
+      if(size == docs.length) {
+        prune(threshold);
+        if(size > docs.length >>> 1) {
+          docs = Arrays.copyOf(docs, docs.length << 1);
+          scores = Arrays.copyOf(scores, docs.length);
         }
       }
-      return heap.toKNNList();
+      docs[size] = doc;
+      scores[size++] = score;
+    }
+
+    /**
+     * Remove the candidates below the current threshold.
+     * 
+     * @param threshold Threshold
+     * @return this
+     */
+    Candidates prune(double threshold) {
+      int j = 0;
+      for(int i = 0; i < size; i++) {
+        if(scores[i] >= threshold) {
+          docs[j] = docs[i];
+          scores[j++] = scores[i];
+        }
+      }
+      size = j;
+      return this;
     }
   }
 
   /**
-   * kNN query object, for arc cosine distance.
+   * kNN query object, for cosine and arc cosine distance, which both are
+   * decreasing in the cosine similarity.
    * 
    * @author Erich Schubert
    */
-  protected class ArcCosineKNNQuery implements KNNSearcher<V> {
+  protected class CosineKNNQuery implements KNNSearcher<V> {
+    /**
+     * Distance query, for refinement.
+     */
+    private final DistanceQuery<V> distanceQuery;
+
+    /**
+     * Constructor.
+     * 
+     * @param distanceQuery Distance query, for refinement
+     */
+    public CosineKNNQuery(DistanceQuery<V> distanceQuery) {
+      this.distanceQuery = distanceQuery;
+    }
+
     @Override
     public KNNList getKNN(V obj, int k) {
-      HashSetModifiableDBIDs cands = DBIDUtil.newHashSet();
-      WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(cands, //
-          DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, 0.);
-      double len = naiveQuery(obj, scores, cands);
-      // TODO: delay the division by len and acos!
+      Candidates cands = new Candidates(k, 0.);
+      wand(cursors(obj), cands);
+      cands.prune(cands.threshold());
       KNNHeap heap = DBIDUtil.newHeap(k);
-      for(DBIDIter n = cands.iter(); n.valid(); n.advance()) {
-        double dist = Math.acos(scores.doubleValue(n) / (length.doubleValue(n) * len));
-        if(heap.getKNNDistance() >= dist) {
-          heap.insert(dist, n);
-        }
+      DBIDArrayIter it = ids.iter();
+      for(int i = 0; i < cands.size; i++) {
+        heap.insert(distanceQuery.distance(obj, it.seek(cands.docs[i])), it);
       }
       return heap.toKNNList();
     }
   }
 
   /**
-   * kNN query object, for cosine distance.
+   * Range query object, for cosine and arc cosine distance.
    * 
    * @author Erich Schubert
    */
-  protected class CosineRangeQuery implements RangeSearcher<V> {
+  protected abstract class AbstractRangeQuery implements RangeSearcher<V> {
+    /**
+     * Distance query, for refinement.
+     */
+    private final DistanceQuery<V> distanceQuery;
+
+    /**
+     * Constructor.
+     * 
+     * @param distanceQuery Distance query, for refinement
+     */
+    public AbstractRangeQuery(DistanceQuery<V> distanceQuery) {
+      this.distanceQuery = distanceQuery;
+    }
+
+    /**
+     * Minimum cosine similarity of objects within the query radius.
+     * 
+     * @param range Query radius
+     * @return Similarity threshold
+     */
+    protected abstract double similarityThreshold(double range);
+
     @Override
     public ModifiableDoubleDBIDList getRange(V obj, double range, ModifiableDoubleDBIDList result) {
-      HashSetModifiableDBIDs cands = DBIDUtil.newHashSet();
-      WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(cands, //
-          DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, 0.);
-      double len = naiveQuery(obj, scores, cands);
-      // dist = 1 - sim/len <-> sim = len * (1-dist)
-      double simrange = (1. - range) * len;
-      for(DBIDIter n = cands.iter(); n.valid(); n.advance()) {
-        double sim = scores.doubleValue(n) / length.doubleValue(n);
-        if(sim >= simrange) {
-          result.add(1. - sim / len, n);
+      Candidates cands = new Candidates(0, similarityThreshold(range) - SLACK);
+      wand(cursors(obj), cands);
+      DBIDArrayIter it = ids.iter();
+      for(int i = 0; i < cands.size; i++) {
+        final double dist = distanceQuery.distance(obj, it.seek(cands.docs[i]));
+        if(dist <= range) {
+          result.add(dist, it);
         }
       }
       return result;
@@ -347,22 +600,42 @@ public class InMemoryInvertedIndex<V extends NumberVector> implements KNNIndex<V
    * 
    * @author Erich Schubert
    */
-  protected class ArcCosineRangeQuery implements RangeSearcher<V> {
+  protected class CosineRangeQuery extends AbstractRangeQuery {
+    /**
+     * Constructor.
+     * 
+     * @param distanceQuery Distance query, for refinement
+     */
+    public CosineRangeQuery(DistanceQuery<V> distanceQuery) {
+      super(distanceQuery);
+    }
+
+    @Override
+    protected double similarityThreshold(double range) {
+      // dist = 1 - sim <-> sim = 1 - dist
+      return 1. - range;
+    }
+  }
+
+  /**
+   * Range query object, for arc cosine distance.
+   * 
+   * @author Erich Schubert
+   */
+  protected class ArcCosineRangeQuery extends AbstractRangeQuery {
+    /**
+     * Constructor.
+     * 
+     * @param distanceQuery Distance query, for refinement
+     */
+    public ArcCosineRangeQuery(DistanceQuery<V> distanceQuery) {
+      super(distanceQuery);
+    }
+
     @Override
-    public ModifiableDoubleDBIDList getRange(V obj, double range, ModifiableDoubleDBIDList result) {
-      HashSetModifiableDBIDs cands = DBIDUtil.newHashSet();
-      WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(cands, //
-          DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, 0.);
-      double len = naiveQuery(obj, scores, cands), f = 1. / len;
-      // dist = acos(sim/len) <-> sim = cos(dist)*len
-      double simrange = FastMath.cos(range) * len;
-      for(DBIDIter n = cands.iter(); n.valid(); n.advance()) {
-        double sim = scores.doubleValue(n) / length.doubleValue(n);
-        if(sim >= simrange) {
-          result.add(FastMath.acos(sim * f), n);
-        }
-      }
-      return result;
+    protected double similarityThreshold(double range) {
+      // dist = acos(sim) <-> sim = cos(dist)
+      return range < Math.PI ? FastMath.cos(range) : -1.;
     }
   }
 
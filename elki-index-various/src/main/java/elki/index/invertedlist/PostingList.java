@@ -0,0 +1,363 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.invertedlist;
+
+import java.util.Arrays;
+
+/**
+ * Compressed posting list of a single term.
+ * <p>
+ * Document numbers must be added in increasing order, and are stored as
+ * variable-length encoded gaps. The weights are stored as floats. The postings
+ * are organized in blocks of {@link #BLOCK_SIZE}, for which the last document
+ * and the minimum and maximum weight are kept, such that cursors can skip
+ * entire blocks without decoding them, and bound the contribution of the
+ * block to the score.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+class PostingList {
+  /**
+   * Number of postings per block.
+   */
+  static final int BLOCK_SIZE = 128;
+
+  /**
+   * Document number of an exhausted cursor.
+   */
+  static final int END = Integer.MAX_VALUE;
+
+  /**
+   * Encoded document gaps.
+   */
+  private byte[] docs = new byte[16];
+
+  /**
+   * Number of bytes used.
+   */
+  private int bytes;
+
+  /**
+   * Weights.
+   */
+  private float[] weights = new float[4];
+
+  /**
+   * Number of postings.
+   */
+  private int size;
+
+  /**
+   * Last document of each block.
+   */
+  private int[] blockLast = new int[1];
+
+  /**
+   * Byte offset of each block.
+   */
+  private int[] blockOffset = new int[1];
+
+  /**
+   * Maximum weight of each block.
+   */
+  private float[] blockMax = new float[1];
+
+  /**
+   * Minimum weight of each block.
+   */
+  private float[] blockMin = new float[1];
+
+  /**
+   * Maximum and minimum weight.
+   */
+  private float max = Float.NEGATIVE_INFINITY, min = Float.POSITIVE_INFINITY;
+
+  /**
+   * Last document added.
+   */
+  private int last = -1;
+
+  /**
+   * Append a posting.
+   *
+   * @param doc Document number, must be larger than all previous
+   * @param weight Weight
+   */
+  void add(int doc, float weight) {
+    assert doc > last : "Postings must be added in order.";
+    final int b = size / BLOCK_SIZE;
+    if(size == b * BLOCK_SIZE) { // Start a new block
+      if(b == blockLast.length) {
+        final int newsize = b + (b >>> 1) + 1;
+        blockLast = Arrays.copyOf(blockLast, newsize);
+        blockOffset = Arrays.copyOf(blockOffset, newsize);
+        blockMax = Arrays.copyOf(blockMax, newsize);
+        blockMin = Arrays.copyOf(blockMin, newsize);
+      }
+      blockOffset[b] = bytes;
+      blockMax[b] = Float.NEGATIVE_INFINITY;
+      blockMin[b] = Float.POSITIVE_INFINITY;
+    }
+    if(size == weights.length) {
+      weights = Arrays.copyOf(weights, size + (size >>> 1));
+    }
+    if(bytes + 5 > docs.length) {
+      docs = Arrays.copyOf(docs, docs.length + (docs.length >>> 1) + 5);
+    }
+    // Variable-length encoding of the gap, 7 bits per byte:
+    int gap = doc - last;
+    while(gap >= 0x80) {
+      docs[bytes++] = (byte) (gap | 0x80);
+      gap >>>= 7;
+    }
+    docs[bytes++] = (byte) gap;
+    weights[size++] = weight;
+    blockLast[b] = last = doc;
+    blockMax[b] = Math.max(blockMax[b], weight);
+    blockMin[b] = Math.min(blockMin[b], weight);
+    max = Math.max(max, weight);
+    min = Math.min(min, weight);
+  }
+
+  /**
+   * Release unused memory, once all postings were added.
+   */
+  void trim() {
+    final int nb = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    docs = Arrays.copyOf(docs, bytes);
+    weights = Arrays.copyOf(weights, size);
+    blockLast = Arrays.copyOf(blockLast, nb);
+    blockOffset = Arrays.copyOf(blockOffset, nb);
+    blockMax = Arrays.copyOf(blockMax, nb);
+    blockMin = Arrays.copyOf(blockMin, nb);
+  }
+
+  /**
+   * Number of postings.
+   *
+   * @return Size
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Memory used by the postings, in bytes.
+   *
+   * @return Size in bytes
+   */
+  long byteSize() {
+    return docs.length + (long) weights.length * Float.BYTES //
+        + (long) blockLast.length * (2 * Integer.BYTES + 2 * Float.BYTES);
+  }
+
+  /**
+   * Upper bound of the absolute product of the query weight and a posting
+   * weight.
+   *
+   * @param q Query weight
+   * @param max Maximum weight
+   * @param min Minimum weight
+   * @return Upper bound
+   */
+  private static double bound(double q, float max, float min) {
+    return Math.abs(q) * Math.max(Math.abs(max), Math.abs(min));
+  }
+
+  /**
+   * Cursor over a posting list, for a single query term.
+   *
+   * @author Erich Schubert
+   */
+  static class Cursor {
+    /**
+     * Posting list.
+     */
+    private final PostingList list;
+
+    /**
+     * Query weight.
+     */
+    final double q;
+
+    /**
+     * Upper bound of the absolute contribution of this term.
+     */
+    final double ub;
+
+    /**
+     * Number of blocks.
+     */
+    private final int nblocks;
+
+    /**
+     * Decoded block of document numbers.
+     */
+    private final int[] buf = new int[BLOCK_SIZE];
+
+    /**
+     * Current block, its length, and the position within.
+     */
+    private int block, len, pos;
+
+    /**
+     * Block of the last bound computation, which may be ahead.
+     */
+    private int shallow;
+
+    /**
+     * Current document.
+     */
+    int doc;
+
+    /**
+     * Constructor.
+     *
+     * @param list Posting list
+     * @param q Query weight
+     */
+    Cursor(PostingList list, double q) {
+      this.list = list;
+      this.q = q;
+      this.ub = bound(q, list.max, list.min);
+      this.nblocks = (list.size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      if(nblocks > 0) {
+        decode(0);
+        doc = buf[0];
+      }
+      else {
+        doc = END;
+      }
+    }
+
+    /**
+     * Decode a block.
+     *
+     * @param b Block number
+     */
+    private void decode(int b) {
+      final byte[] docs = list.docs;
+      int p = list.blockOffset[b], d = b > 0 ? list.blockLast[b - 1] : -1;
+      len = Math.min(BLOCK_SIZE, list.size - b * BLOCK_SIZE);
+      for(int i = 0; i < len; i++) {
+        int gap = 0;
+        for(int shift = 0;; shift += 7) {
+          final byte v = docs[p++];
+          gap |= (v & 0x7F) << shift;
+          if(v >= 0) {
+            break;
+          }
+        }
+        buf[i] = d += gap;
+      }
+      block = b;
+      shallow = Math.max(shallow, b);
+      pos = 0;
+    }
+
+    /**
+     * Contribution of the current document to the score.
+     *
+     * @return Query weight times posting weight
+     */
+    double score() {
+      return q * list.weights[block * BLOCK_SIZE + pos];
+    }
+
+    /**
+     * Advance to the next posting.
+     */
+    void next() {
+      if(++pos < len) {
+        doc = buf[pos];
+      }
+      else if(block + 1 < nblocks) {
+        decode(block + 1);
+        doc = buf[0];
+      }
+      else {
+        doc = END;
+      }
+    }
+
+    /**
+     * Advance to the first posting with a document number of at least the
+     * target.
+     *
+     * @param target Target document
+     */
+    void advance(int target) {
+      if(doc >= target) {
+        return;
+      }
+      if(list.blockLast[block] < target) {
+        int b = Math.max(block + 1, shallow);
+        while(b < nblocks && list.blockLast[b] < target) {
+          ++b;
+        }
+        if(b == nblocks) {
+          doc = END;
+          return;
+        }
+        decode(b);
+      }
+      while(buf[pos] < target) {
+        ++pos;
+      }
+      doc = buf[pos];
+    }
+
+    /**
+     * Find the block that may contain the target, without decoding it.
+     *
+     * @param target Target document
+     * @return {@code false} if the list has no such block
+     */
+    private boolean seekBlock(int target) {
+      while(shallow < nblocks && list.blockLast[shallow] < target) {
+        ++shallow;
+      }
+      return shallow < nblocks;
+    }
+
+    /**
+     * Upper bound of the absolute contribution of the documents from the
+     * target to the end of the block containing the target.
+     *
+     * @param target Target document
+     * @return Upper bound
+     */
+    double blockBound(int target) {
+      return seekBlock(target) ? bound(q, list.blockMax[shallow], list.blockMin[shallow]) : 0.;
+    }
+
+    /**
+     * Last document of the block containing the target.
+     *
+     * @param target Target document
+     * @return Last document of the block, or {@link #END}
+     */
+    int blockEnd(int target) {
+      return seekBlock(target) ? list.blockLast[shallow] : END;
+    }
+  }
+}
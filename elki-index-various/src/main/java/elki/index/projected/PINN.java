@@ -41,6 +41,8 @@ import elki.utilities.random.RandomFactory;
  * nearest neighbors in high dimensional spaces by using a random projection
  * based index.
  * <p>
+ * The projected data is materialized, in parallel for large data sets.
+ * <p>
  * Reference:
  * <p>
  * Finding local anomalies in very high dimensional space<br>
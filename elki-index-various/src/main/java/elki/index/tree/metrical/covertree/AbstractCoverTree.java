@@ -20,6 +20,11 @@
  */
 package elki.index.tree.metrical.covertree;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
 import elki.data.type.TypeInformation;
 import elki.database.ids.*;
 import elki.database.query.distance.DistanceQuery;
@@ -30,6 +35,8 @@ import elki.index.IndexFactory;
 import elki.logging.Logging;
 import elki.logging.LoggingUtil;
 import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.Parameterizer;
 import elki.utilities.optionhandling.constraints.CommonConstraints;
@@ -49,6 +56,11 @@ import net.jafama.FastMath;
  * @param <O> Object type
  */
 public abstract class AbstractCoverTree<O> implements Index {
+  /**
+   * Minimum number of candidates to compute distances in parallel.
+   */
+  protected static final int PARALLEL_THRESHOLD = 1 << 14;
+
   /**
    * The representation we are bound to.
    */
@@ -82,9 +94,10 @@ public abstract class AbstractCoverTree<O> implements Index {
   private DistanceQuery<O> distanceQuery;
 
   /**
-   * Distance computations performed.
+   * Distance computations performed, {@code null} unless statistics are
+   * enabled.
    */
-  protected long distComputations = 0L;
+  protected final LongAdder distComputations;
 
   /**
    * Stop refining the tree at this size, but build a leaf.
@@ -108,6 +121,7 @@ public abstract class AbstractCoverTree<O> implements Index {
     this.expansion = expansion;
     this.invLogExpansion = 1. / FastMath.log(expansion);
     this.scaleBottom = (int) Math.ceil(FastMath.log(Double.MIN_NORMAL) * invLogExpansion);
+    this.distComputations = getLogger().isStatistics() ? new LongAdder() : null;
   }
 
   /**
@@ -153,7 +167,9 @@ public abstract class AbstractCoverTree<O> implements Index {
    * @return Distance
    */
   protected double distance(DBIDRef a, DBIDRef b) {
-    ++distComputations;
+    if(distComputations != null) {
+      distComputations.increment();
+    }
     return distanceQuery.distance(a, b);
   }
 
@@ -165,7 +181,9 @@ public abstract class AbstractCoverTree<O> implements Index {
    * @return Distance
    */
   protected double distance(O a, DBIDRef b) {
-    ++distComputations;
+    if(distComputations != null) {
+      distComputations.increment();
+    }
     return distanceQuery.distance(a, b);
   }
 
@@ -190,6 +208,9 @@ public abstract class AbstractCoverTree<O> implements Index {
 
   /**
    * Collect all elements with respect to a new routing object.
+   * <p>
+   * For large candidate lists, the distances are computed in parallel first;
+   * the result is the same as when computed serially.
    * 
    * @param cur Routing object
    * @param candidates Candidate list
@@ -198,6 +219,23 @@ public abstract class AbstractCoverTree<O> implements Index {
    */
   protected void collectByCover(DBIDRef cur, ModifiableDoubleDBIDList candidates, double fmax, ModifiableDoubleDBIDList collect) {
     assert collect.isEmpty() : "Not empty";
+    if(candidates.size() >= PARALLEL_THRESHOLD && !ParallelCore.getCore().isWorkerThread()) {
+      double[] dists = new double[candidates.size()];
+      distances(DBIDUtil.deref(cur), candidates, 1, dists);
+      // Same as below, but with precomputed distances:
+      DoubleDBIDListIter it = candidates.iter();
+      for(int o = 1, end = dists.length; o < end;) {
+        if(dists[o] <= fmax) { // Collect
+          collect.add(dists[o], it.seek(o));
+          candidates.removeSwap(o);
+          dists[o] = dists[--end];
+        }
+        else {
+          ++o; // Keep in candidates, outside cover radius.
+        }
+      }
+      return;
+    }
     DoubleDBIDListIter it = candidates.iter().advance(); // Except first = cur!
     while(it.valid()) {
       assert !DBIDUtil.equal(cur, it);
@@ -212,9 +250,79 @@ public abstract class AbstractCoverTree<O> implements Index {
     }
   }
 
+  /**
+   * Compute the distances from a routing object to a range of candidates, in
+   * parallel for large lists.
+   *
+   * @param cur Routing object
+   * @param candidates Candidate list
+   * @param start First candidate
+   * @param dists Output array, indexed by candidate offset
+   */
+  protected void distances(DBIDRef cur, DoubleDBIDList candidates, int start, double[] dists) {
+    final int size = candidates.size();
+    final int parallelism = ParallelCore.getCore().getParallelism();
+    final int step = Math.max(PARALLEL_THRESHOLD >>> 2, (size - start + parallelism - 1) / parallelism);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for(int i = start; i < size; i += step) {
+      final int begin = i, end = Math.min(size, i + step);
+      tasks.add(() -> {
+        for(DoubleDBIDListIter it = candidates.iter().seek(begin); it.getOffset() < end; it.advance()) {
+          dists[it.getOffset()] = distance(cur, it);
+        }
+        return null;
+      });
+    }
+    ParallelExecutor.run(tasks);
+  }
+
+  /**
+   * Get the maximum size of subtrees to build as a single parallel task
+   * during bulk loading.
+   *
+   * @param size Data set size
+   * @return Task size, or 0 to build serially
+   */
+  protected static int parallelTaskSize(int size) {
+    final ParallelCore core = ParallelCore.getCore();
+    return size < PARALLEL_THRESHOLD || core.isWorkerThread() ? 0 : //
+        Math.max(PARALLEL_THRESHOLD >>> 2, size / (core.getParallelism() << 2));
+  }
+
+  /**
+   * Check whether an inner node should be restructured after an insertion.
+   * <p>
+   * This is the case whenever the number of entries reaches a power of two
+   * larger than the truncation size, so that the amortized cost of
+   * restructuring stays constant even if no new children can be formed.
+   *
+   * @param size Number of entries in the node
+   * @return {@code true} if the node should be restructured
+   */
+  protected boolean needsRestructure(int size) {
+    return size > truncate && (size & (size - 1)) == 0;
+  }
+
+  /**
+   * Check whether a leaf node should be split after an insertion.
+   * <p>
+   * Leaves are split as soon as they exceed the truncation size, unless the
+   * bulk load would not split them either (because all points coincide, or
+   * the scale is too small); these are only rebuilt occasionally.
+   *
+   * @param size Number of entries in the leaf
+   * @param maxDist Maximum distance in the leaf
+   * @return {@code true} if the leaf should be rebuilt
+   */
+  protected boolean needsSplit(int size, double maxDist) {
+    return size > truncate && (maxDist > 0 && distToScale(maxDist) - 1 > scaleBottom || needsRestructure(size));
+  }
+
   @Override
   public void logStatistics() {
-    getLogger().statistics(new LongStatistic(this.getClass().getName() + ".distance-computations", distComputations));
+    if(distComputations != null) {
+      getLogger().statistics(new LongStatistic(this.getClass().getName() + ".distance-computations", distComputations.sum()));
+    }
   }
 
   /**
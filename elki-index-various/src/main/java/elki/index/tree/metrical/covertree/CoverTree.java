@@ -20,10 +20,17 @@
  */
 package elki.index.tree.metrical.covertree;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
+import elki.database.datastore.DataStoreFactory;
+import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.PrioritySearcher;
 import elki.database.query.QueryBuilder;
@@ -33,13 +40,23 @@ import elki.database.query.range.RangeSearcher;
 import elki.database.relation.Relation;
 import elki.distance.Distance;
 import elki.index.DistancePriorityIndex;
+import elki.index.DynamicIndex;
+import elki.index.KNNJoinIndex;
+import elki.index.snapshot.Fingerprint;
+import elki.index.snapshot.IndexSnapshot;
+import elki.index.snapshot.SnapshotInput;
+import elki.index.snapshot.SnapshotOutput;
 import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
 import elki.logging.statistics.LongStatistic;
 import elki.math.MathUtil;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.Priority;
+import elki.utilities.datastructures.arrays.DoubleIntegerArrayQuickSort;
 import elki.utilities.datastructures.heap.DoubleObjectMinHeap;
 import elki.utilities.documentation.Reference;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
 
 /**
  * Cover tree data structure (in-memory). This is a <i>metrical</i> data
@@ -64,7 +81,20 @@ import elki.utilities.documentation.Reference;
  * parent nodes. It thus needs more than twice the memory of
  * {@link SimplifiedCoverTree}, but computes fewer distances.
  * <p>
- * TODO: allow insertions and removals, as in the original publication.
+ * Insertions descend into the closest child that covers the new object, and
+ * nodes that grow too large are restructured as in the bulk load. When a
+ * routing object is deleted, the closest remaining object of its node is
+ * promoted to be the new routing object.
+ * <p>
+ * Large trees are bulk-loaded in parallel, with the same result as the serial
+ * bulk load.
+ * <p>
+ * The k nearest neighbors of all objects can be computed at once with a
+ * dual-tree join, see {@link #kNNJoin}.
+ * <p>
+ * The bulk-loaded tree can be stored in an {@link IndexSnapshot}, and is
+ * loaded from there in later runs on the same data. Later modifications are
+ * not stored.
  *
  * @author Erich Schubert
  * @since 0.7.0
@@ -78,7 +108,7 @@ import elki.utilities.documentation.Reference;
     url = "https://doi.org/10.1145/1143844.1143857", //
     bibkey = "DBLP:conf/icml/BeygelzimerKL06")
 @Priority(Priority.RECOMMENDED)
-public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriorityIndex<O> {
+public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriorityIndex<O>, DynamicIndex, KNNJoinIndex<O> {
   /**
    * Class logger.
    */
@@ -89,6 +119,11 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
    */
   private Node root = null;
 
+  /**
+   * Snapshot file, may be {@code null}.
+   */
+  private Path snapshot;
+
   /**
    * Constructor.
    *
@@ -98,7 +133,21 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
    * @param truncate Truncate branches with less than this number of instances
    */
   public CoverTree(Relation<O> relation, Distance<? super O> distance, double expansion, int truncate) {
+    this(relation, distance, expansion, truncate, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param relation data relation
+   * @param distance distance function
+   * @param expansion Expansion rate
+   * @param truncate Truncate branches with less than this number of instances
+   * @param snapshot Snapshot file, may be {@code null}
+   */
+  public CoverTree(Relation<O> relation, Distance<? super O> distance, double expansion, int truncate, Path snapshot) {
     super(relation, distance, expansion, truncate);
+    this.snapshot = snapshot;
   }
 
   /**
@@ -174,9 +223,76 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     }
   }
 
+  /**
+   * Query node of the kNN join, with a bound of the kNN distances of all
+   * objects in the subtree.
+   *
+   * @author Erich Schubert
+   */
+  private static final class JoinNode {
+    /**
+     * Tree node.
+     */
+    Node node;
+
+    /**
+     * Child nodes.
+     */
+    JoinNode[] children;
+
+    /**
+     * Number of objects in the subtree.
+     */
+    int size;
+
+    /**
+     * Maximum kNN distance of the objects in the subtree.
+     */
+    double bound = Double.POSITIVE_INFINITY;
+
+    /**
+     * Constructor, also initializes the heaps of all objects in the subtree.
+     *
+     * @param node Tree node
+     * @param heaps Heap storage
+     * @param k Number of neighbors
+     */
+    JoinNode(Node node, WritableDataStore<KNNHeap> heaps, int k) {
+      this.node = node;
+      DoubleDBIDListIter it = node.singletons.iter();
+      if(!node.children.isEmpty()) {
+        it.advance(); // Routing object is also in a child.
+      }
+      for(; it.valid(); it.advance()) {
+        heaps.put(it, DBIDUtil.newHeap(k));
+        ++size;
+      }
+      children = new JoinNode[node.children.size()];
+      for(int i = 0; i < children.length; i++) {
+        children[i] = new JoinNode(node.children.get(i), heaps, k);
+        size += children[i].size;
+      }
+    }
+  }
+
   @Override
   public void initialize() {
-    bulkLoad(relation.getDBIDs());
+    if(snapshot == null) {
+      bulkLoad(relation.getDBIDs());
+    }
+    else {
+      final long fingerprint = new Fingerprint(CoverTree.class) //
+          .addParameter(distance).add(expansion).add(truncate).add(relation).get();
+      if(!IndexSnapshot.load(snapshot, fingerprint, LOG, in -> root = in.readInt() != 0 ? readNode(in) : null)) {
+        bulkLoad(relation.getDBIDs());
+        IndexSnapshot.save(snapshot, fingerprint, LOG, out -> {
+          out.writeInt(root != null ? 1 : 0);
+          if(root != null) {
+            writeNode(root, out);
+          }
+        });
+      }
+    }
     if(LOG.isVerbose()) {
       int[] counts = new int[5];
       checkCoverTree(root, counts, 0);
@@ -188,6 +304,48 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     }
   }
 
+  /**
+   * Write a subtree to a snapshot, in preorder.
+   *
+   * @param node Subtree root
+   * @param out Snapshot output
+   * @throws IOException on write errors
+   */
+  private static void writeNode(Node node, SnapshotOutput out) throws IOException {
+    out.writeDouble(node.maxDist);
+    out.writeDouble(node.parentDist);
+    out.writeDoubleDBIDList(node.singletons);
+    out.writeInt(node.children.size());
+    for(Node c : node.children) {
+      writeNode(c, out);
+    }
+  }
+
+  /**
+   * Read a subtree from a snapshot.
+   *
+   * @param in Snapshot input
+   * @return Subtree root
+   * @throws IOException on read errors
+   */
+  private static Node readNode(SnapshotInput in) throws IOException {
+    final double maxDist = in.readDouble(), parentDist = in.readDouble();
+    ModifiableDoubleDBIDList singletons = in.readDoubleDBIDList();
+    if(singletons.isEmpty()) {
+      throw new IOException("Node without routing object.");
+    }
+    Node node = new Node(singletons.iter(), maxDist, parentDist);
+    node.singletons = singletons;
+    final int numc = in.readSize();
+    if(numc == 0) {
+      node.children = Collections.emptyList(); // As for leaf nodes.
+    }
+    for(int i = 0; i < numc; i++) {
+      node.children.add(readNode(in));
+    }
+    return node;
+  }
+
   /**
    * Bulk-load the index.
    *
@@ -203,9 +361,20 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     // Compute distances to all neighbors:
     ModifiableDoubleDBIDList candidates = DBIDUtil.newDistanceDBIDList(ids.size() - 1);
     for(it.advance(); it.valid(); it.advance()) {
-      candidates.add(distance(first, it), it);
+      candidates.add(0., it);
+    }
+    double[] dists = new double[candidates.size()];
+    distances(first, candidates, 0, dists);
+    for(DoubleDBIDListMIter c = candidates.iter(); c.valid(); c.advance()) {
+      c.setDouble(dists[c.getOffset()]);
+    }
+    // Build medium-sized subtrees in parallel:
+    final int taskSize = parallelTaskSize(ids.size());
+    List<Callable<Void>> tasks = taskSize > 0 ? new ArrayList<>() : null;
+    root = bulkConstruct(first, Integer.MAX_VALUE, 0., candidates, tasks, taskSize);
+    if(tasks != null) {
+      ParallelExecutor.run(tasks);
     }
-    root = bulkConstruct(first, Integer.MAX_VALUE, 0., candidates);
   }
 
   /**
@@ -221,6 +390,21 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
    * @return Root node of subtree
    */
   protected Node bulkConstruct(DBIDRef cur, int maxScale, double parentDist, ModifiableDoubleDBIDList elems) {
+    return bulkConstruct(cur, maxScale, parentDist, elems, null, 0);
+  }
+
+  /**
+   * Bulk-load the cover tree, deferring medium-sized subtrees.
+   *
+   * @param cur Current routing object
+   * @param maxScale Maximum scale
+   * @param parentDist Distance to parent element
+   * @param elems Candidates
+   * @param tasks Output for deferred subtrees, may be {@code null}
+   * @param taskSize Maximum size of deferred subtrees
+   * @return Root node of subtree
+   */
+  private Node bulkConstruct(DBIDRef cur, int maxScale, double parentDist, ModifiableDoubleDBIDList elems, List<Callable<Void>> tasks, int taskSize) {
     final double max = maxDistance(elems);
     final int scale = Math.min(distToScale(max) - 1, maxScale);
     final int nextScale = scale - 1;
@@ -235,7 +419,7 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     // If no elements were not in the cover, build a compact tree:
     if(candidates.isEmpty()) {
       LOG.warning("Scale not chosen appropriately? " + max + " " + scaleToDist(scale));
-      return bulkConstruct(cur, nextScale, parentDist, elems);
+      return bulkConstruct(cur, nextScale, parentDist, elems, tasks, taskSize);
     }
     // We will have at least one other child, so build the parent:
     Node node = new Node(cur, max, parentDist);
@@ -243,7 +427,7 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     final boolean curSingleton = elems.isEmpty();
     if(!curSingleton) {
       // Add node for the routing object:
-      node.children.add(bulkConstruct(cur, nextScale, 0, elems));
+      addChild(node, cur, nextScale, 0., elems, tasks, taskSize);
     }
     final double fmax = scaleToDist(nextScale);
     // Build additional cover nodes:
@@ -257,19 +441,50 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
       }
       else {
         // Build a full child node:
-        node.children.add(bulkConstruct(it, nextScale, it.doubleValue(), elems));
+        addChild(node, it, nextScale, it.doubleValue(), elems, tasks, taskSize);
       }
       candidates.removeSwap(0);
     }
     assert candidates.isEmpty();
     // Routing object is not yet handled:
     if(curSingleton && !node.children.isEmpty()) {
-      node.singletons.add(parentDist, cur); // Add as regular singleton.
+      node.singletons.add(0., cur); // Add as regular singleton.
     }
     // TODO: improve recycling of lists?
     return node;
   }
 
+  /**
+   * Build a child node, or defer medium-sized subtrees to a parallel task.
+   * <p>
+   * The candidates are copied for deferred subtrees, as the list is reused.
+   *
+   * @param node Parent node
+   * @param cur Routing object of the child
+   * @param scale Scale of the child
+   * @param parentDist Distance to parent element
+   * @param elems Candidates
+   * @param tasks Output for deferred subtrees, may be {@code null}
+   * @param taskSize Maximum size of deferred subtrees
+   */
+  private void addChild(Node node, DBIDRef cur, int scale, double parentDist, ModifiableDoubleDBIDList elems, List<Callable<Void>> tasks, int taskSize) {
+    if(tasks == null || elems.size() < truncate || elems.size() > taskSize) {
+      node.children.add(bulkConstruct(cur, scale, parentDist, elems, tasks, taskSize));
+      return;
+    }
+    final int pos = node.children.size();
+    node.children.add(null); // Placeholder
+    final DBID r = DBIDUtil.deref(cur);
+    final ModifiableDoubleDBIDList sub = DBIDUtil.newDistanceDBIDList(elems.size());
+    for(DoubleDBIDListIter it = elems.iter(); it.valid(); it.advance()) {
+      sub.add(it.doubleValue(), it);
+    }
+    tasks.add(() -> {
+      node.children.set(pos, bulkConstruct(r, scale, parentDist, sub));
+      return null;
+    });
+  }
+
   /**
    * Collect some statistics on the tree.
    *
@@ -291,6 +506,286 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     }
   }
 
+  @Override
+  public void insert(DBIDRef id) {
+    if(root == null) {
+      root = new Node(id, 0., 0., DBIDUtil.newDistanceDBIDList(0));
+      return;
+    }
+    DBIDVar tmp = DBIDUtil.newVar();
+    Node cur = root;
+    double d = distance(cur.singletons.assignVar(0, tmp), id);
+    while(true) {
+      cur.maxDist = d > cur.maxDist ? d : cur.maxDist;
+      if(cur.children.isEmpty()) { // Leaf node
+        cur.singletons.add(d, id);
+        if(needsSplit(cur.singletons.size(), cur.maxDist)) {
+          rebuildLeaf(cur);
+        }
+        return;
+      }
+      // Descend into the closest child that already covers the new object:
+      DBIDRef routing = cur.singletons.iter();
+      Node best = null;
+      double bestd = Double.POSITIVE_INFINITY;
+      for(Node c : cur.children) {
+        final double lb = Math.abs(d - c.parentDist);
+        if(lb > c.maxDist || lb >= bestd) {
+          continue;
+        }
+        final double cd = DBIDUtil.equal(c.singletons.assignVar(0, tmp), routing) ? d : distance(tmp, id);
+        if(cd <= c.maxDist && cd < bestd) {
+          best = c;
+          bestd = cd;
+        }
+      }
+      if(best == null) { // Not covered by any child: keep as singleton
+        cur.singletons.add(d, id);
+        if(needsRestructure(cur.singletons.size())) {
+          promoteSingletons(cur);
+        }
+        return;
+      }
+      cur = best;
+      d = bestd;
+    }
+  }
+
+  @Override
+  public void insertAll(DBIDs ids) {
+    if(root == null) {
+      bulkLoad(ids);
+      return;
+    }
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      insert(it);
+    }
+  }
+
+  @Override
+  public boolean delete(DBIDRef id) {
+    if(root == null) {
+      return false;
+    }
+    DBIDVar tmp = DBIDUtil.newVar();
+    if(DBIDUtil.equal(root.singletons.assignVar(0, tmp), id)) {
+      root = promoteRouting(root, id, tmp);
+      return true;
+    }
+    return delete(root, distance(tmp, id), id, tmp);
+  }
+
+  /**
+   * Delete an object from a subtree.
+   *
+   * @param cur Current node, its routing object is not the object to delete
+   * @param d Distance from the routing object to the object
+   * @param id Object to delete
+   * @param tmp Temporary variable
+   * @return {@code true} if the object was found
+   */
+  private boolean delete(Node cur, double d, DBIDRef id, DBIDVar tmp) {
+    // Skip routing object:
+    for(DoubleDBIDListIter it = cur.singletons.iter().advance(); it.valid(); it.advance()) {
+      if(DBIDUtil.equal(it, id)) {
+        cur.singletons.removeSwap(it.getOffset());
+        shrinkMaxDist(cur);
+        return true;
+      }
+    }
+    DBIDRef routing = cur.singletons.iter();
+    for(int i = 0; i < cur.children.size(); i++) {
+      final Node c = cur.children.get(i);
+      if(Math.abs(d - c.parentDist) > c.maxDist) {
+        continue;
+      }
+      c.singletons.assignVar(0, tmp);
+      if(DBIDUtil.equal(tmp, id)) {
+        // Routing object removed: promote a new routing object.
+        if(promoteRouting(c, id, tmp) != null) {
+          c.parentDist = distance(routing, c.singletons.assignVar(0, tmp));
+        }
+        else {
+          cur.children.remove(i);
+          if(cur.children.isEmpty()) {
+            // Now a leaf: the routing object must only be stored once.
+            for(DoubleDBIDListIter it = cur.singletons.iter().advance(); it.valid(); it.advance()) {
+              if(DBIDUtil.equal(it, routing)) {
+                cur.singletons.removeSwap(it.getOffset());
+                break;
+              }
+            }
+          }
+        }
+        shrinkMaxDist(cur);
+        return true;
+      }
+      final double cd = DBIDUtil.equal(tmp, routing) ? d : distance(tmp, id);
+      if(cd <= c.maxDist && delete(c, cd, id, tmp)) {
+        shrinkMaxDist(cur);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void deleteAll(DBIDs ids) {
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      delete(it);
+    }
+  }
+
+  /**
+   * Rebuild a leaf node that has become too large.
+   *
+   * @param node Leaf node
+   */
+  private void rebuildLeaf(Node node) {
+    DoubleDBIDListIter it = node.singletons.iter();
+    final DBID cur = DBIDUtil.deref(it);
+    ModifiableDoubleDBIDList elems = DBIDUtil.newDistanceDBIDList(node.singletons.size() - 1);
+    for(it.advance(); it.valid(); it.advance()) {
+      elems.add(it.doubleValue(), it);
+    }
+    final Node n = bulkConstruct(cur, Integer.MAX_VALUE, node.parentDist, elems);
+    node.singletons = n.singletons;
+    node.children = n.children;
+    node.maxDist = n.maxDist;
+  }
+
+  /**
+   * Group the singletons of an inner node into new child nodes, where
+   * possible, as in the bulk load.
+   *
+   * @param node Inner node
+   */
+  private void promoteSingletons(Node node) {
+    if(node.maxDist <= 0) {
+      return; // Only duplicates.
+    }
+    DoubleDBIDListIter it = node.singletons.iter();
+    final DBID cur = DBIDUtil.deref(it);
+    ModifiableDoubleDBIDList candidates = DBIDUtil.newDistanceDBIDList(node.singletons.size() - 1);
+    node.singletons = DBIDUtil.newDistanceDBIDList();
+    node.singletons.add(0., cur);
+    for(it.advance(); it.valid(); it.advance()) {
+      if(DBIDUtil.equal(it, cur)) {
+        node.singletons.add(0., cur); // Routing object, as regular singleton.
+        continue;
+      }
+      candidates.add(it.doubleValue(), it);
+    }
+    final int nextScale = distToScale(node.maxDist) - 2;
+    final double fmax = scaleToDist(nextScale);
+    ModifiableDoubleDBIDList elems = DBIDUtil.newDistanceDBIDList();
+    for(DoubleDBIDListIter c = candidates.iter(); c.valid();) {
+      collectByCover(c, candidates, fmax, elems.clear());
+      if(elems.isEmpty()) {
+        node.singletons.add(c.doubleValue(), c);
+      }
+      else {
+        node.children.add(bulkConstruct(c, nextScale, c.doubleValue(), elems));
+      }
+      candidates.removeSwap(0);
+    }
+  }
+
+  /**
+   * Remove the routing object of a subtree, and promote another object to be
+   * the new routing object. If the object also routes a child, the new routing
+   * object of that child is promoted; otherwise the closest singleton or child
+   * is used. Only the distances to the new routing object are recomputed, the
+   * subtree is not rebuilt.
+   * <p>
+   * The caller needs to update the parent distance.
+   *
+   * @param node Subtree root, routed by the object to remove
+   * @param id Object to remove
+   * @param tmp Temporary variable
+   * @return Subtree, or {@code null} if empty
+   */
+  private Node promoteRouting(Node node, DBIDRef id, DBIDVar tmp) {
+    DBIDVar p = DBIDUtil.newVar();
+    for(int i = 0; i < node.children.size(); i++) {
+      final Node c = node.children.get(i);
+      if(DBIDUtil.equal(c.singletons.assignVar(0, tmp), id)) {
+        if(promoteRouting(c, id, tmp) == null) {
+          node.children.remove(i);
+        }
+        else {
+          c.singletons.assignVar(0, p);
+          c.parentDist = 0.;
+        }
+        break;
+      }
+    }
+    if(!p.isSet()) {
+      double best = Double.POSITIVE_INFINITY;
+      for(DoubleDBIDListIter it = node.singletons.iter().advance(); it.valid(); it.advance()) {
+        if(it.doubleValue() < best && !DBIDUtil.equal(it, id)) {
+          best = it.doubleValue();
+          p.set(it);
+        }
+      }
+      Node bestc = null;
+      for(Node c : node.children) {
+        if(c.parentDist < best) {
+          best = c.parentDist;
+          bestc = c;
+        }
+      }
+      if(bestc != null) {
+        bestc.singletons.assignVar(0, p);
+        bestc.parentDist = 0.;
+      }
+      if(!p.isSet()) {
+        return null;
+      }
+    }
+    // Leaves store the routing object only once:
+    final boolean leaf = node.children.isEmpty();
+    ModifiableDoubleDBIDList singletons = DBIDUtil.newDistanceDBIDList(node.singletons.size());
+    singletons.add(0., p);
+    double max = 0.;
+    for(DoubleDBIDListIter it = node.singletons.iter().advance(); it.valid(); it.advance()) {
+      final boolean isp = DBIDUtil.equal(it, p);
+      if(DBIDUtil.equal(it, id) || (leaf && isp)) {
+        continue;
+      }
+      final double d = isp ? 0. : distance(p, it);
+      singletons.add(d, it);
+      max = d > max ? d : max;
+    }
+    node.singletons = singletons;
+    for(Node c : node.children) {
+      if(!DBIDUtil.equal(c.singletons.assignVar(0, tmp), p)) {
+        c.parentDist = distance(p, tmp);
+      }
+      max = Math.max(max, c.parentDist + c.maxDist);
+    }
+    node.maxDist = max;
+    node.parentDist = 0.;
+    return node;
+  }
+
+  /**
+   * Shrink the maximum distance of a node after a deletion, using the stored
+   * distances of its singletons and children.
+   *
+   * @param node Node
+   */
+  private static void shrinkMaxDist(Node node) {
+    double max = 0.;
+    for(DoubleDBIDListIter it = node.singletons.iter().advance(); it.valid(); it.advance()) {
+      max = it.doubleValue() > max ? it.doubleValue() : max;
+    }
+    for(Node c : node.children) {
+      max = Math.max(max, c.parentDist + c.maxDist);
+    }
+    node.maxDist = max < node.maxDist ? max : node.maxDist;
+  }
+
   @Override
   public RangeSearcher<O> rangeByObject(DistanceQuery<O> distanceQuery, double maxradius, int flags) {
     return (flags & QueryBuilder.FLAG_PRECOMPUTE) == 0 && //
@@ -333,6 +828,77 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
             new CoverTreePriorityDBIDSearcher() : null;
   }
 
+  @Override
+  public boolean kNNJoin(DistanceQuery<O> distanceQuery, int k, WritableDataStore<KNNList> result) {
+    if(distanceQuery.getRelation() != relation || !this.distance.equals(distanceQuery.getDistance())) {
+      return false;
+    }
+    if(root == null) {
+      return true;
+    }
+    WritableDataStore<KNNHeap> heaps = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_TEMP | DataStoreFactory.HINT_HOT, KNNHeap.class);
+    JoinNode qroot = new JoinNode(root, heaps, k);
+    // Join medium-sized query subtrees with the full tree in parallel:
+    final int taskSize = parallelTaskSize(qroot.size);
+    List<Callable<Void>> tasks = new ArrayList<>();
+    partitionJoin(qroot, taskSize > 0 ? taskSize : qroot.size, heaps, tasks);
+    ParallelExecutor.run(tasks);
+    collectJoin(qroot, heaps, result);
+    return true;
+  }
+
+  /**
+   * Split the query tree into independent join tasks. Each task only modifies
+   * the heaps and bounds of its own query subtree.
+   *
+   * @param qj Query node
+   * @param taskSize Maximum size of a task
+   * @param heaps Heap storage
+   * @param tasks Output task list
+   */
+  private void partitionJoin(JoinNode qj, int taskSize, WritableDataStore<KNNHeap> heaps, List<Callable<Void>> tasks) {
+    if(qj.size <= taskSize || qj.children.length == 0) {
+      tasks.add(() -> {
+        new KNNJoinWorker(heaps).dual(qj, root);
+        return null;
+      });
+      return;
+    }
+    // The singletons of inner nodes are queried on their own:
+    if(qj.node.singletons.size() > 1) {
+      tasks.add(() -> {
+        KNNJoinWorker w = new KNNJoinWorker(heaps);
+        for(DoubleDBIDListIter it = qj.node.singletons.iter().advance(); it.valid(); it.advance()) {
+          w.search(heaps.get(it), it, w.routingDistance(it, root), root);
+        }
+        return null;
+      });
+    }
+    for(JoinNode c : qj.children) {
+      partitionJoin(c, taskSize, heaps, tasks);
+    }
+  }
+
+  /**
+   * Store the join results.
+   *
+   * @param qj Query node
+   * @param heaps Heap storage
+   * @param result Output storage
+   */
+  private static void collectJoin(JoinNode qj, WritableDataStore<KNNHeap> heaps, WritableDataStore<KNNList> result) {
+    DoubleDBIDListIter it = qj.node.singletons.iter();
+    if(qj.children.length > 0) {
+      it.advance();
+    }
+    for(; it.valid(); it.advance()) {
+      result.put(it, heaps.get(it).toKNNList());
+    }
+    for(JoinNode c : qj.children) {
+      collectJoin(c, heaps, result);
+    }
+  }
+
   @Override
   protected Logging getLogger() {
     return LOG;
@@ -371,6 +937,9 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
      */
     protected ModifiableDoubleDBIDList doSearch(double range, ModifiableDoubleDBIDList result) {
       open.clear();
+      if(root == null) {
+        return result;
+      }
       open.add(root);
       while(!open.isEmpty()) {
         final Node cur = open.remove(open.size() - 1); // pop()
@@ -483,6 +1052,9 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
       KNNHeap knnList = DBIDUtil.newHeap(k);
       double d_k = Double.POSITIVE_INFINITY;
       pq.clear();
+      if(root == null) {
+        return knnList.toKNNList();
+      }
       pq.add(queryDistance(root.singletons.iter()) - root.maxDist, root);
 
       // search in tree
@@ -649,6 +1221,10 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     protected PrioritySearcher<Q> doSearch() {
       this.threshold = Double.POSITIVE_INFINITY;
       pq.clear();
+      candidates = DoubleDBIDListIter.EMPTY;
+      if(root == null) {
+        return this;
+      }
       pq.add(queryDistance(root.singletons.iter()) - root.maxDist, root);
       lb = 0.;
       return advance(); // Find first
@@ -811,6 +1387,257 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
     }
   }
 
+  /**
+   * Dual-tree kNN self-join. Pairs of query and reference nodes are pruned
+   * with the triangle inequality and the kNN distance bound of the query node.
+   *
+   * @author Erich Schubert
+   */
+  private class KNNJoinWorker {
+    /**
+     * Heap storage (only read).
+     */
+    private WritableDataStore<KNNHeap> heaps;
+
+    /**
+     * Temporary storage.
+     */
+    private DBIDVar tmp = DBIDUtil.newVar();
+
+    /**
+     * Constructor.
+     *
+     * @param heaps Heap storage
+     */
+    KNNJoinWorker(WritableDataStore<KNNHeap> heaps) {
+      this.heaps = heaps;
+    }
+
+    /**
+     * Join a query subtree with a reference subtree.
+     *
+     * @param qj Query node
+     * @param r Reference node
+     */
+    void dual(JoinNode qj, Node r) {
+      dual(qj, r, routingDistance(qj.node.singletons.iter(), r));
+    }
+
+    /**
+     * Distance of an object to the routing object of a node, without
+     * computing the distance of an object to itself.
+     *
+     * @param o Object
+     * @param n Node
+     * @return Distance
+     */
+    double routingDistance(DBIDRef o, Node n) {
+      return DBIDUtil.equal(n.singletons.assignVar(0, tmp), o) ? 0. : distance(o, tmp);
+    }
+
+    /**
+     * Join a query subtree with a reference subtree.
+     *
+     * @param qj Query node
+     * @param r Reference node
+     * @param d Distance of the routing objects
+     */
+    private void dual(JoinNode qj, Node r, double d) {
+      final Node q = qj.node;
+      if(d - q.maxDist - r.maxDist > qj.bound) {
+        return;
+      }
+      final boolean qleaf = q.children.isEmpty(), rleaf = r.children.isEmpty();
+      if(!qleaf && (rleaf || q.maxDist >= r.maxDist)) {
+        // Split the query node:
+        for(DoubleDBIDListIter it = q.singletons.iter().advance(); it.valid(); it.advance()) {
+          final KNNHeap heap = heaps.get(it);
+          if(Math.abs(d - it.doubleValue()) - r.maxDist <= heap.getKNNDistance()) {
+            search(heap, it, routingDistance(it, r), r);
+          }
+        }
+        final DoubleDBIDListIter qr = q.singletons.iter(), rr = r.singletons.iter();
+        for(JoinNode cj : qj.children) {
+          final Node c = cj.node;
+          if(Math.abs(d - c.parentDist) - c.maxDist - r.maxDist <= cj.bound) {
+            dual(cj, r, DBIDUtil.equal(c.singletons.assignVar(0, tmp), qr) ? d : //
+                DBIDUtil.equal(tmp, rr) ? 0. : distance(tmp, rr));
+          }
+        }
+        updateBound(qj);
+        return;
+      }
+      if(qleaf) {
+        // Query objects against the reference node (and its singletons):
+        for(DoubleDBIDListIter it = q.singletons.iter(); it.valid(); it.advance()) {
+          final KNNHeap heap = heaps.get(it);
+          if(Math.abs(d - it.doubleValue()) - r.maxDist <= heap.getKNNDistance()) {
+            scan(heap, it, it.getOffset() == 0 ? d : routingDistance(it, r), r);
+          }
+        }
+        if(rleaf) {
+          updateBound(qj);
+          return;
+        }
+      }
+      else {
+        // Reference singletons against the query node:
+        final DBIDVar qr = q.singletons.assignVar(0, DBIDUtil.newVar());
+        for(DoubleDBIDListIter it = r.singletons.iter().advance(); it.valid(); it.advance()) {
+          if(Math.abs(d - it.doubleValue()) - q.maxDist <= qj.bound) {
+            reference(it, DBIDUtil.equal(it, qr) ? 0. : distance(it, qr), qj);
+          }
+        }
+      }
+      // Split the reference node, closest children first:
+      final int n = r.children.size();
+      final double[] dists = new double[n], lbs = new double[n];
+      final int[] idx = new int[n];
+      final DoubleDBIDListIter rr = r.singletons.iter();
+      final DBIDVar qr = q.singletons.assignVar(0, DBIDUtil.newVar());
+      for(int i = 0; i < n; i++) {
+        final Node c = r.children.get(i);
+        idx[i] = i;
+        if(Math.abs(d - c.parentDist) - c.maxDist - q.maxDist > qj.bound) {
+          lbs[i] = Double.POSITIVE_INFINITY;
+          continue;
+        }
+        dists[i] = DBIDUtil.equal(c.singletons.assignVar(0, tmp), rr) ? d : //
+            DBIDUtil.equal(tmp, qr) ? 0. : distance(qr, tmp);
+        lbs[i] = dists[i] - c.maxDist - q.maxDist;
+      }
+      DoubleIntegerArrayQuickSort.sort(lbs, idx, n);
+      for(int j = 0; j < n && lbs[j] <= qj.bound; j++) {
+        dual(qj, r.children.get(idx[j]), dists[idx[j]]);
+      }
+      updateBound(qj);
+    }
+
+    /**
+     * Search the neighbors of a single query object in a reference subtree.
+     *
+     * @param heap Heap of the query object
+     * @param qp Query object
+     * @param d Distance to the routing object of the reference node
+     * @param r Reference node
+     */
+    void search(KNNHeap heap, DBIDRef qp, double d, Node r) {
+      if(d - r.maxDist > heap.getKNNDistance()) {
+        return;
+      }
+      scan(heap, qp, d, r);
+      final int n = r.children.size();
+      if(n == 0) {
+        return;
+      }
+      final double[] dists = new double[n], lbs = new double[n];
+      final int[] idx = new int[n];
+      final DoubleDBIDListIter rr = r.singletons.iter();
+      for(int i = 0; i < n; i++) {
+        final Node c = r.children.get(i);
+        idx[i] = i;
+        if(Math.abs(d - c.parentDist) - c.maxDist > heap.getKNNDistance()) {
+          lbs[i] = Double.POSITIVE_INFINITY;
+          continue;
+        }
+        dists[i] = DBIDUtil.equal(c.singletons.assignVar(0, tmp), rr) ? d : //
+            DBIDUtil.equal(tmp, qp) ? 0. : distance(qp, tmp);
+        lbs[i] = dists[i] - c.maxDist;
+      }
+      DoubleIntegerArrayQuickSort.sort(lbs, idx, n);
+      for(int j = 0; j < n && lbs[j] <= heap.getKNNDistance(); j++) {
+        search(heap, qp, dists[idx[j]], r.children.get(idx[j]));
+      }
+    }
+
+    /**
+     * Offer the objects stored in a reference node itself (not in its
+     * children) to a single query object.
+     *
+     * @param heap Heap of the query object
+     * @param qp Query object
+     * @param d Distance to the routing object of the reference node
+     * @param r Reference node
+     */
+    private void scan(KNNHeap heap, DBIDRef qp, double d, Node r) {
+      final DoubleDBIDListIter it = r.singletons.iter();
+      double d_k = heap.getKNNDistance();
+      if(r.children.isEmpty() && d <= d_k) {
+        d_k = heap.insert(d, it); // Routing object is a candidate in leaves.
+      }
+      for(it.advance(); it.valid(); it.advance()) {
+        if(Math.abs(d - it.doubleValue()) <= d_k) {
+          final double d2 = DBIDUtil.equal(it, qp) ? 0. : distance(qp, it);
+          if(d2 <= d_k) {
+            d_k = heap.insert(d2, it);
+          }
+        }
+      }
+    }
+
+    /**
+     * Offer a single reference object to all objects of a query subtree.
+     *
+     * @param rp Reference object
+     * @param d Distance to the routing object of the query node
+     * @param qj Query node
+     */
+    private void reference(DBIDRef rp, double d, JoinNode qj) {
+      final Node q = qj.node;
+      if(d - q.maxDist > qj.bound) {
+        return;
+      }
+      final DoubleDBIDListIter it = q.singletons.iter();
+      if(q.children.isEmpty()) {
+        offer(heaps.get(it), d, rp);
+      }
+      for(it.advance(); it.valid(); it.advance()) {
+        final KNNHeap heap = heaps.get(it);
+        if(Math.abs(d - it.doubleValue()) <= heap.getKNNDistance()) {
+          offer(heap, DBIDUtil.equal(it, rp) ? 0. : distance(it, rp), rp);
+        }
+      }
+      it.seek(0);
+      for(JoinNode cj : qj.children) {
+        final Node c = cj.node;
+        if(Math.abs(d - c.parentDist) - c.maxDist <= cj.bound) {
+          reference(rp, DBIDUtil.equal(c.singletons.assignVar(0, tmp), it) ? d : routingDistance(rp, c), cj);
+        }
+      }
+      updateBound(qj);
+    }
+
+    /**
+     * Offer a candidate to a heap.
+     *
+     * @param heap Heap
+     * @param d Distance
+     * @param r Candidate
+     */
+    private void offer(KNNHeap heap, double d, DBIDRef r) {
+      if(d <= heap.getKNNDistance()) {
+        heap.insert(d, r);
+      }
+    }
+
+    /**
+     * Recompute the kNN distance bound of a query node.
+     *
+     * @param qj Query node
+     */
+    private void updateBound(JoinNode qj) {
+      final DoubleDBIDListIter it = qj.node.singletons.iter();
+      double max = qj.children.length == 0 ? heaps.get(it).getKNNDistance() : 0.;
+      for(it.advance(); it.valid(); it.advance()) {
+        max = Math.max(max, heaps.get(it).getKNNDistance());
+      }
+      for(JoinNode c : qj.children) {
+        max = Math.max(max, c.bound);
+      }
+      qj.bound = max;
+    }
+  }
+
   /**
    * Index factory.
    *
@@ -821,6 +1648,11 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
    * @param <O> Object type
    */
   public static class Factory<O> extends AbstractCoverTree.Factory<O> {
+    /**
+     * Snapshot file, may be {@code null}.
+     */
+    protected Path snapshot;
+
     /**
      * Constructor.
      *
@@ -829,12 +1661,25 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
      * @param truncate Truncate branches with less than this number of instances
      */
     public Factory(Distance<? super O> distance, double expansion, int truncate) {
+      this(distance, expansion, truncate, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param distance Distance function
+     * @param expansion Expansion rate
+     * @param truncate Truncate branches with less than this number of instances
+     * @param snapshot Snapshot file, may be {@code null}
+     */
+    public Factory(Distance<? super O> distance, double expansion, int truncate, Path snapshot) {
       super(distance, expansion, truncate);
+      this.snapshot = snapshot;
     }
 
     @Override
     public CoverTree<O> instantiate(Relation<O> relation) {
-      return new CoverTree<>(relation, distance, expansion, truncate);
+      return new CoverTree<>(relation, distance, expansion, truncate, snapshot);
     }
 
     /**
@@ -843,9 +1688,22 @@ public class CoverTree<O> extends AbstractCoverTree<O> implements DistancePriori
      * @author Erich Schubert
      */
     public static class Par<O> extends AbstractCoverTree.Factory.Par<O> {
+      /**
+       * Snapshot file.
+       */
+      protected Path snapshot;
+
+      @Override
+      public void configure(Parameterization config) {
+        super.configure(config);
+        new FileParameter(IndexSnapshot.SNAPSHOT_ID, FileParameter.FileType.OUTPUT_FILE) //
+            .setOptional(true) //
+            .grab(config, x -> snapshot = Paths.get(x));
+      }
+
       @Override
       public CoverTree.Factory<O> make() {
-        return new CoverTree.Factory<>(distance, expansion, truncate);
+        return new CoverTree.Factory<>(distance, expansion, truncate, snapshot);
       }
     }
   }
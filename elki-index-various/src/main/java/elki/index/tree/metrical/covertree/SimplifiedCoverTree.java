@@ -23,6 +23,7 @@ package elki.index.tree.metrical.covertree;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import elki.database.ids.*;
 import elki.database.query.PrioritySearcher;
@@ -33,10 +34,12 @@ import elki.database.query.range.RangeSearcher;
 import elki.database.relation.Relation;
 import elki.distance.Distance;
 import elki.index.DistancePriorityIndex;
+import elki.index.DynamicIndex;
 import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
 import elki.logging.statistics.LongStatistic;
 import elki.math.MathUtil;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.datastructures.heap.DoubleObjectMinHeap;
 
 /**
@@ -55,7 +58,13 @@ import elki.utilities.datastructures.heap.DoubleObjectMinHeap;
  * Cover trees for nearest neighbor<br>
  * In Proc. 23rd Int. Conf. Machine Learning (ICML 2006)
  * <p>
- * TODO: allow insertions and removals, as in the original publication.
+ * Insertions descend into the closest child that covers the new object, and
+ * nodes that grow too large are restructured as in the bulk load. When a
+ * routing object is deleted, another object of its node is promoted to be the
+ * new routing object.
+ * <p>
+ * Large trees are bulk-loaded in parallel, with the same result as the serial
+ * bulk load.
  *
  * @author Erich Schubert
  * @since 0.7.0
@@ -63,7 +72,7 @@ import elki.utilities.datastructures.heap.DoubleObjectMinHeap;
  * @has - - - CoverTreeRangeSearcher
  * @has - - - CoverTreeKNNSearcher
  */
-public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements DistancePriorityIndex<O> {
+public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements DistancePriorityIndex<O>, DynamicIndex {
   /**
    * Class logger.
    */
@@ -166,9 +175,20 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
     // Compute distances to all neighbors:
     ModifiableDoubleDBIDList candidates = DBIDUtil.newDistanceDBIDList(ids.size() - 1);
     for(it.advance(); it.valid(); it.advance()) {
-      candidates.add(distance(first, it), it);
+      candidates.add(0., it);
+    }
+    double[] dists = new double[candidates.size()];
+    distances(first, candidates, 0, dists);
+    for(DoubleDBIDListMIter c = candidates.iter(); c.valid(); c.advance()) {
+      c.setDouble(dists[c.getOffset()]);
+    }
+    // Build medium-sized subtrees in parallel:
+    final int taskSize = parallelTaskSize(ids.size());
+    List<Callable<Void>> tasks = taskSize > 0 ? new ArrayList<>() : null;
+    root = bulkConstruct(first, Integer.MAX_VALUE, candidates, tasks, taskSize);
+    if(tasks != null) {
+      ParallelExecutor.run(tasks);
     }
-    root = bulkConstruct(first, Integer.MAX_VALUE, candidates);
   }
 
   /**
@@ -183,6 +203,20 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
    * @return Root node of subtree
    */
   protected Node bulkConstruct(DBIDRef cur, int maxScale, ModifiableDoubleDBIDList elems) {
+    return bulkConstruct(cur, maxScale, elems, null, 0);
+  }
+
+  /**
+   * Bulk-load the cover tree, deferring medium-sized subtrees.
+   *
+   * @param cur Current routing object
+   * @param maxScale Maximum scale
+   * @param elems Candidates
+   * @param tasks Output for deferred subtrees, may be {@code null}
+   * @param taskSize Maximum size of deferred subtrees
+   * @return Root node of subtree
+   */
+  private Node bulkConstruct(DBIDRef cur, int maxScale, ModifiableDoubleDBIDList elems, List<Callable<Void>> tasks, int taskSize) {
     final double max = maxDistance(elems);
     final int scale = Math.min(distToScale(max) - 1, maxScale);
     final int nextScale = scale - 1;
@@ -197,7 +231,7 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
     // If no elements were not in the cover, build a compact tree:
     if(candidates.isEmpty()) {
       LOG.warning("Scale not chosen appropriately? " + max + " " + scaleToDist(scale));
-      return bulkConstruct(cur, nextScale, elems);
+      return bulkConstruct(cur, nextScale, elems, tasks, taskSize);
     }
     // We will have at least one other child, so build the parent:
     Node node = new Node(cur, max);
@@ -205,7 +239,7 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
     final boolean curSingleton = elems.isEmpty();
     if(!curSingleton) {
       // Add node for the routing object:
-      node.children.add(bulkConstruct(cur, nextScale, elems));
+      addChild(node, cur, nextScale, elems, tasks, taskSize);
     }
     final double fmax = scaleToDist(nextScale);
     // Build additional cover nodes:
@@ -219,7 +253,7 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
       }
       else {
         // Build a full child node:
-        node.children.add(bulkConstruct(it, nextScale, elems));
+        addChild(node, it, nextScale, elems, tasks, taskSize);
       }
       candidates.removeSwap(0);
     }
@@ -232,6 +266,36 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
     return node;
   }
 
+  /**
+   * Build a child node, or defer medium-sized subtrees to a parallel task.
+   * <p>
+   * The candidates are copied for deferred subtrees, as the list is reused.
+   *
+   * @param node Parent node
+   * @param cur Routing object of the child
+   * @param scale Scale of the child
+   * @param elems Candidates
+   * @param tasks Output for deferred subtrees, may be {@code null}
+   * @param taskSize Maximum size of deferred subtrees
+   */
+  private void addChild(Node node, DBIDRef cur, int scale, ModifiableDoubleDBIDList elems, List<Callable<Void>> tasks, int taskSize) {
+    if(tasks == null || elems.size() < truncate || elems.size() > taskSize) {
+      node.children.add(bulkConstruct(cur, scale, elems, tasks, taskSize));
+      return;
+    }
+    final int pos = node.children.size();
+    node.children.add(null); // Placeholder
+    final DBID r = DBIDUtil.deref(cur);
+    final ModifiableDoubleDBIDList sub = DBIDUtil.newDistanceDBIDList(elems.size());
+    for(DoubleDBIDListIter it = elems.iter(); it.valid(); it.advance()) {
+      sub.add(it.doubleValue(), it);
+    }
+    tasks.add(() -> {
+      node.children.set(pos, bulkConstruct(r, scale, sub));
+      return null;
+    });
+  }
+
   /**
    * Collect some statistics on the tree.
    *
@@ -253,6 +317,241 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
     }
   }
 
+  @Override
+  public void insert(DBIDRef id) {
+    if(root == null) {
+      root = new Node(id, 0., DBIDUtil.newDistanceDBIDList(0));
+      return;
+    }
+    DBIDVar tmp = DBIDUtil.newVar();
+    Node cur = root;
+    double d = distance(cur.singletons.assignVar(0, tmp), id);
+    while(true) {
+      cur.maxDist = d > cur.maxDist ? d : cur.maxDist;
+      if(cur.children.isEmpty()) { // Leaf node
+        cur.singletons.add(id);
+        if(needsSplit(cur.singletons.size(), cur.maxDist)) {
+          rebuildLeaf(cur);
+        }
+        return;
+      }
+      // Descend into the closest child that already covers the new object:
+      DBIDRef routing = cur.singletons.iter();
+      Node best = null;
+      double bestd = Double.POSITIVE_INFINITY;
+      for(Node c : cur.children) {
+        final double cd = DBIDUtil.equal(c.singletons.assignVar(0, tmp), routing) ? d : distance(tmp, id);
+        if(cd <= c.maxDist && cd < bestd) {
+          best = c;
+          bestd = cd;
+        }
+      }
+      if(best == null) { // Not covered by any child: keep as singleton
+        cur.singletons.add(id);
+        if(needsRestructure(cur.singletons.size())) {
+          promoteSingletons(cur);
+        }
+        return;
+      }
+      cur = best;
+      d = bestd;
+    }
+  }
+
+  @Override
+  public void insertAll(DBIDs ids) {
+    if(root == null) {
+      bulkLoad(ids);
+      return;
+    }
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      insert(it);
+    }
+  }
+
+  @Override
+  public boolean delete(DBIDRef id) {
+    if(root == null) {
+      return false;
+    }
+    DBIDVar tmp = DBIDUtil.newVar();
+    if(DBIDUtil.equal(root.singletons.assignVar(0, tmp), id)) {
+      root = promoteRouting(root, id, tmp);
+      return true;
+    }
+    return delete(root, distance(tmp, id), id, tmp);
+  }
+
+  /**
+   * Delete an object from a subtree.
+   *
+   * @param cur Current node, its routing object is not the object to delete
+   * @param d Distance from the routing object to the object
+   * @param id Object to delete
+   * @param tmp Temporary variable
+   * @return {@code true} if the object was found
+   */
+  private boolean delete(Node cur, double d, DBIDRef id, DBIDVar tmp) {
+    // Skip routing object:
+    for(DBIDArrayIter it = cur.singletons.iter().advance(); it.valid(); it.advance()) {
+      if(DBIDUtil.equal(it, id)) {
+        cur.singletons.remove(it.getOffset());
+        return true;
+      }
+    }
+    DBIDRef routing = cur.singletons.iter();
+    for(int i = 0; i < cur.children.size(); i++) {
+      final Node c = cur.children.get(i);
+      c.singletons.assignVar(0, tmp);
+      if(DBIDUtil.equal(tmp, id)) {
+        // Routing object removed: promote a new routing object.
+        if(promoteRouting(c, id, tmp) != null) {
+          return true;
+        }
+        cur.children.remove(i);
+        if(cur.children.isEmpty()) {
+          // Now a leaf: the routing object must only be stored once.
+          for(DBIDArrayIter it = cur.singletons.iter().advance(); it.valid(); it.advance()) {
+            if(DBIDUtil.equal(it, routing)) {
+              cur.singletons.remove(it.getOffset());
+              break;
+            }
+          }
+        }
+        return true;
+      }
+      final double cd = DBIDUtil.equal(tmp, routing) ? d : distance(tmp, id);
+      if(cd <= c.maxDist && delete(c, cd, id, tmp)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void deleteAll(DBIDs ids) {
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      delete(it);
+    }
+  }
+
+  /**
+   * Rebuild a leaf node that has become too large.
+   *
+   * @param node Leaf node
+   */
+  private void rebuildLeaf(Node node) {
+    DBIDArrayIter it = node.singletons.iter();
+    final DBID cur = DBIDUtil.deref(it);
+    ModifiableDoubleDBIDList elems = DBIDUtil.newDistanceDBIDList(node.singletons.size() - 1);
+    for(it.advance(); it.valid(); it.advance()) {
+      elems.add(distance(cur, it), it);
+    }
+    final Node n = bulkConstruct(cur, Integer.MAX_VALUE, elems);
+    node.singletons = n.singletons;
+    node.children = n.children;
+    node.maxDist = n.maxDist;
+  }
+
+  /**
+   * Group the singletons of an inner node into new child nodes, where
+   * possible, as in the bulk load.
+   *
+   * @param node Inner node
+   */
+  private void promoteSingletons(Node node) {
+    if(node.maxDist <= 0) {
+      return; // Only duplicates.
+    }
+    DBIDArrayIter it = node.singletons.iter();
+    final DBID cur = DBIDUtil.deref(it);
+    ModifiableDoubleDBIDList candidates = DBIDUtil.newDistanceDBIDList(node.singletons.size() - 1);
+    node.singletons = DBIDUtil.newArray();
+    node.singletons.add(cur);
+    for(it.advance(); it.valid(); it.advance()) {
+      if(DBIDUtil.equal(it, cur)) {
+        node.singletons.add(cur); // Routing object, as regular singleton.
+        continue;
+      }
+      candidates.add(distance(cur, it), it);
+    }
+    final int nextScale = distToScale(node.maxDist) - 2;
+    final double fmax = scaleToDist(nextScale);
+    ModifiableDoubleDBIDList elems = DBIDUtil.newDistanceDBIDList();
+    for(DoubleDBIDListIter c = candidates.iter(); c.valid();) {
+      collectByCover(c, candidates, fmax, elems.clear());
+      if(elems.isEmpty()) {
+        node.singletons.add(c);
+      }
+      else {
+        node.children.add(bulkConstruct(c, nextScale, elems));
+      }
+      candidates.removeSwap(0);
+    }
+  }
+
+  /**
+   * Remove the routing object of a subtree, and promote another object to be
+   * the new routing object. If the object also routes a child, the new routing
+   * object of that child is promoted; otherwise the first singleton or child
+   * is used. Only the maximum distance is recomputed, the subtree is not
+   * rebuilt.
+   *
+   * @param node Subtree root, routed by the object to remove
+   * @param id Object to remove
+   * @param tmp Temporary variable
+   * @return Subtree, or {@code null} if empty
+   */
+  private Node promoteRouting(Node node, DBIDRef id, DBIDVar tmp) {
+    DBIDVar p = DBIDUtil.newVar();
+    for(int i = 0; i < node.children.size(); i++) {
+      final Node c = node.children.get(i);
+      if(DBIDUtil.equal(c.singletons.assignVar(0, tmp), id)) {
+        if(promoteRouting(c, id, tmp) == null) {
+          node.children.remove(i);
+        }
+        else {
+          c.singletons.assignVar(0, p);
+        }
+        break;
+      }
+    }
+    if(!p.isSet()) {
+      for(DBIDArrayIter it = node.singletons.iter().advance(); it.valid(); it.advance()) {
+        if(!DBIDUtil.equal(it, id)) {
+          p.set(it);
+          break;
+        }
+      }
+      if(!p.isSet() && !node.children.isEmpty()) {
+        node.children.get(0).singletons.assignVar(0, p);
+      }
+      if(!p.isSet()) {
+        return null;
+      }
+    }
+    // Leaves store the routing object only once:
+    final boolean leaf = node.children.isEmpty();
+    ArrayModifiableDBIDs singletons = DBIDUtil.newArray(node.singletons.size());
+    singletons.add(p);
+    double max = 0.;
+    for(DBIDArrayIter it = node.singletons.iter().advance(); it.valid(); it.advance()) {
+      final boolean isp = DBIDUtil.equal(it, p);
+      if(DBIDUtil.equal(it, id) || (leaf && isp)) {
+        continue;
+      }
+      singletons.add(it);
+      max = isp ? max : Math.max(max, distance(p, it));
+    }
+    node.singletons = singletons;
+    for(Node c : node.children) {
+      final double d = DBIDUtil.equal(c.singletons.assignVar(0, tmp), p) ? 0. : distance(p, tmp);
+      max = Math.max(max, d + c.maxDist);
+    }
+    node.maxDist = max;
+    return node;
+  }
+
   @Override
   public RangeSearcher<O> rangeByObject(DistanceQuery<O> distanceQuery, double maxradius, int flags) {
     return (flags & QueryBuilder.FLAG_PRECOMPUTE) == 0 && //
@@ -333,6 +632,9 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
      */
     protected ModifiableDoubleDBIDList doSearch(double range, ModifiableDoubleDBIDList result) {
       open.clear();
+      if(root == null) {
+        return result;
+      }
       open.add(root);
       while(!open.isEmpty()) {
         final Node cur = open.remove(open.size() - 1); // pop()
@@ -436,6 +738,9 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
       KNNHeap knnList = DBIDUtil.newHeap(k);
       double d_k = Double.POSITIVE_INFINITY;
       pq.clear();
+      if(root == null) {
+        return knnList.toKNNList();
+      }
       pq.add(queryDistance(root.singletons.iter()) - root.maxDist, root);
 
       // search in tree
@@ -601,6 +906,10 @@ public class SimplifiedCoverTree<O> extends AbstractCoverTree<O> implements Dist
     protected PrioritySearcher<Q> doSearch() {
       this.threshold = Double.POSITIVE_INFINITY;
       pq.clear();
+      candidates = EmptyDBIDs.EMPTY_ITERATOR;
+      if(root == null) {
+        return this;
+      }
       pq.add(queryDistance(root.singletons.iter()) - root.maxDist, root);
       lb = 0;
       return advance(); // Find first
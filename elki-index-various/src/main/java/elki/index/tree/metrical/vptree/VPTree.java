@@ -0,0 +1,997 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.metrical.vptree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+
+import elki.data.type.TypeInformation;
+import elki.database.ids.*;
+import elki.database.query.PrioritySearcher;
+import elki.database.query.QueryBuilder;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.query.range.RangeSearcher;
+import elki.database.relation.Relation;
+import elki.distance.Distance;
+import elki.index.DistancePriorityIndex;
+import elki.index.IndexFactory;
+import elki.logging.Logging;
+import elki.logging.LoggingUtil;
+import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.Alias;
+import elki.utilities.datastructures.heap.ComparableMinHeap;
+import elki.utilities.documentation.Reference;
+import elki.utilities.optionhandling.OptionID;
+import elki.utilities.optionhandling.Parameterizer;
+import elki.utilities.optionhandling.constraints.CommonConstraints;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.IntParameter;
+import elki.utilities.optionhandling.parameters.ObjectParameter;
+import elki.utilities.optionhandling.parameters.RandomParameter;
+import elki.utilities.random.RandomFactory;
+import elki.utilities.random.XorShift64NonThreadsafeRandom;
+
+/**
+ * Static in-memory vantage-point tree for arbitrary metric distances.
+ * <p>
+ * Similar to {@link elki.index.tree.spatial.kd.SmallMemoryKDTree}, the tree is
+ * serialized into a single {@link ModifiableDoubleDBIDList}, without any node
+ * objects: a node is an interval of this list. The first element of an inner
+ * node is the vantage point, and stores the median distance of the remaining
+ * elements to it. The closer half follows, then the farther half. The elements
+ * of a leaf store their distance to the vantage point of the parent, which is
+ * used to prune them with the triangle inequality.
+ * <p>
+ * Vantage points are chosen at random; for large nodes, a small sample of
+ * candidates is evaluated and the one with the largest variance of distances
+ * is used. Large trees are built in parallel, as the two halves of each split
+ * can be partitioned independently; the result is the same as when built
+ * serially.
+ * <p>
+ * Reference:
+ * <p>
+ * P. N. Yianilos<br>
+ * Data structures and algorithms for nearest neighbor search in general metric
+ * spaces<br>
+ * Proc. ACM/SIGACT-SIAM Symposium on Discrete Algorithms (SODA'93)
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - VPTreeKNNSearcher
+ * @has - - - VPTreeRangeSearcher
+ * @has - - - VPTreePrioritySearcher
+ *
+ * @param <O> Object type
+ */
+@Reference(authors = "P. N. Yianilos", //
+    title = "Data structures and algorithms for nearest neighbor search in general metric spaces", //
+    booktitle = "Proc. ACM/SIGACT-SIAM Symposium on Discrete Algorithms (SODA'93)", //
+    url = "http://dl.acm.org/citation.cfm?id=313559.313789", //
+    bibkey = "DBLP:conf/soda/Yianilos93")
+public class VPTree<O> implements DistancePriorityIndex<O> {
+  /**
+   * Class logger
+   */
+  private static final Logging LOG = Logging.getLogger(VPTree.class);
+
+  /**
+   * Minimum number of objects to build the tree in parallel.
+   */
+  static final int PARALLEL_THRESHOLD = 1 << 14;
+
+  /**
+   * The representation we are bound to.
+   */
+  protected final Relation<O> relation;
+
+  /**
+   * Distance function.
+   */
+  protected final Distance<? super O> distance;
+
+  /**
+   * Distance query.
+   */
+  protected final DistanceQuery<O> distanceQuery;
+
+  /**
+   * The actual "tree" as a sorted array.
+   */
+  protected ModifiableDoubleDBIDList sorted = null;
+
+  /**
+   * Maximum size of leaf nodes.
+   */
+  protected int leafsize;
+
+  /**
+   * Number of candidates to sample for choosing vantage points.
+   */
+  protected int sampleSize;
+
+  /**
+   * Random generator for choosing vantage points.
+   */
+  protected RandomFactory random;
+
+  /**
+   * Distance computations performed, only counted for statistics logging.
+   */
+  protected final LongAdder distComputations;
+
+  /**
+   * Constructor.
+   *
+   * @param relation Relation to index
+   * @param distance Distance function
+   * @param leafsize Maximum size of leaf nodes
+   * @param sampleSize Number of candidates to sample for vantage points
+   * @param random Random generator
+   */
+  public VPTree(Relation<O> relation, Distance<? super O> distance, int leafsize, int sampleSize, RandomFactory random) {
+    super();
+    this.relation = relation;
+    this.distance = distance;
+    this.distanceQuery = distance.instantiate(relation);
+    this.leafsize = leafsize;
+    this.sampleSize = sampleSize;
+    this.random = random;
+    this.distComputations = LOG.isStatistics() ? new LongAdder() : null;
+    assert (leafsize >= 1);
+  }
+
+  @Override
+  public void initialize() {
+    sorted = DBIDUtil.newDistanceDBIDList(relation.size());
+    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+      sorted.add(0., it);
+    }
+    final int size = sorted.size();
+    final long seed = random.getSingleThreadedRandom().nextLong();
+    final ParallelCore core = ParallelCore.getCore();
+    if(size < PARALLEL_THRESHOLD || core.isWorkerThread()) {
+      buildTree(0, size, seed, sorted.iter(), new XorShift64NonThreadsafeRandom());
+      return;
+    }
+    // The top levels are split one level at a time, all nodes of a level in
+    // parallel. Once the intervals are small enough, the remaining subtrees
+    // are built by independent tasks. As split() reseeds by the interval
+    // position, the vantage points do not depend on this schedule.
+    final int target = Math.max(PARALLEL_THRESHOLD >>> 1, size / (core.getParallelism() << 2));
+    List<int[]> open = new ArrayList<>(), small = new ArrayList<>();
+    open.add(new int[] { 0, size });
+    while(!open.isEmpty()) {
+      List<Callable<Void>> tasks = new ArrayList<>(open.size());
+      for(int[] r : open) {
+        tasks.add(() -> {
+          split(r[0], r[1], seed, sorted.iter(), new XorShift64NonThreadsafeRandom());
+          return null;
+        });
+      }
+      ParallelExecutor.run(tasks);
+      List<int[]> next = new ArrayList<>(open.size() << 1);
+      for(int[] r : open) {
+        final int middle = (r[0] + 1 + r[1]) >>> 1;
+        for(int[] c : new int[][] { { r[0] + 1, middle }, { middle, r[1] } }) {
+          if(c[1] - c[0] > leafsize) {
+            (c[1] - c[0] > target ? next : small).add(c);
+          }
+        }
+      }
+      open = next;
+    }
+    List<Callable<Void>> tasks = new ArrayList<>(small.size());
+    for(int[] r : small) {
+      tasks.add(() -> {
+        buildTree(r[0], r[1], seed, sorted.iter(), new XorShift64NonThreadsafeRandom());
+        return null;
+      });
+    }
+    ParallelExecutor.run(tasks);
+  }
+
+  /**
+   * Recursively build the tree by partial sorting.
+   *
+   * @param left Interval minimum
+   * @param right Interval maximum
+   * @param seed Random seed of the tree
+   * @param iter Iterator
+   * @param rnd Random generator, reseeded for every node
+   */
+  private void buildTree(int left, int right, long seed, DoubleDBIDListMIter iter, Random rnd) {
+    if(right - left <= leafsize) {
+      return;
+    }
+    split(left, right, seed, iter, rnd);
+    final int middle = (left + 1 + right) >>> 1;
+    buildTree(left + 1, middle, seed, iter, rnd);
+    buildTree(middle, right, seed, iter, rnd);
+  }
+
+  /**
+   * Choose the vantage point of an inner node, and partition the interval at
+   * the median distance.
+   *
+   * @param left Interval minimum
+   * @param right Interval maximum
+   * @param seed Random seed of the tree
+   * @param iter Iterator
+   * @param rnd Random generator, reseeded for every node
+   */
+  private void split(int left, int right, long seed, DoubleDBIDListMIter iter, Random rnd) {
+    assert (right - left > leafsize);
+    // Reseed by position, so that the result does not depend on the order in
+    // which the nodes are built:
+    rnd.setSeed(seed ^ (left * 0x9E3779B97F4A7C15L));
+    sorted.swap(left, selectVantagePoint(left, right, iter, rnd));
+    DBIDVar vp = sorted.assignVar(left, DBIDUtil.newVar());
+    for(iter.seek(left + 1); iter.getOffset() < right; iter.advance()) {
+      iter.setDouble(distance(vp, iter));
+    }
+    final int middle = (left + 1 + right) >>> 1;
+    QuickSelectDBIDs.quickSelect(sorted, left + 1, right, middle);
+    final double threshold = iter.seek(middle).doubleValue();
+    iter.seek(left).setDouble(threshold);
+  }
+
+  /**
+   * Choose a vantage point. For small intervals, a random point is used. For
+   * larger intervals, the sampled candidate with the largest variance of
+   * distances to a sample of the other points is chosen.
+   *
+   * @param left Interval minimum
+   * @param right Interval maximum
+   * @param iter Iterator
+   * @param rnd Random generator
+   * @return Position of the vantage point
+   */
+  private int selectVantagePoint(int left, int right, DoubleDBIDListMIter iter, Random rnd) {
+    final int size = right - left;
+    if(sampleSize <= 1 || size < sampleSize * sampleSize) {
+      return left + rnd.nextInt(size);
+    }
+    DBIDVar cand = DBIDUtil.newVar();
+    int best = left;
+    double bestvar = -1;
+    for(int i = 0; i < sampleSize; i++) {
+      final int c = left + rnd.nextInt(size);
+      sorted.assignVar(c, cand);
+      double sum = 0, sqsum = 0;
+      for(int j = 0; j < sampleSize; j++) {
+        final double d = distance(cand, iter.seek(left + rnd.nextInt(size)));
+        sum += d;
+        sqsum += d * d;
+      }
+      final double var = sqsum - sum * sum / sampleSize;
+      if(var > bestvar) {
+        best = c;
+        bestvar = var;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Compute a distance (and count).
+   *
+   * @param a Object reference
+   * @param b Object reference
+   * @return Distance
+   */
+  protected double distance(DBIDRef a, DBIDRef b) {
+    if(distComputations != null) {
+      distComputations.increment();
+    }
+    return distanceQuery.distance(a, b);
+  }
+
+  /**
+   * Compute a distance (and count).
+   *
+   * @param a Object
+   * @param b Object reference
+   * @return Distance
+   */
+  protected double distance(O a, DBIDRef b) {
+    if(distComputations != null) {
+      distComputations.increment();
+    }
+    return distanceQuery.distance(a, b);
+  }
+
+  @Override
+  public void logStatistics() {
+    if(distComputations != null) {
+      LOG.statistics(new LongStatistic(this.getClass().getName() + ".distance-computations", distComputations.sum()));
+    }
+  }
+
+  /**
+   * Check if the index can be used for a distance query.
+   *
+   * @param distanceQuery Distance query
+   * @param flags Optimizer flags
+   * @return {@code true} if the index is applicable
+   */
+  private boolean isApplicable(DistanceQuery<O> distanceQuery, int flags) {
+    return (flags & QueryBuilder.FLAG_PRECOMPUTE) == 0 && //
+        distanceQuery.getRelation() == relation && this.distance.equals(distanceQuery.getDistance());
+  }
+
+  @Override
+  public KNNSearcher<O> kNNByObject(DistanceQuery<O> distanceQuery, int maxk, int flags) {
+    return isApplicable(distanceQuery, flags) ? new VPTreeKNNObjectSearcher() : null;
+  }
+
+  @Override
+  public KNNSearcher<DBIDRef> kNNByDBID(DistanceQuery<O> distanceQuery, int maxk, int flags) {
+    return isApplicable(distanceQuery, flags) ? new VPTreeKNNDBIDSearcher() : null;
+  }
+
+  @Override
+  public RangeSearcher<O> rangeByObject(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new VPTreeRangeObjectSearcher() : null;
+  }
+
+  @Override
+  public RangeSearcher<DBIDRef> rangeByDBID(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new VPTreeRangeDBIDSearcher() : null;
+  }
+
+  @Override
+  public PrioritySearcher<O> priorityByObject(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new VPTreePriorityObjectSearcher() : null;
+  }
+
+  @Override
+  public PrioritySearcher<DBIDRef> priorityByDBID(DistanceQuery<O> distanceQuery, double maxrange, int flags) {
+    return isApplicable(distanceQuery, flags) ? new VPTreePriorityDBIDSearcher() : null;
+  }
+
+  /**
+   * kNN search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public abstract class VPTreeKNNSearcher {
+    /**
+     * Compute distance to query object.
+     *
+     * @param it Candidate
+     * @return Distance
+     */
+    protected abstract double queryDistance(DBIDRef it);
+
+    /**
+     * Perform the kNN search.
+     *
+     * @param k Number of neighbors
+     * @return kNN list
+     */
+    protected KNNList doSearch(int k) {
+      final KNNHeap knns = DBIDUtil.newHeap(k);
+      if(!sorted.isEmpty()) {
+        vpKNNSearch(0, sorted.size(), 0., knns, sorted.iter(), Double.POSITIVE_INFINITY);
+      }
+      return knns.toKNNList();
+    }
+
+    /**
+     * Perform a kNN search on the VP-tree.
+     *
+     * @param left Subtree begin
+     * @param right Subtree end (exclusive)
+     * @param dpar Query distance to the parent vantage point
+     * @param knns kNN heap
+     * @param iter Iterator variable (reduces memory footprint!)
+     * @param maxdist Current upper bound of kNN distance.
+     * @return New upper bound of kNN distance.
+     */
+    private double vpKNNSearch(int left, int right, double dpar, KNNHeap knns, DoubleDBIDListIter iter, double maxdist) {
+      if(right - left <= leafsize) {
+        for(iter.seek(left); iter.getOffset() < right; iter.advance()) {
+          if(Math.abs(dpar - iter.doubleValue()) <= maxdist) {
+            final double dist = queryDistance(iter);
+            if(dist <= maxdist) {
+              knns.insert(dist, iter);
+              maxdist = knns.getKNNDistance();
+            }
+          }
+        }
+        return maxdist;
+      }
+      final double dist = queryDistance(iter.seek(left));
+      final double threshold = iter.doubleValue();
+      if(dist <= maxdist) {
+        knns.insert(dist, iter);
+        maxdist = knns.getKNNDistance();
+      }
+      final int middle = (left + 1 + right) >>> 1;
+      // Descend into the more promising half first:
+      if(dist < threshold) {
+        if(left + 1 < middle) {
+          maxdist = vpKNNSearch(left + 1, middle, dist, knns, iter, maxdist);
+        }
+        if(threshold - dist <= maxdist) {
+          maxdist = vpKNNSearch(middle, right, dist, knns, iter, maxdist);
+        }
+      }
+      else {
+        maxdist = vpKNNSearch(middle, right, dist, knns, iter, maxdist);
+        if(left + 1 < middle && dist - threshold <= maxdist) {
+          maxdist = vpKNNSearch(left + 1, middle, dist, knns, iter, maxdist);
+        }
+      }
+      return maxdist;
+    }
+  }
+
+  /**
+   * kNN search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public class VPTreeKNNObjectSearcher extends VPTreeKNNSearcher implements KNNSearcher<O> {
+    /**
+     * Query object
+     */
+    private O query;
+
+    @Override
+    public KNNList getKNN(O obj, int k) {
+      this.query = obj;
+      return doSearch(k);
+    }
+
+    @Override
+    protected double queryDistance(DBIDRef it) {
+      return distance(query, it);
+    }
+  }
+
+  /**
+   * kNN search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public class VPTreeKNNDBIDSearcher extends VPTreeKNNSearcher implements KNNSearcher<DBIDRef> {
+    /**
+     * Query object
+     */
+    private DBIDRef query;
+
+    @Override
+    public KNNList getKNN(DBIDRef id, int k) {
+      this.query = id;
+      return doSearch(k);
+    }
+
+    @Override
+    protected double queryDistance(DBIDRef it) {
+      return distance(query, it);
+    }
+  }
+
+  /**
+   * Range search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public abstract class VPTreeRangeSearcher {
+    /**
+     * Compute distance to query object.
+     *
+     * @param it Candidate
+     * @return Distance
+     */
+    protected abstract double queryDistance(DBIDRef it);
+
+    /**
+     * Perform the range search.
+     *
+     * @param range Query radius
+     * @param result Output list
+     * @return result
+     */
+    protected ModifiableDoubleDBIDList doSearch(double range, ModifiableDoubleDBIDList result) {
+      if(!sorted.isEmpty()) {
+        vpRangeSearch(0, sorted.size(), 0., result, sorted.iter(), range);
+      }
+      return result;
+    }
+
+    /**
+     * Perform a range search on the VP-tree.
+     *
+     * @param left Subtree begin
+     * @param right Subtree end (exclusive)
+     * @param dpar Query distance to the parent vantage point
+     * @param res Output list
+     * @param iter Iterator variable (reduces memory footprint!)
+     * @param radius Query radius
+     */
+    private void vpRangeSearch(int left, int right, double dpar, ModifiableDoubleDBIDList res, DoubleDBIDListIter iter, double radius) {
+      if(right - left <= leafsize) {
+        for(iter.seek(left); iter.getOffset() < right; iter.advance()) {
+          if(Math.abs(dpar - iter.doubleValue()) <= radius) {
+            final double dist = queryDistance(iter);
+            if(dist <= radius) {
+              res.add(dist, iter);
+            }
+          }
+        }
+        return;
+      }
+      final double dist = queryDistance(iter.seek(left));
+      final double threshold = iter.doubleValue();
+      if(dist <= radius) {
+        res.add(dist, iter);
+      }
+      final int middle = (left + 1 + right) >>> 1;
+      if(left + 1 < middle && dist - threshold <= radius) {
+        vpRangeSearch(left + 1, middle, dist, res, iter, radius);
+      }
+      if(threshold - dist <= radius) {
+        vpRangeSearch(middle, right, dist, res, iter, radius);
+      }
+    }
+  }
+
+  /**
+   * Range search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public class VPTreeRangeObjectSearcher extends VPTreeRangeSearcher implements RangeSearcher<O> {
+    /**
+     * Query object
+     */
+    private O query;
+
+    @Override
+    public ModifiableDoubleDBIDList getRange(O obj, double range, ModifiableDoubleDBIDList result) {
+      this.query = obj;
+      return doSearch(range, result);
+    }
+
+    @Override
+    protected double queryDistance(DBIDRef it) {
+      return distance(query, it);
+    }
+  }
+
+  /**
+   * Range search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public class VPTreeRangeDBIDSearcher extends VPTreeRangeSearcher implements RangeSearcher<DBIDRef> {
+    /**
+     * Query object
+     */
+    private DBIDRef query;
+
+    @Override
+    public ModifiableDoubleDBIDList getRange(DBIDRef id, double range, ModifiableDoubleDBIDList result) {
+      this.query = id;
+      return doSearch(range, result);
+    }
+
+    @Override
+    protected double queryDistance(DBIDRef it) {
+      return distance(query, it);
+    }
+  }
+
+  /**
+   * Search position for priority search.
+   *
+   * @author Erich Schubert
+   */
+  private static class PrioritySearchBranch implements Comparable<PrioritySearchBranch> {
+    /**
+     * Minimum distance
+     */
+    double mindist;
+
+    /**
+     * Interval begin
+     */
+    int left;
+
+    /**
+     * Interval end
+     */
+    int right;
+
+    /**
+     * Query distance to the parent vantage point
+     */
+    double dpar;
+
+    /**
+     * Constructor.
+     *
+     * @param mindist Minimum distance
+     * @param left Interval begin
+     * @param right Interval end (exclusive)
+     * @param dpar Query distance to the parent vantage point
+     */
+    public PrioritySearchBranch(double mindist, int left, int right, double dpar) {
+      this.mindist = mindist;
+      this.left = left;
+      this.right = right;
+      this.dpar = dpar;
+    }
+
+    @Override
+    public int compareTo(PrioritySearchBranch o) {
+      return Double.compare(this.mindist, o.mindist);
+    }
+  }
+
+  /**
+   * Priority search for the VP-tree.
+   * <p>
+   * The vantage point of an inner node is returned when the node is expanded,
+   * as its distance is computed anyway; leaf elements are returned with the
+   * bounds obtained from their distance to the parent vantage point.
+   *
+   * @author Erich Schubert
+   *
+   * @param <Q> query type
+   */
+  public abstract class VPTreePrioritySearcher<Q> implements PrioritySearcher<Q> {
+    /**
+     * Min heap for searching.
+     */
+    private ComparableMinHeap<PrioritySearchBranch> heap = new ComparableMinHeap<>();
+
+    /**
+     * Search iterator.
+     */
+    private DoubleDBIDListIter iter = sorted.iter();
+
+    /**
+     * Stopping threshold.
+     */
+    private double threshold;
+
+    /**
+     * Position of the current candidate.
+     */
+    private int pos;
+
+    /**
+     * Distance of the current vantage point, NaN for leaf elements.
+     */
+    private double vpdist;
+
+    /**
+     * Current search position.
+     */
+    private PrioritySearchBranch cur;
+
+    /**
+     * Compute distance to query object.
+     *
+     * @param it Candidate
+     * @return Distance
+     */
+    protected abstract double queryDistance(DBIDRef it);
+
+    /**
+     * Start the search.
+     *
+     * @return this.
+     */
+    protected PrioritySearcher<Q> doSearch() {
+      this.threshold = Double.POSITIVE_INFINITY;
+      this.pos = Integer.MIN_VALUE;
+      this.cur = null;
+      this.heap.clear();
+      if(!sorted.isEmpty()) {
+        this.heap.add(new PrioritySearchBranch(0, 0, sorted.size(), 0.));
+      }
+      return advance();
+    }
+
+    @Override
+    public PrioritySearcher<Q> advance() {
+      // Iteration within current leaf:
+      if(cur != null && cur.right - cur.left <= leafsize && advanceLeaf(pos + 1)) {
+        return this;
+      }
+      while(!heap.isEmpty()) {
+        cur = heap.poll();
+        if(cur.mindist > threshold) {
+          break;
+        }
+        // Leaf:
+        if(cur.right - cur.left <= leafsize) {
+          if(advanceLeaf(cur.left)) {
+            return this;
+          }
+          continue;
+        }
+        // Inner node: return the vantage point, and queue both halves.
+        pos = cur.left;
+        vpdist = queryDistance(iter.seek(pos));
+        final double t = iter.doubleValue();
+        final int middle = (cur.left + 1 + cur.right) >>> 1;
+        final double idist = Math.max(vpdist - t, cur.mindist);
+        if(cur.left + 1 < middle && idist <= threshold) {
+          heap.add(new PrioritySearchBranch(idist, cur.left + 1, middle, vpdist));
+        }
+        final double odist = Math.max(t - vpdist, cur.mindist);
+        if(odist <= threshold) {
+          heap.add(new PrioritySearchBranch(odist, middle, cur.right, vpdist));
+        }
+        if(vpdist <= threshold) {
+          return this;
+        }
+      }
+      heap.clear();
+      cur = null;
+      pos = Integer.MIN_VALUE;
+      return this;
+    }
+
+    /**
+     * Find the next leaf element within the threshold.
+     *
+     * @param start Start position
+     * @return {@code true} if an element was found
+     */
+    private boolean advanceLeaf(int start) {
+      vpdist = Double.NaN;
+      for(pos = start; pos < cur.right; pos++) {
+        if(Math.abs(cur.dpar - iter.seek(pos).doubleValue()) <= threshold) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean valid() {
+      return pos >= 0;
+    }
+
+    @Override
+    public double getLowerBound() {
+      return vpdist == vpdist ? vpdist : Math.max(cur.mindist, Math.abs(cur.dpar - iter.seek(pos).doubleValue()));
+    }
+
+    @Override
+    public double getUpperBound() {
+      // The elements of a root leaf have no parent vantage point.
+      return vpdist == vpdist ? vpdist : cur.right - cur.left == sorted.size() ? Double.POSITIVE_INFINITY : //
+          cur.dpar + iter.seek(pos).doubleValue();
+    }
+
+    @Override
+    public double allLowerBound() {
+      return cur.mindist;
+    }
+
+    @Override
+    public double computeExactDistance() {
+      return vpdist == vpdist ? vpdist : queryDistance(iter.seek(pos));
+    }
+
+    @Override
+    public int internalGetIndex() {
+      return iter.seek(pos).internalGetIndex();
+    }
+
+    @Override
+    public PrioritySearcher<Q> decreaseCutoff(double threshold) {
+      assert threshold <= this.threshold : "Thresholds must only decrease.";
+      this.threshold = threshold;
+      return this;
+    }
+  }
+
+  /**
+   * Priority search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public class VPTreePriorityObjectSearcher extends VPTreePrioritySearcher<O> {
+    /**
+     * Query object
+     */
+    private O query;
+
+    @Override
+    public PrioritySearcher<O> search(O query) {
+      this.query = query;
+      return doSearch();
+    }
+
+    @Override
+    protected double queryDistance(DBIDRef it) {
+      return distance(query, it);
+    }
+  }
+
+  /**
+   * Priority search for the VP-tree.
+   *
+   * @author Erich Schubert
+   */
+  public class VPTreePriorityDBIDSearcher extends VPTreePrioritySearcher<DBIDRef> {
+    /**
+     * Query object
+     */
+    private DBIDRef query;
+
+    @Override
+    public PrioritySearcher<DBIDRef> search(DBIDRef query) {
+      this.query = query;
+      return doSearch();
+    }
+
+    @Override
+    protected double queryDistance(DBIDRef it) {
+      return distance(query, it);
+    }
+  }
+
+  /**
+   * Index factory for the VP-tree.
+   *
+   * @author Erich Schubert
+   *
+   * @stereotype factory
+   * @has - - - VPTree
+   *
+   * @param <O> Object type
+   */
+  @Alias("vptree")
+  public static class Factory<O> implements IndexFactory<O> {
+    /**
+     * Distance function.
+     */
+    protected Distance<? super O> distance;
+
+    /**
+     * Maximum size of leaf nodes.
+     */
+    protected int leafsize;
+
+    /**
+     * Number of candidates to sample for choosing vantage points.
+     */
+    protected int sampleSize;
+
+    /**
+     * Random generator.
+     */
+    protected RandomFactory random;
+
+    /**
+     * Constructor.
+     *
+     * @param distance Distance function
+     * @param leafsize Maximum size of leaf nodes
+     * @param sampleSize Number of candidates to sample for vantage points
+     * @param random Random generator
+     */
+    public Factory(Distance<? super O> distance, int leafsize, int sampleSize, RandomFactory random) {
+      super();
+      this.distance = distance;
+      this.leafsize = leafsize;
+      this.sampleSize = sampleSize;
+      this.random = random;
+    }
+
+    @Override
+    public VPTree<O> instantiate(Relation<O> relation) {
+      return new VPTree<>(relation, distance, leafsize, sampleSize, random);
+    }
+
+    @Override
+    public TypeInformation getInputTypeRestriction() {
+      return distance.getInputTypeRestriction();
+    }
+
+    /**
+     * Parameterization class.
+     *
+     * @author Erich Schubert
+     */
+    public static class Par<O> implements Parameterizer {
+      /**
+       * Parameter to specify the distance function to determine the distance
+       * between database objects.
+       */
+      public static final OptionID DISTANCE_FUNCTION_ID = new OptionID("vptree.distancefunction", "Distance function to determine the distance between objects.");
+
+      /**
+       * Option for setting the maximum leaf size.
+       */
+      public static final OptionID LEAFSIZE_ID = new OptionID("vptree.leafsize", "Maximum leaf size for the VP-tree.");
+
+      /**
+       * Number of candidates to sample for choosing vantage points.
+       */
+      public static final OptionID SAMPLE_SIZE_ID = new OptionID("vptree.samplesize", "Number of candidates to sample for choosing vantage points in large nodes, 1 to choose them at random.");
+
+      /**
+       * Random generator for choosing vantage points.
+       */
+      public static final OptionID SEED_ID = new OptionID("vptree.seed", "Random seed for choosing vantage points.");
+
+      /**
+       * Distance function.
+       */
+      protected Distance<? super O> distance;
+
+      /**
+       * Maximum size of leaf nodes.
+       */
+      protected int leafsize;
+
+      /**
+       * Number of candidates to sample for choosing vantage points.
+       */
+      protected int sampleSize;
+
+      /**
+       * Random generator.
+       */
+      protected RandomFactory random;
+
+      @Override
+      public void configure(Parameterization config) {
+        new ObjectParameter<Distance<O>>(DISTANCE_FUNCTION_ID, Distance.class) //
+            .grab(config, x -> {
+              distance = x;
+              if(!distance.isMetric()) {
+                LoggingUtil.warning("VPTree requires a metric to be exact.");
+              }
+            });
+        new IntParameter(LEAFSIZE_ID, 1) //
+            .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+            .grab(config, x -> leafsize = x);
+        new IntParameter(SAMPLE_SIZE_ID, 10) //
+            .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+            .grab(config, x -> sampleSize = x);
+        new RandomParameter(SEED_ID).grab(config, x -> random = x);
+      }
+
+      @Override
+      public Factory<O> make() {
+        return new Factory<>(distance, leafsize, sampleSize, random);
+      }
+    }
+  }
+}
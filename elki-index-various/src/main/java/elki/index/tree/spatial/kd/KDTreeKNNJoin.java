@@ -0,0 +1,533 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.spatial.kd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+import elki.data.ModifiableHyperBoundingBox;
+import elki.data.NumberVector;
+import elki.database.datastore.WritableDataStore;
+import elki.database.ids.DBIDArrayIter;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.KNNHeap;
+import elki.database.ids.KNNList;
+import elki.database.relation.Relation;
+import elki.distance.SpatialPrimitiveDistance;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+import elki.utilities.documentation.Reference;
+
+/**
+ * Dual-tree all-kNN self-join on the serialized k-d-trees of
+ * {@link SmallMemoryKDTree} and {@link MinimalisticMemoryKDTree}.
+ * <p>
+ * Each node of the query tree keeps an upper bound of the kNN distances of
+ * its objects, and pairs of query and reference nodes are pruned when the
+ * minimum distance of their bounding boxes exceeds this bound. The tight
+ * bounding boxes of all nodes are computed once per join, small subtrees are
+ * joined as leaves.
+ * <p>
+ * The query tree is partitioned into subtrees that are joined with the full
+ * reference tree in parallel. Each task only modifies the heaps and bounds of
+ * its own query subtree.
+ * <p>
+ * Reference:
+ * <p>
+ * R. R. Curtin, W. B. March, P. Ram, D. V. Anderson, A. G. Gray, C. L. Isbell
+ * Jr.<br>
+ * Tree-Independent Dual-Tree Algorithms<br>
+ * Proc. 30th Int. Conf. Machine Learning (ICML 2013)
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @param <O> Vector type
+ */
+@Reference(authors = "R. R. Curtin, W. B. March, P. Ram, D. V. Anderson, A. G. Gray, C. L. Isbell Jr.", //
+    title = "Tree-Independent Dual-Tree Algorithms", //
+    booktitle = "Proc. 30th Int. Conf. Machine Learning (ICML 2013)", //
+    url = "http://proceedings.mlr.press/v28/curtin13.html", //
+    bibkey = "DBLP:conf/icml/CurtinMRAGI13")
+class KDTreeKNNJoin<O extends NumberVector> {
+  /**
+   * Minimum number of objects to join in parallel.
+   */
+  private static final int PARALLEL_THRESHOLD = 1 << 12;
+
+  /**
+   * Minimum size of the leaves of the join; smaller subtrees are processed as
+   * a whole, because the pruning overhead exceeds the savings.
+   */
+  private static final int MIN_LEAFSIZE = 32;
+
+  /**
+   * Data relation.
+   */
+  private final Relation<O> relation;
+
+  /**
+   * Iterators over the serialized tree.
+   */
+  private final Supplier<? extends DBIDArrayIter> iters;
+
+  /**
+   * Number of objects.
+   */
+  private final int size;
+
+  /**
+   * Dimensionality.
+   */
+  private final int dims;
+
+  /**
+   * Maximum size of leaf nodes of the join, at least the tree leaf size.
+   */
+  private final int leafsize;
+
+  /**
+   * Distance function.
+   */
+  private final SpatialPrimitiveDistance<? super O> distance;
+
+  /**
+   * kNN heaps, by position in the tree.
+   */
+  private KNNHeap[] heaps;
+
+  /**
+   * Bounding boxes of the nodes; the children of node i are 2i+1 and 2i+2.
+   */
+  private ModifiableHyperBoundingBox[] boxes;
+
+  /**
+   * Bounds of the kNN distances within each node.
+   */
+  private double[] bounds;
+
+  /**
+   * Number of object accesses.
+   */
+  private long objaccess;
+
+  /**
+   * Number of distance computations.
+   */
+  private long distcalc;
+
+  /**
+   * Constructor.
+   *
+   * @param relation Data relation
+   * @param iters Iterators over the serialized tree
+   * @param size Number of objects
+   * @param dims Dimensionality
+   * @param leafsize Maximum size of leaf nodes
+   * @param distance Distance function
+   */
+  KDTreeKNNJoin(Relation<O> relation, Supplier<? extends DBIDArrayIter> iters, int size, int dims, int leafsize, SpatialPrimitiveDistance<? super O> distance) {
+    this.relation = relation;
+    this.iters = iters;
+    this.size = size;
+    this.dims = dims;
+    this.leafsize = Math.max(leafsize, MIN_LEAFSIZE);
+    this.distance = distance;
+  }
+
+  /**
+   * Compute the kNN of all objects.
+   *
+   * @param k Number of neighbors
+   * @param result Output storage
+   */
+  void run(int k, WritableDataStore<KNNList> result) {
+    if(size == 0) {
+      return;
+    }
+    heaps = new KNNHeap[size];
+    for(int i = 0; i < size; i++) {
+      heaps[i] = DBIDUtil.newHeap(k);
+    }
+    final int nodes = countNodes(0, size, 0);
+    boxes = new ModifiableHyperBoundingBox[nodes];
+    bounds = new double[nodes];
+    Arrays.fill(bounds, Double.POSITIVE_INFINITY);
+    final DBIDArrayIter iter = iters.get();
+    buildBoxes(0, size, 0, iter);
+    // Partition the query tree into independent tasks:
+    final int parallelism = ParallelCore.getCore().getParallelism();
+    final int target = size < PARALLEL_THRESHOLD || parallelism <= 1 ? size : //
+        Math.max(PARALLEL_THRESHOLD >>> 2, size / (parallelism << 3));
+    List<Callable<Worker>> tasks = new ArrayList<>();
+    partition(0, size, 0, 0, target, tasks);
+    for(Worker w : ParallelExecutor.run(tasks)) {
+      objaccess += w.objaccess;
+      distcalc += w.distcalc;
+    }
+    for(iter.seek(0); iter.valid(); iter.advance()) {
+      result.put(iter, heaps[iter.getOffset()].toKNNList());
+    }
+    heaps = null;
+    boxes = null;
+    bounds = null;
+  }
+
+  /**
+   * Count the number of nodes, including unused node numbers.
+   *
+   * @param left Subtree begin
+   * @param right Subtree end (exclusive)
+   * @param node Node number
+   * @return Largest node number in the subtree plus one
+   */
+  private int countNodes(int left, int right, int node) {
+    if(right - left <= leafsize) {
+      return node + 1;
+    }
+    final int middle = (left + right) >>> 1;
+    return Math.max(left < middle ? countNodes(left, middle, (node << 1) + 1) : node + 1, //
+        middle + 1 < right ? countNodes(middle + 1, right, (node << 1) + 2) : node + 1);
+  }
+
+  /**
+   * Compute the bounding boxes of all nodes.
+   *
+   * @param left Subtree begin
+   * @param right Subtree end (exclusive)
+   * @param node Node number
+   * @param iter Iterator
+   * @return Bounding box of the subtree
+   */
+  private ModifiableHyperBoundingBox buildBoxes(int left, int right, int node, DBIDArrayIter iter) {
+    final ModifiableHyperBoundingBox box;
+    if(right - left <= leafsize) {
+      box = new ModifiableHyperBoundingBox(relation.get(iter.seek(left)));
+      for(iter.advance(); iter.getOffset() < right; iter.advance()) {
+        box.extend(relation.get(iter));
+      }
+      objaccess += right - left;
+    }
+    else {
+      final int middle = (left + right) >>> 1;
+      box = new ModifiableHyperBoundingBox(relation.get(iter.seek(middle)));
+      ++objaccess;
+      if(left < middle) {
+        box.extend(buildBoxes(left, middle, (node << 1) + 1, iter));
+      }
+      if(middle + 1 < right) {
+        box.extend(buildBoxes(middle + 1, right, (node << 1) + 2, iter));
+      }
+    }
+    return boxes[node] = box;
+  }
+
+  /**
+   * Split the query tree until the subtrees are small enough.
+   *
+   * @param left Subtree begin
+   * @param right Subtree end (exclusive)
+   * @param axis Splitting axis
+   * @param node Node number
+   * @param target Target task size
+   * @param tasks Output task list
+   */
+  private void partition(int left, int right, int axis, int node, int target, List<Callable<Worker>> tasks) {
+    if(right - left <= target || right - left <= leafsize) {
+      tasks.add(() -> new Worker().dual(left, right, axis, node, 0, size, 0, 0));
+      return;
+    }
+    // The splitting object is queried on its own:
+    final int middle = (left + right) >>> 1, next = next(axis);
+    tasks.add(() -> new Worker().point(middle));
+    if(left < middle) {
+      partition(left, middle, next, (node << 1) + 1, target, tasks);
+    }
+    if(middle + 1 < right) {
+      partition(middle + 1, right, next, (node << 1) + 2, target, tasks);
+    }
+  }
+
+  /**
+   * Next axis.
+   *
+   * @param axis Current axis
+   * @return Next axis
+   */
+  private int next(int axis) {
+    return ++axis == dims ? 0 : axis;
+  }
+
+  /**
+   * Get the number of object accesses of the last join.
+   *
+   * @return Object accesses
+   */
+  long getObjectAccesses() {
+    return objaccess;
+  }
+
+  /**
+   * Get the number of distance computations of the last join.
+   *
+   * @return Distance computations
+   */
+  long getDistanceComputations() {
+    return distcalc;
+  }
+
+  /**
+   * Worker for one query subtree.
+   *
+   * @author Erich Schubert
+   */
+  private class Worker {
+    /**
+     * Iterator over the tree.
+     */
+    private DBIDArrayIter iter = iters.get();
+
+    /**
+     * Number of object accesses.
+     */
+    long objaccess;
+
+    /**
+     * Number of distance computations.
+     */
+    long distcalc;
+
+    /**
+     * Find the neighbors of a single query object in the full tree.
+     *
+     * @param q Query position
+     * @return this
+     */
+    Worker point(int q) {
+      point(q, get(q), 0, size, 0, 0);
+      return this;
+    }
+
+    /**
+     * Join a query node with a reference node.
+     *
+     * @param ql Query subtree begin
+     * @param qr Query subtree end (exclusive)
+     * @param qaxis Query splitting axis
+     * @param qn Query node number
+     * @param rl Reference subtree begin
+     * @param rr Reference subtree end (exclusive)
+     * @param raxis Reference splitting axis
+     * @param rn Reference node number
+     * @return this
+     */
+    Worker dual(int ql, int qr, int qaxis, int qn, int rl, int rr, int raxis, int rn) {
+      final ModifiableHyperBoundingBox qbox = boxes[qn], rbox = boxes[rn];
+      if(distance.minDist(qbox, rbox) > bounds[qn]) {
+        return this;
+      }
+      final boolean qleaf = qr - ql <= leafsize, rleaf = rr - rl <= leafsize;
+      if(qleaf && rleaf) {
+        for(int q = ql; q < qr; q++) {
+          final O qv = get(q);
+          if(distance.minDist(qv, rbox) <= heaps[q].getKNNDistance()) {
+            for(int r = rl; r < rr; r++) {
+              insert(q, qv, r);
+            }
+          }
+        }
+        updateBound(ql, qr, qn);
+        return this;
+      }
+      if(!qleaf && (rleaf || qr - ql >= rr - rl)) {
+        // Split the query node:
+        final int qm = (ql + qr) >>> 1, next = next(qaxis);
+        if(ql < qm) {
+          dual(ql, qm, next, (qn << 1) + 1, rl, rr, raxis, rn);
+        }
+        if(qm + 1 < qr) {
+          dual(qm + 1, qr, next, (qn << 1) + 2, rl, rr, raxis, rn);
+        }
+        point(qm, get(qm), rl, rr, raxis, rn);
+        updateBound(ql, qr, qn);
+        return this;
+      }
+      // Split the reference node:
+      final int rm = (rl + rr) >>> 1, next = next(raxis);
+      final O mv = get(rm);
+      reference(rm, mv, ql, qr, qn);
+      final int ln = (rn << 1) + 1, hn = ln + 1;
+      if(rl < rm && rm + 1 < rr) {
+        // Visit the closer child first, on ties the side of the query center:
+        final double dl = distance.minDist(qbox, boxes[ln]);
+        final double dh = distance.minDist(qbox, boxes[hn]);
+        if(dh < dl || (dh == dl && qbox.getMin(raxis) + qbox.getMax(raxis) > 2 * mv.doubleValue(raxis))) {
+          dual(ql, qr, qaxis, qn, rm + 1, rr, next, hn);
+          dual(ql, qr, qaxis, qn, rl, rm, next, ln);
+        }
+        else {
+          dual(ql, qr, qaxis, qn, rl, rm, next, ln);
+          dual(ql, qr, qaxis, qn, rm + 1, rr, next, hn);
+        }
+      }
+      else if(rl < rm) {
+        dual(ql, qr, qaxis, qn, rl, rm, next, ln);
+      }
+      else if(rm + 1 < rr) {
+        dual(ql, qr, qaxis, qn, rm + 1, rr, next, hn);
+      }
+      updateBound(ql, qr, qn);
+      return this;
+    }
+
+    /**
+     * Search the neighbors of a single query object in a reference subtree.
+     *
+     * @param q Query position
+     * @param qv Query vector
+     * @param rl Reference subtree begin
+     * @param rr Reference subtree end (exclusive)
+     * @param raxis Reference splitting axis
+     * @param rn Reference node number
+     */
+    private void point(int q, O qv, int rl, int rr, int raxis, int rn) {
+      if(distance.minDist(qv, boxes[rn]) > heaps[q].getKNNDistance()) {
+        return;
+      }
+      if(rr - rl <= leafsize) {
+        for(int r = rl; r < rr; r++) {
+          insert(q, qv, r);
+        }
+        return;
+      }
+      final int rm = (rl + rr) >>> 1, next = next(raxis);
+      final boolean onleft = qv.doubleValue(raxis) <= insert(q, qv, rm).doubleValue(raxis);
+      final int ln = (rn << 1) + 1, hn = ln + 1;
+      if(onleft ? rl < rm : rm + 1 < rr) {
+        point(q, qv, onleft ? rl : rm + 1, onleft ? rm : rr, next, onleft ? ln : hn);
+      }
+      if(onleft ? rm + 1 < rr : rl < rm) {
+        point(q, qv, onleft ? rm + 1 : rl, onleft ? rr : rm, next, onleft ? hn : ln);
+      }
+    }
+
+    /**
+     * Offer a single reference object to the objects of a query subtree.
+     *
+     * @param r Reference position
+     * @param rv Reference vector
+     * @param ql Query subtree begin
+     * @param qr Query subtree end (exclusive)
+     * @param qn Query node number
+     */
+    private void reference(int r, O rv, int ql, int qr, int qn) {
+      if(distance.minDist(rv, boxes[qn]) > bounds[qn]) {
+        return;
+      }
+      if(qr - ql <= leafsize) {
+        for(int q = ql; q < qr; q++) {
+          insert(q, get(q), r, rv);
+        }
+        updateBound(ql, qr, qn);
+        return;
+      }
+      final int qm = (ql + qr) >>> 1;
+      insert(qm, get(qm), r, rv);
+      if(ql < qm) {
+        reference(r, rv, ql, qm, (qn << 1) + 1);
+      }
+      if(qm + 1 < qr) {
+        reference(r, rv, qm + 1, qr, (qn << 1) + 2);
+      }
+      updateBound(ql, qr, qn);
+    }
+
+    /**
+     * Recompute the kNN distance bound of a query node from its children.
+     *
+     * @param ql Query subtree begin
+     * @param qr Query subtree end (exclusive)
+     * @param qn Query node number
+     */
+    private void updateBound(int ql, int qr, int qn) {
+      if(qr - ql <= leafsize) {
+        double max = 0.;
+        for(int q = ql; q < qr; q++) {
+          max = Math.max(max, heaps[q].getKNNDistance());
+        }
+        bounds[qn] = max;
+        return;
+      }
+      final int qm = (ql + qr) >>> 1;
+      double max = heaps[qm].getKNNDistance();
+      max = ql < qm ? Math.max(max, bounds[(qn << 1) + 1]) : max;
+      max = qm + 1 < qr ? Math.max(max, bounds[(qn << 1) + 2]) : max;
+      bounds[qn] = max;
+    }
+
+    /**
+     * Compute the distance of a query to a reference object, and update the
+     * heap of the query.
+     *
+     * @param q Query position
+     * @param qv Query vector
+     * @param r Reference position
+     * @return Reference vector
+     */
+    private O insert(int q, O qv, int r) {
+      final O rv = get(r);
+      insert(q, qv, r, rv);
+      return rv;
+    }
+
+    /**
+     * Compute the distance of a query to a reference object, and update the
+     * heap of the query.
+     *
+     * @param q Query position
+     * @param qv Query vector
+     * @param r Reference position
+     * @param rv Reference vector
+     */
+    private void insert(int q, O qv, int r, O rv) {
+      final double d = distance.distance(qv, rv);
+      ++distcalc;
+      final KNNHeap heap = heaps[q];
+      if(d <= heap.getKNNDistance()) {
+        heap.insert(d, iter.seek(r));
+      }
+    }
+
+    /**
+     * Get the vector at a position.
+     *
+     * @param pos Position
+     * @return Vector
+     */
+    private O get(int pos) {
+      ++objaccess;
+      return relation.get(iter.seek(pos));
+    }
+  }
+}
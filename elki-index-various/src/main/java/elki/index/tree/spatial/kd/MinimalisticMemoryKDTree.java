@@ -25,6 +25,7 @@ import elki.data.VectorUtil;
 import elki.data.VectorUtil.SortDBIDsBySingleDimension;
 import elki.data.type.TypeInformation;
 import elki.data.type.TypeUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.PrioritySearcher;
 import elki.database.query.distance.DistanceQuery;
@@ -34,11 +35,13 @@ import elki.database.relation.Relation;
 import elki.database.relation.RelationUtil;
 import elki.distance.Distance;
 import elki.distance.PrimitiveDistance;
+import elki.distance.SpatialPrimitiveDistance;
 import elki.distance.minkowski.LPNormDistance;
 import elki.distance.minkowski.SparseLPNormDistance;
 import elki.distance.minkowski.SquaredEuclideanDistance;
 import elki.index.DistancePriorityIndex;
 import elki.index.IndexFactory;
+import elki.index.KNNJoinIndex;
 import elki.logging.Logging;
 import elki.logging.statistics.Counter;
 import elki.utilities.Alias;
@@ -56,6 +59,9 @@ import elki.utilities.optionhandling.parameters.IntParameter;
  * all it uses is one {@link ArrayModifiableDBIDs} to sort the data in a
  * serialized tree.
  * <p>
+ * The k nearest neighbors of all objects can be computed at once with a
+ * dual-tree join, see {@link #kNNJoin}.
+ * <p>
  * Reference:
  * <p>
  * J. L. Bentley<br>
@@ -82,7 +88,7 @@ import elki.utilities.optionhandling.parameters.IntParameter;
     booktitle = "Communications of the ACM 18(9)", //
     url = "https://doi.org/10.1145/361002.361007", //
     bibkey = "DBLP:journals/cacm/Bentley75")
-public class MinimalisticMemoryKDTree<O extends NumberVector> implements DistancePriorityIndex<O> {
+public class MinimalisticMemoryKDTree<O extends NumberVector> implements DistancePriorityIndex<O>, KNNJoinIndex<O> {
   /**
    * Class logger
    */
@@ -236,6 +242,17 @@ public class MinimalisticMemoryKDTree<O extends NumberVector> implements Distanc
     }
   }
 
+  /**
+   * Count multiple object accesses.
+   *
+   * @param count Number of accesses
+   */
+  protected void countObjectAccess(long count) {
+    if(objaccess != null) {
+      objaccess.increment(count);
+    }
+  }
+
   /**
    * Count a distance computation.
    */
@@ -245,6 +262,17 @@ public class MinimalisticMemoryKDTree<O extends NumberVector> implements Distanc
     }
   }
 
+  /**
+   * Count multiple distance computations.
+   *
+   * @param count Number of computations
+   */
+  protected void countDistanceComputation(long count) {
+    if(distcalc != null) {
+      distcalc.increment(count);
+    }
+  }
+
   @Override
   public KNNSearcher<O> kNNByObject(DistanceQuery<O> distanceQuery, int maxk, int flags) {
     Distance<? super O> df = distanceQuery.getDistance();
@@ -278,6 +306,20 @@ public class MinimalisticMemoryKDTree<O extends NumberVector> implements Distanc
     return null;
   }
 
+  @Override
+  public boolean kNNJoin(DistanceQuery<O> distanceQuery, int k, WritableDataStore<KNNList> result) {
+    Distance<? super O> df = distanceQuery.getDistance();
+    if(distanceQuery.getRelation() != relation || //
+        !(df instanceof LPNormDistance || df instanceof SquaredEuclideanDistance)) {
+      return false;
+    }
+    KDTreeKNNJoin<O> join = new KDTreeKNNJoin<>(relation, sorted::iter, sorted.size(), dims, leafsize, (SpatialPrimitiveDistance<? super O>) df);
+    join.run(k, result);
+    countObjectAccess(join.getObjectAccesses());
+    countDistanceComputation(join.getDistanceComputations());
+    return true;
+  }
+
   /**
    * kNN query for the k-d-tree.
    *
@@ -20,9 +20,17 @@
  */
 package elki.index.tree.spatial.kd;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import elki.data.NumberVector;
 import elki.data.type.TypeInformation;
 import elki.data.type.TypeUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.PrioritySearcher;
 import elki.database.query.distance.DistanceQuery;
@@ -32,13 +40,20 @@ import elki.database.relation.Relation;
 import elki.database.relation.RelationUtil;
 import elki.distance.Distance;
 import elki.distance.PrimitiveDistance;
+import elki.distance.SpatialPrimitiveDistance;
 import elki.distance.minkowski.LPNormDistance;
 import elki.distance.minkowski.SparseLPNormDistance;
 import elki.distance.minkowski.SquaredEuclideanDistance;
 import elki.index.DistancePriorityIndex;
 import elki.index.IndexFactory;
+import elki.index.KNNJoinIndex;
+import elki.index.snapshot.Fingerprint;
+import elki.index.snapshot.IndexSnapshot;
+import elki.index.snapshot.SnapshotInput;
 import elki.logging.Logging;
 import elki.logging.statistics.Counter;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.Alias;
 import elki.utilities.datastructures.heap.ComparableMinHeap;
 import elki.utilities.documentation.Reference;
@@ -46,6 +61,7 @@ import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.Parameterizer;
 import elki.utilities.optionhandling.constraints.CommonConstraints;
 import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
 import elki.utilities.optionhandling.parameters.IntParameter;
 
 /**
@@ -58,6 +74,15 @@ import elki.utilities.optionhandling.parameters.IntParameter;
  * it is also considerably faster because it does not need to lookup this value
  * from the vectors.
  * <p>
+ * Large trees are built in parallel, as the two halves of each split can be
+ * partitioned independently; the result is the same as when built serially.
+ * <p>
+ * The k nearest neighbors of all objects can be computed at once with a
+ * dual-tree join, see {@link #kNNJoin}.
+ * <p>
+ * The built tree can be stored in an {@link IndexSnapshot}, and is loaded from
+ * there in later runs on the same data.
+ * <p>
  * Reference:
  * <p>
  * J. L. Bentley<br>
@@ -79,12 +104,17 @@ import elki.utilities.optionhandling.parameters.IntParameter;
     booktitle = "Communications of the ACM 18(9)", //
     url = "https://doi.org/10.1145/361002.361007", //
     bibkey = "DBLP:journals/cacm/Bentley75")
-public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriorityIndex<O> {
+public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriorityIndex<O>, KNNJoinIndex<O> {
   /**
    * Class logger
    */
   private static final Logging LOG = Logging.getLogger(SmallMemoryKDTree.class);
 
+  /**
+   * Minimum number of objects to build the tree in parallel.
+   */
+  static final int PARALLEL_THRESHOLD = 1 << 15;
+
   /**
    * The representation we are bound to.
    */
@@ -115,6 +145,11 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
    */
   protected final Counter distcalc;
 
+  /**
+   * Snapshot file, may be {@code null}.
+   */
+  protected Path snapshot;
+
   /**
    * Constructor.
    *
@@ -122,8 +157,20 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
    * @param leafsize Maximum size of leaf nodes
    */
   public SmallMemoryKDTree(Relation<O> relation, int leafsize) {
+    this(relation, leafsize, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param relation Relation to index
+   * @param leafsize Maximum size of leaf nodes
+   * @param snapshot Snapshot file, may be {@code null}
+   */
+  public SmallMemoryKDTree(Relation<O> relation, int leafsize, Path snapshot) {
     this.relation = relation;
     this.leafsize = leafsize;
+    this.snapshot = snapshot;
     assert (leafsize >= 1);
     if(LOG.isStatistics()) {
       String prefix = this.getClass().getName();
@@ -138,12 +185,74 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
 
   @Override
   public void initialize() {
-    sorted = DBIDUtil.newDistanceDBIDList(relation.size());
     dims = RelationUtil.dimensionality(relation);
+    if(snapshot == null) {
+      build();
+      return;
+    }
+    final long fingerprint = new Fingerprint(SmallMemoryKDTree.class) //
+        .add(leafsize).add(relation).get();
+    if(!IndexSnapshot.load(snapshot, fingerprint, LOG, this::readSnapshot)) {
+      build();
+      IndexSnapshot.save(snapshot, fingerprint, LOG, out -> out.writeDoubleDBIDList(sorted));
+    }
+  }
+
+  /**
+   * Read the tree from a snapshot.
+   *
+   * @param in Snapshot input
+   * @throws IOException on read errors
+   */
+  private void readSnapshot(SnapshotInput in) throws IOException {
+    ModifiableDoubleDBIDList list = in.readDoubleDBIDList();
+    if(list.size() != relation.size()) {
+      throw new IOException("Snapshot size does not match.");
+    }
+    sorted = list;
+  }
+
+  /**
+   * Build the tree.
+   */
+  private void build() {
+    sorted = DBIDUtil.newDistanceDBIDList(relation.size());
     for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
       sorted.add(Double.NaN, it);
     }
-    buildTree(0, sorted.size(), 0, sorted.iter());
+    final int size = sorted.size();
+    final ParallelCore core = ParallelCore.getCore();
+    if(size < PARALLEL_THRESHOLD || core.isWorkerThread()) {
+      countObjectAccess(buildTree(0, size, 0, sorted.iter()));
+      return;
+    }
+    // Split level by level in parallel, until the subtrees are small enough
+    // to be built by independent tasks. The result is the same as above.
+    final int target = Math.max(PARALLEL_THRESHOLD >>> 1, size / (core.getParallelism() << 2));
+    List<int[]> open = new ArrayList<>(), small = new ArrayList<>();
+    open.add(new int[] { 0, size, 0 });
+    while(!open.isEmpty()) {
+      List<Callable<Integer>> tasks = new ArrayList<>(open.size());
+      for(int[] r : open) {
+        tasks.add(() -> split(r[0], r[1], r[2], sorted.iter()));
+      }
+      countAll(ParallelExecutor.run(tasks));
+      List<int[]> next = new ArrayList<>(open.size() << 1);
+      for(int[] r : open) {
+        final int middle = (r[0] + r[1]) >>> 1, axis = next(r[2]);
+        for(int[] c : new int[][] { { r[0], middle, axis }, { middle + 1, r[1], axis } }) {
+          if(c[0] < c[1]) {
+            (c[1] - c[0] > target ? next : small).add(c);
+          }
+        }
+      }
+      open = next;
+    }
+    List<Callable<Integer>> tasks = new ArrayList<>(small.size());
+    for(int[] r : small) {
+      tasks.add(() -> buildTree(r[0], r[1], r[2], sorted.iter()));
+    }
+    countAll(ParallelExecutor.run(tasks));
   }
 
   /**
@@ -155,26 +264,54 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
    * @param right Interval maximum
    * @param axis Current splitting axis
    * @param iter Iterator
+   * @return Number of object accesses
    */
-  private void buildTree(int left, int right, int axis, DoubleDBIDListMIter iter) {
-    assert (left < right);
-    for(iter.seek(left); iter.getOffset() < right; iter.advance()) {
-      iter.setDouble(relation.get(iter).doubleValue(axis));
-      countObjectAccess();
-    }
+  private int buildTree(int left, int right, int axis, DoubleDBIDListMIter iter) {
+    int accesses = split(left, right, axis, iter);
     if(right - left <= leafsize) {
-      return;
+      return accesses;
     }
-
     int middle = (left + right) >>> 1;
-    QuickSelectDBIDs.quickSelect(sorted, left, right, middle);
     final int next = next(axis);
     if(left < middle) {
-      buildTree(left, middle, next, iter);
+      accesses += buildTree(left, middle, next, iter);
     }
     ++middle;
     if(middle < right) {
-      buildTree(middle, right, next, iter);
+      accesses += buildTree(middle, right, next, iter);
+    }
+    return accesses;
+  }
+
+  /**
+   * Store the values of the current axis, and partition the interval at the
+   * median unless it becomes a leaf.
+   *
+   * @param left Interval minimum
+   * @param right Interval maximum
+   * @param axis Current splitting axis
+   * @param iter Iterator
+   * @return Number of object accesses
+   */
+  private int split(int left, int right, int axis, DoubleDBIDListMIter iter) {
+    assert (left < right);
+    for(iter.seek(left); iter.getOffset() < right; iter.advance()) {
+      iter.setDouble(relation.get(iter).doubleValue(axis));
+    }
+    if(right - left > leafsize) {
+      QuickSelectDBIDs.quickSelect(sorted, left, right, (left + right) >>> 1);
+    }
+    return right - left;
+  }
+
+  /**
+   * Sum up the object accesses of parallel tasks.
+   *
+   * @param accesses Object accesses per task
+   */
+  private void countAll(List<Integer> accesses) {
+    for(Integer a : accesses) {
+      countObjectAccess(a);
     }
   }
 
@@ -207,6 +344,17 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
     }
   }
 
+  /**
+   * Count multiple object accesses.
+   *
+   * @param count Number of accesses
+   */
+  protected void countObjectAccess(long count) {
+    if(objaccess != null) {
+      objaccess.increment(count);
+    }
+  }
+
   /**
    * Count a distance computation.
    */
@@ -216,6 +364,17 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
     }
   }
 
+  /**
+   * Count multiple distance computations.
+   *
+   * @param count Number of computations
+   */
+  protected void countDistanceComputation(long count) {
+    if(distcalc != null) {
+      distcalc.increment(count);
+    }
+  }
+
   @Override
   public KNNSearcher<O> kNNByObject(DistanceQuery<O> distanceQuery, int maxk, int flags) {
     Distance<? super O> df = distanceQuery.getDistance();
@@ -249,6 +408,20 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
     return null;
   }
 
+  @Override
+  public boolean kNNJoin(DistanceQuery<O> distanceQuery, int k, WritableDataStore<KNNList> result) {
+    Distance<? super O> df = distanceQuery.getDistance();
+    if(distanceQuery.getRelation() != relation || //
+        !(df instanceof LPNormDistance || df instanceof SquaredEuclideanDistance)) {
+      return false;
+    }
+    KDTreeKNNJoin<O> join = new KDTreeKNNJoin<>(relation, sorted::iter, sorted.size(), dims, leafsize, (SpatialPrimitiveDistance<? super O>) df);
+    join.run(k, result);
+    countObjectAccess(join.getObjectAccesses());
+    countDistanceComputation(join.getDistanceComputations());
+    return true;
+  }
+
   /**
    * kNN query for the k-d-tree.
    *
@@ -665,6 +838,11 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
      */
     int leafsize;
 
+    /**
+     * Snapshot file, may be {@code null}.
+     */
+    Path snapshot;
+
     /**
      * Constructor.
      */
@@ -678,13 +856,24 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
      * @param leafsize Maximum size of leaf nodes.
      */
     public Factory(int leafsize) {
+      this(leafsize, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param leafsize Maximum size of leaf nodes.
+     * @param snapshot Snapshot file, may be {@code null}
+     */
+    public Factory(int leafsize, Path snapshot) {
       super();
       this.leafsize = leafsize;
+      this.snapshot = snapshot;
     }
 
     @Override
     public SmallMemoryKDTree<O> instantiate(Relation<O> relation) {
-      return new SmallMemoryKDTree<>(relation, leafsize);
+      return new SmallMemoryKDTree<>(relation, leafsize, snapshot);
     }
 
     @Override
@@ -708,16 +897,24 @@ public class SmallMemoryKDTree<O extends NumberVector> implements DistancePriori
        */
       int leafsize;
 
+      /**
+       * Snapshot file.
+       */
+      Path snapshot;
+
       @Override
       public void configure(Parameterization config) {
         new IntParameter(LEAFSIZE_P, 1) //
             .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
             .grab(config, x -> leafsize = x);
+        new FileParameter(IndexSnapshot.SNAPSHOT_ID, FileParameter.FileType.OUTPUT_FILE) //
+            .setOptional(true) //
+            .grab(config, x -> snapshot = Paths.get(x));
       }
 
       @Override
       public Factory<O> make() {
-        return new Factory<>(leafsize);
+        return new Factory<>(leafsize, snapshot);
       }
     }
   }
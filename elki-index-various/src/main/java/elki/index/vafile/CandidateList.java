@@ -0,0 +1,252 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.vafile;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ToDoubleFunction;
+
+import elki.database.ids.DBIDArrayIter;
+import elki.database.ids.DBIDRef;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.KNNHeap;
+import elki.database.ids.KNNList;
+import elki.utilities.datastructures.arrays.DoubleIntegerArrayQuickSort;
+import elki.utilities.datastructures.heap.DoubleHeap;
+import elki.utilities.datastructures.heap.DoubleMaxHeap;
+
+import net.jafama.FastMath;
+
+/**
+ * Candidates of the filter step of a kNN query on vector approximations.
+ * <p>
+ * The candidates are stored in parallel arrays of record numbers, and lower
+ * and upper bounds (in the p-th power, to avoid root computations). A
+ * candidate is only kept if its lower bound does not exceed the k-th smallest
+ * upper bound seen so far.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+class CandidateList {
+  /**
+   * Number of candidates to refine at once, in the order of the records.
+   */
+  private static final int REFINE_BATCH = 64;
+
+  /**
+   * Number of neighbors.
+   */
+  final int k;
+
+  /**
+   * Record numbers.
+   */
+  int[] recs;
+
+  /**
+   * Lower bounds, in the p-th power.
+   */
+  double[] minDistP;
+
+  /**
+   * Upper bounds, in the p-th power.
+   */
+  double[] maxDistP;
+
+  /**
+   * Number of candidates.
+   */
+  int size;
+
+  /**
+   * Heap of the k smallest upper bounds.
+   */
+  final DoubleMaxHeap minMaxHeap;
+
+  /**
+   * Constructor.
+   *
+   * @param k Number of neighbors
+   */
+  CandidateList(int k) {
+    this.k = k;
+    this.recs = new int[16];
+    this.minDistP = new double[16];
+    this.maxDistP = new double[16];
+    this.minMaxHeap = new DoubleMaxHeap(k + 1);
+  }
+
+  /**
+   * Current pruning bound: the k-th smallest upper bound.
+   *
+   * @return Bound
+   */
+  double bound() {
+    return minMaxHeap.size() >= k ? minMaxHeap.peek() : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Add a candidate, unless it can be pruned.
+   *
+   * @param rec Record number
+   * @param minP Lower bound, in the p-th power
+   * @param maxP Upper bound, in the p-th power
+   */
+  void add(int rec, double minP, double maxP) {
+    if(minP > bound()) {
+      return;
+    }
+    if(size == recs.length) {
+      final int newsize = size + (size >>> 1);
+      recs = Arrays.copyOf(recs, newsize);
+      minDistP = Arrays.copyOf(minDistP, newsize);
+      maxDistP = Arrays.copyOf(maxDistP, newsize);
+    }
+    recs[size] = rec;
+    minDistP[size] = minP;
+    maxDistP[size] = maxP;
+    ++size;
+    minMaxHeap.add(maxP, k);
+  }
+
+  /**
+   * Merge the candidates of several blocks, and prune them with the combined
+   * bound.
+   *
+   * @param blocks Candidates of each block
+   * @param k Number of neighbors
+   * @return Merged candidates
+   */
+  static CandidateList merge(List<CandidateList> blocks, int k) {
+    if(blocks.size() == 1) {
+      return blocks.get(0).prune();
+    }
+    CandidateList merged = new CandidateList(k);
+    for(CandidateList b : blocks) {
+      for(DoubleHeap.UnsortedIter it = b.minMaxHeap.unsortedIter(); it.valid(); it.advance()) {
+        merged.minMaxHeap.add(it.get(), k);
+      }
+    }
+    final double bound = merged.bound();
+    for(CandidateList b : blocks) {
+      for(int i = 0; i < b.size; i++) {
+        if(b.minDistP[i] <= bound) {
+          merged.append(b.recs[i], b.minDistP[i], b.maxDistP[i]);
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Append a candidate without updating the bound.
+   *
+   * @param rec Record number
+   * @param minP Lower bound, in the p-th power
+   * @param maxP Upper bound, in the p-th power
+   */
+  private void append(int rec, double minP, double maxP) {
+    if(size == recs.length) {
+      final int newsize = size + (size >>> 1);
+      recs = Arrays.copyOf(recs, newsize);
+      minDistP = Arrays.copyOf(minDistP, newsize);
+      maxDistP = Arrays.copyOf(maxDistP, newsize);
+    }
+    recs[size] = rec;
+    minDistP[size] = minP;
+    maxDistP[size] = maxP;
+    ++size;
+  }
+
+  /**
+   * Remove the candidates that do not satisfy the final bound.
+   *
+   * @return this
+   */
+  CandidateList prune() {
+    final double bound = bound();
+    int j = 0;
+    for(int i = 0; i < size; i++) {
+      if(minDistP[i] <= bound) {
+        recs[j] = recs[i];
+        minDistP[j] = minDistP[i];
+        maxDistP[j] = maxDistP[i];
+        ++j;
+      }
+    }
+    size = j;
+    return this;
+  }
+
+  /**
+   * Sort the candidates by their lower bound.
+   */
+  void sort() {
+    int[] idx = new int[size];
+    for(int i = 0; i < size; i++) {
+      idx[i] = i;
+    }
+    double[] keys = Arrays.copyOf(minDistP, size);
+    DoubleIntegerArrayQuickSort.sort(keys, idx, size);
+    int[] nrecs = new int[size];
+    double[] nmax = new double[size];
+    for(int i = 0; i < size; i++) {
+      nrecs[i] = recs[idx[i]];
+      nmax[i] = maxDistP[idx[i]];
+    }
+    recs = nrecs;
+    minDistP = keys;
+    maxDistP = nmax;
+  }
+
+  /**
+   * Refine the candidates, sorted by lower bound, until the remaining lower
+   * bounds exceed the k-th distance. The candidates are refined in small
+   * batches in the order of the records, for sequential access.
+   *
+   * @param it Iterator over the records
+   * @param p Exponent of the bounds
+   * @param refine Refinement function
+   * @return kNN list
+   */
+  KNNList refineKNN(DBIDArrayIter it, double p, ToDoubleFunction<DBIDRef> refine) {
+    KNNHeap result = DBIDUtil.newHeap(k);
+    long[] order = new long[Math.min(size, Math.max(k, REFINE_BATCH))];
+    double kdistP = Double.POSITIVE_INFINITY;
+    for(int start = 0; start < size && minDistP[start] <= kdistP;) {
+      final int end = Math.min(size, start + order.length);
+      for(int i = start; i < end; i++) {
+        order[i - start] = ((long) recs[i] << 32) | i;
+      }
+      Arrays.sort(order, 0, end - start);
+      for(int j = 0; j < end - start; j++) {
+        final int i = (int) order[j];
+        if(minDistP[i] <= kdistP) {
+          result.insert(refine.applyAsDouble(it.seek(recs[i])), it);
+          kdistP = result.size() >= k ? FastMath.pow(result.getKNNDistance(), p) : Double.POSITIVE_INFINITY;
+        }
+      }
+      start = end;
+    }
+    return result.toKNNList();
+  }
+}
@@ -32,6 +32,9 @@ import elki.utilities.io.ByteArrayUtil;
  * Dimension approximation file, a one-dimensional part of the
  * {@link PartialVAFile}.
  * <p>
+ * The grid cells of all objects are stored bit-packed in a single column, so
+ * that the filter step can scan one dimension at a time.
+ * <p>
  * Reference:
  * <p>
  * Hans-Peter Kriegel, Peer Kröger, Matthias Schubert, Ziyue Zhu<br>
@@ -60,6 +63,11 @@ public class DAFile {
    */
   private final double[] splitPositions;
 
+  /**
+   * Grid cells of the objects, in the order of the relation.
+   */
+  private final PackedApproximations cells;
+
   /**
    * Constructor.
    * 
@@ -86,6 +94,13 @@ public class DAFile {
     }
     // make sure that last object will be included
     splitPositions[partitions] = tempdata[size - 1] + 0.000001;
+
+    cells = new PackedApproximations(size, 1, partitions);
+    j = 0;
+    for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
+      final int pos = Arrays.binarySearch(splitPositions, relation.get(iditer).doubleValue(dimension));
+      cells.set(j++, 0, Math.min(Math.max(pos >= 0 ? pos : -pos - 2, 0), partitions - 1));
+    }
   }
 
   /**
@@ -97,6 +112,15 @@ public class DAFile {
     return splitPositions;
   }
 
+  /**
+   * Get the packed grid cells of all objects.
+   *
+   * @return Grid cells, in the order of the relation
+   */
+  public PackedApproximations getCells() {
+    return cells;
+  }
+
   /**
    * Return the dimension we indexed.
    * 
@@ -0,0 +1,266 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.vafile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
+
+/**
+ * Bit-packed storage of grid cell numbers of many vector approximations.
+ * <p>
+ * The cells are stored as one contiguous stream, record by record and
+ * dimension by dimension, with as many cells per {@code long} as fit without
+ * crossing word boundaries. Bounds are computed by summing per-query lookup
+ * tables, indexed by {@code dimension * partitions + cell}, which only needs
+ * shifts and masks on sequentially read memory.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class PackedApproximations {
+  /**
+   * Minimum number of records to scan in parallel.
+   */
+  static final int PARALLEL_THRESHOLD = 1 << 14;
+
+  /**
+   * Minimum number of records per block of a parallel scan.
+   */
+  private static final int MIN_BLOCK_SIZE = 1 << 12;
+
+  /**
+   * Packed cell numbers.
+   */
+  private final long[] data;
+
+  /**
+   * Number of records.
+   */
+  private final int size;
+
+  /**
+   * Dimensionality.
+   */
+  private final int dims;
+
+  /**
+   * Number of partitions, i.e., the stride of the lookup tables.
+   */
+  private final int partitions;
+
+  /**
+   * Number of bits per cell.
+   */
+  private final int bits;
+
+  /**
+   * Number of cells per word.
+   */
+  private final int perWord;
+
+  /**
+   * Bit mask of a single cell.
+   */
+  private final long mask;
+
+  /**
+   * Constructor.
+   *
+   * @param size Number of records
+   * @param dims Dimensionality
+   * @param partitions Number of partitions per dimension
+   */
+  public PackedApproximations(int size, int dims, int partitions) {
+    this.size = size;
+    this.dims = dims;
+    this.partitions = partitions;
+    this.bits = Math.max(1, 32 - Integer.numberOfLeadingZeros(partitions - 1));
+    this.perWord = Long.SIZE / bits;
+    this.mask = (1L << bits) - 1;
+    // One extra word, so that scans may read ahead.
+    this.data = new long[(int) (((long) size * dims + perWord - 1) / perWord) + 1];
+  }
+
+  /**
+   * Number of records.
+   *
+   * @return Size
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the dimensionality.
+   *
+   * @return Dimensionality
+   */
+  public int getDimensionality() {
+    return dims;
+  }
+
+  /**
+   * Store the cell of a record.
+   *
+   * @param rec Record number
+   * @param dim Dimension
+   * @param cell Cell number
+   */
+  public void set(int rec, int dim, int cell) {
+    assert cell >= 0 && cell < partitions;
+    final long i = (long) rec * dims + dim;
+    final int w = (int) (i / perWord), s = (int) (i - (long) w * perWord) * bits;
+    data[w] = (data[w] & ~(mask << s)) | ((long) cell << s);
+  }
+
+  /**
+   * Store the approximation of a record.
+   *
+   * @param rec Record number
+   * @param approx Vector approximation
+   */
+  public void set(int rec, VectorApproximation approx) {
+    for(int d = 0; d < dims; d++) {
+      set(rec, d, approx.getApproximation(d));
+    }
+  }
+
+  /**
+   * Get the cell of a record.
+   *
+   * @param rec Record number
+   * @param dim Dimension
+   * @return Cell number
+   */
+  public int get(int rec, int dim) {
+    final long i = (long) rec * dims + dim;
+    final int w = (int) (i / perWord), s = (int) (i - (long) w * perWord) * bits;
+    return (int) ((data[w] >>> s) & mask);
+  }
+
+  /**
+   * Sum the lookup table entries of the cells of a record.
+   *
+   * @param rec Record number
+   * @param table Lookup table, indexed by {@code dim * partitions + cell}
+   * @return Sum
+   */
+  public double sum(int rec, double[] table) {
+    final long i = (long) rec * dims;
+    int w = (int) (i / perWord), c = (int) (i - (long) w * perWord);
+    long word = data[w] >>> (c * bits);
+    double sum = 0;
+    for(int off = 0, end = dims * partitions; off < end; off += partitions) {
+      sum += table[off + (int) (word & mask)];
+      if(++c == perWord) {
+        word = data[++w];
+        c = 0;
+      }
+      else {
+        word >>>= bits;
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Add the lookup table entries of a range of records, for single-dimensional
+   * approximations, as used by {@link DAFile}.
+   *
+   * @param start First record
+   * @param end End record (exclusive)
+   * @param table Lookup table, indexed by {@code off + cell}
+   * @param off Offset in the lookup table
+   * @param acc Accumulator, indexed by {@code rec - start}
+   */
+  public void accumulate(int start, int end, double[] table, int off, double[] acc) {
+    assert dims == 1;
+    int w = start / perWord, c = start - w * perWord;
+    long word = data[w] >>> (c * bits);
+    for(int i = 0, n = end - start; i < n; i++) {
+      acc[i] += table[off + (int) (word & mask)];
+      if(++c == perWord) {
+        word = data[++w];
+        c = 0;
+      }
+      else {
+        word >>>= bits;
+      }
+    }
+  }
+
+  /**
+   * Size of the packed data, in bytes.
+   *
+   * @return Size in bytes
+   */
+  public long byteSize() {
+    return (long) data.length * Long.BYTES;
+  }
+
+  /**
+   * Scan a range of records, in parallel blocks if the range is large.
+   *
+   * @param size Number of records
+   * @param scanner Block scanner
+   * @param <T> Block result type
+   * @return Block results, in the order of the records
+   */
+  public static <T> List<T> scan(int size, BlockScanner<T> scanner) {
+    final ParallelCore core = ParallelCore.getCore();
+    if(size < PARALLEL_THRESHOLD || core.isWorkerThread()) {
+      List<T> res = new ArrayList<>(1);
+      res.add(scanner.scan(0, size));
+      return res;
+    }
+    final int parts = core.getParallelism() << 2;
+    final int blocksize = Math.max(MIN_BLOCK_SIZE, (size + parts - 1) / parts);
+    List<Callable<T>> tasks = new ArrayList<>((size + blocksize - 1) / blocksize);
+    for(int start = 0; start < size; start += blocksize) {
+      final int s = start, e = Math.min(size, start + blocksize);
+      tasks.add(() -> scanner.scan(s, e));
+    }
+    return ParallelExecutor.run(tasks);
+  }
+
+  /**
+   * Scan a block of records.
+   *
+   * @author Erich Schubert
+   *
+   * @param <T> Result type
+   */
+  @FunctionalInterface
+  public interface BlockScanner<T> {
+    /**
+     * Scan a block of records.
+     *
+     * @param start First record
+     * @param end End record (exclusive)
+     * @return Block result
+     */
+    T scan(int start, int end);
+  }
+}
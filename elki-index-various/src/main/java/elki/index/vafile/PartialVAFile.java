@@ -44,7 +44,7 @@ import elki.logging.statistics.Counter;
 import elki.math.MathUtil;
 import elki.persistent.AbstractPageFileFactory;
 import elki.utilities.datastructures.BitsUtil;
-import elki.utilities.datastructures.heap.DoubleMaxHeap;
+import elki.utilities.datastructures.arraylike.IntegerArray;
 import elki.utilities.documentation.Reference;
 import elki.utilities.io.ByteArrayUtil;
 import elki.utilities.optionhandling.OptionID;
@@ -67,7 +67,9 @@ import net.jafama.FastMath;
  * Proc. 18th Int. Conf. on Scientific and Statistical Database Management
  * (SSDBM 06)
  * <p>
- * TODO: This needs to be optimized more low-level.
+ * The grid cells are stored bit-packed per dimension, see {@link DAFile}. The
+ * first filter step scans these columns in parallel blocks, and refinement
+ * candidates are visited in the order of the data set, for sequential access.
  *
  * @author Thomas Bernecker
  * @author Erich Schubert
@@ -75,7 +77,6 @@ import net.jafama.FastMath;
  *
  * @opt nodefillcolor LemonChiffon
  * @composed - - - DAFile
- * @has - - - PartialVACandidate
  * @has - - - PartialVAFileRangeQuery
  * @has - - - PartialVAFileKNNQuery
  *
@@ -118,9 +119,9 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
   protected Statistics stats;
 
   /**
-   * The (full - we are in-memory only right now) vector approximations.
+   * Objects indexed, in the order of the approximations.
    */
-  private ArrayList<VectorApproximation> vectorApprox;
+  private ArrayDBIDs ids;
 
   /**
    * Constructor.
@@ -154,10 +155,7 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
       daFiles.add(f);
     }
 
-    vectorApprox = new ArrayList<>();
-    for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
-      vectorApprox.add(calculateFullApproximation(iter, relation.get(iter)));
-    }
+    ids = DBIDUtil.ensureArray(relation.getDBIDs());
   }
 
   @Override
@@ -367,69 +365,6 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
     }
   }
 
-  /**
-   * Object in a VA approximation.
-   * 
-   * @author Thomas Bernecker
-   * @author Erich Schubert
-   */
-  protected static class PartialVACandidate implements Comparable<PartialVACandidate> {
-    /**
-     * (Current) maximum distance of this candidate.
-     */
-    protected double maxDistP = 0.0;
-
-    /**
-     * (Current) minimum distance of this candidate.
-     */
-    protected double minDistP = 0.0;
-
-    /**
-     * The actual approximation.
-     */
-    private final VectorApproximation approx;
-
-    /**
-     * 
-     * Constructor.
-     * 
-     * @param approx The actual approximation
-     */
-    public PartialVACandidate(VectorApproximation approx) {
-      super();
-      this.approx = approx;
-    }
-
-    /**
-     * Get a single approximation value.
-     *
-     * @param dimension Dimension
-     * @return Value
-     */
-    public int getApproximation(int dimension) {
-      return approx.getApproximation(dimension);
-    }
-
-    /**
-     * Get the vector approximation.
-     *
-     * @return Vector approximation
-     */
-    public DBIDRef getApprox() {
-      return approx;
-    }
-
-    @Override
-    public String toString() {
-      return approx.toString() + ", bounds^p: [" + minDistP + ", " + maxDistP + "]";
-    }
-
-    @Override
-    public int compareTo(PartialVACandidate o) {
-      return Double.compare(this.minDistP, o.minDistP);
-    }
-  }
-
   /**
    * Range query for this index.
    * 
@@ -486,39 +421,58 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
       // TODO: validate that this is the correct order
       Collections.sort(subspaceDAFiles, Collections.reverseOrder());
 
-      // create candidate list (all objects) and prune candidates w.r.t.
-      // mindist (i.e. remove them from the list)
-      // important: this structure contains the maxDist values for refinement!
-      int candidates = 0;
-      for(VectorApproximation va : vectorApprox) {
-        PartialVACandidate pva = new PartialVACandidate(va);
-
-        boolean pruned = false;
+      // Filter step: scan the DA files in parallel blocks. The first, most
+      // selective, dimension is scanned sequentially, the remaining
+      // dimensions only for the objects not yet pruned.
+      final double[] mintable = dist.getMinDistTable(partitions);
+      List<IntegerArray> blocks = PackedApproximations.scan(ids.size(), (start, end) -> {
+        final int n = end - start;
+        double[] minDistP = new double[n];
+        int[] active = null;
+        int size = n;
         for(DoubleObjPair<DAFile> da : subspaceDAFiles) {
-          int dimension = da.second.getDimension();
-          int objectCell = va.getApproximation(dimension);
-          pva.minDistP += dist.getPartialMinDist(dimension, objectCell);
-          pva.maxDistP += dist.getPartialMaxDist(dimension, objectCell);
-          if(pva.minDistP > epsilonP) {
-            pruned = true;
-            break;
-          }
-        }
-        if(!pruned) {
-          candidates++;
-          if(pva.maxDistP <= epsilonP) {
-            // candidate cannot be dropped
-            // TODO: actually: no refinement needed - need API that allows
-            // reporting maxdists only.
-            result.add(refine(va, query), va);
+          final PackedApproximations cells = da.second.getCells();
+          final int off = da.second.getDimension() * partitions;
+          if(active == null) {
+            cells.accumulate(start, end, mintable, off, minDistP);
+            active = new int[n];
+            size = 0;
+            for(int i = 0; i < n; i++) {
+              if(minDistP[i] <= epsilonP) {
+                active[size++] = i;
+              }
+            }
+            continue;
           }
-          else { // refine candidate - true refinement
-            double dis = refine(va, query);
-            stats.incrementRefinements();
-            if(dis <= range) {
-              result.add(dis, va);
+          int j = 0;
+          for(int i = 0; i < size; i++) {
+            final int r = active[i];
+            if((minDistP[r] += mintable[off + cells.get(start + r, 0)]) <= epsilonP) {
+              active[j++] = r;
             }
           }
+          size = j;
+        }
+        IntegerArray candidates = new IntegerArray(size);
+        for(int i = 0; i < size; i++) {
+          candidates.add(start + (active != null ? active[i] : i));
+        }
+        return candidates;
+      });
+
+      // TODO: candidates with maxDist <= epsilon need no refinement, if we
+      // are interested in the DBID only - need API that allows reporting
+      // maxdists only.
+
+      // refine the candidates, in the order of the data
+      DBIDArrayIter iter = ids.iter();
+      for(IntegerArray candidates : blocks) {
+        for(int i = 0; i < candidates.size; i++) {
+          final double dis = refine(iter.seek(candidates.data[i]), query);
+          stats.incrementRefinements();
+          if(dis <= range) {
+            result.add(dis, iter);
+          }
         }
       }
 
@@ -578,13 +532,15 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
       }
 
       // filter 1
-      LinkedList<PartialVACandidate> candidates1 = filter1(k, reducedDims, daFiles, queryApprox, currentSubspaceDims, dist);
+      final double[] mintable = dist.getMinDistTable(partitions);
+      final double[] maxtable = dist.getMaxDistTable(partitions);
+      CandidateList candidates1 = filter1(k, reducedDims, daFiles, currentSubspaceDims, dist, mintable, maxtable);
       if(LOG.isDebuggingFine()) {
-        LOG.fine("candidate set after filter 1: " + candidates1.size());
+        LOG.fine("candidate set after filter 1: " + candidates1.size);
       }
 
       // filters 2+
-      LinkedList<PartialVACandidate> candidates2 = null;
+      CandidateList candidates2 = null;
       int addition = reducedDims;
       int filterStep = 2;
 
@@ -594,31 +550,27 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
       else {
         // continue filtering until I/O costs of refining candidates < I/O
         // costs of loading new DA files
-        while(candidates2 == null || (getIOCosts(candidates2.size(), currentSubspaceDims) >= getIOCosts(daFiles.get(0), currentSubspaceDims - addition)) && addition < currentSubspaceDims) {
+        while(candidates2 == null || (getIOCosts(candidates2.size, currentSubspaceDims) >= getIOCosts(daFiles.get(0), currentSubspaceDims - addition)) && addition < currentSubspaceDims) {
           if(candidates2 != null && LOG.isDebuggingFine()) {
-            LOG.fine("filter " + filterStep + ": refining costs " + getIOCosts(candidates2.size(), currentSubspaceDims) + " (" + candidates2.size() + "/" + currentSubspaceDims + "), DA file costs " + getIOCosts(daFiles.get(0), currentSubspaceDims - addition) + " (dim " + (addition + 1) + " of " + currentSubspaceDims + ")");
+            LOG.fine("filter " + filterStep + ": refining costs " + getIOCosts(candidates2.size, currentSubspaceDims) + " (" + candidates2.size + "/" + currentSubspaceDims + "), DA file costs " + getIOCosts(daFiles.get(0), currentSubspaceDims - addition) + " (dim " + (addition + 1) + " of " + currentSubspaceDims + ")");
           }
           if(candidates2 != null) {
             candidates1 = candidates2;
           }
-          candidates2 = new LinkedList<>();
-
-          DoubleMaxHeap kMinMaxDists = new DoubleMaxHeap(k + 1);
-          for(PartialVACandidate va : candidates1) {
-            int dimension = daFiles.get(addition).getDimension();
-            int objectCell = va.getApproximation(dimension);
-
-            va.minDistP += dist.getPartialMinDist(dimension, objectCell);
-            va.maxDistP += dist.getPartialMaxDist(dimension, objectCell) - dist.getPartialMaxMaxDist(dimension);
-
-            if(kMinMaxDists.size() < k || va.minDistP <= kMinMaxDists.peek()) {
-              candidates2.add(va);
-              kMinMaxDists.add(va.maxDistP, k);
-            }
+          candidates2 = new CandidateList(k);
+
+          final DAFile da = daFiles.get(addition);
+          final PackedApproximations cells = da.getCells();
+          final int dimension = da.getDimension(), off = dimension * partitions;
+          final double maxmax = dist.getPartialMaxMaxDist(dimension);
+          for(int i = 0; i < candidates1.size; i++) {
+            final int rec = candidates1.recs[i], cell = off + cells.get(rec, 0);
+            candidates2.add(rec, candidates1.minDistP[i] + mintable[cell], candidates1.maxDistP[i] + maxtable[cell] - maxmax);
           }
+          candidates2.prune();
 
           if(LOG.isDebuggingFine()) {
-            LOG.fine("candidate set after filter " + filterStep + ": " + candidates2.size());
+            LOG.fine("candidate set after filter " + filterStep + ": " + candidates2.size);
           }
 
           addition++;
@@ -629,46 +581,53 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
       stats.incrementScannedBytes(roundToPageSize(relation.size() * (long) VectorApproximation.byteOnDisk(addition, partitions)));
 
       // refinement step
-      ArrayList<PartialVACandidate> sortedCandidates = new ArrayList<>(candidates2);
       // sort candidates by lower bound (minDist)
-      Collections.sort(sortedCandidates);
-      KNNList result = retrieveAccurateDistances(sortedCandidates, k, subspace, query);
+      candidates2.sort();
+      KNNList result = candidates2.refineKNN(ids.iter(), p, id -> {
+        stats.incrementRefinements();
+        return refine(id, query);
+      });
 
       stats.incrementQueryTime(System.nanoTime() - t);
       return result;
     }
 
-    private LinkedList<PartialVACandidate> filter1(int k, int reducedDims, List<DAFile> daFiles, VectorApproximation queryApprox, int subspaceDims, VALPNormDistance dist) {
-      LinkedList<PartialVACandidate> candidates1 = new LinkedList<>();
-      DoubleMaxHeap minmaxdist = new DoubleMaxHeap(k + 1);
-
-      for(VectorApproximation va : vectorApprox) {
-        PartialVACandidate pva = new PartialVACandidate(va);
+    /**
+     * First filter step: scan the DA files of the reduced dimensions in
+     * parallel blocks; the remaining dimensions contribute their maximum
+     * distance to the upper bounds.
+     *
+     * @param k Number of neighbors
+     * @param reducedDims Number of dimensions to scan
+     * @param daFiles DA files, in scanning order
+     * @param subspaceDims Number of subspace dimensions
+     * @param dist Distance function
+     * @param mintable Lookup table of minimum distances
+     * @param maxtable Lookup table of maximum distances
+     * @return Candidates
+     */
+    private CandidateList filter1(int k, int reducedDims, List<DAFile> daFiles, int subspaceDims, VALPNormDistance dist, double[] mintable, double[] maxtable) {
+      double maxmax = 0.;
+      for(int d = reducedDims; d < subspaceDims; d++) {
+        maxmax += dist.getPartialMaxMaxDist(daFiles.get(d).getDimension());
+      }
+      final double rest = maxmax;
+      return CandidateList.merge(PackedApproximations.scan(ids.size(), (start, end) -> {
+        final int n = end - start;
+        double[] minDistP = new double[n], maxDistP = new double[n];
+        Arrays.fill(maxDistP, rest);
         for(int d = 0; d < reducedDims; d++) {
-          int dimension = daFiles.get(d).getDimension();
-          int objectCell = pva.getApproximation(dimension);
-          pva.minDistP += dist.getPartialMinDist(dimension, objectCell);
-          pva.maxDistP += dist.getPartialMaxDist(dimension, objectCell);
-        }
-        for(int d = reducedDims; d < subspaceDims; d++) {
-          pva.maxDistP += dist.getPartialMaxMaxDist(daFiles.get(d).getDimension());
+          final DAFile da = daFiles.get(d);
+          final int off = da.getDimension() * partitions;
+          da.getCells().accumulate(start, end, mintable, off, minDistP);
+          da.getCells().accumulate(start, end, maxtable, off, maxDistP);
         }
-        if(minmaxdist.size() < k || pva.minDistP <= minmaxdist.peek()) {
-          candidates1.add(pva);
-          minmaxdist.add(pva.maxDistP, k);
-        }
-      }
-      // Drop candidates that don't satisfy the latest minmaxdist
-      final double minmax = minmaxdist.peek();
-      Iterator<PartialVACandidate> it = candidates1.iterator();
-      while(it.hasNext()) {
-        PartialVACandidate pva = it.next();
-        if(pva.minDistP > minmax) {
-          it.remove();
+        CandidateList block = new CandidateList(k);
+        for(int i = 0; i < n; i++) {
+          block.add(start + i, minDistP[i], maxDistP[i]);
         }
-      }
-
-      return candidates1;
+        return block;
+      }), k);
     }
 
     /**
@@ -709,21 +668,6 @@ public class PartialVAFile<V extends NumberVector> extends AbstractRefiningIndex
       Collections.sort(result, new WorstCaseDistComparator(dist));
       return result;
     }
-
-    protected KNNList retrieveAccurateDistances(List<PartialVACandidate> sortedCandidates, int k, long[] subspace, V query) {
-      KNNHeap result = DBIDUtil.newHeap(k);
-      for(PartialVACandidate va : sortedCandidates) {
-        double stopdist = result.getKNNDistance();
-        if(result.size() < k || va.minDistP < stopdist) {
-          double dist = refine(va.getApprox(), query);
-          stats.incrementRefinements();
-          if(dist < stopdist) {
-            result.insert(dist, va.getApprox());
-          }
-        }
-      }
-      return result.toKNNList();
-    }
   }
 
   /**
@@ -20,7 +20,6 @@
  */
 package elki.index.vafile;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -42,7 +41,7 @@ import elki.index.RangeIndex;
 import elki.logging.Logging;
 import elki.logging.statistics.LongStatistic;
 import elki.persistent.AbstractPageFileFactory;
-import elki.utilities.datastructures.heap.DoubleMaxHeap;
+import elki.utilities.datastructures.arraylike.IntegerArray;
 import elki.utilities.documentation.Reference;
 import elki.utilities.documentation.Title;
 import elki.utilities.optionhandling.Parameterizer;
@@ -62,7 +61,10 @@ import net.jafama.FastMath;
  * An approximation based data structure for similarity search<br>
  * Report TR1997b, ETH Zentrum, Zurich, Switzerland
  * <p>
- * TODO: this needs to be optimized &amp; more low-level.
+ * The approximations are bit-packed into a contiguous array, see
+ * {@link PackedApproximations}, and the filter step of large data sets is
+ * scanned in parallel blocks. Refinement candidates are visited in the order
+ * of the data set, for sequential access.
  * 
  * @author Thomas Bernecker
  * @author Erich Schubert
@@ -90,9 +92,14 @@ public class VAFile<V extends NumberVector> extends AbstractRefiningIndex<V> imp
   private static final Logging LOG = Logging.getLogger(VAFile.class);
 
   /**
-   * Approximation index.
+   * Objects indexed, in the order of the approximations.
    */
-  private List<VectorApproximation> vectorApprox;
+  private ArrayDBIDs ids;
+
+  /**
+   * Packed approximations.
+   */
+  private PackedApproximations approx;
 
   /**
    * Number of partitions.
@@ -126,14 +133,16 @@ public class VAFile<V extends NumberVector> extends AbstractRefiningIndex<V> imp
     this.partitions = partitions;
     this.pageSize = pageSize;
     this.scans = 0;
-    this.vectorApprox = new ArrayList<>();
   }
 
   @Override
   public void initialize() {
     setPartitions(relation);
-    for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
-      vectorApprox.add(calculateApproximation(iter, relation.get(iter)));
+    ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    approx = new PackedApproximations(ids.size(), splitPositions.length, partitions);
+    int i = 0;
+    for(DBIDIter iter = ids.iter(); iter.valid(); iter.advance(), i++) {
+      approx.set(i, calculateApproximation(iter, relation.get(iter)));
     }
   }
 
@@ -212,7 +221,7 @@ public class VAFile<V extends NumberVector> extends AbstractRefiningIndex<V> imp
    */
   public long getScannedPages() {
     int vacapacity = pageSize / VectorApproximation.byteOnDisk(splitPositions.length, partitions);
-    long vasize = (long) Math.ceil((vectorApprox.size()) / (1.0 * vacapacity));
+    long vasize = (long) Math.ceil(approx.size() / (1.0 * vacapacity));
     return vasize * scans;
   }
 
@@ -230,13 +239,15 @@ public class VAFile<V extends NumberVector> extends AbstractRefiningIndex<V> imp
   @Override
   public KNNSearcher<V> kNNByObject(DistanceQuery<V> distanceQuery, int maxk, int flags) {
     Distance<? super V> df = distanceQuery.getDistance();
-    return df instanceof LPNormDistance ? new VAFileKNNQuery(distanceQuery, ((LPNormDistance) df).getP()) : null;
+    return df instanceof LPNormDistance && ((LPNormDistance) df).getP() < Double.POSITIVE_INFINITY ? //
+        new VAFileKNNQuery(distanceQuery, ((LPNormDistance) df).getP()) : null;
   }
 
   @Override
   public RangeSearcher<V> rangeByObject(DistanceQuery<V> distanceQuery, double maxradius, int flags) {
     Distance<? super V> df = distanceQuery.getDistance();
-    return df instanceof LPNormDistance ? new VAFileRangeQuery(distanceQuery, ((LPNormDistance) df).getP()) : null;
+    return df instanceof LPNormDistance && ((LPNormDistance) df).getP() < Double.POSITIVE_INFINITY ? //
+        new VAFileRangeQuery(distanceQuery, ((LPNormDistance) df).getP()) : null;
   }
 
   /**
@@ -273,20 +284,30 @@ public class VAFile<V extends NumberVector> extends AbstractRefiningIndex<V> imp
       // Count a VA file scan
       scans += 1;
 
-      // Approximation step
-      for(int i = 0; i < vectorApprox.size(); i++) {
-        VectorApproximation va = vectorApprox.get(i);
-        if(vadist.getMinDist(va) > eps) {
-          continue;
+      // Approximation step, in parallel blocks:
+      final double[] mintable = vadist.getMinDistTable(partitions);
+      final double epsP = FastMath.pow(eps, p);
+      List<IntegerArray> blocks = PackedApproximations.scan(approx.size(), (start, end) -> {
+        IntegerArray candidates = new IntegerArray();
+        for(int i = start; i < end; i++) {
+          if(approx.sum(i, mintable) <= epsP) {
+            candidates.add(i);
+          }
         }
-
-        // TODO: we don't need to refine always (maxDist < eps), if we are
-        // interested in the DBID only! But this needs an API change.
-
-        // refine the next element
-        final double dist = refine(va, query);
-        if(dist <= eps) {
-          result.add(dist, va);
+        return candidates;
+      });
+
+      // TODO: we don't need to refine always (maxDist < eps), if we are
+      // interested in the DBID only! But this needs an API change.
+
+      // refine the candidates, in the order of the data
+      DBIDArrayIter iter = ids.iter();
+      for(IntegerArray candidates : blocks) {
+        for(int i = 0; i < candidates.size; i++) {
+          final double dist = refine(iter.seek(candidates.data[i]), query);
+          if(dist <= eps) {
+            result.add(dist, iter);
+          }
         }
       }
       return result;
@@ -323,55 +344,33 @@ public class VAFile<V extends NumberVector> extends AbstractRefiningIndex<V> imp
       // Approximative distance function
       VALPNormDistance vadist = new VALPNormDistance(p, splitPositions, query, queryApprox);
 
-      // Heap for the kth smallest maximum distance (yes, we need a max heap!)
-      DoubleMaxHeap minMaxHeap = new DoubleMaxHeap(k + 1);
-      double minMaxDist = Double.POSITIVE_INFINITY;
-      // Candidates with minDist <= kth maxDist
-      ModifiableDoubleDBIDList candidates = DBIDUtil.newDistanceDBIDList(vectorApprox.size());
-
       // Count a VA file scan
       scans += 1;
 
-      // Approximation step
-      for(int i = 0; i < vectorApprox.size(); i++) {
-        VectorApproximation va = vectorApprox.get(i);
-        double minDist = vadist.getMinDist(va);
-        // Skip excess candidate generation:
-        if(minDist > minMaxDist) {
-          continue;
+      // Approximation step, in parallel blocks. Candidates have a minDist
+      // not larger than the kth smallest maxDist.
+      final double[] mintable = vadist.getMinDistTable(partitions);
+      final double[] maxtable = vadist.getMaxDistTable(partitions);
+      CandidateList candidates = CandidateList.merge(PackedApproximations.scan(approx.size(), (start, end) -> {
+        CandidateList block = new CandidateList(k);
+        for(int i = start; i < end; i++) {
+          final double minDistP = approx.sum(i, mintable);
+          if(minDistP <= block.bound()) {
+            block.add(i, minDistP, approx.sum(i, maxtable));
+          }
         }
-        candidates.add(minDist, va);
-
-        // Update candidate pruning heap
-        minMaxHeap.add(vadist.getMaxDist(va), k);
-        minMaxDist = minMaxHeap.size() >= k ? minMaxHeap.peek() : Double.POSITIVE_INFINITY;
-      }
+        return block;
+      }), k);
       // sort candidates by lower bound (minDist)
       candidates.sort();
 
       // refinement step
-      KNNHeap result = DBIDUtil.newHeap(k);
-
-      // retrieve accurate distances
-      for(DoubleDBIDListIter iter = candidates.iter(); iter.valid(); iter.advance()) {
-        // Stop when we are sure to have all elements
-        if(result.size() >= k) {
-          double kDist = result.getKNNDistance();
-          if(iter.doubleValue() > kDist) {
-            break;
-          }
-        }
-
-        // refine the next element
-        final double dist = refine(iter, query);
-        result.insert(dist, iter);
-      }
+      KNNList result = candidates.refineKNN(ids.iter(), p, id -> refine(id, query));
       if(LOG.isDebuggingFinest()) {
         LOG.finest("query = (" + query + ")");
-        LOG.finest("database: " + vectorApprox.size() + ", candidates: " + candidates.size() + ", results: " + result.size());
+        LOG.finest("database: " + approx.size() + ", candidates: " + candidates.size + ", results: " + result.size());
       }
-
-      return result.toKNNList();
+      return result;
     }
   }
 
@@ -147,6 +147,42 @@ public class VALPNormDistance {
     return max;
   }
 
+  /**
+   * Get a lookup table of the minimum distance contributions of all cells, as
+   * used by {@link PackedApproximations#sum}.
+   *
+   * @param partitions Number of partitions
+   * @return Lookup table, indexed by {@code dimension * partitions + cell}
+   */
+  public double[] getMinDistTable(int partitions) {
+    final int dim = lookup.length;
+    double[] table = new double[dim * partitions];
+    for(int d = 0, off = 0; d < dim; d++, off += partitions) {
+      for(int c = 0; c < partitions; c++) {
+        table[off + c] = getPartialMinDist(d, c);
+      }
+    }
+    return table;
+  }
+
+  /**
+   * Get a lookup table of the maximum distance contributions of all cells, as
+   * used by {@link PackedApproximations#sum}.
+   *
+   * @param partitions Number of partitions
+   * @return Lookup table, indexed by {@code dimension * partitions + cell}
+   */
+  public double[] getMaxDistTable(int partitions) {
+    final int dim = lookup.length;
+    double[] table = new double[dim * partitions];
+    for(int d = 0, off = 0; d < dim; d++, off += partitions) {
+      for(int c = 0; c < partitions; c++) {
+        table[off + c] = getPartialMaxDist(d, c);
+      }
+    }
+    return table;
+  }
+
   /**
    * Initialize the lookup table.
    * 
@@ -161,7 +197,7 @@ public class VALPNormDistance {
     for(int d = 0; d < dimensions; d++) {
       final double val = query.doubleValue(d);
       for(int i = 0; i < bordercount; i++) {
-        lookup[d][i] = FastMath.pow(splitPositions[d][i] - val, p);
+        lookup[d][i] = FastMath.pow(Math.abs(splitPositions[d][i] - val), p);
       }
     }
   }
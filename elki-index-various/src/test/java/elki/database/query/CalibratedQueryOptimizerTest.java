@@ -0,0 +1,115 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.database.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import elki.algorithm.AbstractSimpleAlgorithmTest;
+import elki.data.NumberVector;
+import elki.data.type.TypeUtil;
+import elki.database.Database;
+import elki.database.ids.DBIDIter;
+import elki.database.ids.DBIDRef;
+import elki.database.ids.KNNList;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.relation.Relation;
+import elki.distance.minkowski.EuclideanDistance;
+import elki.index.tree.metrical.covertree.CoverTree;
+
+/**
+ * Unit test for the calibrated query optimizer.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class CalibratedQueryOptimizerTest {
+  /**
+   * Test data set.
+   */
+  private static final String DATASET = "elki/testdata/unittests/hierarchical-3d2d1d.csv";
+
+  /**
+   * Test that the chosen plan gives exact results, and the profile is reused.
+   */
+  @Test
+  public void testCalibration() throws IOException {
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase(DATASET, 600);
+    Relation<NumberVector> relation = db.getRelation(TypeUtil.NUMBER_VECTOR_FIELD);
+    DistanceQuery<NumberVector> dq = EuclideanDistance.STATIC.instantiate(relation);
+    KNNSearcher<DBIDRef> linear = new QueryBuilder<>(dq).linearOnly().kNNByDBID(10);
+    Path file = Files.createTempFile("elki-costs", ".txt");
+    try {
+      Files.delete(file);
+      CalibratedQueryOptimizer opt = new CalibratedQueryOptimizer(file, 400);
+      KNNSearcher<DBIDRef> q = opt.kNNByDBID(relation, dq, 10, QueryBuilder.FLAG_NO_CACHE);
+      assertTrue("No profile written.", Files.exists(file));
+      assertEquals("Not all plans calibrated.", 3, opt.getProfile().size());
+      if(q != null) {
+        for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+          KNNList expect = linear.getKNN(it, 10), got = q.getKNN(it, 10);
+          assertEquals("Wrong kNN distance.", expect.getKNNDistance(), got.getKNNDistance(), 1e-15);
+        }
+      }
+      // Second run must use the stored profile.
+      Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+      CalibratedQueryOptimizer opt2 = new CalibratedQueryOptimizer(file, 400);
+      assertEquals("Profile not loaded.", 3, opt2.getProfile().size());
+      opt2.kNNByDBID(relation, dq, 10, QueryBuilder.FLAG_NO_CACHE);
+      assertEquals("Profile was recalibrated.", 0, Files.getLastModifiedTime(file).toMillis());
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Test that existing indexes are probed only once.
+   */
+  @Test
+  public void testExistingIndex() {
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase(DATASET, 600);
+    Relation<NumberVector> relation = db.getRelation(TypeUtil.NUMBER_VECTOR_FIELD);
+    DistanceQuery<NumberVector> dq = EuclideanDistance.STATIC.instantiate(relation);
+    CoverTree<NumberVector> index = new CoverTree<>(relation, EuclideanDistance.STATIC);
+    index.initialize();
+    KNNSearcher<DBIDRef> q = index.kNNByDBID(dq, 10, 0);
+    AtomicInteger probes = new AtomicInteger();
+    CalibratedQueryOptimizer opt = new CalibratedQueryOptimizer(null, 400);
+    boolean use = opt.useIndexForKNN(relation, dq, index, 10, id -> {
+      probes.incrementAndGet();
+      q.getKNN(id, 10);
+    });
+    assertTrue("Index was not probed.", probes.get() > 0);
+    final int before = probes.get();
+    assertEquals("Decision changed.", use, opt.useIndexForKNN(relation, dq, index, 10, id -> probes.incrementAndGet()));
+    assertEquals("Index was probed again.", before, probes.get());
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.graph;
+
+import org.junit.Test;
+
+import elki.distance.minkowski.EuclideanDistance;
+import elki.index.AbstractIndexStructureTest;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Unit test for the {@link HNSW} index.
+ * <p>
+ * HNSW is approximate, but on the small data sets the default parameters find
+ * the exact neighbors. On a larger, higher-dimensional data set, the recall
+ * is checked instead.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class HNSWTest extends AbstractIndexStructureTest {
+  @Test
+  public void testHNSW() {
+    HNSW.Factory<?> factory = new ELKIBuilder<>(HNSW.Factory.class) //
+        .with(HNSW.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class) //
+        .with(HNSW.Factory.Par.SEED_ID, 0).build();
+    assertExactEuclidean(factory, HNSW.HNSWPrioritySearcher.class, HNSW.HNSWPrioritySearcher.class);
+    assertPrioritySearchEuclidean(factory, HNSW.HNSWPrioritySearcher.class);
+    assertSinglePoint(factory, HNSW.HNSWPrioritySearcher.class, HNSW.HNSWPrioritySearcher.class);
+  }
+
+  @Test
+  public void testRecall() {
+    HNSW.Factory<?> factory = new ELKIBuilder<>(HNSW.Factory.class) //
+        .with(HNSW.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class) //
+        .with(HNSW.Factory.Par.M_ID, 8) //
+        .with(HNSW.Factory.Par.EF_CONSTRUCTION_ID, 100) //
+        .with(HNSW.Factory.Par.EF_SEARCH_ID, 40) //
+        .with(HNSW.Factory.Par.SEED_ID, 0).build();
+    assertRecall(factory, 5000, 20, 0.95);
+  }
+}
@@ -20,8 +20,28 @@
  */
 package elki.index.invertedlist;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.junit.Test;
 
+import elki.data.SparseDoubleVector;
+import elki.data.type.TypeUtil;
+import elki.data.type.VectorFieldTypeInformation;
+import elki.database.Database;
+import elki.database.StaticArrayDatabase;
+import elki.database.ids.*;
+import elki.database.query.QueryBuilder;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.relation.Relation;
+import elki.datasource.MultipleObjectsBundleDatabaseConnection;
+import elki.datasource.bundle.MultipleObjectsBundle;
+import elki.distance.CosineDistance;
 import elki.index.AbstractIndexStructureTest;
 import elki.utilities.ELKIBuilder;
 
@@ -39,4 +59,47 @@ public class InMemoryInvertedIndexTest extends AbstractIndexStructureTest {
     InMemoryInvertedIndex.Factory<?> factory = new ELKIBuilder<>(InMemoryInvertedIndex.Factory.class).build();
     assertExactCosine(factory, InMemoryInvertedIndex.CosineKNNQuery.class, InMemoryInvertedIndex.CosineRangeQuery.class);
   }
+
+  @Test
+  public void testKNNJoin() {
+    assertKNNJoinCosine(new InMemoryInvertedIndex.Factory<>());
+  }
+
+  /**
+   * Sparse vectors of very different lengths, compared to a linear scan.
+   */
+  @Test
+  public void testSparse() {
+    Random rnd = new Random(0L);
+    final int dim = 50, nonzero = 5;
+    List<SparseDoubleVector> vecs = new ArrayList<>();
+    for(int i = 0; i < 1000; i++) {
+      int[] idx = rnd.ints(0, dim).distinct().limit(nonzero).sorted().toArray();
+      double[] vals = new double[nonzero];
+      // Scale by up to three orders of magnitude:
+      final double scale = Math.pow(10, rnd.nextDouble() * 3 - 1);
+      for(int j = 0; j < nonzero; j++) {
+        vals[j] = rnd.nextDouble() * scale;
+      }
+      vecs.add(new SparseDoubleVector(idx, vals, dim));
+    }
+    Database db = new StaticArrayDatabase(new MultipleObjectsBundleDatabaseConnection(MultipleObjectsBundle.makeSimple(new VectorFieldTypeInformation<>(SparseDoubleVector.FACTORY, dim), vecs)), null);
+    db.initialize();
+    Relation<SparseDoubleVector> relation = db.getRelation(TypeUtil.SPARSE_DOUBLE_FIELD);
+    InMemoryInvertedIndex<SparseDoubleVector> index = new InMemoryInvertedIndex<>(relation);
+    index.initialize();
+    final int k = 10;
+    QueryBuilder<SparseDoubleVector> qb = new QueryBuilder<>(relation, CosineDistance.STATIC);
+    DistanceQuery<SparseDoubleVector> dq = qb.distanceQuery();
+    KNNSearcher<SparseDoubleVector> knnq = index.kNNByObject(dq, k, 0), linknn = qb.linearOnly().kNNByObject(k);
+    assertTrue("Wrong kNN searcher", knnq instanceof InMemoryInvertedIndex.CosineKNNQuery);
+    for(DBIDArrayIter q = DBIDUtil.ensureArray(relation.getDBIDs()).iter(); q.valid(); q.advance(10)) {
+      SparseDoubleVector obj = relation.get(q);
+      KNNList knn = knnq.getKNN(obj, k), lin = linknn.getKNN(obj, k);
+      assertEquals("Wrong number of knn results", lin.size(), knn.size());
+      for(DoubleDBIDListIter a = knn.iter(), b = lin.iter(); a.valid(); a.advance(), b.advance()) {
+        assertEquals("Wrong knn distance", b.doubleValue(), a.doubleValue(), 0.);
+      }
+    }
+  }
 }
@@ -20,10 +20,19 @@
  */
 package elki.index.tree.metrical.covertree;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
 import org.junit.Test;
 
 import elki.distance.minkowski.EuclideanDistance;
 import elki.index.AbstractIndexStructureTest;
+import elki.index.snapshot.IndexSnapshot;
 import elki.utilities.ELKIBuilder;
 
 /**
@@ -41,4 +50,52 @@ public class CoverTreeTest extends AbstractIndexStructureTest {
     assertPrioritySearchEuclidean(factory, CoverTree.CoverTreePrioritySearcher.class);
     assertSinglePoint(factory, CoverTree.CoverTreePrioritySearcher.class, CoverTree.CoverTreeRangeSearcher.class);
   }
+
+  @Test
+  public void testDynamic() {
+    CoverTree.Factory<?> factory = new ELKIBuilder<>(CoverTree.Factory.class) //
+        .with(CoverTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class).build();
+    assertDynamicEuclidean(factory);
+  }
+
+  @Test
+  public void testDeleteRouting() {
+    assertCheapDeletion(distance -> new CoverTree.Factory<>(distance, 1.3, 10), 2000);
+  }
+
+  @Test
+  public void testKNNJoin() {
+    CoverTree.Factory<?> factory = new ELKIBuilder<>(CoverTree.Factory.class) //
+        .with(CoverTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class).build();
+    assertKNNJoinEuclidean(factory);
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    Path file = Files.createTempFile("elki-covertree", ".bin");
+    Files.delete(file);
+    try {
+      CoverTree.Factory<?> factory = new ELKIBuilder<>(CoverTree.Factory.class) //
+          .with(CoverTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class) //
+          .with(IndexSnapshot.SNAPSHOT_ID, file.toString()).build();
+      // First run writes the snapshot, second run loads it.
+      assertExactEuclidean(factory, CoverTree.CoverTreePrioritySearcher.class, CoverTree.CoverTreeRangeSearcher.class);
+      assertTrue("Snapshot was not written.", Files.size(file) > 0);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+      assertExactEuclidean(factory, CoverTree.CoverTreePrioritySearcher.class, CoverTree.CoverTreeRangeSearcher.class);
+      assertEquals("Snapshot was rebuilt.", 0, Files.getLastModifiedTime(file).toMillis());
+      // A loaded tree can still be modified:
+      assertDynamicEuclidean(factory);
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testParallelBuild() {
+    CoverTree.Factory<?> factory = new ELKIBuilder<>(CoverTree.Factory.class) //
+        .with(CoverTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class).build();
+    assertParallelBuild(factory, AbstractCoverTree.PARALLEL_THRESHOLD + 1000);
+  }
 }
@@ -41,4 +41,23 @@ public class SimplifiedCoverTreeTest extends AbstractIndexStructureTest {
     assertPrioritySearchEuclidean(factory, SimplifiedCoverTree.CoverTreePrioritySearcher.class);
     assertSinglePoint(factory, SimplifiedCoverTree.CoverTreeKNNSearcher.class, SimplifiedCoverTree.CoverTreeRangeSearcher.class);
   }
+
+  @Test
+  public void testDynamic() {
+    SimplifiedCoverTree.Factory<?> factory = new ELKIBuilder<>(SimplifiedCoverTree.Factory.class) //
+        .with(SimplifiedCoverTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class).build();
+    assertDynamicEuclidean(factory);
+  }
+
+  @Test
+  public void testDeleteRouting() {
+    assertCheapDeletion(distance -> new SimplifiedCoverTree.Factory<>(distance, 1.3, 10), 2000);
+  }
+
+  @Test
+  public void testParallelBuild() {
+    SimplifiedCoverTree.Factory<?> factory = new ELKIBuilder<>(SimplifiedCoverTree.Factory.class) //
+        .with(SimplifiedCoverTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class).build();
+    assertParallelBuild(factory, AbstractCoverTree.PARALLEL_THRESHOLD + 1000);
+  }
 }
@@ -0,0 +1,127 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.tree.metrical.vptree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import elki.data.type.TypeUtil;
+import elki.database.Database;
+import elki.database.StaticArrayDatabase;
+import elki.database.ids.*;
+import elki.database.query.QueryBuilder;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.query.range.RangeSearcher;
+import elki.database.relation.Relation;
+import elki.datasource.MultipleObjectsBundleDatabaseConnection;
+import elki.datasource.bundle.MultipleObjectsBundle;
+import elki.distance.minkowski.EuclideanDistance;
+import elki.distance.strings.LevenshteinDistance;
+import elki.index.AbstractIndexStructureTest;
+import elki.utilities.ELKIBuilder;
+import elki.utilities.random.RandomFactory;
+
+/**
+ * Unit test for the {@link VPTree}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class VPTreeTest extends AbstractIndexStructureTest {
+  @Test
+  public void testVPTree() {
+    VPTree.Factory<?> factory = new ELKIBuilder<>(VPTree.Factory.class) //
+        .with(VPTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class) //
+        .with(VPTree.Factory.Par.SEED_ID, 0L).build();
+    assertExactEuclidean(factory, VPTree.VPTreeKNNSearcher.class, VPTree.VPTreeRangeSearcher.class);
+    assertPrioritySearchEuclidean(factory, VPTree.VPTreePrioritySearcher.class);
+    assertSinglePoint(factory, VPTree.VPTreeKNNSearcher.class, VPTree.VPTreeRangeSearcher.class);
+  }
+
+  @Test
+  public void testVPTreeLeaves() {
+    VPTree.Factory<?> factory = new ELKIBuilder<>(VPTree.Factory.class) //
+        .with(VPTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class) //
+        .with(VPTree.Factory.Par.LEAFSIZE_ID, 8) //
+        .with(VPTree.Factory.Par.SAMPLE_SIZE_ID, 3) //
+        .with(VPTree.Factory.Par.SEED_ID, 0L).build();
+    assertExactEuclidean(factory, VPTree.VPTreeKNNSearcher.class, VPTree.VPTreeRangeSearcher.class);
+    assertPrioritySearchEuclidean(factory, VPTree.VPTreePrioritySearcher.class);
+    assertSinglePoint(factory, VPTree.VPTreeKNNSearcher.class, VPTree.VPTreeRangeSearcher.class);
+  }
+
+  @Test
+  public void testParallelBuild() {
+    assertParallelBuild(() -> new ELKIBuilder<>(VPTree.Factory.class) //
+        .with(VPTree.Factory.Par.DISTANCE_FUNCTION_ID, EuclideanDistance.class) //
+        .with(VPTree.Factory.Par.SAMPLE_SIZE_ID, 5) //
+        .with(VPTree.Factory.Par.SEED_ID, 0L).build(), VPTree.PARALLEL_THRESHOLD + 1000);
+  }
+
+  /**
+   * Test on strings with the Levenshtein distance, which is not a vector
+   * space distance, against a linear scan.
+   */
+  @Test
+  public void testLevenshtein() {
+    Random rnd = new Random(0L);
+    List<String> strings = new ArrayList<>();
+    StringBuilder buf = new StringBuilder();
+    for(int i = 0; i < 1000; i++) {
+      buf.setLength(0);
+      for(int j = 5 + rnd.nextInt(10); j > 0; j--) {
+        buf.append("acgt".charAt(rnd.nextInt(4)));
+      }
+      strings.add(buf.toString());
+    }
+    Database db = new StaticArrayDatabase(new MultipleObjectsBundleDatabaseConnection(MultipleObjectsBundle.makeSimple(TypeUtil.STRING, strings)), null);
+    db.initialize();
+    Relation<String> relation = db.getRelation(TypeUtil.STRING);
+    final int k = 10;
+    VPTree<String> tree = new VPTree<>(relation, LevenshteinDistance.STATIC_SENSITIVE, 4, 5, RandomFactory.get(0L));
+    tree.initialize();
+    QueryBuilder<String> qb = new QueryBuilder<>(relation, LevenshteinDistance.STATIC_SENSITIVE);
+    DistanceQuery<String> dq = qb.distanceQuery();
+    KNNSearcher<DBIDRef> knnq = tree.kNNByDBID(dq, k, 0), linknn = qb.linearOnly().kNNByDBID(k);
+    RangeSearcher<DBIDRef> rangeq = tree.rangeByDBID(dq, 3, 0), linrange = qb.linearOnly().rangeByDBID(3);
+    assertTrue("Wrong kNN searcher", knnq instanceof VPTree.VPTreeKNNSearcher);
+    assertTrue("Wrong range searcher", rangeq instanceof VPTree.VPTreeRangeSearcher);
+    for(DBIDArrayIter q = DBIDUtil.ensureArray(relation.getDBIDs()).iter(); q.valid(); q.advance(20)) {
+      KNNList knn = knnq.getKNN(q, k), lin = linknn.getKNN(q, k);
+      assertEquals("Wrong number of knn results", lin.size(), knn.size());
+      for(DoubleDBIDListIter a = knn.iter(), b = lin.iter(); a.valid(); a.advance(), b.advance()) {
+        assertEquals("Wrong knn distance", b.doubleValue(), a.doubleValue(), 0.);
+      }
+      DoubleDBIDList range = rangeq.getRange(q, 3), linr = linrange.getRange(q, 3);
+      assertEquals("Wrong number of range results", linr.size(), range.size());
+      for(DoubleDBIDListIter a = range.iter(); a.valid(); a.advance()) {
+        assertTrue("Range result out of range", a.doubleValue() <= 3);
+      }
+    }
+  }
+}
@@ -41,4 +41,10 @@ public class MinimalisticMemoryKDTreeTest extends AbstractIndexStructureTest {
     assertPrioritySearchEuclidean(factory, MinimalisticMemoryKDTree.KDTreePrioritySearcher.class);
     assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
   }
+
+  @Test
+  public void testKNNJoin() {
+    MinimalisticMemoryKDTree.Factory<?> factory = new ELKIBuilder<>(MinimalisticMemoryKDTree.Factory.class).build();
+    assertKNNJoinEuclidean(factory);
+  }
 }
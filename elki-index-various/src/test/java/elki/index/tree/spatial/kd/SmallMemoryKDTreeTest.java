@@ -20,11 +20,20 @@
  */
 package elki.index.tree.spatial.kd;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
 import org.junit.Test;
 
 import elki.database.query.knn.WrappedKNNDBIDByLookup;
 import elki.database.query.range.WrappedRangeDBIDByLookup;
 import elki.index.AbstractIndexStructureTest;
+import elki.index.snapshot.IndexSnapshot;
 import elki.utilities.ELKIBuilder;
 
 /**
@@ -41,4 +50,35 @@ public class SmallMemoryKDTreeTest extends AbstractIndexStructureTest {
     assertPrioritySearchEuclidean(factory, SmallMemoryKDTree.KDTreePrioritySearcher.class);
     assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
   }
+
+  @Test
+  public void testKNNJoin() {
+    SmallMemoryKDTree.Factory<?> factory = new ELKIBuilder<>(SmallMemoryKDTree.Factory.class).build();
+    assertKNNJoinEuclidean(factory);
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    Path file = Files.createTempFile("elki-kdtree", ".bin");
+    Files.delete(file);
+    try {
+      SmallMemoryKDTree.Factory<?> factory = new ELKIBuilder<>(SmallMemoryKDTree.Factory.class) //
+          .with(IndexSnapshot.SNAPSHOT_ID, file.toString()).build();
+      // First run writes the snapshot, second run loads it.
+      assertExactEuclidean(factory, SmallMemoryKDTree.KDTreeKNNSearcher.class, SmallMemoryKDTree.KDTreeRangeSearcher.class);
+      assertTrue("Snapshot was not written.", Files.size(file) > 0);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+      assertExactEuclidean(factory, SmallMemoryKDTree.KDTreeKNNSearcher.class, SmallMemoryKDTree.KDTreeRangeSearcher.class);
+      assertEquals("Snapshot was rebuilt.", 0, Files.getLastModifiedTime(file).toMillis());
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void testParallelBuild() {
+    SmallMemoryKDTree.Factory<?> factory = new ELKIBuilder<>(SmallMemoryKDTree.Factory.class).build();
+    assertParallelBuild(factory, SmallMemoryKDTree.PARALLEL_THRESHOLD + 1000);
+  }
 }
@@ -41,4 +41,11 @@ public class PartialVAFileTest extends AbstractIndexStructureTest {
     assertExactEuclidean(factory, PartialVAFile.PartialVAFileKNNQuery.class, PartialVAFile.PartialVAFileRangeQuery.class);
     assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
   }
+
+  @Test
+  public void testLarge() {
+    PartialVAFile.Factory<?> factory = new ELKIBuilder<>(PartialVAFile.Factory.class) //
+        .with(PartialVAFile.Factory.PARTITIONS_ID, 16).build();
+    assertLargeEuclidean(factory, PackedApproximations.PARALLEL_THRESHOLD + 1000);
+  }
 }
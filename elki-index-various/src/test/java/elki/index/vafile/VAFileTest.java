@@ -44,4 +44,14 @@ public class VAFileTest extends AbstractIndexStructureTest {
     assertExactEuclidean(factory, VAFile.VAFileKNNQuery.class, VAFile.VAFileRangeQuery.class);
     assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
   }
+
+  /**
+   * Test the blocked scan of {@link VAFile} on a large data set.
+   */
+  @Test
+  public void testLarge() {
+    VAFile.Factory<?> factory = new ELKIBuilder<>(VAFile.Factory.class) //
+        .with(VAFile.Factory.Par.PARTITIONS_ID, 16).build();
+    assertLargeEuclidean(factory, PackedApproximations.PARALLEL_THRESHOLD + 1000);
+  }
 }
@@ -26,6 +26,7 @@ import elki.persistent.MemoryPageFileFactory;
 import elki.persistent.Page;
 import elki.persistent.PageFile;
 import elki.persistent.PageFileFactory;
+import elki.utilities.io.ByteBufferSerializer;
 import elki.utilities.optionhandling.Parameterizer;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.parameterization.Parameterization;
@@ -74,6 +75,23 @@ public abstract class PagedIndexFactory<O> implements IndexFactory<O> {
     return castFactory.newPageFile(cls);
   }
 
+  /**
+   * Make the page file for this index, with a binary page serializer.
+   * 
+   * @param <N>
+   *        page type
+   * @param cls
+   *        Class information
+   * @param serializer
+   *        Page serializer
+   * @return Page file
+   */
+  protected <N extends Page & Externalizable> PageFile<N> makePageFile(Class<N> cls, ByteBufferSerializer<N> serializer) {
+    @SuppressWarnings("unchecked")
+    final PageFileFactory<N> castFactory = (PageFileFactory<N>) pageFileFactory;
+    return castFactory.newPageFile(cls, serializer);
+  }
+
   /**
    * Parameterization class.
    *
@@ -20,6 +20,10 @@
  */
 package elki.index.projected;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import elki.data.projection.Projection;
 import elki.data.type.TypeInformation;
 import elki.database.datastore.DataStoreFactory;
@@ -38,6 +42,8 @@ import elki.distance.Distance;
 import elki.index.*;
 import elki.logging.Logging;
 import elki.logging.statistics.Counter;
+import elki.parallel.ParallelCore;
+import elki.parallel.ParallelExecutor;
 import elki.result.Metadata;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.Parameterizer;
@@ -528,6 +534,11 @@ public class ProjectedIndex<O, I> implements KNNIndex<O>, RKNNIndex<O>, RangeInd
    * @param <I> Inner object type.
    */
   public static class Factory<O, I> implements IndexFactory<O> {
+    /**
+     * Minimum number of objects per block when materializing in parallel.
+     */
+    private static final int MIN_BLOCK_SIZE = 1024;
+
     /**
      * Projection to use.
      */
@@ -581,10 +592,14 @@ public class ProjectedIndex<O, I> implements KNNIndex<O>, RKNNIndex<O>, RangeInd
       Index inneri = null;
       Relation<I> view = null;
       if(materialize) {
-        DBIDs ids = relation.getDBIDs();
+        ArrayDBIDs ids = DBIDUtil.ensureArray(relation.getDBIDs());
         WritableDataStore<I> content = DataStoreUtil.makeStorage(ids, DataStoreFactory.HINT_DB, proj.getOutputDataTypeInformation().getRestrictionClass());
-        for(DBIDIter iter = ids.iter(); iter.valid(); iter.advance()) {
-          content.put(iter, proj.project(relation.get(iter)));
+        DBIDArrayIter iter = ids.iter();
+        for(List<I> block : project(relation, ids)) {
+          for(I pobj : block) {
+            content.put(iter, pobj);
+            iter.advance();
+          }
         }
         view = new MaterializedRelation<>("Projected Index", proj.getOutputDataTypeInformation(), ids, content);
       }
@@ -598,6 +613,48 @@ public class ProjectedIndex<O, I> implements KNNIndex<O>, RKNNIndex<O>, RangeInd
       return new ProjectedIndex<>(relation, proj, view, inneri, norefine, kmulti);
     }
 
+    /**
+     * Project all objects, in parallel blocks for large data sets.
+     *
+     * @param relation Relation
+     * @param ids Objects to project
+     * @return Projected objects, in blocks in the order of the ids
+     */
+    private List<List<I>> project(Relation<O> relation, ArrayDBIDs ids) {
+      final int size = ids.size();
+      final ParallelCore core = ParallelCore.getCore();
+      final int parallelism = core.getParallelism();
+      if(size < MIN_BLOCK_SIZE << 1 || parallelism <= 1 || core.isWorkerThread()) {
+        List<List<I>> blocks = new ArrayList<>(1);
+        blocks.add(project(relation, ids, 0, size));
+        return blocks;
+      }
+      final int blocksize = Math.max(MIN_BLOCK_SIZE, (size + (parallelism << 2) - 1) / (parallelism << 2));
+      List<Callable<List<I>>> tasks = new ArrayList<>((size + blocksize - 1) / blocksize);
+      for(int start = 0; start < size; start += blocksize) {
+        final int s = start, e = Math.min(size, start + blocksize);
+        tasks.add(() -> project(relation, ids, s, e));
+      }
+      return ParallelExecutor.run(tasks);
+    }
+
+    /**
+     * Project a block of objects.
+     *
+     * @param relation Relation
+     * @param ids Objects to project
+     * @param start First offset
+     * @param end End offset (exclusive)
+     * @return Projected objects
+     */
+    private List<I> project(Relation<O> relation, ArrayDBIDs ids, int start, int end) {
+      List<I> block = new ArrayList<>(end - start);
+      for(DBIDArrayIter iter = ids.iter().seek(start); iter.getOffset() < end; iter.advance()) {
+        block.add(proj.project(relation.get(iter)));
+      }
+      return block;
+    }
+
     @Override
     public TypeInformation getInputTypeRestriction() {
       return proj.getInputDataTypeInformation();
@@ -0,0 +1,220 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.snapshot;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import elki.data.DoubleVector;
+import elki.data.NumberVector;
+import elki.data.projection.random.RandomProjectionFamily;
+import elki.database.ids.DBIDIter;
+import elki.database.ids.DBIDUtil;
+import elki.database.relation.Relation;
+
+/**
+ * 64 bit fingerprint of the indexed data and the index parameters, to detect
+ * stale snapshots.
+ * <p>
+ * Each index adds the parameters its snapshot depends on explicitly. Parameter
+ * objects such as distance functions are identified by their class and their
+ * string representation, which includes the parameters for the classes that
+ * define their own {@code toString()} method. Objects of other classes cannot
+ * be verified; they make the fingerprint differ in every run, so the index is
+ * rebuilt rather than loaded from a possibly stale snapshot.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class Fingerprint {
+  /**
+   * Current hash value.
+   */
+  private long hash = 0xCBF29CE484222325L;
+
+  /**
+   * Constructor.
+   *
+   * @param index Index class
+   */
+  public Fingerprint(Class<?> index) {
+    add(index.getName());
+  }
+
+  /**
+   * Add a value.
+   *
+   * @param v Value
+   * @return this
+   */
+  public Fingerprint add(long v) {
+    long h = (hash ^ v) * 0x9E3779B97F4A7C15L;
+    hash = h ^ (h >>> 29);
+    return this;
+  }
+
+  /**
+   * Add a value.
+   *
+   * @param v Value
+   * @return this
+   */
+  public Fingerprint add(double v) {
+    return add(Double.doubleToLongBits(v));
+  }
+
+  /**
+   * Add an array of values.
+   *
+   * @param v Values
+   * @return this
+   */
+  public Fingerprint add(int[] v) {
+    add(v.length);
+    for(int x : v) {
+      add(x);
+    }
+    return this;
+  }
+
+  /**
+   * Add an array of values.
+   *
+   * @param v Values
+   * @return this
+   */
+  public Fingerprint add(double[] v) {
+    add(v.length);
+    for(double x : v) {
+      add(x);
+    }
+    return this;
+  }
+
+  /**
+   * Add a string.
+   *
+   * @param s String
+   * @return this
+   */
+  public Fingerprint add(String s) {
+    add(s.length());
+    for(int i = 0; i < s.length(); i++) {
+      add(s.charAt(i));
+    }
+    return this;
+  }
+
+  /**
+   * Add all objects of a relation, with their DBIDs.
+   * <p>
+   * Number vectors are included with their values, other objects by their
+   * string representation.
+   *
+   * @param relation Relation
+   * @return this
+   */
+  public Fingerprint add(Relation<?> relation) {
+    add(relation.size());
+    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+      add(DBIDUtil.asInteger(it));
+      final Object o = relation.get(it);
+      if(o instanceof NumberVector) {
+        final NumberVector v = (NumberVector) o;
+        final int dim = v.getDimensionality();
+        add(dim);
+        for(int d = 0; d < dim; d++) {
+          add(v.doubleValue(d));
+        }
+      }
+      else {
+        add(o != null ? o.toString() : "");
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Add a linear projection, by projecting the unit vectors.
+   *
+   * @param proj Projection
+   * @param dim Input dimensionality, {@code -1} if unknown
+   * @return this
+   */
+  public Fingerprint add(RandomProjectionFamily.Projection proj, int dim) {
+    if(dim < 0) {
+      return unverifiable();
+    }
+    add(dim).add(proj.getOutputDimensionality());
+    double[] unit = new double[dim];
+    for(int d = 0; d < dim; d++) {
+      unit[d] = 1.;
+      add(proj.project(DoubleVector.wrap(unit)));
+      unit[d] = 0.;
+    }
+    return this;
+  }
+
+  /**
+   * Add a parameter object, such as a distance function, by its class and
+   * string representation.
+   *
+   * @param o Parameter object, may be {@code null}
+   * @return this
+   */
+  public Fingerprint addParameter(Object o) {
+    if(o == null) {
+      return add(0L);
+    }
+    final Class<?> c = o.getClass();
+    add(c.getName());
+    if(o instanceof Number || o instanceof String || o instanceof Boolean || o instanceof Character || o instanceof Enum) {
+      return add(o.toString());
+    }
+    try {
+      if(c.getMethod("toString").getDeclaringClass() == c) {
+        return add(o.toString());
+      }
+    }
+    catch(NoSuchMethodException | SecurityException e) {
+      // Fall through.
+    }
+    return unverifiable();
+  }
+
+  /**
+   * Make the fingerprint differ from any other, such that a snapshot is never
+   * considered to match.
+   *
+   * @return this
+   */
+  private Fingerprint unverifiable() {
+    return add(ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * Get the fingerprint.
+   *
+   * @return Fingerprint value
+   */
+  public long get() {
+    return hash;
+  }
+}
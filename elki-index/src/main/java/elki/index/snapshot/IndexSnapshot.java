@@ -0,0 +1,189 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.snapshot;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import elki.logging.Logging;
+import elki.utilities.optionhandling.OptionID;
+
+/**
+ * Store built in-memory indexes in a binary file, and load them from there
+ * again in a later run.
+ * <p>
+ * The file starts with a header containing a {@link Fingerprint} of the data
+ * and the parameters; if it does not match, the index is rebuilt and the file
+ * replaced. The remainder of the file is written and read sequentially by the
+ * index. Snapshots are replaced atomically, so an interrupted run does not
+ * leave a truncated snapshot behind.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - SnapshotInput
+ * @has - - - SnapshotOutput
+ */
+public final class IndexSnapshot {
+  /**
+   * File to store the index snapshot in.
+   */
+  public static final OptionID SNAPSHOT_ID = new OptionID("index.snapshot", "File to store a snapshot of the index in. If the file exists and matches the data and parameters, the index is loaded from it instead of being rebuilt.");
+
+  /**
+   * Magic number of the file format.
+   */
+  private static final int MAGIC = 0x454C4B53;
+
+  /**
+   * File format version.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * Fake constructor: do not instantiate.
+   */
+  private IndexSnapshot() {
+    // Do not instantiate
+  }
+
+  /**
+   * Load an index snapshot, if the file exists and matches.
+   *
+   * @param file Snapshot file
+   * @param fingerprint Fingerprint of data and parameters
+   * @param log Logger
+   * @param reader Snapshot reader
+   * @return {@code true} if the snapshot was loaded
+   */
+  public static boolean load(Path file, long fingerprint, Logging log, Reader reader) {
+    if(!Files.isRegularFile(file)) {
+      return false;
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      if(channel.size() < Integer.BYTES * 2 + Long.BYTES) {
+        log.warning("Index snapshot " + file + " is truncated, rebuilding.");
+        return false;
+      }
+      SnapshotInput in = new SnapshotInput(channel);
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+        log.warning("File " + file + " is not an index snapshot of this version, rebuilding.");
+        return false;
+      }
+      if(in.readLong() != fingerprint) {
+        log.warning("Index snapshot " + file + " does not match the data or parameters, rebuilding.");
+        return false;
+      }
+      reader.read(in);
+      if(!in.isExhausted()) {
+        throw new IOException("Trailing data.");
+      }
+      if(log.isVerbose()) {
+        log.verbose("Loaded index snapshot " + file);
+      }
+      return true;
+    }
+    catch(IOException | BufferUnderflowException e) {
+      log.warning("Index snapshot " + file + " could not be read, rebuilding: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Store an index snapshot. Errors are logged, but not fatal, as the index
+   * itself is still usable.
+   *
+   * @param file Snapshot file
+   * @param fingerprint Fingerprint of data and parameters
+   * @param log Logger
+   * @param writer Snapshot writer
+   */
+  public static void save(Path file, long fingerprint, Logging log, Writer writer) {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, //
+          StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        SnapshotOutput out = new SnapshotOutput(channel);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(fingerprint);
+        writer.write(out);
+        out.flush();
+      }
+      try {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch(AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      if(log.isVerbose()) {
+        log.verbose("Stored index snapshot " + file);
+      }
+    }
+    catch(IOException e) {
+      log.warning("Index snapshot " + file + " could not be written: " + e.getMessage());
+      try {
+        Files.deleteIfExists(tmp);
+      }
+      catch(IOException e2) {
+        // Ignore.
+      }
+    }
+  }
+
+  /**
+   * Read the index data of a snapshot.
+   *
+   * @author Erich Schubert
+   */
+  @FunctionalInterface
+  public interface Reader {
+    /**
+     * Read the index data.
+     *
+     * @param in Input
+     * @throws IOException on read errors or invalid data
+     */
+    void read(SnapshotInput in) throws IOException;
+  }
+
+  /**
+   * Write the index data of a snapshot.
+   *
+   * @author Erich Schubert
+   */
+  @FunctionalInterface
+  public interface Writer {
+    /**
+     * Write the index data.
+     *
+     * @param out Output
+     * @throws IOException on write errors
+     */
+    void write(SnapshotOutput out) throws IOException;
+  }
+}
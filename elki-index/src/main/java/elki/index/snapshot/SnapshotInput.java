@@ -0,0 +1,250 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.snapshot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import elki.database.ids.ArrayModifiableDBIDs;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.ModifiableDoubleDBIDList;
+
+/**
+ * Sequential binary input of an index snapshot, from a memory-mapped file.
+ * <p>
+ * The file is mapped in segments, so snapshots may be larger than 2 GB.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class SnapshotInput {
+  /**
+   * Maximum size of a mapped segment.
+   */
+  private static final int SEGMENT_SIZE = 1 << 30;
+
+  /**
+   * Input channel.
+   */
+  private final FileChannel channel;
+
+  /**
+   * File size.
+   */
+  private final long size;
+
+  /**
+   * Current segment.
+   */
+  private ByteBuffer buf;
+
+  /**
+   * File position of the current segment.
+   */
+  private long start;
+
+  /**
+   * Constructor.
+   *
+   * @param channel Input channel
+   * @throws IOException on read errors
+   */
+  SnapshotInput(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+    this.start = 0;
+    map();
+  }
+
+  /**
+   * Map the next segment, starting at the current position.
+   *
+   * @throws IOException on read errors
+   */
+  private void map() throws IOException {
+    if(buf != null) {
+      start += buf.position();
+    }
+    buf = channel.map(MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+  }
+
+  /**
+   * Ensure the current segment has the given number of bytes.
+   *
+   * @param bytes Number of bytes needed
+   * @throws IOException on read errors or the end of file
+   */
+  private void ensure(int bytes) throws IOException {
+    if(buf.remaining() < bytes) {
+      check(bytes);
+      map();
+    }
+  }
+
+  /**
+   * Ensure the file has the given number of bytes left, before allocating
+   * memory for them.
+   *
+   * @param bytes Number of bytes needed
+   * @throws IOException if the file is too short
+   */
+  private void check(long bytes) throws IOException {
+    if(start + buf.position() + bytes > size) {
+      throw new EOFException("Unexpected end of index snapshot.");
+    }
+  }
+
+  /**
+   * Test whether all data was read.
+   *
+   * @return {@code true} at the end of the file
+   */
+  public boolean isExhausted() {
+    return start + buf.position() == size;
+  }
+
+  /**
+   * Read an integer.
+   *
+   * @return Value
+   * @throws IOException on read errors
+   */
+  public int readInt() throws IOException {
+    ensure(Integer.BYTES);
+    return buf.getInt();
+  }
+
+  /**
+   * Read a long.
+   *
+   * @return Value
+   * @throws IOException on read errors
+   */
+  public long readLong() throws IOException {
+    ensure(Long.BYTES);
+    return buf.getLong();
+  }
+
+  /**
+   * Read a double.
+   *
+   * @return Value
+   * @throws IOException on read errors
+   */
+  public double readDouble() throws IOException {
+    ensure(Double.BYTES);
+    return buf.getDouble();
+  }
+
+  /**
+   * Read a non-negative size.
+   *
+   * @return Size
+   * @throws IOException on read errors or invalid sizes
+   */
+  public int readSize() throws IOException {
+    final int v = readInt();
+    if(v < 0) {
+      throw new IOException("Invalid size in index snapshot: " + v);
+    }
+    return v;
+  }
+
+  /**
+   * Read integers.
+   *
+   * @param v Output array
+   * @param off Offset
+   * @param len Number of values
+   * @throws IOException on read errors
+   */
+  public void readInts(int[] v, int off, int len) throws IOException {
+    while(len > 0) {
+      ensure(Integer.BYTES);
+      final int n = Math.min(len, buf.remaining() / Integer.BYTES);
+      buf.asIntBuffer().get(v, off, n);
+      buf.position(buf.position() + n * Integer.BYTES);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Read doubles.
+   *
+   * @param v Output array
+   * @param off Offset
+   * @param len Number of values
+   * @throws IOException on read errors
+   */
+  public void readDoubles(double[] v, int off, int len) throws IOException {
+    while(len > 0) {
+      ensure(Double.BYTES);
+      final int n = Math.min(len, buf.remaining() / Double.BYTES);
+      buf.asDoubleBuffer().get(v, off, n);
+      buf.position(buf.position() + n * Double.BYTES);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Read a set of DBIDs, written by {@link SnapshotOutput#writeDBIDs}.
+   *
+   * @return DBIDs
+   * @throws IOException on read errors
+   */
+  public ArrayModifiableDBIDs readDBIDs() throws IOException {
+    final int n = readSize();
+    check(n * (long) Integer.BYTES);
+    int[] ids = new int[n];
+    readInts(ids, 0, n);
+    ArrayModifiableDBIDs res = DBIDUtil.newArray(n);
+    for(int i = 0; i < n; i++) {
+      res.add(DBIDUtil.importInteger(ids[i]));
+    }
+    return res;
+  }
+
+  /**
+   * Read a list of DBIDs with distances, written by
+   * {@link SnapshotOutput#writeDoubleDBIDList}.
+   *
+   * @return List
+   * @throws IOException on read errors
+   */
+  public ModifiableDoubleDBIDList readDoubleDBIDList() throws IOException {
+    final int n = readSize();
+    check(n * (long) (Double.BYTES + Integer.BYTES));
+    double[] dists = new double[n];
+    int[] ids = new int[n];
+    readDoubles(dists, 0, n);
+    readInts(ids, 0, n);
+    ModifiableDoubleDBIDList res = DBIDUtil.newDistanceDBIDList(n);
+    for(int i = 0; i < n; i++) {
+      res.add(dists[i], DBIDUtil.importInteger(ids[i]));
+    }
+    return res;
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import elki.database.ids.DBIDIter;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.DBIDs;
+import elki.database.ids.DoubleDBIDList;
+import elki.database.ids.DoubleDBIDListIter;
+
+/**
+ * Sequential binary output of an index snapshot.
+ * <p>
+ * DBIDs are stored as integers, so a snapshot can only be reused when the
+ * objects get the same DBIDs again, which is verified by the
+ * {@link Fingerprint}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class SnapshotOutput {
+  /**
+   * Buffer size.
+   */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Output channel.
+   */
+  private final FileChannel channel;
+
+  /**
+   * Output buffer.
+   */
+  private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  /**
+   * Constructor.
+   *
+   * @param channel Output channel
+   */
+  SnapshotOutput(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Make room in the buffer.
+   *
+   * @param bytes Number of bytes needed
+   * @throws IOException on write errors
+   */
+  private void ensure(int bytes) throws IOException {
+    if(buf.remaining() < bytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Write the buffered data.
+   *
+   * @throws IOException on write errors
+   */
+  void flush() throws IOException {
+    buf.flip();
+    while(buf.hasRemaining()) {
+      channel.write(buf);
+    }
+    buf.clear();
+  }
+
+  /**
+   * Write an integer.
+   *
+   * @param v Value
+   * @throws IOException on write errors
+   */
+  public void writeInt(int v) throws IOException {
+    ensure(Integer.BYTES);
+    buf.putInt(v);
+  }
+
+  /**
+   * Write a long.
+   *
+   * @param v Value
+   * @throws IOException on write errors
+   */
+  public void writeLong(long v) throws IOException {
+    ensure(Long.BYTES);
+    buf.putLong(v);
+  }
+
+  /**
+   * Write a double.
+   *
+   * @param v Value
+   * @throws IOException on write errors
+   */
+  public void writeDouble(double v) throws IOException {
+    ensure(Double.BYTES);
+    buf.putDouble(v);
+  }
+
+  /**
+   * Write integers.
+   *
+   * @param v Values
+   * @param off Offset
+   * @param len Number of values
+   * @throws IOException on write errors
+   */
+  public void writeInts(int[] v, int off, int len) throws IOException {
+    while(len > 0) {
+      ensure(Integer.BYTES);
+      final int n = Math.min(len, buf.remaining() / Integer.BYTES);
+      buf.asIntBuffer().put(v, off, n);
+      buf.position(buf.position() + n * Integer.BYTES);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Write doubles.
+   *
+   * @param v Values
+   * @param off Offset
+   * @param len Number of values
+   * @throws IOException on write errors
+   */
+  public void writeDoubles(double[] v, int off, int len) throws IOException {
+    while(len > 0) {
+      ensure(Double.BYTES);
+      final int n = Math.min(len, buf.remaining() / Double.BYTES);
+      buf.asDoubleBuffer().put(v, off, n);
+      buf.position(buf.position() + n * Double.BYTES);
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Write a set of DBIDs, in iteration order.
+   *
+   * @param ids DBIDs
+   * @throws IOException on write errors
+   */
+  public void writeDBIDs(DBIDs ids) throws IOException {
+    writeInt(ids.size());
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      writeInt(DBIDUtil.asInteger(it));
+    }
+  }
+
+  /**
+   * Write a list of DBIDs with distances.
+   *
+   * @param list List
+   * @throws IOException on write errors
+   */
+  public void writeDoubleDBIDList(DoubleDBIDList list) throws IOException {
+    writeInt(list.size());
+    for(DoubleDBIDListIter it = list.iter(); it.valid(); it.advance()) {
+      writeDouble(it.doubleValue());
+    }
+    for(DoubleDBIDListIter it = list.iter(); it.valid(); it.advance()) {
+      writeInt(DBIDUtil.asInteger(it));
+    }
+  }
+}
@@ -30,6 +30,8 @@ import elki.database.ids.DBIDUtil;
 import elki.database.ids.DBIDs;
 import elki.database.ids.SetDBIDs;
 import elki.evaluation.Evaluator;
+import elki.evaluation.scores.adapter.OutlierScoreAdapter;
+import elki.evaluation.scores.adapter.ScoreArrayAdapter;
 import elki.logging.Logging;
 import elki.math.geometry.XYCurve;
 import elki.result.*;
@@ -92,8 +94,10 @@ public class OutlierPrecisionAtKCurve implements Evaluator {
     List<OrderingResult> orderings = ResultUtil.getOrderingResults(result);
     // Outlier results are the main use case.
     for(OutlierResult o : oresults) {
-      DBIDs sorted = o.getOrdering().order(o.getOrdering().getDBIDs());
-      Metadata.hierarchyOf(o).addChild(computePrecisionResult(o.getScores().size(), positiveids, sorted));
+      // Only the top maxk are needed; avoid sorting everything if possible.
+      final int size = o.getScores().size();
+      ScoreArrayAdapter sorted = maxk < size ? OutlierScoreAdapter.topK(positiveids, o, maxk) : OutlierScoreAdapter.sorted(positiveids, o);
+      Metadata.hierarchyOf(o).addChild(computePrecisionResult(sorted, Math.min(size, maxk)));
       // Process them only once.
       orderings.remove(o.getOrdering());
     }
@@ -106,6 +110,35 @@ public class OutlierPrecisionAtKCurve implements Evaluator {
     }
   }
 
+  /**
+   * Compute the precision at k curve for a sorted score array.
+   *
+   * @param sorted Sorted scores
+   * @param lastk Maximum k
+   * @return Curve
+   */
+  private XYCurve computePrecisionResult(ScoreArrayAdapter sorted, int lastk) {
+    XYCurve curve = new PrecisionAtKCurve(lastk);
+    int pos = 0;
+    for(int k = 1; k <= lastk; k++, sorted.advance()) {
+      if(sorted.test()) {
+        pos++;
+      }
+      curve.addAndSimplify(k, pos / (double) k);
+    }
+    curve.setAxes(1, 0, lastk, 1);
+    curve.setDrawingBounds(1, 0, lastk, 1);
+    return curve;
+  }
+
+  /**
+   * Compute the precision at k curve for an ordering.
+   *
+   * @param size Data set size
+   * @param positiveids Positive ids
+   * @param order Ordering
+   * @return Curve
+   */
   private XYCurve computePrecisionResult(int size, SetDBIDs positiveids, DBIDs order) {
     if(order.size() != size) {
       throw new IllegalStateException("Iterable result doesn't match database size - incomplete ordering?");
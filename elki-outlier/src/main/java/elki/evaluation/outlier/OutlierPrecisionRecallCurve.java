@@ -111,7 +111,7 @@ public class OutlierPrecisionRecallCurve implements Evaluator {
     List<OrderingResult> orderings = ResultUtil.getOrderingResults(result);
     // Outlier results are the main use case.
     for(OutlierResult o : oresults) {
-      PRCurve curve = AUPRCEvaluation.materializePRC(new OutlierScoreAdapter(positiveids, o));
+      PRCurve curve = AUPRCEvaluation.materializePRC(OutlierScoreAdapter.sorted(positiveids, o));
       Metadata.hierarchyOf(o).addChild(curve);
       MeasurementGroup g = EvaluationResult.findOrCreate(o, EvaluationResult.RANKING) //
           .findOrCreateGroup("Evaluation measures");
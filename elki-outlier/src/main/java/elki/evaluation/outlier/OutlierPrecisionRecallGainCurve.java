@@ -101,7 +101,7 @@ public class OutlierPrecisionRecallGainCurve implements Evaluator {
     List<OrderingResult> ordResults = ResultUtil.getOrderingResults(newResult);
 
     for(OutlierResult o : outResults) {
-      PRGCurve curve = PRGCEvaluation.materializePRGC(new OutlierScoreAdapter(positiveIDs, o));
+      PRGCurve curve = PRGCEvaluation.materializePRGC(OutlierScoreAdapter.sorted(positiveIDs, o));
       Metadata.hierarchyOf(o).addChild(curve);
       MeasurementGroup g = EvaluationResult.findOrCreate(o, EvaluationResult.RANKING) //
           .findOrCreateGroup("Evaluation measures");
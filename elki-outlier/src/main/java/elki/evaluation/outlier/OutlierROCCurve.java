@@ -106,7 +106,7 @@ public class OutlierROCCurve implements Evaluator {
     List<OrderingResult> orderings = ResultUtil.getOrderingResults(result);
     // Outlier results are the main use case.
     for(OutlierResult o : oresults) {
-      ROCurve roc = ROCEvaluation.materializeROC(new OutlierScoreAdapter(positiveids, o));
+      ROCurve roc = ROCEvaluation.materializeROC(OutlierScoreAdapter.sorted(positiveids, o));
       Metadata.hierarchyOf(o).addChild(roc);
       MeasurementGroup g = EvaluationResult.findOrCreate(o, EvaluationResult.RANKING) //
           .findOrCreateGroup("Evaluation measures");
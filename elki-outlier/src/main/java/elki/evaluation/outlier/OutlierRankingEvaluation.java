@@ -32,6 +32,7 @@ import elki.database.ids.SetDBIDs;
 import elki.evaluation.Evaluator;
 import elki.evaluation.scores.*;
 import elki.evaluation.scores.adapter.OutlierScoreAdapter;
+import elki.evaluation.scores.adapter.ScoreArrayAdapter;
 import elki.evaluation.scores.adapter.SimpleAdapter;
 import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
@@ -94,15 +95,17 @@ public class OutlierRankingEvaluation implements Evaluator {
     final double rate = pos / (double) size;
     MeasurementGroup g = res.findOrCreateGroup("Evaluation measures");
     MeasurementGroup ag = res.findOrCreateGroup("Adjusted for chance");
+    // Single pass for the most common measures:
+    RankingMeasures measures = RankingMeasures.evaluate(adapter.get(), 0);
     // Area under Receiver Operating Curve
-    double auroc = ROCEvaluation.STATIC.evaluate(adapter.get());
+    double auroc = measures.getAUROC();
     LOG.statistics(new DoubleStatistic(key + ".auroc", auroc));
     g.addMeasure("AUROC", auroc, 0., 1., .5, false);
     double adjauroc = 2 * auroc - 1;
     ag.addMeasure("Adjusted AUROC", adjauroc, 0., 1., 0., false);
     LOG.statistics(new DoubleStatistic(key + ".auroc.adjusted", adjauroc));
     // Area under Precision-Recall-Curve
-    double auprc = AUPRCEvaluation.STATIC.evaluate(adapter.get());
+    double auprc = measures.getAUPRC();
     LOG.statistics(new DoubleStatistic(key + ".auprc", auprc));
     g.addMeasure("AUPRC", auprc, 0., 1., rate, false);
     double adjauprc = (auprc - rate) / (1 - rate);
@@ -114,21 +117,21 @@ public class OutlierRankingEvaluation implements Evaluator {
     g.addMeasure("AUPRGC", auprgc, 0., 1., .5, false);
     ag.addMeasure("Adjusted AUPRGC", (auprgc - 0.5) * 2, 0., 1., 0., false);
     // Average precision
-    double avep = AveragePrecisionEvaluation.STATIC.evaluate(adapter.get());
+    double avep = measures.getAveragePrecision();
     LOG.statistics(new DoubleStatistic(key + ".average-precision.", avep));
     g.addMeasure("Average Precision", avep, 0., 1., rate, false);
     double adjavep = (avep - rate) / (1 - rate);
     LOG.statistics(new DoubleStatistic(key + ".average-precision.adjusted", adjavep));
     ag.addMeasure("Adjusted AveP", adjavep, 0., 1., 0., false);
     // R-precision
-    double rprec = PrecisionAtKEvaluation.RPRECISION.evaluate(adapter.get());
+    double rprec = measures.getPrecisionAtK();
     LOG.statistics(new DoubleStatistic(key + ".r-precision", rprec));
     g.addMeasure("R-Precision", rprec, 0., 1., rate, false);
     double adjrprec = (rprec - rate) / (1 - rate);
     LOG.statistics(new DoubleStatistic(key + ".r-precision.adjusted", adjrprec));
     ag.addMeasure("Adjusted R-Prec", adjrprec, 0., 1., 0., false);
     // Maximum F1 measure
-    double maxf1 = MaximumF1Evaluation.STATIC.evaluate(adapter.get());
+    double maxf1 = measures.getMaximumF1();
     LOG.statistics(new DoubleStatistic(key + ".maximum-f1", maxf1));
     g.addMeasure("Maximum F1", maxf1, 0., 1., rate, false);
     double adjmaxf1 = (maxf1 - rate) / (1 - rate);
@@ -163,8 +166,10 @@ public class OutlierRankingEvaluation implements Evaluator {
     List<OrderingResult> orderings = ResultUtil.getOrderingResults(result);
     // Outlier results are the main use case.
     for(OutlierResult o : oresults) {
+      // Sort only once, and rewind for each measure:
+      ScoreArrayAdapter sorted = OutlierScoreAdapter.sorted(positiveids, o);
       evaluate(EvaluationResult.findOrCreate(o, EvaluationResult.RANKING), //
-          o.getScores().size(), positiveids.size(), () -> new OutlierScoreAdapter(positiveids, o));
+          o.getScores().size(), positiveids.size(), () -> sorted.seek(0));
       // Process them only once.
       orderings.remove(o.getOrdering());
       nonefound = false;
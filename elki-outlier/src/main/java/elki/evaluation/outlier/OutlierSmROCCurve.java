@@ -30,6 +30,8 @@ import elki.database.ids.DBIDUtil;
 import elki.database.ids.SetDBIDs;
 import elki.database.relation.DoubleRelation;
 import elki.evaluation.Evaluator;
+import elki.evaluation.scores.adapter.OutlierScoreAdapter;
+import elki.evaluation.scores.adapter.ScoreArrayAdapter;
 import elki.logging.Logging;
 import elki.math.geometry.XYCurve;
 import elki.result.Metadata;
@@ -113,13 +115,13 @@ public class OutlierSmROCCurve implements Evaluator {
     int poscnt = 0, negcnt = 0;
     double prevscore = Double.NaN;
     double x = 0, y = 0;
-    for(DBIDIter nei = or.getOrdering().order(or.getOrdering().getDBIDs()).iter(); nei.valid(); nei.advance()) {
+    for(ScoreArrayAdapter nei = OutlierScoreAdapter.sorted(positiveids, or); nei.valid(); nei.advance()) {
       // Analyze next point
-      final double curscore = scores.doubleValue(nei);
+      final double curscore = nei.score();
       // defer calculation for ties
       if(!Double.isNaN(prevscore) && (Double.compare(prevscore, curscore) == 0)) {
         // positive or negative match?
-        if(positiveids.contains(nei)) {
+        if(nei.test()) {
           poscnt += 1;
         }
         else {
@@ -138,7 +140,7 @@ public class OutlierSmROCCurve implements Evaluator {
         }
         curve.addAndSimplify(x, y);
         // positive or negative match?
-        if(positiveids.contains(nei)) {
+        if(nei.test()) {
           poscnt = 1;
           negcnt = 0;
         }
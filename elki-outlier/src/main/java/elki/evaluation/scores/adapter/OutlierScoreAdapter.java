@@ -24,6 +24,7 @@ import elki.database.ids.DBIDIter;
 import elki.database.ids.DBIDs;
 import elki.database.relation.DoubleRelation;
 import elki.evaluation.scores.ScoreEvaluation;
+import elki.result.outlier.InvertedOutlierScoreMeta;
 import elki.result.outlier.OutlierResult;
 
 /**
@@ -33,6 +34,9 @@ import elki.result.outlier.OutlierResult;
  * Note that of course, no id should occur more than once.
  * <p>
  * The ROC values would be incorrect then anyway!
+ * <p>
+ * For large results, prefer {@link #sorted} or {@link #topK}, which sort
+ * primitive arrays instead of the object ids.
  * 
  * @author Erich Schubert
  * @since 0.7.0
@@ -73,6 +77,56 @@ public class OutlierScoreAdapter implements ScoreEvaluation.Adapter {
     this.scores = o.getScores();
   }
 
+  /**
+   * Build a primitive array adapter, sorted by outlier score.
+   *
+   * @param positive Positive objects
+   * @param o Result
+   * @return Sorted adapter
+   */
+  public static ScoreArrayAdapter sorted(DBIDs positive, OutlierResult o) {
+    DoubleRelation scores = o.getScores();
+    final int size = scores.size();
+    double[] svals = new double[size];
+    int[] labels = new int[size];
+    fill(positive, scores, svals, labels);
+    return ScoreArrayAdapter.sort(svals, labels, size, o.getOutlierMeta() instanceof InvertedOutlierScoreMeta);
+  }
+
+  /**
+   * Build a primitive array adapter for the top k objects only, selected
+   * with a bounded heap.
+   *
+   * @param positive Positive objects
+   * @param o Result
+   * @param k Number of top objects
+   * @return Adapter for the top k
+   */
+  public static ScoreArrayAdapter topK(DBIDs positive, OutlierResult o, int k) {
+    DoubleRelation scores = o.getScores();
+    final int size = scores.size();
+    double[] svals = new double[size];
+    int[] labels = new int[size];
+    fill(positive, scores, svals, labels);
+    return ScoreArrayAdapter.topK(svals, labels, size, o.getOutlierMeta() instanceof InvertedOutlierScoreMeta, k);
+  }
+
+  /**
+   * Copy scores and labels into primitive arrays.
+   *
+   * @param positive Positive objects
+   * @param scores Outlier scores
+   * @param svals Output scores
+   * @param labels Output labels
+   */
+  private static void fill(DBIDs positive, DoubleRelation scores, double[] svals, int[] labels) {
+    int i = 0;
+    for(DBIDIter it = scores.iterDBIDs(); it.valid(); it.advance(), i++) {
+      svals[i] = scores.doubleValue(it);
+      labels[i] = positive.contains(it) ? 1 : 0;
+    }
+  }
+
   @Override
   public boolean valid() {
     return iter.valid();
@@ -53,6 +53,8 @@ import elki.utilities.optionhandling.constraints.CommonConstraints;
 import elki.utilities.optionhandling.parameterization.Parameterization;
 import elki.utilities.optionhandling.parameters.IntParameter;
 import elki.utilities.optionhandling.parameters.ObjectParameter;
+import elki.utilities.optionhandling.parameters.RandomParameter;
+import elki.utilities.random.RandomFactory;
 
 /**
  * Outlier Detection based on the distance of an object to its k nearest
@@ -76,6 +78,7 @@ import elki.utilities.optionhandling.parameters.ObjectParameter;
  * @since 0.3
  *
  * @has - - - KNNSearcher
+ * @has - - - TopNOutlierScan
  *
  * @param <O> the type of objects handled by this algorithm
  */
@@ -104,6 +107,16 @@ public class KNNOutlier<O> implements OutlierAlgorithm {
    */
   protected int kplus;
 
+  /**
+   * Number of top outliers to find, 0 to score all objects.
+   */
+  protected int n;
+
+  /**
+   * Random generator for the top-n scan order.
+   */
+  protected RandomFactory rnd;
+
   /**
    * Constructor for a single kNN query.
    *
@@ -111,9 +124,23 @@ public class KNNOutlier<O> implements OutlierAlgorithm {
    * @param k Value of k (excluding query point!)
    */
   public KNNOutlier(Distance<? super O> distance, int k) {
+    this(distance, k, 0, RandomFactory.DEFAULT);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param distance distance function to use
+   * @param k Value of k (excluding query point!)
+   * @param n Number of top outliers to find, 0 to score all objects
+   * @param rnd Random generator for the top-n scan order
+   */
+  public KNNOutlier(Distance<? super O> distance, int k, int n, RandomFactory rnd) {
     super();
     this.distance = distance;
     this.kplus = k + 1; // INCLUDE the query point now
+    this.n = n;
+    this.rnd = rnd;
   }
 
   @Override
@@ -127,6 +154,10 @@ public class KNNOutlier<O> implements OutlierAlgorithm {
    * @param relation Data relation
    */
   public OutlierResult run(Relation<O> relation) {
+    if(n > 0) {
+      return new TopNOutlierScan<>(new QueryBuilder<>(relation, distance).distanceQuery(), kplus, false, n, rnd) //
+          .run(relation, "kNN Outlier Score", LOG);
+    }
     KNNSearcher<DBIDRef> knnQuery = new QueryBuilder<>(relation, distance).kNNByDBID(kplus);
 
     FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("kNN distance for objects", relation.size(), LOG) : null;
@@ -159,6 +190,17 @@ public class KNNOutlier<O> implements OutlierAlgorithm {
     public static final OptionID K_ID = new OptionID("knno.k", //
         "The k nearest neighbor, excluding the query point (i.e. query point is the 0-nearest-neighbor)");
 
+    /**
+     * Parameter to only find the top n outliers, using pruning.
+     */
+    public static final OptionID N_ID = new OptionID("knno.topn", //
+        "Only find the top n outliers, pruning all other objects early (all other objects receive a score of 0).");
+
+    /**
+     * Random seed for the top-n scan order.
+     */
+    public static final OptionID SEED_ID = new OptionID("knno.seed", "Random seed for the order of the top-n scan.");
+
     /**
      * The distance function to use.
      */
@@ -169,6 +211,16 @@ public class KNNOutlier<O> implements OutlierAlgorithm {
      */
     protected int k = 0;
 
+    /**
+     * Number of top outliers to find.
+     */
+    protected int n = 0;
+
+    /**
+     * Random generator.
+     */
+    protected RandomFactory rnd = RandomFactory.DEFAULT;
+
     @Override
     public void configure(Parameterization config) {
       new ObjectParameter<Distance<? super O>>(Algorithm.Utils.DISTANCE_FUNCTION_ID, Distance.class, EuclideanDistance.class) //
@@ -176,11 +228,17 @@ public class KNNOutlier<O> implements OutlierAlgorithm {
       new IntParameter(K_ID)//
           .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
           .grab(config, x -> k = x);
+      if(new IntParameter(N_ID) //
+          .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+          .setOptional(true) //
+          .grab(config, x -> n = x)) {
+        new RandomParameter(SEED_ID).grab(config, x -> rnd = x);
+      }
     }
 
     @Override
     public KNNOutlier<O> make() {
-      return new KNNOutlier<>(distance, k);
+      return new KNNOutlier<>(distance, k, n, rnd);
     }
   }
 }
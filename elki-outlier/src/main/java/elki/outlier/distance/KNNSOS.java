@@ -25,13 +25,10 @@ import elki.data.type.TypeInformation;
 import elki.data.type.TypeUtil;
 import elki.database.datastore.DataStoreFactory;
 import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.datastore.WritableDoubleDataStore;
-import elki.database.ids.DBIDIter;
-import elki.database.ids.DBIDRef;
-import elki.database.ids.DoubleDBIDListIter;
-import elki.database.ids.KNNList;
+import elki.database.ids.DoubleDBIDList;
 import elki.database.query.QueryBuilder;
-import elki.database.query.knn.KNNSearcher;
 import elki.database.relation.DoubleRelation;
 import elki.database.relation.MaterializedDoubleRelation;
 import elki.database.relation.Relation;
@@ -42,6 +39,7 @@ import elki.logging.progress.FiniteProgress;
 import elki.math.DoubleMinMax;
 import elki.outlier.OutlierAlgorithm;
 import elki.outlier.intrinsic.ISOS;
+import elki.parallel.ParallelExecutor;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
 import elki.result.outlier.ProbabilisticOutlierScore;
@@ -140,28 +138,16 @@ public class KNNSOS<O> implements OutlierAlgorithm {
   public OutlierResult run(Relation<O> relation) {
     final int k1 = k + 1; // Query size
     final double perplexity = k / 3.;
-    KNNSearcher<DBIDRef> knnq = new QueryBuilder<>(relation, distance).kNNByDBID(k1);
+    QueryBuilder<O> qb = new QueryBuilder<>(relation, distance);
     final double logPerp = perplexity > 1. ? FastMath.log(perplexity) : .1;
 
-    double[] p = new double[k + 10];
-    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("KNNSOS scores", relation.size(), LOG) : null;
-    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_DB, 1.);
-    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
-      KNNList knns = knnq.getKNN(it, k1);
-      if(p.length < knns.size() + 1) {
-        p = new double[knns.size() + 10];
-      }
-      final DoubleDBIDListIter ki = knns.iter();
-      // Compute affinities
-      SOS.computePi(it, ki, p, perplexity, logPerp);
-      // Normalization factor:
-      double s = SOS.sumOfProbabilities(it, ki, p);
-      if(s > 0) {
-        ISOS.nominateNeighbors(it, ki, p, 1. / s, scores);
-      }
-      LOG.incrementProcessed(prog);
-    }
+    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("KNNSOS affinities", relation.size(), LOG) : null;
+    WritableDataStore<DoubleDBIDList> affinities = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, DoubleDBIDList.class);
+    ParallelExecutor.run(relation.getDBIDs(), new ISOS.AffinityProcessor(() -> qb.kNNByDBID(k1), k1, perplexity, logPerp, null, affinities, prog, LOG));
     LOG.ensureCompleted(prog);
+    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_DB, 1.);
+    ISOS.nominateNeighbors(relation.getDBIDs(), affinities, scores);
+    affinities.destroy();
     // Find minimum and maximum.
     DoubleMinMax minmax = ISOS.transformScores(scores, relation.getDBIDs(), logPerp, phi);
     DoubleRelation scoreres = new MaterializedDoubleRelation("kNN Stoachastic Outlier Selection", relation.getDBIDs(), scores);
@@ -51,6 +51,8 @@ import elki.utilities.optionhandling.constraints.CommonConstraints;
 import elki.utilities.optionhandling.parameterization.Parameterization;
 import elki.utilities.optionhandling.parameters.IntParameter;
 import elki.utilities.optionhandling.parameters.ObjectParameter;
+import elki.utilities.optionhandling.parameters.RandomParameter;
+import elki.utilities.random.RandomFactory;
 
 /**
  * Outlier Detection based on the accumulated distances of a point to its k
@@ -79,6 +81,7 @@ import elki.utilities.optionhandling.parameters.ObjectParameter;
  * @since 0.3
  *
  * @has - - - KNNSearcher
+ * @has - - - TopNOutlierScan
  *
  * @param <O> the type of objects handled by this algorithm
  */
@@ -106,6 +109,16 @@ public class KNNWeightOutlier<O> implements OutlierAlgorithm {
    */
   protected int kplus;
 
+  /**
+   * Number of top outliers to find, 0 to score all objects.
+   */
+  protected int n;
+
+  /**
+   * Random generator for the top-n scan order.
+   */
+  protected RandomFactory rnd;
+
   /**
    * Constructor with parameters.
    *
@@ -113,9 +126,23 @@ public class KNNWeightOutlier<O> implements OutlierAlgorithm {
    * @param k k parameter (not including query point!)
    */
   public KNNWeightOutlier(Distance<? super O> distance, int k) {
+    this(distance, k, 0, RandomFactory.DEFAULT);
+  }
+
+  /**
+   * Constructor with parameters.
+   *
+   * @param distance Distance function
+   * @param k k parameter (not including query point!)
+   * @param n Number of top outliers to find, 0 to score all objects
+   * @param rnd Random generator for the top-n scan order
+   */
+  public KNNWeightOutlier(Distance<? super O> distance, int k, int n, RandomFactory rnd) {
     super();
     this.distance = distance;
     this.kplus = k + 1; // Plus query point
+    this.n = n;
+    this.rnd = rnd;
   }
 
   @Override
@@ -129,6 +156,10 @@ public class KNNWeightOutlier<O> implements OutlierAlgorithm {
    * @param relation Data relation
    */
   public OutlierResult run(Relation<O> relation) {
+    if(n > 0) {
+      return new TopNOutlierScan<>(new QueryBuilder<>(relation, distance).distanceQuery(), kplus, true, n, rnd) //
+          .run(relation, "kNN weight Outlier Score", LOG);
+    }
     KNNSearcher<DBIDRef> knnQuery = new QueryBuilder<>(relation, distance).kNNByDBID(kplus);
     FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("Compute kNN weights", relation.size(), LOG) : null;
 
@@ -175,6 +206,17 @@ public class KNNWeightOutlier<O> implements OutlierAlgorithm {
         "The k nearest neighbor, excluding the query point "//
             + "(i.e. query point is the 0-nearest-neighbor)");
 
+    /**
+     * Parameter to only find the top n outliers, using pruning.
+     */
+    public static final OptionID N_ID = new OptionID("knnwod.topn", //
+        "Only find the top n outliers, pruning all other objects early (all other objects receive a score of 0).");
+
+    /**
+     * Random seed for the top-n scan order.
+     */
+    public static final OptionID SEED_ID = new OptionID("knnwod.seed", "Random seed for the order of the top-n scan.");
+
     /**
      * The distance function to use.
      */
@@ -185,6 +227,16 @@ public class KNNWeightOutlier<O> implements OutlierAlgorithm {
      */
     protected int k;
 
+    /**
+     * Number of top outliers to find.
+     */
+    protected int n = 0;
+
+    /**
+     * Random generator.
+     */
+    protected RandomFactory rnd = RandomFactory.DEFAULT;
+
     @Override
     public void configure(Parameterization config) {
       new ObjectParameter<Distance<? super O>>(Algorithm.Utils.DISTANCE_FUNCTION_ID, Distance.class, EuclideanDistance.class) //
@@ -192,11 +244,17 @@ public class KNNWeightOutlier<O> implements OutlierAlgorithm {
       new IntParameter(K_ID) //
           .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
           .grab(config, x -> k = x);
+      if(new IntParameter(N_ID) //
+          .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+          .setOptional(true) //
+          .grab(config, x -> n = x)) {
+        new RandomParameter(SEED_ID).grab(config, x -> rnd = x);
+      }
     }
 
     @Override
     public KNNWeightOutlier<O> make() {
-      return new KNNWeightOutlier<>(distance, k);
+      return new KNNWeightOutlier<>(distance, k, n, rnd);
     }
   }
 }
@@ -38,6 +38,7 @@ import elki.logging.Logging;
 import elki.logging.progress.FiniteProgress;
 import elki.math.DoubleMinMax;
 import elki.outlier.OutlierAlgorithm;
+import elki.parallel.ParallelExecutor;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
 import elki.result.outlier.ProbabilisticOutlierScore;
@@ -50,6 +51,10 @@ import elki.utilities.optionhandling.parameterization.Parameterization;
 import elki.utilities.optionhandling.parameters.DoubleParameter;
 import elki.utilities.optionhandling.parameters.ObjectParameter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
 import net.jafama.FastMath;
 
 /**
@@ -60,6 +65,11 @@ import net.jafama.FastMath;
  * J. Janssens, F. Huszár, E. Postma, J. van den Herik<br>
  * Stochastic Outlier Selection<br>
  * TiCC TR 2012–001
+ * <p>
+ * The objects are processed in parallel blocks, each voting into its own score
+ * storage, which avoids concurrent writes. The blocks depend only on the data
+ * size, and their votes are combined in a fixed order, so the result does not
+ * depend on the number of threads.
  * 
  * @author Erich Schubert
  * @since 0.7.5
@@ -88,6 +98,16 @@ public class SOS<O> implements OutlierAlgorithm {
    */
   protected static final int PERPLEXITY_MAXITER = 50;
 
+  /**
+   * Minimum number of objects per block.
+   */
+  private static final int MIN_BLOCK_SIZE = 1024;
+
+  /**
+   * Maximum number of blocks, each needs its own score storage.
+   */
+  private static final int MAX_BLOCKS = 16;
+
   /**
    * Distance function used.
    */
@@ -122,18 +142,69 @@ public class SOS<O> implements OutlierAlgorithm {
    * @return outlier detection result
    */
   public OutlierResult run(Relation<O> relation) {
-    DistanceQuery<O> dq = new QueryBuilder<>(relation, distance).distanceQuery();
+    final QueryBuilder<O> qb = new QueryBuilder<>(relation, distance);
     final double logPerp = FastMath.log(perplexity);
+    final ArrayDBIDs ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final int size = ids.size();
+
+    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_DB, 1.);
+    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("SOS scores", size, LOG) : null;
+    // The blocks depend only on the data size, for reproducible results:
+    final int blocksize = Math.max(MIN_BLOCK_SIZE, (size + MAX_BLOCKS - 1) / MAX_BLOCKS);
+    if(size < blocksize << 1) {
+      nominateBlock(qb.distanceQuery(), ids, 0, size, scores, logPerp, prog);
+    }
+    else {
+      // Every block votes into its own storage, the first into the scores.
+      List<Callable<WritableDoubleDataStore>> tasks = new ArrayList<>((size + blocksize - 1) / blocksize);
+      for(int start = 0; start < size; start += blocksize) {
+        final int s = start, e = Math.min(size, start + blocksize);
+        tasks.add(() -> {
+          WritableDoubleDataStore votes = s == 0 ? scores : DataStoreUtil.makeDoubleStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, 1.);
+          nominateBlock(qb.distanceQuery(), ids, s, e, votes, logPerp, prog);
+          return votes;
+        });
+      }
+      List<WritableDoubleDataStore> blocks = ParallelExecutor.run(tasks);
+      // Combine the votes in block order:
+      for(int i = 1; i < blocks.size(); i++) {
+        WritableDoubleDataStore votes = blocks.get(i);
+        for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+          scores.putDouble(it, scores.doubleValue(it) * votes.doubleValue(it));
+        }
+        votes.destroy();
+      }
+    }
+    LOG.ensureCompleted(prog);
+    // Find minimum and maximum.
+    DoubleMinMax minmax = new DoubleMinMax();
+    for(DBIDIter it2 = relation.iterDBIDs(); it2.valid(); it2.advance()) {
+      minmax.put(scores.doubleValue(it2));
+    }
+    DoubleRelation scoreres = new MaterializedDoubleRelation("Stoachastic Outlier Selection", relation.getDBIDs(), scores);
+    OutlierScoreMeta meta = new ProbabilisticOutlierScore(minmax.getMin(), minmax.getMax(), 0.);
+    return new OutlierResult(meta, scoreres);
+  }
 
-    ModifiableDoubleDBIDList dlist = DBIDUtil.newDistanceDBIDList(relation.size() - 1);
+  /**
+   * Let a block of objects vote for their neighbors.
+   *
+   * @param dq Distance query
+   * @param ids All objects
+   * @param start First object of the block
+   * @param end End of the block (exclusive)
+   * @param scores Output score storage
+   * @param logPerp Log of desired perplexity
+   * @param prog Progress
+   */
+  private void nominateBlock(DistanceQuery<O> dq, ArrayDBIDs ids, int start, int end, WritableDoubleDataStore scores, double logPerp, FiniteProgress prog) {
+    ModifiableDoubleDBIDList dlist = DBIDUtil.newDistanceDBIDList(ids.size() - 1);
     DoubleDBIDListMIter di = dlist.iter();
-    double[] p = new double[relation.size() - 1];
-    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("SOS scores", relation.size(), LOG) : null;
-    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_DB, 1.);
-    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+    double[] p = new double[ids.size() - 1];
+    for(DBIDArrayIter it = ids.iter().seek(start); it.getOffset() < end; it.advance()) {
       // Build sorted neighbors list.
       dlist.clear();
-      for(DBIDIter i2 = relation.iterDBIDs(); i2.valid(); i2.advance()) {
+      for(DBIDIter i2 = ids.iter(); i2.valid(); i2.advance()) {
         if(DBIDUtil.equal(it, i2)) {
           continue;
         }
@@ -149,15 +220,6 @@ public class SOS<O> implements OutlierAlgorithm {
       }
       LOG.incrementProcessed(prog);
     }
-    LOG.ensureCompleted(prog);
-    // Find minimum and maximum.
-    DoubleMinMax minmax = new DoubleMinMax();
-    for(DBIDIter it2 = relation.iterDBIDs(); it2.valid(); it2.advance()) {
-      minmax.put(scores.doubleValue(it2));
-    }
-    DoubleRelation scoreres = new MaterializedDoubleRelation("Stoachastic Outlier Selection", relation.getDBIDs(), scores);
-    OutlierScoreMeta meta = new ProbabilisticOutlierScore(minmax.getMin(), minmax.getMax(), 0.);
-    return new OutlierResult(meta, scoreres);
   }
 
   /**
@@ -171,7 +233,7 @@ public class SOS<O> implements OutlierAlgorithm {
    * @param p Probabilities
    * @return Sum.
    */
-  public static double sumOfProbabilities(DBIDIter ignore, DBIDArrayIter di, double[] p) {
+  public static double sumOfProbabilities(DBIDRef ignore, DBIDArrayIter di, double[] p) {
     double s = 0;
     for(di.seek(0); di.valid(); di.advance()) {
       if(DBIDUtil.equal(ignore, di)) {
@@ -195,7 +257,7 @@ public class SOS<O> implements OutlierAlgorithm {
    * @param norm Normalization factor (1/sum)
    * @param scores Output score storage
    */
-  public static void nominateNeighbors(DBIDIter ignore, DBIDArrayIter di, double[] p, double norm, WritableDoubleDataStore scores) {
+  public static void nominateNeighbors(DBIDRef ignore, DBIDArrayIter di, double[] p, double norm, WritableDoubleDataStore scores) {
     for(di.seek(0); di.valid(); di.advance()) {
       if(DBIDUtil.equal(ignore, di)) {
         continue;
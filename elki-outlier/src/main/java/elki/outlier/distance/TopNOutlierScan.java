@@ -0,0 +1,263 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.outlier.distance;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import elki.database.datastore.DataStoreFactory;
+import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDoubleDataStore;
+import elki.database.ids.ArrayDBIDs;
+import elki.database.ids.ArrayModifiableDBIDs;
+import elki.database.ids.DBIDArrayIter;
+import elki.database.ids.DBIDUtil;
+import elki.database.query.distance.DistanceQuery;
+import elki.database.relation.DoubleRelation;
+import elki.database.relation.MaterializedDoubleRelation;
+import elki.database.relation.Relation;
+import elki.logging.Logging;
+import elki.logging.progress.FiniteProgress;
+import elki.math.DoubleMinMax;
+import elki.parallel.ParallelExecutor;
+import elki.result.outlier.BasicOutlierScoreMeta;
+import elki.result.outlier.OutlierResult;
+import elki.result.outlier.OutlierScoreMeta;
+import elki.utilities.datastructures.heap.DoubleIntegerHeap;
+import elki.utilities.datastructures.heap.DoubleIntegerMinHeap;
+import elki.utilities.datastructures.heap.DoubleMaxHeap;
+import elki.utilities.documentation.Reference;
+import elki.utilities.random.RandomFactory;
+
+/**
+ * Top-n mining of distance-based outliers, using a randomized nested loop with
+ * the simple pruning rule of ORCA.
+ * <p>
+ * The data is processed in a random order. Whenever the running kNN score of
+ * an object (an upper bound of its final score) drops below the score of the
+ * current n-th best outlier, the object cannot become a top-n outlier anymore,
+ * and its neighbor scan is abandoned. Blocks of objects are processed in
+ * parallel, and every completed object immediately raises the shared cutoff
+ * value.
+ * <p>
+ * Only the top n objects receive their exact score; all other objects are
+ * assigned a score of 0, as in {@link HilOut}.
+ * <p>
+ * Reference:
+ * <p>
+ * S. D. Bay, M. Schwabacher<br>
+ * Mining distance-based outliers in near linear time with randomization and a
+ * simple pruning rule<br>
+ * Proc. 9th ACM SIGKDD Int. Conf. on Knowledge Discovery and Data Mining
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - DistanceQuery
+ *
+ * @param <O> Object type
+ */
+@Reference(authors = "S. D. Bay, M. Schwabacher", //
+    title = "Mining distance-based outliers in near linear time with randomization and a simple pruning rule", //
+    booktitle = "Proc. 9th ACM SIGKDD Int. Conf. on Knowledge Discovery and Data Mining", //
+    url = "https://doi.org/10.1145/956750.956758", //
+    bibkey = "DBLP:conf/kdd/BayS03")
+public class TopNOutlierScan<O> {
+  /**
+   * Number of objects per block.
+   */
+  private static final int BLOCKSIZE = 512;
+
+  /**
+   * Distance query.
+   */
+  private DistanceQuery<O> distq;
+
+  /**
+   * Number of neighbors to use (including the query point).
+   */
+  private int kplus;
+
+  /**
+   * Use the sum of distances (kNN weight) instead of the k-distance.
+   */
+  private boolean weight;
+
+  /**
+   * Number of outliers to find.
+   */
+  private int n;
+
+  /**
+   * Random generator for the scan order.
+   */
+  private RandomFactory rnd;
+
+  /**
+   * Current top-n outliers, by offset into the randomized order.
+   */
+  private DoubleIntegerMinHeap topn;
+
+  /**
+   * Score of the current n-th outlier.
+   */
+  private volatile double cutoff;
+
+  /**
+   * Constructor.
+   *
+   * @param distq Distance query
+   * @param kplus Number of neighbors, including the query point
+   * @param weight Use the sum of distances (kNN weight) instead of the
+   *        k-distance
+   * @param n Number of outliers to find
+   * @param rnd Random generator for the scan order
+   */
+  public TopNOutlierScan(DistanceQuery<O> distq, int kplus, boolean weight, int n, RandomFactory rnd) {
+    super();
+    this.distq = distq;
+    this.kplus = kplus;
+    this.weight = weight;
+    this.n = n;
+    this.rnd = rnd;
+  }
+
+  /**
+   * Run the top-n outlier scan.
+   *
+   * @param relation Data relation
+   * @param name Score name
+   * @param log Logger for progress
+   * @return Outlier result
+   */
+  public OutlierResult run(Relation<O> relation, String name, Logging log) {
+    ArrayModifiableDBIDs order = DBIDUtil.newArray(relation.getDBIDs());
+    DBIDUtil.randomShuffle(order, rnd);
+    final int size = order.size();
+    topn = new DoubleIntegerMinHeap(n);
+    cutoff = 0.;
+
+    final int numblocks = (size + BLOCKSIZE - 1) / BLOCKSIZE;
+    FiniteProgress prog = log.isVerbose() ? new FiniteProgress("Top-n outlier scan blocks", numblocks, log) : null;
+    List<Callable<Void>> blocks = new ArrayList<>(numblocks);
+    for(int start = 0; start < size; start += BLOCKSIZE) {
+      final int bstart = start, bend = Math.min(start + BLOCKSIZE, size);
+      blocks.add(() -> {
+        processBlock(order, bstart, bend);
+        log.incrementProcessed(prog);
+        return null;
+      });
+    }
+    ParallelExecutor.run(blocks);
+    log.ensureCompleted(prog);
+
+    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_STATIC, 0.);
+    DoubleMinMax minmax = new DoubleMinMax();
+    minmax.put(0.);
+    DBIDArrayIter it = order.iter();
+    for(DoubleIntegerHeap.UnsortedIter iter = topn.unsortedIter(); iter.valid(); iter.advance()) {
+      scores.putDouble(it.seek(iter.getValue()), iter.getKey());
+      minmax.put(iter.getKey());
+    }
+    DoubleRelation scoreres = new MaterializedDoubleRelation(name, relation.getDBIDs(), scores);
+    OutlierScoreMeta meta = new BasicOutlierScoreMeta(minmax.getMin(), minmax.getMax(), 0., Double.POSITIVE_INFINITY, 0.);
+    return new OutlierResult(meta, scoreres);
+  }
+
+  /**
+   * Process a block of candidates, by scanning the randomized data.
+   * <p>
+   * Each candidate is offered as soon as its scan completes, so the cutoff
+   * used by all workers tightens with every finished candidate.
+   *
+   * @param order Data in randomized order
+   * @param start Block start
+   * @param end Block end
+   */
+  private void processBlock(ArrayDBIDs order, int start, int end) {
+    final int k = weight ? kplus - 1 : kplus;
+    DoubleMaxHeap heap = new DoubleMaxHeap(k);
+    DBIDArrayIter pi = order.iter(), qi = order.iter();
+    candidates: for(pi.seek(start); pi.getOffset() < end; pi.advance()) {
+      heap.clear();
+      double sum = 0.;
+      for(qi.seek(0); qi.valid(); qi.advance()) {
+        // kNN weight does not include the query point itself.
+        if(weight && pi.getOffset() == qi.getOffset()) {
+          continue;
+        }
+        final double d = distq.distance(pi, qi);
+        if(heap.size() < k) {
+          heap.add(d);
+          sum += d;
+        }
+        else if(d < heap.peek()) {
+          sum += d - heap.replaceTopElement(d);
+        }
+        // Prune when the upper bound drops below the current cutoff:
+        if(heap.size() == k && (weight ? sum : heap.peek()) < cutoff) {
+          continue candidates;
+        }
+      }
+      // Fewer than k neighbors (k exceeds the data size): infinite score, as
+      // in the exhaustive algorithms.
+      offer(heap.size() < k ? Double.POSITIVE_INFINITY : weight ? ascendingSum(heap) : heap.peek(), pi.getOffset());
+    }
+  }
+
+  /**
+   * Sum the distances in ascending order, for the same numerical result as the
+   * exhaustive method. This consumes the heap.
+   *
+   * @param heap Heap of distances
+   * @return Sum
+   */
+  private static double ascendingSum(DoubleMaxHeap heap) {
+    double[] buf = new double[heap.size()];
+    for(int i = buf.length - 1; i >= 0; i--) {
+      buf[i] = heap.poll();
+    }
+    double sum = 0.;
+    for(double d : buf) {
+      sum += d;
+    }
+    return sum;
+  }
+
+  /**
+   * Offer a candidate to the top-n heap, and update the cutoff.
+   *
+   * @param score Exact score
+   * @param offset Offset in the randomized order
+   */
+  private synchronized void offer(double score, int offset) {
+    if(topn.size() < n) {
+      topn.add(score, offset);
+    }
+    else if(score > topn.peekKey()) {
+      topn.replaceTopElement(score, offset);
+    }
+    if(topn.size() >= n) {
+      cutoff = topn.peekKey();
+    }
+  }
+}
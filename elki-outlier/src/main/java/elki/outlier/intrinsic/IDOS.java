@@ -43,6 +43,9 @@ import elki.math.DoubleMinMax;
 import elki.math.statistics.intrinsicdimensionality.ALIDEstimator;
 import elki.math.statistics.intrinsicdimensionality.IntrinsicDimensionalityEstimator;
 import elki.outlier.OutlierAlgorithm;
+import elki.parallel.Executor;
+import elki.parallel.ParallelExecutor;
+import elki.parallel.processor.Processor;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
 import elki.result.outlier.QuotientOutlierScoreMeta;
@@ -64,6 +67,9 @@ import elki.utilities.optionhandling.parameters.ObjectParameter;
  * Jonathan von Brünken, Michael E. Houle, Arthur Zimek<br>
  * Intrinsic Dimensional Outlier Detection in High-Dimensional Data<br>
  * NII Technical Report (NII-2015-003E)
+ * <p>
+ * Both the intrinsic dimensionality estimates and the final scores are
+ * computed in parallel, sharing the precomputed neighborhoods.
  *
  * @author Jonathan von Brünken
  * @author Erich Schubert
@@ -168,17 +174,7 @@ public class IDOS<O> implements OutlierAlgorithm {
   protected DoubleDataStore computeIDs(DBIDs ids, KNNSearcher<DBIDRef> knnQ, DistanceQuery<O> distQ) {
     WritableDoubleDataStore intDims = DataStoreUtil.makeDoubleStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP);
     FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("Intrinsic dimensionality", ids.size(), LOG) : null;
-    for(DBIDIter iter = ids.iter(); iter.valid(); iter.advance()) {
-      double id = 0.;
-      try {
-        id = estimator.estimate(knnQ, distQ, iter, k_c + 1);
-      }
-      catch(ArithmeticException e) {
-        id = 0; // Too many duplicates, etc.
-      }
-      intDims.putDouble(iter, id);
-      LOG.incrementProcessed(prog);
-    }
+    ParallelExecutor.run(ids, new IDProcessor(knnQ, distQ, intDims, prog));
     LOG.ensureCompleted(prog);
     return intDims;
   }
@@ -195,29 +191,146 @@ public class IDOS<O> implements OutlierAlgorithm {
   protected DoubleDataStore computeIDOS(DBIDs ids, KNNSearcher<DBIDRef> knnQ, DoubleDataStore intDims, DoubleMinMax idosminmax) {
     WritableDoubleDataStore ldms = DataStoreUtil.makeDoubleStorage(ids, DataStoreFactory.HINT_STATIC);
     FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("ID Outlier Scores for objects", ids.size(), LOG) : null;
+    ParallelExecutor.run(ids, new IDOSProcessor(knnQ, intDims, ldms, prog));
+    LOG.ensureCompleted(prog);
     for(DBIDIter iter = ids.iter(); iter.valid(); iter.advance()) {
-      final KNNList neighbors = knnQ.getKNN(iter, k_r);
-      double sum = 0.;
-      int cnt = 0;
-      for(DoubleDBIDListIter neighbor = neighbors.iter(); neighbor.valid(); neighbor.advance()) {
-        if(DBIDUtil.equal(iter, neighbor)) {
-          continue;
+      idosminmax.put(ldms.doubleValue(iter));
+    }
+    return ldms;
+  }
+
+  /**
+   * Estimate the intrinsic dimensionality of each object, with a thread-local
+   * scratch buffer for the estimator.
+   *
+   * @author Erich Schubert
+   */
+  private class IDProcessor implements Processor {
+    /**
+     * Precomputed kNN query.
+     */
+    private KNNSearcher<DBIDRef> knnQ;
+
+    /**
+     * Distance query.
+     */
+    private DistanceQuery<O> distQ;
+
+    /**
+     * Output storage.
+     */
+    private WritableDoubleDataStore intDims;
+
+    /**
+     * Progress.
+     */
+    private FiniteProgress prog;
+
+    /**
+     * Constructor.
+     *
+     * @param knnQ Precomputed kNN query
+     * @param distQ Distance query
+     * @param intDims Output storage
+     * @param prog Progress
+     */
+    public IDProcessor(KNNSearcher<DBIDRef> knnQ, DistanceQuery<O> distQ, WritableDoubleDataStore intDims, FiniteProgress prog) {
+      this.knnQ = knnQ;
+      this.distQ = distQ;
+      this.intDims = intDims;
+      this.prog = prog;
+    }
+
+    @Override
+    public Processor.Instance instantiate(Executor executor) {
+      final double[] buf = new double[k_c + 1];
+      return iter -> {
+        double id = 0.;
+        try {
+          id = estimator.estimate(knnQ, distQ, iter, k_c + 1, buf);
         }
-        final double id = intDims.doubleValue(neighbor);
-        sum += id > 0 ? 1.0 / id : 0.;
-        if(++cnt == k_r) { // Always stop after at most k_r elements.
-          break;
+        catch(ArithmeticException e) {
+          id = 0; // Too many duplicates, etc.
         }
-      }
-      final double id_q = intDims.doubleValue(iter);
-      final double idos = id_q > 0 ? id_q * sum / cnt : 0.;
+        intDims.putDouble(iter, id);
+        LOG.incrementProcessed(prog);
+      };
+    }
 
-      ldms.putDouble(iter, idos);
-      idosminmax.put(idos);
-      LOG.incrementProcessed(prog);
+    @Override
+    public void cleanup(Processor.Instance inst) {
+      // Nothing to do.
+    }
+  }
+
+  /**
+   * Compute the IDOS score of each object from the intrinsic dimensionalities
+   * of its neighbors.
+   *
+   * @author Erich Schubert
+   */
+  private class IDOSProcessor implements Processor {
+    /**
+     * Precomputed kNN query.
+     */
+    private KNNSearcher<DBIDRef> knnQ;
+
+    /**
+     * Intrinsic dimensionalities.
+     */
+    private DoubleDataStore intDims;
+
+    /**
+     * Output storage.
+     */
+    private WritableDoubleDataStore ldms;
+
+    /**
+     * Progress.
+     */
+    private FiniteProgress prog;
+
+    /**
+     * Constructor.
+     *
+     * @param knnQ Precomputed kNN query
+     * @param intDims Intrinsic dimensionalities
+     * @param ldms Output storage
+     * @param prog Progress
+     */
+    public IDOSProcessor(KNNSearcher<DBIDRef> knnQ, DoubleDataStore intDims, WritableDoubleDataStore ldms, FiniteProgress prog) {
+      this.knnQ = knnQ;
+      this.intDims = intDims;
+      this.ldms = ldms;
+      this.prog = prog;
+    }
+
+    @Override
+    public Processor.Instance instantiate(Executor executor) {
+      return iter -> {
+        final KNNList neighbors = knnQ.getKNN(iter, k_r);
+        double sum = 0.;
+        int cnt = 0;
+        for(DoubleDBIDListIter neighbor = neighbors.iter(); neighbor.valid(); neighbor.advance()) {
+          if(DBIDUtil.equal(iter, neighbor)) {
+            continue;
+          }
+          final double id = intDims.doubleValue(neighbor);
+          sum += id > 0 ? 1.0 / id : 0.;
+          if(++cnt == k_r) { // Always stop after at most k_r elements.
+            break;
+          }
+        }
+        final double id_q = intDims.doubleValue(iter);
+        ldms.putDouble(iter, id_q > 0 ? id_q * sum / cnt : 0.);
+        LOG.incrementProcessed(prog);
+      };
+    }
+
+    @Override
+    public void cleanup(Processor.Instance inst) {
+      // Nothing to do.
     }
-    LOG.ensureCompleted(prog);
-    return ldms;
   }
 
   /**
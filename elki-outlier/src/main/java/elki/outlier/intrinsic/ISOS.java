@@ -20,11 +20,15 @@
  */
 package elki.outlier.intrinsic;
 
+import java.util.function.Supplier;
+
 import elki.Algorithm;
 import elki.data.type.TypeInformation;
 import elki.data.type.TypeUtil;
+import elki.database.datastore.DataStore;
 import elki.database.datastore.DataStoreFactory;
 import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.datastore.WritableDoubleDataStore;
 import elki.database.ids.*;
 import elki.database.query.QueryBuilder;
@@ -41,6 +45,9 @@ import elki.math.statistics.intrinsicdimensionality.AggregatedHillEstimator;
 import elki.math.statistics.intrinsicdimensionality.DistanceBasedIntrinsicDimensionalityEstimator;
 import elki.outlier.OutlierAlgorithm;
 import elki.outlier.distance.SOS;
+import elki.parallel.Executor;
+import elki.parallel.ParallelExecutor;
+import elki.parallel.processor.Processor;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
 import elki.result.outlier.ProbabilisticOutlierScore;
@@ -64,10 +71,15 @@ import net.jafama.FastMath;
  * Intrinsic t-Stochastic Neighbor Embedding for Visualization and Outlier
  * Detection: A Remedy Against the Curse of Dimensionality?<br>
  * Proc. Int. Conf. Similarity Search and Applications, SISAP'2017
+ * <p>
+ * The affinities are computed in parallel; the votes are then combined
+ * sequentially, in the same order as before.
  * 
  * @author Erich Schubert
  * @since 0.7.5
  *
+ * @has - - - AffinityProcessor
+ *
  * @param <O> Object type.
  */
 @Title("ISOS: Intrinsic Stochastic Outlier Selection")
@@ -130,48 +142,16 @@ public class ISOS<O> implements OutlierAlgorithm {
   public OutlierResult run(Relation<O> relation) {
     final int k1 = k + 1; // Query size
     final double perplexity = k / 3.;
-    KNNSearcher<DBIDRef> knnq = new QueryBuilder<>(relation, distance).kNNByDBID(k1);
+    QueryBuilder<O> qb = new QueryBuilder<>(relation, distance);
     final double logPerp = perplexity > 1. ? FastMath.log(perplexity) : .1;
 
-    double[] p = new double[k + 10];
-    ModifiableDoubleDBIDList dists = DBIDUtil.newDistanceDBIDList(k + 10);
-    DoubleDBIDListIter di = dists.iter();
-    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("ISOS scores", relation.size(), LOG) : null;
-    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_DB, 1.);
-    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
-      KNNList knns = knnq.getKNN(it, k1);
-      if(p.length < knns.size() + 1) {
-        p = new double[knns.size() + 10];
-      }
-      final DoubleDBIDListIter ki = knns.iter();
-      try {
-        double id = estimateID(it, ki, p);
-        adjustDistances(it, ki, knns.getKNNDistance(), id, dists);
-        // We now continue with the modified distances below.
-        // Compute affinities
-        SOS.computePi(it, di, p, perplexity, logPerp);
-        // Normalization factor:
-        double s = SOS.sumOfProbabilities(it, di, p);
-        if(s > 0.) {
-          nominateNeighbors(it, di, p, 1. / s, scores);
-        }
-      }
-      catch(ArithmeticException e) {
-        // ID estimation failed, supposedly constant values because of too many
-        // duplicate points, or too small k. Fall back to KNNSOS.
-        // Note: this looks almost identical to the above, but uses ki instead
-        // of the adjusted distances di!
-        // Compute affinities
-        SOS.computePi(it, ki, p, perplexity, logPerp);
-        // Normalization factor:
-        double s = SOS.sumOfProbabilities(it, ki, p);
-        if(s > 0.) {
-          nominateNeighbors(it, ki, p, 1. / s, scores);
-        }
-      }
-      LOG.incrementProcessed(prog);
-    }
+    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("ISOS affinities", relation.size(), LOG) : null;
+    WritableDataStore<DoubleDBIDList> affinities = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_TEMP, DoubleDBIDList.class);
+    ParallelExecutor.run(relation.getDBIDs(), new AffinityProcessor(() -> qb.kNNByDBID(k1), k1, perplexity, logPerp, estimator, affinities, prog, LOG));
     LOG.ensureCompleted(prog);
+    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_DB, 1.);
+    nominateNeighbors(relation.getDBIDs(), affinities, scores);
+    affinities.destroy();
     DoubleMinMax minmax = transformScores(scores, relation.getDBIDs(), logPerp, phi);
     DoubleRelation scoreres = new MaterializedDoubleRelation("Intrinsic Stoachastic Outlier Selection", relation.getDBIDs(), scores);
     OutlierScoreMeta meta = new ProbabilisticOutlierScore(minmax.getMin(), minmax.getMax(), 0.);
@@ -193,12 +173,13 @@ public class ISOS<O> implements OutlierAlgorithm {
   /**
    * Estimate the local intrinsic dimensionality.
    * 
+   * @param estimator Estimator of intrinsic dimensionality
    * @param ignore Object to ignore
    * @param it Iterator
    * @param p Scratch array
    * @return ID estimate
    */
-  protected double estimateID(DBIDRef ignore, DoubleDBIDListIter it, double[] p) {
+  protected static double estimateID(DistanceBasedIntrinsicDimensionalityEstimator estimator, DBIDRef ignore, DoubleDBIDListIter it, double[] p) {
     int j = 0;
     for(it.seek(0); it.valid(); it.advance()) {
       if(it.doubleValue() == 0. || DBIDUtil.equal(ignore, it)) {
@@ -221,7 +202,7 @@ public class ISOS<O> implements OutlierAlgorithm {
    * @param norm Normalization factor (1/sum)
    * @param scores Output score storage
    */
-  public static void nominateNeighbors(DBIDIter ignore, DBIDArrayIter di, double[] p, double norm, WritableDoubleDataStore scores) {
+  public static void nominateNeighbors(DBIDRef ignore, DBIDArrayIter di, double[] p, double norm, WritableDoubleDataStore scores) {
     for(di.seek(0); di.valid(); di.advance()) {
       if(DBIDUtil.equal(ignore, di)) {
         continue;
@@ -255,6 +236,175 @@ public class ISOS<O> implements OutlierAlgorithm {
     return minmax;
   }
 
+  /**
+   * Vote for neighbors not being outliers, using precomputed affinities.
+   *
+   * @param ids Object ids, in voting order
+   * @param affinities Normalized affinities of each object to its neighbors
+   * @param scores Output score storage
+   */
+  public static void nominateNeighbors(DBIDs ids, DataStore<DoubleDBIDList> affinities, WritableDoubleDataStore scores) {
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      for(DoubleDBIDListIter ai = affinities.get(it).iter(); ai.valid(); ai.advance()) {
+        scores.increment(ai, FastMath.log1p(-ai.doubleValue()));
+      }
+    }
+  }
+
+  /**
+   * Compute the normalized affinities of each object to its nearest
+   * neighbors, with thread-local buffers.
+   * <p>
+   * The affinities are stored as distance lists, in the order in which
+   * {@link #nominateNeighbors} would use them; non-positive affinities are
+   * omitted.
+   *
+   * @author Erich Schubert
+   */
+  public static class AffinityProcessor implements Processor {
+    /**
+     * kNN query factory.
+     */
+    private Supplier<KNNSearcher<DBIDRef>> knnq;
+
+    /**
+     * Query size (including the query point).
+     */
+    private int k1;
+
+    /**
+     * Perplexity, and its logarithm.
+     */
+    private double perplexity, logPerp;
+
+    /**
+     * Estimator of intrinsic dimensionality, may be {@code null} to use the
+     * plain distances.
+     */
+    private DistanceBasedIntrinsicDimensionalityEstimator estimator;
+
+    /**
+     * Output storage.
+     */
+    private WritableDataStore<DoubleDBIDList> affinities;
+
+    /**
+     * Progress.
+     */
+    private FiniteProgress prog;
+
+    /**
+     * Logger for progress.
+     */
+    private Logging log;
+
+    /**
+     * Constructor.
+     *
+     * @param knnq kNN query factory
+     * @param k1 Query size (including the query point)
+     * @param perplexity Perplexity
+     * @param logPerp Logarithm of perplexity
+     * @param estimator Estimator of intrinsic dimensionality, may be null
+     * @param affinities Output storage
+     * @param prog Progress
+     * @param log Logger for progress
+     */
+    public AffinityProcessor(Supplier<KNNSearcher<DBIDRef>> knnq, int k1, double perplexity, double logPerp, DistanceBasedIntrinsicDimensionalityEstimator estimator, WritableDataStore<DoubleDBIDList> affinities, FiniteProgress prog, Logging log) {
+      super();
+      this.knnq = knnq;
+      this.k1 = k1;
+      this.perplexity = perplexity;
+      this.logPerp = logPerp;
+      this.estimator = estimator;
+      this.affinities = affinities;
+      this.prog = prog;
+      this.log = log;
+    }
+
+    @Override
+    public Instance instantiate(Executor executor) {
+      return new Instance(knnq.get());
+    }
+
+    @Override
+    public void cleanup(Processor.Instance inst) {
+      // Nothing to do.
+    }
+
+    /**
+     * Instance, with thread-local buffers.
+     *
+     * @author Erich Schubert
+     */
+    private class Instance implements Processor.Instance {
+      /**
+       * kNN query.
+       */
+      private KNNSearcher<DBIDRef> knnq;
+
+      /**
+       * Probabilities buffer.
+       */
+      private double[] p = new double[k1 + 10];
+
+      /**
+       * Adjusted distances buffer.
+       */
+      private ModifiableDoubleDBIDList dists = DBIDUtil.newDistanceDBIDList(k1 + 10);
+
+      /**
+       * Constructor.
+       *
+       * @param knnq kNN query
+       */
+      protected Instance(KNNSearcher<DBIDRef> knnq) {
+        this.knnq = knnq;
+      }
+
+      @Override
+      public void map(DBIDRef id) {
+        KNNList knns = knnq.getKNN(id, k1);
+        if(p.length < knns.size() + 1) {
+          p = new double[knns.size() + 10];
+        }
+        DoubleDBIDListIter di = knns.iter();
+        if(estimator != null) {
+          try {
+            double idim = estimateID(estimator, id, di, p);
+            adjustDistances(id, di, knns.getKNNDistance(), idim, dists);
+            // We now continue with the modified distances below.
+            di = dists.iter();
+          }
+          catch(ArithmeticException e) {
+            // ID estimation failed, supposedly constant values because of too
+            // many duplicate points, or too small k. Fall back to KNNSOS.
+          }
+        }
+        // Compute affinities
+        SOS.computePi(id, di, p, perplexity, logPerp);
+        // Normalization factor:
+        double s = SOS.sumOfProbabilities(id, di, p);
+        ModifiableDoubleDBIDList out = DBIDUtil.newDistanceDBIDList(s > 0. ? knns.size() : 0);
+        if(s > 0.) {
+          final double norm = 1. / s;
+          for(di.seek(0); di.valid(); di.advance()) {
+            if(DBIDUtil.equal(id, di)) {
+              continue;
+            }
+            double v = p[di.getOffset()] * norm; // Normalize
+            if(!(v > 0)) {
+              break;
+            }
+            out.add(v, di);
+          }
+        }
+        affinities.put(id, out);
+        log.incrementProcessed(prog);
+      }
+    }
+  }
+
   /**
    * Parameterization class.
    * 
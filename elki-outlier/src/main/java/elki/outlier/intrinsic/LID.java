@@ -42,6 +42,9 @@ import elki.math.DoubleMinMax;
 import elki.math.statistics.intrinsicdimensionality.IntrinsicDimensionalityEstimator;
 import elki.math.statistics.intrinsicdimensionality.MOMEstimator;
 import elki.outlier.OutlierAlgorithm;
+import elki.parallel.Executor;
+import elki.parallel.ParallelExecutor;
+import elki.parallel.processor.Processor;
 import elki.result.outlier.BasicOutlierScoreMeta;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
@@ -64,6 +67,9 @@ import elki.utilities.optionhandling.parameters.ObjectParameter;
  * <p>
  * This idea was also briefly explored before by Michael Houle, Arthur Zimek,
  * Jonathan von Brünken, et al.
+ * <p>
+ * The estimates are computed in parallel, reusing one scratch buffer per
+ * thread.
  *
  * @author Erich Schubert
  * @since 0.7.0
@@ -123,31 +129,78 @@ public class LID<O> implements OutlierAlgorithm {
    */
   public OutlierResult run(Relation<O> relation) {
     QueryBuilder<O> qb = new QueryBuilder<>(relation, distance);
-    DistanceQuery<O> distQ = qb.distanceQuery();
-    KNNSearcher<DBIDRef> knnQ = qb.kNNByDBID(kplus);
-
     FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("kNN distance for objects", relation.size(), LOG) : null;
-
-    DoubleMinMax minmax = new DoubleMinMax();
     WritableDoubleDataStore id_score = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_STATIC);
+    ParallelExecutor.run(relation.getDBIDs(), new LIDProcessor(qb, id_score, prog));
+    LOG.ensureCompleted(prog);
+    DoubleMinMax minmax = new DoubleMinMax();
     for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
-      double id = 0.;
-      try {
-        id = estimator.estimate(knnQ, distQ, iditer, kplus);
-      }
-      catch(ArithmeticException e) {
-        // pass, use 0.
-      }
-      id_score.putDouble(iditer, id);
-      minmax.put(id);
-      LOG.incrementProcessed(prog);
+      minmax.put(id_score.doubleValue(iditer));
     }
-    LOG.ensureCompleted(prog);
     DoubleRelation scoreres = new MaterializedDoubleRelation("Intrinsic dimensionality", relation.getDBIDs(), id_score);
     OutlierScoreMeta meta = new BasicOutlierScoreMeta(minmax.getMin(), minmax.getMax(), 0.0, Double.POSITIVE_INFINITY, 0.0);
     return new OutlierResult(meta, scoreres);
   }
 
+  /**
+   * Estimate the intrinsic dimensionality of each object, with a thread-local
+   * scratch buffer for the estimator.
+   *
+   * @author Erich Schubert
+   */
+  private class LIDProcessor implements Processor {
+    /**
+     * Query builder.
+     */
+    private QueryBuilder<O> qb;
+
+    /**
+     * Output storage.
+     */
+    private WritableDoubleDataStore id_score;
+
+    /**
+     * Progress.
+     */
+    private FiniteProgress prog;
+
+    /**
+     * Constructor.
+     *
+     * @param qb Query builder
+     * @param id_score Output storage
+     * @param prog Progress
+     */
+    public LIDProcessor(QueryBuilder<O> qb, WritableDoubleDataStore id_score, FiniteProgress prog) {
+      this.qb = qb;
+      this.id_score = id_score;
+      this.prog = prog;
+    }
+
+    @Override
+    public Processor.Instance instantiate(Executor executor) {
+      final DistanceQuery<O> distQ = qb.distanceQuery();
+      final KNNSearcher<DBIDRef> knnQ = qb.kNNByDBID(kplus);
+      final double[] buf = new double[kplus];
+      return iditer -> {
+        double id = 0.;
+        try {
+          id = estimator.estimate(knnQ, distQ, iditer, kplus, buf);
+        }
+        catch(ArithmeticException e) {
+          // pass, use 0.
+        }
+        id_score.putDouble(iditer, id);
+        LOG.incrementProcessed(prog);
+      };
+    }
+
+    @Override
+    public void cleanup(Processor.Instance inst) {
+      // Nothing to do.
+    }
+  }
+
   /**
    * Parameterization class.
    *
@@ -21,7 +21,9 @@
 package elki.outlier.meta;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
 
 import elki.data.NumberVector;
 import elki.data.type.TypeInformation;
@@ -40,6 +42,7 @@ import elki.logging.progress.FiniteProgress;
 import elki.math.DoubleMinMax;
 import elki.outlier.OutlierAlgorithm;
 import elki.outlier.lof.LOF;
+import elki.parallel.ParallelExecutor;
 import elki.result.outlier.BasicOutlierScoreMeta;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
@@ -67,6 +70,9 @@ import elki.utilities.random.RandomFactory;
  * A. Lazarevic, V. Kumar<br>
  * Feature Bagging for Outlier Detection<br>
  * Proc. 11th ACM SIGKDD Int. Conf. on Knowledge Discovery in Data Mining
+ * <p>
+ * The random subspaces are chosen up front, and the ensemble members are then
+ * computed in parallel.
  *
  * @author Erich Schubert
  * @author Remigius Wojdanowski
@@ -137,16 +143,21 @@ public class FeatureBagging implements OutlierAlgorithm {
     final int maxdim = dbdim - 1;
     final Random rand = rnd.getSingleThreadedRandom();
 
-    ArrayList<OutlierResult> results = new ArrayList<>(num);
+    List<OutlierResult> results;
     {
       FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("LOF iterations", num, LOG) : null;
+      List<Callable<OutlierResult>> tasks = new ArrayList<>(num);
       for(int i = 0; i < num; i++) {
-        long[] dimset = randomSubspace(dbdim, mindim, maxdim, rand);
-        SubspaceEuclideanDistance df = new SubspaceEuclideanDistance(dimset);
-        // run LOF and collect the result
-        results.add(new LOF<>(k, df).run(relation));
-        LOG.incrementProcessed(prog);
+        // Choose subspaces sequentially, for reproducibility.
+        SubspaceEuclideanDistance df = new SubspaceEuclideanDistance(randomSubspace(dbdim, mindim, maxdim, rand));
+        tasks.add(() -> {
+          // run LOF and collect the result
+          OutlierResult result = new LOF<>(k, df).run(relation);
+          LOG.incrementProcessed(prog);
+          return result;
+        });
       }
+      results = ParallelExecutor.run(tasks);
       LOG.ensureCompleted(prog);
     }
 
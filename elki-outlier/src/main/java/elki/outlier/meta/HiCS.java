@@ -21,6 +21,7 @@
 package elki.outlier.meta;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import elki.data.NumberVector;
 import elki.data.VectorUtil;
@@ -35,6 +36,7 @@ import elki.database.datastore.WritableDoubleDataStore;
 import elki.database.ids.*;
 import elki.database.relation.*;
 import elki.logging.Logging;
+import elki.logging.progress.AbstractProgress;
 import elki.logging.progress.FiniteProgress;
 import elki.logging.progress.IndefiniteProgress;
 import elki.math.DoubleMinMax;
@@ -42,6 +44,7 @@ import elki.math.statistics.tests.GoodnessOfFitTest;
 import elki.math.statistics.tests.KolmogorovSmirnovTest;
 import elki.outlier.OutlierAlgorithm;
 import elki.outlier.lof.LOF;
+import elki.parallel.ParallelExecutor;
 import elki.result.outlier.BasicOutlierScoreMeta;
 import elki.result.outlier.OutlierResult;
 import elki.result.outlier.OutlierScoreMeta;
@@ -59,6 +62,7 @@ import elki.utilities.optionhandling.parameters.IntParameter;
 import elki.utilities.optionhandling.parameters.ObjectParameter;
 import elki.utilities.optionhandling.parameters.RandomParameter;
 import elki.utilities.random.RandomFactory;
+import elki.utilities.random.Xoroshiro128NonThreadsafeRandom;
 
 import net.jafama.FastMath;
 
@@ -71,6 +75,10 @@ import net.jafama.FastMath;
  * F. Keller, E. Müller, K. Böhm<br>
  * HiCS: High Contrast Subspaces for Density-Based Outlier Ranking<br>
  * Proc. IEEE 28th Int. Conf. on Data Engineering (ICDE 2012)
+ * <p>
+ * The contrast of the candidate subspaces is evaluated in parallel. Each
+ * candidate uses its own random stream, seeded in candidate order, so results
+ * do not depend on the number of threads.
  *
  * @author Jan Brusis
  * @author Erich Schubert
@@ -164,7 +172,8 @@ public class HiCS implements OutlierAlgorithm {
     final DBIDs ids = relation.getDBIDs();
 
     ArrayList<ArrayDBIDs> subspaceIndex = buildOneDimIndexes(relation);
-    Set<HiCSSubspace> subspaces = calculateSubspaces(relation, subspaceIndex, rnd.getSingleThreadedRandom());
+    double[][] sortedValues = projectSorted(relation, subspaceIndex);
+    Set<HiCSSubspace> subspaces = calculateSubspaces(relation, subspaceIndex, sortedValues, rnd.getSingleThreadedRandom());
 
     if(LOG.isVerbose()) {
       LOG.verbose("Number of high-contrast subspaces: " + subspaces.size());
@@ -233,14 +242,38 @@ public class HiCS implements OutlierAlgorithm {
     return subspaceIndex;
   }
 
+  /**
+   * Project the data onto each attribute, in sorted order.
+   * <p>
+   * These arrays are shared (read-only) by all Monte-Carlo iterations, instead
+   * of projecting the full data set again in every iteration.
+   *
+   * @param relation Relation to index
+   * @param subspaceIndex Sorted object ids for every attribute
+   * @return Sorted values, for every attribute
+   */
+  private double[][] projectSorted(Relation<? extends NumberVector> relation, ArrayList<ArrayDBIDs> subspaceIndex) {
+    double[][] sortedValues = new double[subspaceIndex.size()][];
+    for(int d = 0; d < sortedValues.length; d++) {
+      double[] values = sortedValues[d] = new double[relation.size()];
+      int l = 0;
+      for(DBIDIter iter = subspaceIndex.get(d).iter(); iter.valid(); iter.advance()) {
+        values[l++] = relation.get(iter).doubleValue(d);
+      }
+    }
+    return sortedValues;
+  }
+
   /**
    * Identifies high contrast subspaces in a given full-dimensional database.
    * 
    * @param relation the relation the HiCS should be evaluated for
    * @param subspaceIndex Subspace indexes
+   * @param sortedValues Sorted attribute values
+   * @param random Random generator
    * @return a set of high contrast subspaces
    */
-  private Set<HiCSSubspace> calculateSubspaces(Relation<? extends NumberVector> relation, ArrayList<ArrayDBIDs> subspaceIndex, Random random) {
+  private Set<HiCSSubspace> calculateSubspaces(Relation<? extends NumberVector> relation, ArrayList<ArrayDBIDs> subspaceIndex, double[][] sortedValues, Random random) {
     final int dbdim = RelationUtil.dimensionality(relation);
 
     FiniteProgress dprog = LOG.isVerbose() ? new FiniteProgress("Subspace dimensionality", dbdim, LOG) : null;
@@ -252,14 +285,16 @@ public class HiCS implements OutlierAlgorithm {
     Heap<HiCSSubspace> dDimensionalList = new Heap<>(cutoff, HiCSSubspace.SORT_BY_CONTRAST_ASC);
     FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("Generating two-element subsets", (dbdim * (dbdim - 1)) >> 1, LOG) : null;
     // compute two-element sets of subspaces
+    ArrayList<HiCSSubspace> joined = new ArrayList<>();
     for(int i = 0; i < dbdim; i++) {
       for(int j = i + 1; j < dbdim; j++) {
-        HiCSSubspace ts = new HiCSSubspace(dbdim).set(i).set(j);
-        calculateContrast(relation, ts, subspaceIndex, random);
-        dDimensionalList.add(ts, cutoff);
-        LOG.incrementProcessed(prog);
+        joined.add(new HiCSSubspace(dbdim).set(i).set(j));
       }
     }
+    calculateContrasts(relation, joined, subspaceIndex, sortedValues, random, prog);
+    for(HiCSSubspace ts : joined) {
+      dDimensionalList.add(ts, cutoff);
+    }
     LOG.ensureCompleted(prog);
 
     IndefiniteProgress qprog = LOG.isVerbose() ? new IndefiniteProgress("Testing subspace candidates", LOG) : null;
@@ -279,19 +314,20 @@ public class HiCS implements OutlierAlgorithm {
       Collections.sort(candidateList, HiCSSubspace.SORT_BY_SUBSPACE);
 
       // TODO: optimize APRIORI style, by not even computing the bit set or?
+      joined.clear();
       for(int i = 0; i < candidateList.size() - 1; i++) {
         for(int j = i + 1; j < candidateList.size(); j++) {
           HiCSSubspace joinedSet = new HiCSSubspace(candidateList.get(i)) //
               .or(candidateList.get(j));
-          if(joinedSet.dimensionality() != d) {
-            continue;
+          if(joinedSet.dimensionality() == d) {
+            joined.add(joinedSet);
           }
-
-          calculateContrast(relation, joinedSet, subspaceIndex, random);
-          dDimensionalList.add(joinedSet, cutoff);
-          LOG.incrementProcessed(qprog);
         }
       }
+      calculateContrasts(relation, joined, subspaceIndex, sortedValues, random, qprog);
+      for(HiCSSubspace joinedSet : joined) {
+        dDimensionalList.add(joinedSet, cutoff);
+      }
       // Prune
       for(HiCSSubspace cand : candidateList) {
         for(Heap<HiCSSubspace>.UnorderedIter it = dDimensionalList.unorderedIter(); it.valid(); it.advance()) {
@@ -310,19 +346,49 @@ public class HiCS implements OutlierAlgorithm {
     return subspaceList;
   }
 
+  /**
+   * Calculates the contrast of a batch of candidate subspaces in parallel.
+   * <p>
+   * The seeds are drawn from the shared random generator in candidate order,
+   * so that the result is deterministic.
+   *
+   * @param relation Relation to process
+   * @param candidates Candidate subspaces
+   * @param subspaceIndex Subspace indexes
+   * @param sortedValues Sorted attribute values
+   * @param random Random generator for seeding
+   * @param prog Progress to increment
+   */
+  private void calculateContrasts(Relation<? extends NumberVector> relation, List<HiCSSubspace> candidates, ArrayList<ArrayDBIDs> subspaceIndex, double[][] sortedValues, Random random, AbstractProgress prog) {
+    List<Callable<HiCSSubspace>> tasks = new ArrayList<>(candidates.size());
+    for(HiCSSubspace subspace : candidates) {
+      final long seed = random.nextLong();
+      tasks.add(() -> {
+        calculateContrast(relation, subspace, subspaceIndex, sortedValues, new Xoroshiro128NonThreadsafeRandom(seed));
+        LOG.incrementProcessed(prog);
+        return subspace;
+      });
+    }
+    ParallelExecutor.run(tasks);
+  }
+
   /**
    * Calculates the actual contrast of a given subspace.
    * 
    * @param relation Relation to process
    * @param subspace Subspace
    * @param subspaceIndex Subspace indexes
+   * @param sortedValues Sorted attribute values
+   * @param random Random generator
    */
-  private void calculateContrast(Relation<? extends NumberVector> relation, HiCSSubspace subspace, ArrayList<ArrayDBIDs> subspaceIndex, Random random) {
+  private void calculateContrast(Relation<? extends NumberVector> relation, HiCSSubspace subspace, ArrayList<ArrayDBIDs> subspaceIndex, double[][] sortedValues, Random random) {
     final int card = subspace.dimensionality();
     final double alpha1 = FastMath.pow(alpha, (1.0 / card));
     final int windowsize = (int) (relation.size() * alpha1);
     final FiniteProgress prog = LOG.isDebugging() ? new FiniteProgress("Monte-Carlo iterations", m, LOG) : null;
 
+    // Buffer for the full sample, as the test may modify it
+    final double[] fullValues = new double[relation.size()];
     int retries = 0;
     double deviationSum = 0.0;
     for(int i = 0; i < m; i++) {
@@ -370,14 +436,8 @@ public class HiCS implements OutlierAlgorithm {
           sampleValues[l++] = relation.get(iter).doubleValue(chosen);
         }
       }
-      // Project full set
-      double[] fullValues = new double[relation.size()];
-      {
-        int l = 0;
-        for(DBIDIter iter = subspaceIndex.get(chosen).iter(); iter.valid(); iter.advance()) {
-          fullValues[l++] = relation.get(iter).doubleValue(chosen);
-        }
-      }
+      // Full set, projected
+      System.arraycopy(sortedValues[chosen], 0, fullValues, 0, fullValues.length);
       double contrast = statTest.deviation(fullValues, sampleValues);
       if(Double.isNaN(contrast)) {
         i--;
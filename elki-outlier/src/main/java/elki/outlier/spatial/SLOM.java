@@ -132,10 +132,13 @@ public class SLOM<N, O> extends AbstractDistanceBasedSpatialOutlier<N, O> {
     for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
       double sum = 0;
       int cnt = 0;
+      // Avoid contains(), which is a linear scan for array neighborhoods:
+      boolean self = false;
 
       final DBIDs neighbors = npred.getNeighborDBIDs(iditer);
       for(DBIDIter iter = neighbors.iter(); iter.valid(); iter.advance()) {
         if(DBIDUtil.equal(iditer, iter)) {
+          self = true;
           continue;
         }
         sum += modifiedDistance.doubleValue(iter);
@@ -158,7 +161,7 @@ public class SLOM<N, O> extends AbstractDistanceBasedSpatialOutlier<N, O> {
           }
         }
         // Include object itself
-        if(!neighbors.contains(iditer)) {
+        if(!self) {
           final double dist = modifiedDistance.doubleValue(iditer);
           if(dist > avgPlus) {
             beta += 1;
@@ -0,0 +1,237 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.outlier.spatial.neighborhood;
+
+import java.util.function.Supplier;
+
+import elki.database.datastore.DataStore;
+import elki.database.datastore.DataStoreFactory;
+import elki.database.datastore.DataStoreIDMap;
+import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableIntegerDataStore;
+import elki.database.ids.*;
+import elki.logging.Logging;
+import elki.logging.progress.FiniteProgress;
+import elki.parallel.Executor;
+import elki.parallel.ParallelExecutor;
+import elki.parallel.processor.Processor;
+
+/**
+ * Compact neighborhood storage in compressed sparse row (CSR) format: one
+ * array of offsets, and a single array of all neighbors.
+ * <p>
+ * Compared to storing one {@link DBIDs} object per object, this avoids the
+ * per-object overhead, which matters for large graphs such as road networks.
+ * Neighborhoods are returned as array slices, without copying.
+ * <p>
+ * The store is built in parallel, in chunks, so that only the neighborhoods
+ * of one chunk need to be materialized as separate objects at a time.
+ * Objects with an empty neighborhood, and unknown objects, have an empty
+ * neighborhood.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class CSRNeighborStore implements DataStore<DBIDs> {
+  /**
+   * Number of objects to materialize at a time during construction.
+   */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  /**
+   * Map from object to row.
+   */
+  private DataStoreIDMap idmap;
+
+  /**
+   * Row offsets, of length size + 1.
+   */
+  private int[] offsets;
+
+  /**
+   * Neighbors of all objects, concatenated.
+   */
+  private ArrayDBIDs neighbors;
+
+  /**
+   * Constructor.
+   *
+   * @param idmap Map from object to row
+   * @param offsets Row offsets, of length size + 1
+   * @param neighbors Neighbors of all objects, concatenated
+   */
+  public CSRNeighborStore(DataStoreIDMap idmap, int[] offsets, ArrayDBIDs neighbors) {
+    super();
+    this.idmap = idmap;
+    this.offsets = offsets;
+    this.neighbors = neighbors;
+  }
+
+  @Override
+  public DBIDs get(DBIDRef id) {
+    final int row = idmap.mapDBIDToOffset(id);
+    if(row < 0 || row + 1 >= offsets.length) {
+      return DBIDUtil.EMPTYDBIDS;
+    }
+    final int begin = offsets[row], end = offsets[row + 1];
+    return begin < end ? neighbors.slice(begin, end) : DBIDUtil.EMPTYDBIDS;
+  }
+
+  /**
+   * Get the number of objects.
+   *
+   * @return Number of objects
+   */
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Get the total number of stored neighbors.
+   *
+   * @return Number of neighbors
+   */
+  public int numNeighbors() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * Build a CSR neighborhood store in parallel.
+   * <p>
+   * The supplier is called once per worker thread, so it can set up
+   * thread-local queries. The neighborhoods are stored in the iteration order
+   * of the returned sets.
+   *
+   * @param ids Objects to compute neighborhoods for
+   * @param neighbors Supplier for neighborhood functions
+   * @param prog Progress (may be {@code null})
+   * @param log Logger for progress
+   * @return Neighborhood store
+   */
+  public static CSRNeighborStore build(DBIDs ids, Supplier<? extends NeighborSetPredicate> neighbors, FiniteProgress prog, Logging log) {
+    final ArrayDBIDs aids = DBIDUtil.ensureArray(ids);
+    final int size = aids.size();
+    final DataStoreIDMap idmap = makeIDMap(aids);
+    int[] offsets = new int[size + 1];
+    ArrayModifiableDBIDs all = DBIDUtil.newArray(size);
+    DBIDs[] buf = new DBIDs[Math.min(size, CHUNK_SIZE)];
+    for(int start = 0; start < size; start += CHUNK_SIZE) {
+      final int end = Math.min(size, start + CHUNK_SIZE);
+      ParallelExecutor.run(aids.slice(start, end), new NeighborProcessor(neighbors, idmap, start, buf, prog, log));
+      for(int i = start; i < end; i++) {
+        final DBIDs n = buf[i - start];
+        if(n != null) {
+          all.addDBIDs(n);
+          buf[i - start] = null;
+        }
+        offsets[i + 1] = all.size();
+      }
+    }
+    return new CSRNeighborStore(idmap, offsets, all);
+  }
+
+  /**
+   * Build the map from objects to rows.
+   *
+   * @param ids Objects, in row order
+   * @return Map
+   */
+  private static DataStoreIDMap makeIDMap(ArrayDBIDs ids) {
+    if(ids instanceof DBIDRange) {
+      return ((DBIDRange) ids)::getOffset;
+    }
+    WritableIntegerDataStore rows = DataStoreUtil.makeIntegerStorage(ids, DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_STATIC, -1);
+    for(DBIDArrayIter it = ids.iter(); it.valid(); it.advance()) {
+      rows.putInt(it, it.getOffset());
+    }
+    return rows::intValue;
+  }
+
+  /**
+   * Processor to compute the neighborhoods of one chunk.
+   *
+   * @author Erich Schubert
+   */
+  private static class NeighborProcessor implements Processor {
+    /**
+     * Supplier for neighborhood functions.
+     */
+    private Supplier<? extends NeighborSetPredicate> neighbors;
+
+    /**
+     * Map from object to row.
+     */
+    private DataStoreIDMap idmap;
+
+    /**
+     * First row of the chunk.
+     */
+    private int start;
+
+    /**
+     * Output buffer for the chunk.
+     */
+    private DBIDs[] buf;
+
+    /**
+     * Progress.
+     */
+    private FiniteProgress prog;
+
+    /**
+     * Logger for progress.
+     */
+    private Logging log;
+
+    /**
+     * Constructor.
+     *
+     * @param neighbors Supplier for neighborhood functions
+     * @param idmap Map from object to row
+     * @param start First row of the chunk
+     * @param buf Output buffer for the chunk
+     * @param prog Progress
+     * @param log Logger for progress
+     */
+    public NeighborProcessor(Supplier<? extends NeighborSetPredicate> neighbors, DataStoreIDMap idmap, int start, DBIDs[] buf, FiniteProgress prog, Logging log) {
+      this.neighbors = neighbors;
+      this.idmap = idmap;
+      this.start = start;
+      this.buf = buf;
+      this.prog = prog;
+      this.log = log;
+    }
+
+    @Override
+    public Processor.Instance instantiate(Executor executor) {
+      final NeighborSetPredicate pred = neighbors.get();
+      return id -> {
+        buf[idmap.mapDBIDToOffset(id) - start] = pred.getNeighborDBIDs(id);
+        log.incrementProcessed(prog);
+      };
+    }
+
+    @Override
+    public void cleanup(Processor.Instance inst) {
+      // Nothing to do.
+    }
+  }
+}
@@ -23,9 +23,6 @@ package elki.outlier.spatial.neighborhood;
 import elki.data.type.TypeInformation;
 import elki.database.Database;
 import elki.database.datastore.DataStore;
-import elki.database.datastore.DataStoreFactory;
-import elki.database.datastore.DataStoreUtil;
-import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.relation.Relation;
 import elki.logging.Logging;
@@ -40,6 +37,9 @@ import elki.utilities.optionhandling.parameters.ObjectParameter;
 /**
  * Neighborhood obtained by computing the k-fold closure of an existing
  * neighborhood.
+ * <p>
+ * The extended neighborhoods are computed in parallel, and stored compactly
+ * in a {@link CSRNeighborStore}.
  * 
  * @author Erich Schubert
  * @since 0.4.0
@@ -113,39 +113,44 @@ public class ExtendedNeighborhood extends AbstractPrecomputedNeighborhood {
     private DataStore<DBIDs> extendNeighborhood(Database database, Relation<? extends O> relation) {
       NeighborSetPredicate innerinst = inner.instantiate(database, relation);
 
-      final WritableDataStore<DBIDs> store = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_STATIC | DataStoreFactory.HINT_TEMP, DBIDs.class);
-
       // Expand multiple steps
       FiniteProgress progress = LOG.isVerbose() ? new FiniteProgress("Expanding neighborhoods", relation.size(), LOG) : null;
-      for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
-        HashSetModifiableDBIDs res = DBIDUtil.newHashSet();
-        res.add(iter);
-        DBIDs todo = DBIDUtil.deref(iter);
-        for(int i = 0; i < steps; i++) {
-          ModifiableDBIDs ntodo = DBIDUtil.newHashSet();
-          for(DBIDIter iter2 = todo.iter(); iter2.valid(); iter2.advance()) {
-            DBIDs add = innerinst.getNeighborDBIDs(iter2);
-            if(add != null) {
-              for(DBIDIter iter3 = add.iter(); iter3.valid(); iter3.advance()) {
-                if(res.contains(iter3)) {
-                  continue;
-                }
-                ntodo.add(iter3);
-                res.add(iter3);
+      CSRNeighborStore store = CSRNeighborStore.build(relation.getDBIDs(), () -> iter -> expand(innerinst, iter), progress, LOG);
+      LOG.ensureCompleted(progress);
+      return store;
+    }
+
+    /**
+     * Expand the neighborhood of a single object.
+     *
+     * @param innerinst Inner neighborhood
+     * @param iter Object
+     * @return Extended neighborhood
+     */
+    private DBIDs expand(NeighborSetPredicate innerinst, DBIDRef iter) {
+      HashSetModifiableDBIDs res = DBIDUtil.newHashSet();
+      res.add(iter);
+      DBIDs todo = DBIDUtil.deref(iter);
+      for(int i = 0; i < steps; i++) {
+        ModifiableDBIDs ntodo = DBIDUtil.newHashSet();
+        for(DBIDIter iter2 = todo.iter(); iter2.valid(); iter2.advance()) {
+          DBIDs add = innerinst.getNeighborDBIDs(iter2);
+          if(add != null) {
+            for(DBIDIter iter3 = add.iter(); iter3.valid(); iter3.advance()) {
+              if(res.contains(iter3)) {
+                continue;
               }
+              ntodo.add(iter3);
+              res.add(iter3);
             }
           }
-          if(ntodo.size() == 0) {
-            continue;
-          }
-          todo = ntodo;
         }
-        store.put(iter, res);
-        LOG.incrementProcessed(progress);
+        if(ntodo.size() == 0) {
+          continue;
+        }
+        todo = ntodo;
       }
-      LOG.ensureCompleted(progress);
-
-      return store;
+      return res;
     }
 
     /**
@@ -174,7 +174,10 @@ public class ExternalNeighborhood extends AbstractPrecomputedNeighborhood {
             }
           }
         }
-        return store;
+        // Convert to a compact representation.
+        CSRNeighborStore csr = CSRNeighborStore.build(relation.getDBIDs(), () -> store::get, null, LOG);
+        store.destroy();
+        return csr;
       }
       catch(IOException e) {
         throw new AbortException("Loading of external neighborhood failed.", e);
@@ -23,15 +23,14 @@ package elki.outlier.spatial.neighborhood;
 import elki.data.type.TypeInformation;
 import elki.database.Database;
 import elki.database.datastore.DataStore;
-import elki.database.datastore.DataStoreFactory;
-import elki.database.datastore.DataStoreUtil;
-import elki.database.datastore.WritableDataStore;
-import elki.database.ids.*;
+import elki.database.ids.DBIDRef;
+import elki.database.ids.DBIDs;
 import elki.database.query.QueryBuilder;
 import elki.database.query.knn.KNNSearcher;
 import elki.database.relation.Relation;
 import elki.distance.Distance;
 import elki.logging.Logging;
+import elki.logging.progress.FiniteProgress;
 import elki.utilities.optionhandling.Parameterizer;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.parameterization.Parameterization;
@@ -40,6 +39,9 @@ import elki.utilities.optionhandling.parameters.ObjectParameter;
 
 /**
  * Neighborhoods based on k nearest neighbors.
+ * <p>
+ * The neighborhoods are computed in parallel, and stored compactly in a
+ * {@link CSRNeighborStore}.
  * 
  * @author Ahmed Hettab
  * @since 0.4.0
@@ -96,16 +98,13 @@ public class PrecomputedKNearestNeighborNeighborhood extends AbstractPrecomputed
 
     @Override
     public NeighborSetPredicate instantiate(Database database, Relation<? extends O> relation) {
-      KNNSearcher<DBIDRef> knnQuery = new QueryBuilder<>(relation, distance).kNNByDBID(k);
-      WritableDataStore<DBIDs> s = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT | DataStoreFactory.HINT_STATIC, DBIDs.class);
-      for(DBIDIter iditer = relation.iterDBIDs(); iditer.valid(); iditer.advance()) {
-        KNNList neighbors = knnQuery.getKNN(iditer, k);
-        ArrayModifiableDBIDs neighbours = DBIDUtil.newArray(neighbors.size());
-        for(DBIDIter neighbor = neighbors.iter(); neighbor.valid(); neighbor.advance()) {
-          neighbours.add(neighbor);
-        }
-        s.put(iditer, neighbours);
-      }
+      QueryBuilder<? extends O> qb = new QueryBuilder<>(relation, distance);
+      FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("Computing kNN neighborhoods", relation.size(), LOG) : null;
+      CSRNeighborStore s = CSRNeighborStore.build(relation.getDBIDs(), () -> {
+        KNNSearcher<DBIDRef> knnQuery = qb.kNNByDBID(k);
+        return id -> knnQuery.getKNN(id, k);
+      }, prog, LOG);
+      LOG.ensureCompleted(prog);
       return new PrecomputedKNearestNeighborNeighborhood(s);
     }
 
@@ -20,11 +20,18 @@
  */
 package elki.outlier.distance;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
 import org.junit.Test;
 
 import elki.outlier.AbstractOutlierAlgorithmTest;
 import elki.data.DoubleVector;
 import elki.database.Database;
+import elki.database.StaticArrayDatabase;
+import elki.database.ids.DBIDIter;
+import elki.datasource.ArrayAdapterDatabaseConnection;
 import elki.result.outlier.OutlierResult;
 import elki.utilities.ELKIBuilder;
 
@@ -43,4 +50,48 @@ public class KNNOutlierTest extends AbstractOutlierAlgorithmTest {
     assertSingleScore(result, 945, 0.4793554700168577);
     assertAUC(db, "Noise", result, 0.991462962962963);
   }
+
+  @Test
+  public void testKNNOutlierTopN() {
+    Database db = makeSimpleDatabase(UNITTEST + "outlier-3d-3clusters.ascii", 960);
+    OutlierResult result = new ELKIBuilder<KNNOutlier<DoubleVector>>(KNNOutlier.class) //
+        .with(KNNOutlier.Par.K_ID, 1) //
+        .with(KNNOutlier.Par.N_ID, 20) //
+        .with(KNNOutlier.Par.SEED_ID, 0) //
+        .build().autorun(db);
+    assertSingleScore(result, 940, 3.9899079206158907);
+    assertAUC(db, "Noise", result, 0.6666666666666666);
+  }
+
+  @Test
+  public void testTopNFewNeighbors() {
+    Random rnd = new Random(0L);
+    double[][] data = new double[6][2];
+    for(double[] row : data) {
+      row[0] = rnd.nextDouble();
+      row[1] = rnd.nextDouble();
+    }
+    Database db = new StaticArrayDatabase(new ArrayAdapterDatabaseConnection(data), null);
+    db.initialize();
+    // Exactly enough neighbors, and one too many:
+    for(int k = 5; k <= 6; k++) {
+      OutlierResult full = new ELKIBuilder<KNNOutlier<DoubleVector>>(KNNOutlier.class) //
+          .with(KNNOutlier.Par.K_ID, k).build().autorun(db);
+      OutlierResult topn = new ELKIBuilder<KNNOutlier<DoubleVector>>(KNNOutlier.class) //
+          .with(KNNOutlier.Par.K_ID, k) //
+          .with(KNNOutlier.Par.N_ID, 2) //
+          .with(KNNOutlier.Par.SEED_ID, 0) //
+          .build().autorun(db);
+      int found = 0;
+      for(DBIDIter it = topn.getScores().iterDBIDs(); it.valid(); it.advance()) {
+        final double score = topn.getScores().doubleValue(it);
+        if(score != 0.) {
+          assertEquals("Top-n score differs.", full.getScores().doubleValue(it), score, 0.);
+          ++found;
+        }
+      }
+      assertEquals("Wrong number of top-n outliers.", 2, found);
+      assertEquals("Wrong maximum score.", k < 6 ? full.getOutlierMeta().getActualMaximum() : Double.POSITIVE_INFINITY, topn.getOutlierMeta().getActualMaximum(), 0.);
+    }
+  }
 }
@@ -20,14 +20,30 @@
  */
 package elki.outlier.distance;
 
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
 import org.junit.Test;
 
 import elki.outlier.AbstractOutlierAlgorithmTest;
 import elki.data.DoubleVector;
+import elki.data.NumberVector;
+import elki.data.type.TypeUtil;
 import elki.database.Database;
+import elki.database.StaticArrayDatabase;
+import elki.database.datastore.DataStoreFactory;
+import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDoubleDataStore;
+import elki.database.ids.*;
+import elki.database.relation.Relation;
+import elki.datasource.ArrayAdapterDatabaseConnection;
+import elki.distance.minkowski.EuclideanDistance;
 import elki.result.outlier.OutlierResult;
 import elki.utilities.ELKIBuilder;
 
+import net.jafama.FastMath;
+
 /**
  * Tests the SOS Outlier algorithm.
  * 
@@ -43,4 +59,44 @@ public class SOSTest extends AbstractOutlierAlgorithmTest {
     assertAUC(db, "Noise", result, 0.92692962);
     assertSingleScore(result, 945, 0.5654622605);
   }
+
+  @Test
+  public void testBlocks() {
+    // Large enough to be processed in several blocks.
+    Random rnd = new Random(0L);
+    double[][] data = new double[2500][3];
+    for(double[] row : data) {
+      for(int d = 0; d < row.length; d++) {
+        row[d] = rnd.nextDouble();
+      }
+    }
+    Database db = new StaticArrayDatabase(new ArrayAdapterDatabaseConnection(data), null);
+    db.initialize();
+    Relation<NumberVector> relation = db.getRelation(TypeUtil.NUMBER_VECTOR_FIELD);
+    OutlierResult result = new SOS<NumberVector>(EuclideanDistance.STATIC, 10).run(relation);
+
+    // Sequential reference, each object voting in turn:
+    WritableDoubleDataStore scores = DataStoreUtil.makeDoubleStorage(relation.getDBIDs(), DataStoreFactory.HINT_TEMP, 1.);
+    ModifiableDoubleDBIDList dlist = DBIDUtil.newDistanceDBIDList(relation.size() - 1);
+    DoubleDBIDListMIter di = dlist.iter();
+    double[] p = new double[relation.size() - 1];
+    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+      dlist.clear();
+      for(DBIDIter i2 = relation.iterDBIDs(); i2.valid(); i2.advance()) {
+        if(!DBIDUtil.equal(it, i2)) {
+          dlist.add(EuclideanDistance.STATIC.distance(relation.get(it), relation.get(i2)), i2);
+        }
+      }
+      dlist.sort();
+      SOS.computePi(it, di, p, 10, FastMath.log(10));
+      double s = SOS.sumOfProbabilities(it, di, p);
+      if(s > 0) {
+        SOS.nominateNeighbors(it, di, p, 1. / s, scores);
+      }
+    }
+    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+      double expected = scores.doubleValue(it);
+      assertEquals("Score differs from sequential computation.", expected, result.getScores().doubleValue(it), expected * 1e-12);
+    }
+  }
 }
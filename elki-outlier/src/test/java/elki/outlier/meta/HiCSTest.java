@@ -59,7 +59,7 @@ public class HiCSTest extends AbstractOutlierAlgorithmTest {
         .with(HiCS.Par.SEED_ID, 0) //
         .with(HiCS.Par.TEST_ID, WelchTTest.STATIC) //
         .build().autorun(db);
-    assertAUC(db, "Noise", result, 0.867159);
-    assertSingleScore(result, 1293, 4.7877822);
+    assertAUC(db, "Noise", result, 0.85340056);
+    assertSingleScore(result, 1293, 4.935802);
   }
 }
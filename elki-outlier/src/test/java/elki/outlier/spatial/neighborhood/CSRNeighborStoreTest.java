@@ -0,0 +1,148 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.outlier.spatial.neighborhood;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import elki.algorithm.AbstractSimpleAlgorithmTest;
+import elki.data.NumberVector;
+import elki.data.type.TypeUtil;
+import elki.database.Database;
+import elki.database.ids.*;
+import elki.database.query.QueryBuilder;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.relation.Relation;
+import elki.distance.minkowski.EuclideanDistance;
+import elki.logging.Logging;
+
+/**
+ * Unit test for the compact neighborhood storage.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class CSRNeighborStoreTest {
+  /**
+   * Class logger.
+   */
+  private static final Logging LOG = Logging.getLogger(CSRNeighborStoreTest.class);
+
+  /**
+   * Test a store spanning multiple construction chunks, with empty and missing
+   * neighborhoods.
+   */
+  @Test
+  public void testChunks() {
+    DBIDRange ids = DBIDUtil.generateStaticDBIDRange(70000);
+    CSRNeighborStore store = CSRNeighborStore.build(ids, () -> id -> neighbors(ids, id), null, LOG);
+    assertEquals("Wrong size.", ids.size(), store.size());
+    int total = 0;
+    for(DBIDIter it = ids.iter(); it.valid(); it.advance()) {
+      DBIDs expect = neighbors(ids, it);
+      DBIDs actual = store.get(it);
+      assertListEquals(expect != null ? expect : DBIDUtil.EMPTYDBIDS, actual);
+      total += actual.size();
+    }
+    assertEquals("Wrong number of neighbors.", total, store.numNeighbors());
+  }
+
+  /**
+   * Test objects that are not in the store, and a store that is not based on
+   * a range of ids.
+   */
+  @Test
+  public void testUnknown() {
+    DBIDRange range = DBIDUtil.generateStaticDBIDRange(100);
+    ArrayModifiableDBIDs ids = DBIDUtil.newArray(50);
+    for(int i = 99; i >= 0; i -= 2) {
+      ids.add(range.get(i));
+    }
+    CSRNeighborStore store = CSRNeighborStore.build(ids, () -> id -> neighbors(range, id), null, LOG);
+    for(DBIDIter it = range.iter(); it.valid(); it.advance()) {
+      DBIDs actual = store.get(it);
+      if(ids.contains(it)) {
+        DBIDs expect = neighbors(range, it);
+        assertListEquals(expect != null ? expect : DBIDUtil.EMPTYDBIDS, actual);
+      }
+      else {
+        assertTrue("Unknown objects should have no neighbors.", actual.isEmpty());
+      }
+    }
+    DBIDRange other = DBIDUtil.generateStaticDBIDRange(10);
+    for(DBIDIter it = other.iter(); it.valid(); it.advance()) {
+      assertTrue("Unknown objects should have no neighbors.", store.get(it).isEmpty());
+    }
+  }
+
+  /**
+   * Test the kNN neighborhood against kNN queries.
+   */
+  @Test
+  public void testKNNNeighborhood() {
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase(AbstractSimpleAlgorithmTest.UNITTEST + "outlier-3d-3clusters.ascii", 960);
+    Relation<NumberVector> rel = db.getRelation(TypeUtil.NUMBER_VECTOR_FIELD);
+    NeighborSetPredicate pred = new PrecomputedKNearestNeighborNeighborhood.Factory<NumberVector>(7, EuclideanDistance.STATIC).instantiate(db, rel);
+    KNNSearcher<DBIDRef> knnq = new QueryBuilder<>(rel, EuclideanDistance.STATIC).kNNByDBID(7);
+    for(DBIDIter it = rel.iterDBIDs(); it.valid(); it.advance()) {
+      assertListEquals(knnq.getKNN(it, 7), pred.getNeighborDBIDs(it));
+    }
+  }
+
+  /**
+   * Synthetic neighborhoods: the previous and next object; none for every
+   * tenth object, and missing for every seventh object.
+   *
+   * @param ids Object range
+   * @param id Object
+   * @return Neighbors
+   */
+  private static DBIDs neighbors(DBIDRange ids, DBIDRef id) {
+    final int off = ids.getOffset(id);
+    if(off % 7 == 3) {
+      return null;
+    }
+    if(off % 10 == 0) {
+      return DBIDUtil.EMPTYDBIDS;
+    }
+    ArrayModifiableDBIDs n = DBIDUtil.newArray(2);
+    n.add(ids.get(off - 1));
+    if(off + 1 < ids.size()) {
+      n.add(ids.get(off + 1));
+    }
+    return n;
+  }
+
+  /**
+   * Compare two neighborhoods, including their order.
+   *
+   * @param expect Expected neighbors
+   * @param actual Actual neighbors
+   */
+  private static void assertListEquals(DBIDs expect, DBIDs actual) {
+    assertEquals("Wrong number of neighbors.", expect.size(), actual.size());
+    for(DBIDIter e = expect.iter(), a = actual.iter(); e.valid(); e.advance(), a.advance()) {
+      assertTrue("Wrong neighbor.", DBIDUtil.equal(e, a));
+    }
+  }
+}
@@ -21,7 +21,9 @@
 package elki.persistent;
 
 import elki.logging.Logging;
+import elki.logging.statistics.AtomicLongCounter;
 import elki.logging.statistics.Counter;
+
 /**
  * Abstract base class for the page file API for both caches and true page files
  * (in-memory and on-disk).
@@ -48,8 +50,9 @@ public abstract class AbstractPageFile<P extends Page> implements PageFile<P> {
   public AbstractPageFile() {
     super();
     Logging log = getLogger();
-    this.readAccess = log.isStatistics() ? log.newCounter(this.getClass().getName() + ".reads") : null;
-    this.writeAccess = log.isStatistics() ? log.newCounter(this.getClass().getName() + ".writes") : null;
+    // Atomic counters, as pages may be read concurrently.
+    this.readAccess = log.isStatistics() ? new AtomicLongCounter(this.getClass().getName() + ".reads") : null;
+    this.writeAccess = log.isStatistics() ? new AtomicLongCounter(this.getClass().getName() + ".writes") : null;
   }
 
   /**
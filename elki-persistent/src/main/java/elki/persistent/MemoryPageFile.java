@@ -54,8 +54,15 @@ public class MemoryPageFile<P extends Page> extends AbstractStoringPageFile<P> {
     this.file = new Int2ObjectOpenHashMap<>();
   }
 
+  /**
+   * Read a page. Concurrent reads are safe (e.g., parallel queries), but not
+   * concurrent with modifications of the page file.
+   *
+   * @param pageID Page id
+   * @return Page, or {@code null}
+   */
   @Override
-  public synchronized P readPage(int pageID) {
+  public P readPage(int pageID) {
     countRead();
     return file.get(pageID);
   }
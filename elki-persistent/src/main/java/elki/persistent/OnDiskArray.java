@@ -39,6 +39,10 @@ import elki.utilities.io.ByteArrayUtil;
  * This can be used to implement various fixed size record-based data
  * structures. The file format is designed to have a fixed-size header followed
  * by the actual data.
+ * <p>
+ * Files larger than 2 GB are mapped in multiple segments of whole records.
+ * Reading records does not modify shared state, so concurrent readers do not
+ * need to synchronize.
  * 
  * @author Erich Schubert
  * @since 0.2
@@ -99,9 +103,15 @@ public class OnDiskArray implements AutoCloseable {
   private boolean writable;
 
   /**
-   * The memory mapped buffer.
+   * The memory mapped buffers, each containing {@link #recordsPerMap}
+   * records (except for the last).
+   */
+  private volatile MappedByteBuffer[] maps;
+
+  /**
+   * Number of records per mapped buffer.
    */
-  private MappedByteBuffer map;
+  private int recordsPerMap;
 
   /**
    * Size of the classes header size.
@@ -213,16 +223,28 @@ public class OnDiskArray implements AutoCloseable {
    * @throws IOException on mapping error.
    */
   private synchronized void mapArray() throws IOException {
-    if(map != null) {
-      map.force();
-      map = null;
-    }
+    forceMaps();
     MapMode mode = writable ? MapMode.READ_WRITE : MapMode.READ_ONLY;
-    long size = recordsize * (long) numrecs;
-    if(size > Integer.MAX_VALUE) {
-      throw new ArrayIndexOutOfBoundsException("OnDiskArray currently has a maximum size of: " + Integer.MAX_VALUE + " (see Java FileChannel#map).");
+    recordsPerMap = Math.max(1, Integer.MAX_VALUE / Math.max(1, recordsize));
+    MappedByteBuffer[] newmaps = new MappedByteBuffer[Math.max(1, (int) ((numrecs + (long) recordsPerMap - 1) / recordsPerMap))];
+    for(int i = 0; i < newmaps.length; i++) {
+      final long first = i * (long) recordsPerMap;
+      final long size = recordsize * Math.min(recordsPerMap, numrecs - first);
+      newmaps[i] = file.map(mode, indexToFileposition(first), size);
+    }
+    maps = newmaps;
+  }
+
+  /**
+   * Force writing the mapped buffers, and release them.
+   */
+  private void forceMaps() {
+    if(maps != null) {
+      for(MappedByteBuffer map : maps) {
+        map.force();
+      }
+      maps = null;
     }
-    map = file.map(mode, headersize, size);
   }
 
   /**
@@ -322,16 +344,17 @@ public class OnDiskArray implements AutoCloseable {
    * @return Byte buffer for the record
    * @throws IOException on IO errors
    */
-  public synchronized ByteBuffer getRecordBuffer(int index) throws IOException {
-    if(index < 0 || index >= numrecs) {
+  public ByteBuffer getRecordBuffer(int index) throws IOException {
+    final MappedByteBuffer[] maps = this.maps;
+    if(index < 0 || index >= numrecs || maps == null) {
       throw new IOException("Access beyond end of file.");
     }
-    // Adjust buffer view
-    synchronized(map) {
-      map.limit(recordsize * (index + 1));
-      map.position(recordsize * index);
-      return map.slice();
-    }
+    // Adjust a private view of the buffer
+    final ByteBuffer view = maps[index / recordsPerMap].duplicate();
+    final int pos = (index % recordsPerMap) * recordsize;
+    view.limit(pos + recordsize);
+    view.position(pos);
+    return view.slice();
   }
 
   /**
@@ -390,10 +413,7 @@ public class OnDiskArray implements AutoCloseable {
    */
   public synchronized void close() throws IOException {
     writable = false;
-    if(map != null) {
-      map.force();
-      map = null;
-    }
+    forceMaps();
     if(lock != null) {
       lock.release();
       lock = null;
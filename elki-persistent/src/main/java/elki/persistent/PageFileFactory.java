@@ -20,6 +20,8 @@
  */
 package elki.persistent;
 
+import elki.utilities.io.ByteBufferSerializer;
+
 /**
  * Factory interface for generating page files.
  * 
@@ -36,7 +38,22 @@ public interface PageFileFactory<P extends Page> {
    * @return Page file
    */
   PageFile<P> newPageFile(Class<P> cls);
-  
+
+  /**
+   * Make a new page file, with a binary serializer for the pages.
+   * <p>
+   * Page files that store pages in a binary format (e.g. memory-mapped files)
+   * will use the serializer instead of Java serialization; other page files
+   * may ignore it.
+   *
+   * @param cls Page class
+   * @param serializer Page serializer
+   * @return Page file
+   */
+  default PageFile<P> newPageFile(Class<P> cls, ByteBufferSerializer<P> serializer) {
+    return newPageFile(cls);
+  }
+
   /**
    * Query the page size.
    * 
@@ -0,0 +1,239 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.application.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import elki.application.AbstractApplication;
+import elki.database.Database;
+import elki.database.StaticArrayDatabase;
+import elki.database.ids.*;
+import elki.database.query.QueryBuilder;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.relation.Relation;
+import elki.distance.Distance;
+import elki.logging.Logging;
+import elki.logging.progress.FiniteProgress;
+import elki.persistent.OnDiskArray;
+import elki.utilities.exceptions.AbortException;
+import elki.utilities.io.ByteArrayUtil;
+import elki.utilities.optionhandling.OptionID;
+import elki.utilities.optionhandling.constraints.CommonConstraints;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
+import elki.utilities.optionhandling.parameters.Flag;
+import elki.utilities.optionhandling.parameters.IntParameter;
+import elki.utilities.optionhandling.parameters.ObjectParameter;
+
+/**
+ * Precompute the k nearest neighbors into a binary kNN graph file.
+ * <p>
+ * The file is an {@link OnDiskArray} with one fixed-size record per object, in
+ * the order of the relation: the number of neighbors, the offsets of the
+ * neighbors in the relation, and their distances as double or float values.
+ * Ties beyond k are not stored. The file can be memory-mapped with
+ * {@link elki.index.preprocessed.knn.MappedKNNPreprocessor} without parsing.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @has - - - Distance
+ *
+ * @param <O> Object type
+ */
+public class CacheKNNGraph<O> extends AbstractApplication {
+  /**
+   * The logger for this class.
+   */
+  private static final Logging LOG = Logging.getLogger(CacheKNNGraph.class);
+
+  /**
+   * Magic number to identify files.
+   * <p>
+   * Note, when cloning this class, and performing any incompatible change to
+   * the file format, you should also change this magic ID!
+   */
+  public static final int KNN_GRAPH_MAGIC = 0xCAC4D9A1;
+
+  /**
+   * Size of the extra header: k and the size of the distance values.
+   */
+  public static final int KNN_GRAPH_HEADER_SIZE = 2 * ByteArrayUtil.SIZE_INT;
+
+  /**
+   * Data source to process.
+   */
+  private Database database;
+
+  /**
+   * Distance function that is to be cached.
+   */
+  private Distance<? super O> distance;
+
+  /**
+   * Number of neighbors to precompute.
+   */
+  private int k;
+
+  /**
+   * Store distances as float values.
+   */
+  private boolean floatdist;
+
+  /**
+   * Output file.
+   */
+  private Path out;
+
+  /**
+   * Constructor.
+   *
+   * @param database Data source
+   * @param distance Distance function
+   * @param k Number of nearest neighbors
+   * @param floatdist Store distances as float values
+   * @param out Output file
+   */
+  public CacheKNNGraph(Database database, Distance<? super O> distance, int k, boolean floatdist, Path out) {
+    super();
+    this.database = database;
+    this.distance = distance;
+    this.k = k;
+    this.floatdist = floatdist;
+    this.out = out;
+  }
+
+  /**
+   * Compute the size of a record.
+   *
+   * @param k Number of neighbors
+   * @param distsize Size of a distance value, in bytes
+   * @return Record size in bytes
+   */
+  public static int recordSize(int k, int distsize) {
+    return ByteArrayUtil.SIZE_INT * (k + 1) + distsize * k;
+  }
+
+  @Override
+  public void run() {
+    database.initialize();
+    Relation<O> relation = database.getRelation(distance.getInputTypeRestriction());
+    KNNSearcher<DBIDRef> knnQ = new QueryBuilder<>(relation, distance).noCache().kNNByDBID(k);
+    DBIDRange ids = DBIDUtil.assertRange(relation.getDBIDs());
+    final int distsize = floatdist ? ByteArrayUtil.SIZE_FLOAT : ByteArrayUtil.SIZE_DOUBLE;
+    final int distpos = ByteArrayUtil.SIZE_INT * (k + 1);
+
+    FiniteProgress prog = LOG.isVerbose() ? new FiniteProgress("Computing kNN", relation.size(), LOG) : null;
+    try (OnDiskArray array = new OnDiskArray(out, KNN_GRAPH_MAGIC, KNN_GRAPH_HEADER_SIZE, recordSize(k, distsize), ids.size())) {
+      array.getExtraHeader().putInt(k).putInt(distsize);
+      for(DBIDArrayIter it = ids.iter(); it.valid(); it.advance()) {
+        final KNNList nn = knnQ.getKNN(it, k);
+        final int size = Math.min(nn.size(), k);
+        ByteBuffer buffer = array.getRecordBuffer(it.getOffset());
+        buffer.putInt(0, size);
+        DoubleDBIDListIter ni = nn.iter();
+        for(int i = 0; i < size; i++, ni.advance()) {
+          buffer.putInt(ByteArrayUtil.SIZE_INT * (i + 1), ids.getOffset(ni));
+          if(floatdist) {
+            buffer.putFloat(distpos + distsize * i, (float) ni.doubleValue());
+          }
+          else {
+            buffer.putDouble(distpos + distsize * i, ni.doubleValue());
+          }
+        }
+        LOG.incrementProcessed(prog);
+      }
+      LOG.ensureCompleted(prog);
+    }
+    catch(IOException e) {
+      throw new AbortException("I/O error writing the kNN graph: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Parameterization class.
+   *
+   * @author Erich Schubert
+   */
+  public static class Par<O> extends AbstractApplication.Par {
+    /**
+     * Flag to store distances as float values.
+     */
+    public static final OptionID FLOAT_ID = new OptionID("loader.float", "Store the distances as float values, to reduce the file size.");
+
+    /**
+     * Data source to process.
+     */
+    private Database database = null;
+
+    /**
+     * Distance function that is to be cached.
+     */
+    private Distance<? super O> distance = null;
+
+    /**
+     * Number of neighbors to precompute.
+     */
+    private int k;
+
+    /**
+     * Store distances as float values.
+     */
+    private boolean floatdist;
+
+    /**
+     * Output file.
+     */
+    private Path out = null;
+
+    @Override
+    public void configure(Parameterization config) {
+      super.configure(config);
+      new ObjectParameter<Database>(DATABASE_ID, Database.class, StaticArrayDatabase.class) //
+          .grab(config, x -> database = x);
+      new ObjectParameter<Distance<? super O>>(CacheDoubleDistanceKNNLists.Par.DISTANCE_ID, Distance.class) //
+          .grab(config, x -> distance = x);
+      new IntParameter(CacheDoubleDistanceKNNLists.Par.K_ID) //
+          .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
+          .grab(config, x -> k = x);
+      new Flag(FLOAT_ID).grab(config, x -> floatdist = x);
+      new FileParameter(CacheDoubleDistanceKNNLists.Par.CACHE_ID, FileParameter.FileType.OUTPUT_FILE) //
+          .grab(config, x -> out = Paths.get(x));
+    }
+
+    @Override
+    public CacheKNNGraph<O> make() {
+      return new CacheKNNGraph<>(database, distance, k, floatdist, out);
+    }
+  }
+
+  /**
+   * Main method, delegate to super class.
+   *
+   * @param args Command line arguments
+   */
+  public static void main(String[] args) {
+    runCLIApplication(CacheKNNGraph.class, args);
+  }
+}
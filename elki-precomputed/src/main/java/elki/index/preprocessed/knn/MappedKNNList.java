@@ -0,0 +1,257 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.preprocessed.knn;
+
+import java.nio.ByteBuffer;
+import java.util.function.DoubleUnaryOperator;
+
+import elki.application.cache.CacheKNNGraph;
+import elki.database.ids.*;
+import elki.utilities.io.ByteArrayUtil;
+
+/**
+ * Flyweight view of a kNN list stored in a record of a memory-mapped kNN graph
+ * file, as written by {@link CacheKNNGraph}. Nothing is copied to the heap.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+class MappedKNNList implements KNNList {
+  /**
+   * Record buffer.
+   */
+  private final ByteBuffer record;
+
+  /**
+   * Objects, to map offsets to DBIDs.
+   */
+  private final DBIDRange ids;
+
+  /**
+   * Number of neighbors stored per record.
+   */
+  private final int stride;
+
+  /**
+   * Size of a distance value, in bytes.
+   */
+  private final int distsize;
+
+  /**
+   * Parameter k.
+   */
+  private final int k;
+
+  /**
+   * Actual size, including ties.
+   */
+  private final int size;
+
+  /**
+   * Constructor.
+   *
+   * @param record Record buffer
+   * @param ids Objects, to map offsets to DBIDs
+   * @param stride Number of neighbors stored per record
+   * @param distsize Size of a distance value, in bytes
+   */
+  MappedKNNList(ByteBuffer record, DBIDRange ids, int stride, int distsize) {
+    this(record, ids, stride, distsize, stride, record.getInt(0));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param record Record buffer
+   * @param ids Objects, to map offsets to DBIDs
+   * @param stride Number of neighbors stored per record
+   * @param distsize Size of a distance value, in bytes
+   * @param k Parameter k
+   * @param size List size
+   */
+  private MappedKNNList(ByteBuffer record, DBIDRange ids, int stride, int distsize, int k, int size) {
+    this.record = record;
+    this.ids = ids;
+    this.stride = stride;
+    this.distsize = distsize;
+    this.k = k;
+    this.size = size;
+  }
+
+  /**
+   * Get the offset of the i'th neighbor.
+   *
+   * @param index Neighbor index
+   * @return Object offset
+   */
+  int offset(int index) {
+    return record.getInt(ByteArrayUtil.SIZE_INT * (index + 1));
+  }
+
+  @Override
+  public double doubleValue(int index) {
+    final int pos = ByteArrayUtil.SIZE_INT * (stride + 1) + distsize * index;
+    return distsize == ByteArrayUtil.SIZE_FLOAT ? record.getFloat(pos) : record.getDouble(pos);
+  }
+
+  @Override
+  public DBIDVar assignVar(int index, DBIDVar var) {
+    assert index < size : "Access beyond size of list.";
+    return ids.assignVar(offset(index), var);
+  }
+
+  @Override
+  public int getK() {
+    return k;
+  }
+
+  @Override
+  public double getKNNDistance() {
+    return k <= size ? doubleValue(k - 1) : Double.POSITIVE_INFINITY;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean contains(DBIDRef o) {
+    final int off = ids.getOffset(o);
+    for(int i = 0; i < size; i++) {
+      if(offset(i) == off) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public Itr iter() {
+    return new Itr();
+  }
+
+  @Override
+  public KNNList subList(int k) {
+    if(k >= this.k) {
+      return this;
+    }
+    // Short record (e.g., fewer objects than k), beyond is only padding:
+    if(k >= size) {
+      return new MappedKNNList(record, ids, stride, distsize, k, size);
+    }
+    // Include all values tied with the k'th:
+    final double kdist = doubleValue(k - 1);
+    int i = k;
+    while(i < size && doubleValue(i) <= kdist) {
+      i++;
+    }
+    return new MappedKNNList(record, ids, stride, distsize, k, i);
+  }
+
+  @Override
+  public DoubleDBIDList slice(int begin, int end) {
+    ModifiableDoubleDBIDList list = DBIDUtil.newDistanceDBIDList(end - begin);
+    for(Itr it = iter().seek(begin); it.getOffset() < end; it.advance()) {
+      list.add(it.doubleValue(), it);
+    }
+    return list;
+  }
+
+  @Override
+  public KNNList map(DoubleUnaryOperator f) {
+    KNNHeap heap = DBIDUtil.newHeap(k);
+    for(Itr it = iter(); it.valid(); it.advance()) {
+      heap.insert(f.applyAsDouble(it.doubleValue()), it);
+    }
+    return heap.toKNNList();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder(size * 20 + 20).append("MappedKNNList[");
+    for(Itr it = iter(); it.valid(); it.advance()) {
+      buf.append(it.getOffset() > 0 ? "," : "").append(it.doubleValue()).append(':').append(it.internalGetIndex());
+    }
+    return buf.append(']').toString();
+  }
+
+  /**
+   * Iterator over the mapped list.
+   *
+   * @author Erich Schubert
+   */
+  private class Itr implements DoubleDBIDListIter {
+    /**
+     * Current position.
+     */
+    private int pos = 0;
+
+    /**
+     * Iterator to map offsets to DBIDs.
+     */
+    private DBIDArrayIter iditer = ids.iter();
+
+    @Override
+    public boolean valid() {
+      return pos < size;
+    }
+
+    @Override
+    public Itr advance() {
+      ++pos;
+      return this;
+    }
+
+    @Override
+    public Itr advance(int count) {
+      pos += count;
+      return this;
+    }
+
+    @Override
+    public Itr retract() {
+      --pos;
+      return this;
+    }
+
+    @Override
+    public Itr seek(int off) {
+      pos = off;
+      return this;
+    }
+
+    @Override
+    public int getOffset() {
+      return pos;
+    }
+
+    @Override
+    public double doubleValue() {
+      return MappedKNNList.this.doubleValue(pos);
+    }
+
+    @Override
+    public int internalGetIndex() {
+      return iditer.seek(offset(pos)).internalGetIndex();
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.preprocessed.knn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import elki.application.cache.CacheKNNGraph;
+import elki.database.datastore.WritableDataStore;
+import elki.database.ids.DBIDRange;
+import elki.database.ids.DBIDRef;
+import elki.database.ids.DBIDUtil;
+import elki.database.ids.KNNList;
+import elki.database.relation.Relation;
+import elki.distance.Distance;
+import elki.logging.Logging;
+import elki.persistent.OnDiskArray;
+import elki.utilities.exceptions.AbortException;
+import elki.utilities.io.ByteArrayUtil;
+import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
+
+/**
+ * Preprocessor that memory-maps a binary kNN graph file, as written by
+ * {@link CacheKNNGraph}.
+ * <p>
+ * The file is not parsed: the kNN lists are flyweight views of the mapped
+ * records, so startup is near-instant, and the operating system pages the
+ * graph in as needed.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @param <O> Object type
+ */
+public class MappedKNNPreprocessor<O> extends AbstractMaterializeKNNPreprocessor<O> {
+  /**
+   * Class logger.
+   */
+  private static final Logging LOG = Logging.getLogger(MappedKNNPreprocessor.class);
+
+  /**
+   * File to load.
+   */
+  private Path filename;
+
+  /**
+   * Constructor.
+   *
+   * @param relation Relation to index
+   * @param distance Distance function
+   * @param k K
+   * @param file File to load
+   */
+  public MappedKNNPreprocessor(Relation<O> relation, Distance<? super O> distance, int k, Path file) {
+    super(relation, distance, k);
+    this.filename = file;
+  }
+
+  @Override
+  protected void preprocess() {
+    final DBIDRange ids = DBIDUtil.assertRange(relation.getDBIDs());
+    try {
+      // The file remains mapped as long as the array is referenced.
+      final OnDiskArray array = new OnDiskArray(filename, CacheKNNGraph.KNN_GRAPH_MAGIC, CacheKNNGraph.KNN_GRAPH_HEADER_SIZE, false);
+      ByteBuffer header = array.getExtraHeader();
+      final int stride = header.getInt(), distsize = header.getInt();
+      if(stride < k) {
+        throw new AbortException("kNN graph contains fewer than k neighbors: " + stride);
+      }
+      if(array.getNumRecords() != ids.size()) {
+        throw new AbortException("kNN graph size does not match the relation: " + array.getNumRecords() + " != " + ids.size());
+      }
+      if(distsize != ByteArrayUtil.SIZE_FLOAT && distsize != ByteArrayUtil.SIZE_DOUBLE //
+          || ids.size() > 0 && CacheKNNGraph.recordSize(stride, distsize) != array.getRecordBuffer(0).capacity()) {
+        throw new AbortException("kNN graph file has an invalid record format.");
+      }
+      storage = new MappedStore(array, ids, stride, distsize);
+    }
+    catch(IOException e) {
+      throw new AbortException("I/O error in loading kNN graph: " + e.getMessage(), e);
+    }
+  }
+
+  @Override
+  protected Logging getLogger() {
+    return LOG;
+  }
+
+  /**
+   * Read-only storage of the mapped kNN lists.
+   *
+   * @author Erich Schubert
+   */
+  private class MappedStore implements WritableDataStore<KNNList> {
+    /**
+     * Mapped array.
+     */
+    private OnDiskArray array;
+
+    /**
+     * Objects, to map DBIDs to records.
+     */
+    private DBIDRange ids;
+
+    /**
+     * Number of neighbors stored per record.
+     */
+    private int stride;
+
+    /**
+     * Size of a distance value, in bytes.
+     */
+    private int distsize;
+
+    /**
+     * Constructor.
+     *
+     * @param array Mapped array
+     * @param ids Objects, to map DBIDs to records
+     * @param stride Number of neighbors stored per record
+     * @param distsize Size of a distance value, in bytes
+     */
+    MappedStore(OnDiskArray array, DBIDRange ids, int stride, int distsize) {
+      this.array = array;
+      this.ids = ids;
+      this.stride = stride;
+      this.distsize = distsize;
+    }
+
+    @Override
+    public KNNList get(DBIDRef id) {
+      try {
+        KNNList list = new MappedKNNList(array.getRecordBuffer(ids.getOffset(id)), ids, stride, distsize);
+        return stride > k ? list.subList(k) : list;
+      }
+      catch(IOException e) {
+        throw new AbortException("I/O error in reading kNN graph: " + e.getMessage(), e);
+      }
+    }
+
+    @Override
+    public KNNList put(DBIDRef id, KNNList value) {
+      throw new UnsupportedOperationException("Mapped kNN graphs are read-only.");
+    }
+
+    @Override
+    public void delete(DBIDRef id) {
+      throw new UnsupportedOperationException("Mapped kNN graphs are read-only.");
+    }
+
+    @Override
+    public void clear() {
+      throw new UnsupportedOperationException("Mapped kNN graphs are read-only.");
+    }
+
+    @Override
+    public void destroy() {
+      try {
+        array.close();
+      }
+      catch(IOException e) {
+        LOG.exception(e);
+      }
+    }
+  }
+
+  /**
+   * The parameterizable factory.
+   *
+   * @author Erich Schubert
+   *
+   * @opt nodefillcolor LemonChiffon
+   * @stereotype factory
+   * @navassoc - create - MappedKNNPreprocessor
+   *
+   * @param <O> The object type
+   */
+  public static class Factory<O> extends AbstractMaterializeKNNPreprocessor.Factory<O> {
+    /**
+     * Filename to load.
+     */
+    private Path filename;
+
+    /**
+     * Index factory.
+     *
+     * @param k k parameter
+     * @param distance distance function
+     * @param filename kNN graph file
+     */
+    public Factory(int k, Distance<? super O> distance, Path filename) {
+      super(k, distance);
+      this.filename = filename;
+    }
+
+    @Override
+    public MappedKNNPreprocessor<O> instantiate(Relation<O> relation) {
+      return new MappedKNNPreprocessor<>(relation, distance, k, filename);
+    }
+
+    /**
+     * Parameterization class.
+     *
+     * @author Erich Schubert
+     */
+    public static class Par<O> extends AbstractMaterializeKNNPreprocessor.Factory.Par<O> {
+      /**
+       * Filename to load.
+       */
+      private Path filename;
+
+      @Override
+      public void configure(Parameterization config) {
+        super.configure(config);
+        new FileParameter(CachedDoubleDistanceKNNPreprocessor.Factory.Par.CACHE_ID, FileParameter.FileType.INPUT_FILE) //
+            .grab(config, x -> filename = Paths.get(x));
+      }
+
+      @Override
+      public Factory<O> make() {
+        return new Factory<>(k, distance, filename);
+      }
+    }
+  }
+}
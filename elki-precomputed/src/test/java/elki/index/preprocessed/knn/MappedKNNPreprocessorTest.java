@@ -0,0 +1,132 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.index.preprocessed.knn;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import elki.application.cache.CacheKNNGraph;
+import elki.data.DoubleVector;
+import elki.data.type.TypeUtil;
+import elki.database.Database;
+import elki.database.StaticArrayDatabase;
+import elki.database.ids.*;
+import elki.database.query.QueryBuilder;
+import elki.database.query.knn.KNNSearcher;
+import elki.database.relation.Relation;
+import elki.datasource.ArrayAdapterDatabaseConnection;
+import elki.datasource.FileBasedDatabaseConnection;
+import elki.distance.minkowski.EuclideanDistance;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Test the memory-mapped kNN graph written by {@link CacheKNNGraph}.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class MappedKNNPreprocessorTest {
+  // the following values depend on the data set used!
+  static String dataset = "elki/testdata/unittests/3clusters-and-noise-2d.csv";
+
+  // number of kNN to precompute
+  int k = 10;
+
+  @Test
+  public void testDoubleGraph() throws IOException {
+    testGraph(false, 1e-15);
+  }
+
+  @Test
+  public void testFloatGraph() throws IOException {
+    testGraph(true, 1e-6);
+  }
+
+  private void testGraph(boolean floatdist, double tol) throws IOException {
+    Database db = new ELKIBuilder<>(StaticArrayDatabase.class) //
+        .with(FileBasedDatabaseConnection.Par.INPUT_ID, getClass().getClassLoader().getResource(dataset)) //
+        .build();
+    db.initialize();
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    File file = File.createTempFile("elki-knngraph", ".bin");
+    try {
+      new CacheKNNGraph<>(db, EuclideanDistance.STATIC, k, floatdist, file.toPath()).run();
+      assertTrue("kNN graph was not written.", file.length() > 0);
+      MappedKNNPreprocessor<DoubleVector> preproc = new MappedKNNPreprocessor<>(relation, EuclideanDistance.STATIC, k, file.toPath());
+      preproc.initialize();
+      QueryBuilder<DoubleVector> qb = new QueryBuilder<>(relation, EuclideanDistance.STATIC);
+      KNNSearcher<DBIDRef> linq = qb.linearOnly().kNNByDBID(k);
+      KNNSearcher<DBIDRef> preq = preproc.kNNByDBID(qb.distanceQuery(), k, 0);
+      for(int kk : new int[] { k, k / 2 }) {
+        for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
+          KNNList lin = linq.getKNN(iter, kk), pre = preq.getKNN(iter, kk);
+          assertEquals("kNN distance does not match.", lin.getKNNDistance(), pre.getKNNDistance(), tol);
+          DoubleDBIDListIter li = lin.iter(), pi = pre.iter();
+          for(; li.valid() && pi.valid() && li.getOffset() < kk; li.advance(), pi.advance()) {
+            assertEquals("Neighbor distances do not agree.", li.doubleValue(), pi.doubleValue(), tol);
+            assertTrue("Neighbor is not in the linear scan result.", lin.contains(pi));
+          }
+        }
+      }
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  /**
+   * Graph with fewer objects than neighbors per record, read with a smaller k.
+   */
+  @Test
+  public void testShortLists() throws IOException {
+    double[][] data = { { 0. }, { 1. }, { 3. }, { 6. }, { 10. } };
+    Database db = new StaticArrayDatabase(new ArrayAdapterDatabaseConnection(data), null);
+    db.initialize();
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    File file = File.createTempFile("elki-knngraph", ".bin");
+    try {
+      new CacheKNNGraph<>(db, EuclideanDistance.STATIC, k, false, file.toPath()).run();
+      final int kk = 7; // data size < kk < k
+      MappedKNNPreprocessor<DoubleVector> preproc = new MappedKNNPreprocessor<>(relation, EuclideanDistance.STATIC, kk, file.toPath());
+      preproc.initialize();
+      QueryBuilder<DoubleVector> qb = new QueryBuilder<>(relation, EuclideanDistance.STATIC);
+      KNNSearcher<DBIDRef> linq = qb.linearOnly().kNNByDBID(kk);
+      KNNSearcher<DBIDRef> preq = preproc.kNNByDBID(qb.distanceQuery(), kk, 0);
+      for(DBIDIter iter = relation.iterDBIDs(); iter.valid(); iter.advance()) {
+        KNNList lin = linq.getKNN(iter, kk), pre = preq.getKNN(iter, kk);
+        assertEquals("kNN sizes do not agree.", lin.size(), pre.size());
+        assertEquals("kNN distance does not match.", lin.getKNNDistance(), pre.getKNNDistance(), 0.);
+        for(DoubleDBIDListIter li = lin.iter(), pi = pre.iter(); pi.valid(); li.advance(), pi.advance()) {
+          assertEquals("Neighbor distances do not agree.", li.doubleValue(), pi.doubleValue(), 0.);
+          assertTrue("Neighbor is not in the linear scan result.", lin.contains(pi));
+        }
+      }
+    }
+    finally {
+      file.delete();
+    }
+  }
+}
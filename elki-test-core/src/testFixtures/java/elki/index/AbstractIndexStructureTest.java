@@ -22,13 +22,26 @@ package elki.index;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import elki.algorithm.AbstractSimpleAlgorithmTest;
 import elki.data.DoubleVector;
+import elki.data.NumberVector;
 import elki.data.type.TypeUtil;
 import elki.database.Database;
 import elki.database.StaticArrayDatabase;
+import elki.database.datastore.DataStoreFactory;
+import elki.database.datastore.DataStoreUtil;
+import elki.database.datastore.WritableDataStore;
 import elki.database.ids.*;
 import elki.database.query.ExactPrioritySearcher;
 import elki.database.query.PrioritySearcher;
@@ -41,7 +54,9 @@ import elki.datasource.AbstractDatabaseConnection;
 import elki.datasource.ArrayAdapterDatabaseConnection;
 import elki.datasource.filter.FixedDBIDsFilter;
 import elki.distance.CosineDistance;
+import elki.distance.Distance;
 import elki.distance.minkowski.EuclideanDistance;
+import elki.parallel.ParallelExecutor;
 import elki.utilities.optionhandling.parameterization.ListParameterization;
 
 /**
@@ -434,4 +449,440 @@ public abstract class AbstractIndexStructureTest {
       assertEquals("Incomplete results.", relation.size(), c);
     }
   }
+
+  /**
+   * Test helper for dynamic indexes: insert all objects (half of them as a
+   * batch, the others one at a time), then delete some, and verify the kNN
+   * and range query results against a linear scan of the remaining objects.
+   *
+   * @param factory Index factory
+   */
+  @SuppressWarnings("unchecked")
+  protected static void assertDynamicEuclidean(IndexFactory<?> factory) {
+    ListParameterization inputparams = new ListParameterization() //
+        .addParameter(AbstractDatabaseConnection.Par.FILTERS_ID, new FixedDBIDsFilter(0));
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase(dataset, shoulds, inputparams);
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    DistanceQuery<DoubleVector> dist = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    Index index = ((IndexFactory<DoubleVector>) factory).instantiate(relation);
+    assertTrue("Not a dynamic index", index instanceof DynamicIndex);
+    DynamicIndex dyn = (DynamicIndex) index;
+    ArrayDBIDs ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final int half = ids.size() >> 1;
+    dyn.insertAll(ids.slice(0, half));
+    for(DBIDArrayIter it = ids.iter().seek(half); it.valid(); it.advance()) {
+      dyn.insert(it);
+    }
+    assertDynamicNeighbors(index, dist, ids);
+    // Delete every third object, including the first (a routing object):
+    ArrayModifiableDBIDs deleted = DBIDUtil.newArray();
+    for(DBIDArrayIter it = ids.iter(); it.valid(); it.advance(3)) {
+      deleted.add(it);
+    }
+    dyn.deleteAll(deleted);
+    assertDynamicNeighbors(index, dist, DBIDUtil.difference(ids, deleted));
+    // Delete all remaining objects:
+    for(DBIDIter it = DBIDUtil.difference(ids, deleted).iter(); it.valid(); it.advance()) {
+      assertTrue("Object not found for deletion", dyn.delete(it));
+    }
+    assertDynamicNeighbors(index, dist, DBIDUtil.EMPTYDBIDS);
+  }
+
+  /**
+   * Test helper for dynamic indexes: delete the first objects one at a time,
+   * which route the top levels of bulk-loaded trees. Each deletion must use
+   * fewer distance computations than rebuilding the index, and the kNN and
+   * range queries must still match a linear scan.
+   *
+   * @param factory Index factory, for the given distance
+   * @param size Data set size
+   */
+  @SuppressWarnings("unchecked")
+  protected static void assertCheapDeletion(Function<Distance<? super DoubleVector>, IndexFactory<?>> factory, int size) {
+    Relation<DoubleVector> relation = makeRelation(randomData(size, 3));
+    CountingEuclideanDistance counting = new CountingEuclideanDistance();
+    DistanceQuery<DoubleVector> dist = new QueryBuilder<>(relation, counting).distanceQuery();
+    Index index = ((IndexFactory<DoubleVector>) factory.apply(counting)).instantiate(relation);
+    index.initialize();
+    ArrayDBIDs ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final int n = 10;
+    for(DBIDArrayIter it = ids.iter(); it.getOffset() < n; it.advance()) {
+      counting.count.set(0);
+      assertTrue("Object not found for deletion", ((DynamicIndex) index).delete(it));
+      assertTrue("Deletion too expensive: " + counting.count.get(), counting.count.get() < size / 4);
+    }
+    assertDynamicNeighbors(index, dist, ids.slice(n, size));
+  }
+
+  /**
+   * Euclidean distance that counts the distance computations.
+   */
+  private static class CountingEuclideanDistance extends EuclideanDistance {
+    /**
+     * Number of distance computations.
+     */
+    AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Constructor.
+     */
+    @SuppressWarnings("deprecation")
+    CountingEuclideanDistance() {
+      super();
+    }
+
+    @Override
+    public double distance(NumberVector v1, NumberVector v2) {
+      count.incrementAndGet();
+      return super.distance(v1, v2);
+    }
+  }
+
+  /**
+   * Test helper for kNN joins with Euclidean distance.
+   *
+   * @param factory Index factory
+   */
+  protected static void assertKNNJoinEuclidean(IndexFactory<?> factory) {
+    assertKNNJoin(factory, EuclideanDistance.STATIC);
+  }
+
+  /**
+   * Test helper for kNN joins with cosine distance.
+   *
+   * @param factory Index factory
+   */
+  protected static void assertKNNJoinCosine(IndexFactory<?> factory) {
+    assertKNNJoin(factory, CosineDistance.STATIC);
+  }
+
+  /**
+   * Test helper for kNN joins: compute the kNN of all objects at once, and
+   * verify them against a linear scan.
+   *
+   * @param factory Index factory
+   * @param distance Distance function
+   */
+  @SuppressWarnings("unchecked")
+  private static void assertKNNJoin(IndexFactory<?> factory, Distance<? super DoubleVector> distance) {
+    ListParameterization inputparams = new ListParameterization() //
+        .addParameter(AbstractDatabaseConnection.Par.FILTERS_ID, new FixedDBIDsFilter(0));
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase(dataset, shoulds, inputparams);
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    DistanceQuery<DoubleVector> dist = new QueryBuilder<>(relation, distance).distanceQuery();
+    Index index = ((IndexFactory<DoubleVector>) factory).instantiate(relation);
+    assertTrue("Not a kNN join index", index instanceof KNNJoinIndex);
+    index.initialize();
+    WritableDataStore<KNNList> result = DataStoreUtil.makeStorage(relation.getDBIDs(), DataStoreFactory.HINT_HOT, KNNList.class);
+    assertTrue("Distance not supported", ((KNNJoinIndex<DoubleVector>) index).kNNJoin(dist, k, result));
+    for(DBIDIter q = relation.iterDBIDs(); q.valid(); q.advance()) {
+      KNNHeap heap = DBIDUtil.newHeap(k);
+      for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+        heap.insert(dist.distance(q, it), it);
+      }
+      KNNList scan = heap.toKNNList(), knn = result.get(q);
+      assertNotNull("No result for object", knn);
+      assertEquals("Wrong number of knn results", scan.size(), knn.size());
+      for(DoubleDBIDListIter a = knn.iter(), b = scan.iter(); a.valid(); a.advance(), b.advance()) {
+        assertEquals("Wrong knn distance", b.doubleValue(), a.doubleValue(), 1e-15);
+      }
+    }
+  }
+
+  /**
+   * Test helper for concurrent queries: run kNN queries from several threads,
+   * each with its own searcher, and verify them against a linear scan.
+   *
+   * @param factory Index factory
+   * @param expectKNNQuery expected knn query class
+   */
+  protected static void assertConcurrentKNNEuclidean(IndexFactory<?> factory, Class<?> expectKNNQuery) {
+    ListParameterization inputparams = new ListParameterization() //
+        .addParameter(AbstractDatabaseConnection.Par.FILTERS_ID, new FixedDBIDsFilter(0)) //
+        .addParameter(StaticArrayDatabase.Par.INDEX_ID, factory);
+    Database db = AbstractSimpleAlgorithmTest.makeSimpleDatabase(dataset, shoulds, inputparams);
+    Relation<DoubleVector> relation = db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+    QueryBuilder<DoubleVector> qb = new QueryBuilder<>(relation, EuclideanDistance.STATIC).cheapOnly();
+    KNNSearcher<DBIDRef> linq = new QueryBuilder<>(relation, EuclideanDistance.STATIC).linearOnly().kNNByDBID(k);
+    final ArrayDBIDs ids = DBIDUtil.ensureArray(relation.getDBIDs());
+    final double[] kdist = new double[ids.size()];
+    for(DBIDArrayIter it = ids.iter(); it.valid(); it.advance()) {
+      kdist[it.getOffset()] = linq.getKNN(it, k).getKNNDistance();
+    }
+    final int nthreads = 4;
+    final AtomicInteger errors = new AtomicInteger();
+    Thread[] threads = new Thread[nthreads];
+    for(int t = 0; t < nthreads; t++) {
+      final int start = t;
+      final KNNSearcher<DoubleVector> knnq = qb.kNNByObject(k);
+      assertTrue("Unexpected kNN query class: " + knnq.getClass(), expectKNNQuery.isInstance(knnq));
+      threads[t] = new Thread(() -> {
+        for(DBIDArrayIter it = ids.iter().seek(start); it.valid(); it.advance(nthreads)) {
+          if(Math.abs(knnq.getKNN(relation.get(it), k).getKNNDistance() - kdist[it.getOffset()]) > 1e-15) {
+            errors.incrementAndGet();
+          }
+        }
+      });
+    }
+    for(Thread t : threads) {
+      t.start();
+    }
+    try {
+      for(Thread t : threads) {
+        t.join();
+      }
+    }
+    catch(InterruptedException e) {
+      fail("Interrupted.");
+    }
+    assertEquals("Concurrent queries returned wrong results.", 0, errors.get());
+  }
+
+  /**
+   * Test helper for index snapshots: the first run writes the snapshot, a
+   * second run on the same data loads it, and a run where a later object was
+   * changed rebuilds it. After each run, every object must find itself.
+   *
+   * @param factory Index factory using the given snapshot file; called for
+   *        every run, such that randomized indexes are configured identically
+   * @throws IOException on file errors
+   */
+  @SuppressWarnings("unchecked")
+  protected static void assertSnapshot(Function<Path, IndexFactory<?>> factory) throws IOException {
+    Path file = Files.createTempFile("elki-snapshot", ".bin");
+    Files.delete(file);
+    try {
+      double[][] data = randomData(300, 4);
+      assertFindsSelf((IndexFactory<DoubleVector>) factory.apply(file), data);
+      assertTrue("Snapshot was not written.", Files.size(file) > 0);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+      assertFindsSelf((IndexFactory<DoubleVector>) factory.apply(file), data);
+      assertEquals("Snapshot was rebuilt.", 0, Files.getLastModifiedTime(file).toMillis());
+      // Change an object other than the first:
+      Arrays.fill(data[250], 5.);
+      assertFindsSelf((IndexFactory<DoubleVector>) factory.apply(file), data);
+      assertNotEquals("Stale snapshot was used.", 0, Files.getLastModifiedTime(file).toMillis());
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Verify kNN and range queries on a large random data set against a linear
+   * scan, for indexes that process large data sets differently.
+   *
+   * @param factory Index factory
+   * @param size Data set size
+   */
+  @SuppressWarnings("unchecked")
+  protected static void assertLargeEuclidean(IndexFactory<?> factory, int size) {
+    Relation<DoubleVector> relation = makeRelation(randomData(size, 3));
+    DistanceQuery<DoubleVector> dist = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    Index index = ((IndexFactory<DoubleVector>) factory).instantiate(relation);
+    index.initialize();
+    final double eps = .05;
+    KNNSearcher<DoubleVector> knnq = ((KNNIndex<DoubleVector>) index).kNNByObject(dist, k, 0);
+    RangeSearcher<DoubleVector> rangeq = ((RangeIndex<DoubleVector>) index).rangeByObject(dist, eps, 0);
+    assertNotNull("No kNN query", knnq);
+    assertNotNull("No range query", rangeq);
+    ModifiableDoubleDBIDList scan = DBIDUtil.newDistanceDBIDList(size);
+    for(DBIDArrayIter q = DBIDUtil.ensureArray(relation.getDBIDs()).iter(); q.valid(); q.advance(size / 50)) {
+      DoubleVector obj = relation.get(q);
+      scan.clear();
+      int inrange = 0;
+      for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+        final double d = dist.distance(obj, it);
+        scan.add(d, it);
+        inrange += d <= eps ? 1 : 0;
+      }
+      scan.sort();
+      KNNList knn = knnq.getKNN(obj, k);
+      assertEquals("Wrong number of knn results", k, knn.size());
+      for(DoubleDBIDListIter a = knn.iter(), b = scan.iter(); a.valid(); a.advance(), b.advance()) {
+        assertEquals("Wrong knn distance", b.doubleValue(), a.doubleValue(), 1e-15);
+      }
+      DoubleDBIDList range = rangeq.getRange(obj, eps);
+      assertEquals("Wrong number of range results", inrange, range.size());
+      for(DoubleDBIDListIter a = range.iter(); a.valid(); a.advance()) {
+        assertTrue("Range result out of range", a.doubleValue() <= eps);
+      }
+    }
+  }
+
+  /**
+   * Verify that an index built in parallel is identical to one built serially.
+   * <p>
+   * The serial index is built within a worker thread, where nested parallel
+   * calls run in the current thread. The priority search order, which depends
+   * on the tree structure, and the kNN results must match for a sample of
+   * queries.
+   *
+   * @param factory Index factory, must produce a {@link DistancePriorityIndex}
+   * @param size Data set size, large enough for the parallel build
+   */
+  protected static void assertParallelBuild(IndexFactory<?> factory, int size) {
+    assertParallelBuild(() -> factory, size);
+  }
+
+  /**
+   * Verify that an index built in parallel is identical to one built serially.
+   *
+   * @param factory Index factory; called for every build, such that
+   *        randomized indexes are configured identically
+   * @param size Data set size, large enough for the parallel build
+   */
+  @SuppressWarnings("unchecked")
+  protected static void assertParallelBuild(Supplier<IndexFactory<?>> factory, int size) {
+    Relation<DoubleVector> relation = makeRelation(randomData(size, 3));
+    DistanceQuery<DoubleVector> dist = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    Index parallel = ((IndexFactory<DoubleVector>) factory.get()).instantiate(relation);
+    parallel.initialize();
+    // A second task is needed, single tasks run in the current thread.
+    Index serial = ParallelExecutor.run(Arrays.<Callable<Index>> asList(() -> {
+      Index index = ((IndexFactory<DoubleVector>) factory.get()).instantiate(relation);
+      index.initialize();
+      return index;
+    }, () -> null)).get(0);
+    PrioritySearcher<DBIDRef> pprio = ((DistancePriorityIndex<DoubleVector>) parallel).priorityByDBID(dist, Double.POSITIVE_INFINITY, 0);
+    PrioritySearcher<DBIDRef> sprio = ((DistancePriorityIndex<DoubleVector>) serial).priorityByDBID(dist, Double.POSITIVE_INFINITY, 0);
+    assertNotNull("No priority query", pprio);
+    assertNotNull("No priority query", sprio);
+    for(DBIDArrayIter q = DBIDUtil.ensureArray(relation.getDBIDs()).iter(); q.valid(); q.advance(size / 50)) {
+      pprio.search(q);
+      sprio.search(q);
+      for(int i = 0; i < 100 && sprio.valid(); i++, pprio.advance(), sprio.advance()) {
+        assertTrue("Priority search order differs.", pprio.valid() && DBIDUtil.equal(pprio, sprio));
+      }
+      KNNList pknn = pprio.getKNN(q, k), sknn = sprio.getKNN(q, k);
+      assertEquals("Wrong number of knn results", sknn.size(), pknn.size());
+      for(DoubleDBIDListIter a = pknn.iter(), b = sknn.iter(); a.valid(); a.advance(), b.advance()) {
+        assertTrue("kNN results differ", DBIDUtil.equal(a, b));
+        assertEquals("kNN distances differ", b.doubleValue(), a.doubleValue(), 0.);
+      }
+    }
+  }
+
+  /**
+   * Verify the recall of an approximate kNN index on a random data set, for a
+   * sample of queries, against a linear scan.
+   *
+   * @param factory Index factory
+   * @param size Data set size
+   * @param dim Dimensionality
+   * @param minrecall Minimum average recall
+   */
+  @SuppressWarnings("unchecked")
+  protected static void assertRecall(IndexFactory<?> factory, int size, int dim, double minrecall) {
+    Relation<DoubleVector> relation = makeRelation(randomData(size, dim));
+    QueryBuilder<DoubleVector> qb = new QueryBuilder<>(relation, EuclideanDistance.STATIC);
+    Index index = ((IndexFactory<DoubleVector>) factory).instantiate(relation);
+    index.initialize();
+    KNNSearcher<DBIDRef> knnq = ((KNNIndex<DoubleVector>) index).kNNByDBID(qb.distanceQuery(), k, 0);
+    assertNotNull("No kNN query", knnq);
+    KNNSearcher<DBIDRef> linq = qb.linearOnly().kNNByDBID(k);
+    int found = 0, total = 0;
+    for(DBIDArrayIter q = DBIDUtil.ensureArray(relation.getDBIDs()).iter(); q.valid(); q.advance(size / 100)) {
+      KNNList exact = linq.getKNN(q, k), approx = knnq.getKNN(q, k);
+      assertEquals("Wrong number of knn results", k, approx.size());
+      for(DBIDIter it = approx.iter(); it.valid(); it.advance()) {
+        found += exact.contains(it) ? 1 : 0;
+      }
+      total += exact.size();
+    }
+    final double recall = found / (double) total;
+    assertTrue("Recall too low: " + recall, recall >= minrecall);
+  }
+
+  /**
+   * Generate uniform random data, with a fixed seed.
+   *
+   * @param size Data set size
+   * @param dim Dimensionality
+   * @return Data
+   */
+  private static double[][] randomData(int size, int dim) {
+    Random rnd = new Random(0L);
+    double[][] data = new double[size][dim];
+    for(double[] row : data) {
+      for(int d = 0; d < dim; d++) {
+        row[d] = rnd.nextDouble();
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Load a data set into a new database.
+   *
+   * @param data Data set
+   * @return Vector relation
+   */
+  private static Relation<DoubleVector> makeRelation(double[][] data) {
+    Database db = new StaticArrayDatabase(new ArrayAdapterDatabaseConnection(data, null, 0), null);
+    db.initialize();
+    return db.getRelation(TypeUtil.DOUBLE_VECTOR_FIELD);
+  }
+
+  /**
+   * Build an index on the given data, and verify that each object is found by
+   * a 1NN and a range query.
+   *
+   * @param factory Index factory
+   * @param data Data set
+   */
+  private static void assertFindsSelf(IndexFactory<DoubleVector> factory, double[][] data) {
+    Relation<DoubleVector> relation = makeRelation(data);
+    DistanceQuery<DoubleVector> dist = new QueryBuilder<>(relation, EuclideanDistance.STATIC).distanceQuery();
+    Index index = factory.instantiate(relation);
+    index.initialize();
+    KNNSearcher<DoubleVector> knnq = ((KNNIndex<DoubleVector>) index).kNNByObject(dist, 1, 0);
+    RangeSearcher<DoubleVector> rangeq = ((RangeIndex<DoubleVector>) index).rangeByObject(dist, 0., 0);
+    assertNotNull("No kNN query", knnq);
+    assertNotNull("No range query", rangeq);
+    for(DBIDIter it = relation.iterDBIDs(); it.valid(); it.advance()) {
+      KNNList knn = knnq.getKNN(relation.get(it), 1);
+      assertEquals("Object not found by kNN query.", 1, knn.size());
+      assertTrue("Object not found by kNN query.", DBIDUtil.equal(knn.iter(), it));
+      DoubleDBIDList range = rangeq.getRange(relation.get(it), 0.);
+      assertEquals("Object not found by range query.", 1, range.size());
+      assertTrue("Object not found by range query.", DBIDUtil.equal(range.iter(), it));
+    }
+  }
+
+  /**
+   * Verify kNN and range queries against a linear scan.
+   *
+   * @param index Index
+   * @param dist Distance query
+   * @param active Objects currently in the index
+   */
+  @SuppressWarnings("unchecked")
+  private static void assertDynamicNeighbors(Index index, DistanceQuery<DoubleVector> dist, DBIDs active) {
+    KNNSearcher<DBIDRef> knnq = ((KNNIndex<DoubleVector>) index).kNNByDBID(dist, k, 0);
+    RangeSearcher<DBIDRef> rangeq = ((RangeIndex<DoubleVector>) index).rangeByDBID(dist, eps2, 0);
+    SetDBIDs set = DBIDUtil.ensureSet(active);
+    ModifiableDoubleDBIDList scan = DBIDUtil.newDistanceDBIDList(active.size());
+    for(DBIDIter q = dist.getRelation().iterDBIDs(); q.valid(); q.advance()) {
+      scan.clear();
+      int inrange = 0;
+      for(DBIDIter it = active.iter(); it.valid(); it.advance()) {
+        final double d = dist.distance(q, it);
+        scan.add(d, it);
+        inrange += d <= eps2 ? 1 : 0;
+      }
+      scan.sort();
+      KNNList knn = knnq.getKNN(q, k);
+      assertEquals("Wrong number of knn results", Math.min(k, active.size()), knn.size());
+      for(DoubleDBIDListIter a = knn.iter(), b = scan.iter(); a.valid(); a.advance(), b.advance()) {
+        assertTrue("Deleted object returned", set.contains(a));
+        assertEquals("Wrong knn distance", b.doubleValue(), a.doubleValue(), 1e-15);
+      }
+      DoubleDBIDList range = rangeq.getRange(q, eps2);
+      assertEquals("Wrong number of range results", inrange, range.size());
+      for(DoubleDBIDListIter a = range.iter(); a.valid(); a.advance()) {
+        assertTrue("Deleted object returned", set.contains(a));
+      }
+    }
+  }
 }
@@ -20,6 +20,9 @@
  */
 package elki.index.idistance;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 
 import elki.clustering.kmedoids.initialization.KMedoidsInitialization;
@@ -34,6 +37,10 @@ import elki.index.AbstractRefiningIndex;
 import elki.index.IndexFactory;
 import elki.index.KNNIndex;
 import elki.index.RangeIndex;
+import elki.index.snapshot.Fingerprint;
+import elki.index.snapshot.IndexSnapshot;
+import elki.index.snapshot.SnapshotInput;
+import elki.index.snapshot.SnapshotOutput;
 import elki.logging.Logging;
 import elki.logging.statistics.DoubleStatistic;
 import elki.logging.statistics.LongStatistic;
@@ -43,6 +50,7 @@ import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.Parameterizer;
 import elki.utilities.optionhandling.constraints.CommonConstraints;
 import elki.utilities.optionhandling.parameterization.Parameterization;
+import elki.utilities.optionhandling.parameters.FileParameter;
 import elki.utilities.optionhandling.parameters.IntParameter;
 import elki.utilities.optionhandling.parameters.ObjectParameter;
 import elki.utilities.pairs.DoubleIntPair;
@@ -62,6 +70,9 @@ import elki.utilities.pairs.DoubleIntPair;
  * essentially here, you only need to query every reference point list, not just
  * the best.
  * <p>
+ * The reference points and lists can be stored in an {@link IndexSnapshot},
+ * and are loaded from there in later runs on the same data.
+ * <p>
  * Reference:
  * <p>
  * C. Yu, B. C. Ooi, K. L. Tan, H. V. Jagadish<br>
@@ -122,6 +133,11 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
    */
   private ModifiableDoubleDBIDList[] index;
 
+  /**
+   * Snapshot file, may be {@code null}.
+   */
+  private Path snapshot;
+
   /**
    * Constructor.
    * 
@@ -131,10 +147,24 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
    * @param numref Number of reference points
    */
   public InMemoryIDistanceIndex(Relation<O> relation, DistanceQuery<O> distance, KMedoidsInitialization<O> initialization, int numref) {
+    this(relation, distance, initialization, numref, null);
+  }
+
+  /**
+   * Constructor.
+   * 
+   * @param relation Data relation
+   * @param distance Distance
+   * @param initialization Initialization method
+   * @param numref Number of reference points
+   * @param snapshot Snapshot file, may be {@code null}
+   */
+  public InMemoryIDistanceIndex(Relation<O> relation, DistanceQuery<O> distance, KMedoidsInitialization<O> initialization, int numref, Path snapshot) {
     super(relation);
     this.distanceQuery = distance;
     this.initialization = initialization;
     this.numref = numref;
+    this.snapshot = snapshot;
     if(!distance.getDistance().isMetric()) {
       LOG.warning("iDistance assumes metric distance functions.\n" //
           + distance.getDistance().getClass() + " does not report itself as metric.\n" //
@@ -144,6 +174,59 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
 
   @Override
   public void initialize() {
+    if(snapshot == null) {
+      build();
+      return;
+    }
+    // The reference points are part of the snapshot, so the initialization
+    // only needs to match by its class, not by its random seed.
+    final long fingerprint = new Fingerprint(InMemoryIDistanceIndex.class) //
+        .addParameter(distanceQuery.getDistance()).add(initialization.getClass().getName()) //
+        .add(numref).add(relation).get();
+    if(!IndexSnapshot.load(snapshot, fingerprint, LOG, this::readSnapshot)) {
+      build();
+      IndexSnapshot.save(snapshot, fingerprint, LOG, this::writeSnapshot);
+    }
+  }
+
+  /**
+   * Write the reference points and lists to a snapshot.
+   *
+   * @param out Snapshot output
+   * @throws IOException on write errors
+   */
+  private void writeSnapshot(SnapshotOutput out) throws IOException {
+    out.writeDBIDs(referencepoints);
+    for(ModifiableDoubleDBIDList list : index) {
+      out.writeDoubleDBIDList(list);
+    }
+  }
+
+  /**
+   * Read the reference points and lists from a snapshot.
+   *
+   * @param in Snapshot input
+   * @throws IOException on read errors
+   */
+  private void readSnapshot(SnapshotInput in) throws IOException {
+    ArrayDBIDs refs = in.readDBIDs();
+    ModifiableDoubleDBIDList[] lists = new ModifiableDoubleDBIDList[refs.size()];
+    int total = 0;
+    for(int i = 0; i < lists.length; i++) {
+      lists[i] = in.readDoubleDBIDList();
+      total += lists[i].size();
+    }
+    if(total != relation.size()) {
+      throw new IOException("Snapshot size does not match.");
+    }
+    referencepoints = refs;
+    index = lists;
+  }
+
+  /**
+   * Build the index.
+   */
+  private void build() {
     referencepoints = DBIDUtil.ensureArray(initialization.chooseInitialMedoids(numref, relation.getDBIDs(), distanceQuery));
     final int k = referencepoints.size(); // should be the same k anyway.
     index = new ModifiableDoubleDBIDList[k];
@@ -423,6 +506,11 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
      */
     int k;
 
+    /**
+     * Snapshot file, may be {@code null}.
+     */
+    Path snapshot;
+
     /**
      * Constructor.
      * 
@@ -431,15 +519,28 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
      * @param k Number of reference points
      */
     public Factory(Distance<? super V> distance, KMedoidsInitialization<V> initialization, int k) {
+      this(distance, initialization, k, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param distance Distance function
+     * @param initialization Initialization method
+     * @param k Number of reference points
+     * @param snapshot Snapshot file, may be {@code null}
+     */
+    public Factory(Distance<? super V> distance, KMedoidsInitialization<V> initialization, int k, Path snapshot) {
       super();
       this.distance = distance;
       this.initialization = initialization;
       this.k = k;
+      this.snapshot = snapshot;
     }
 
     @Override
     public InMemoryIDistanceIndex<V> instantiate(Relation<V> relation) {
-      return new InMemoryIDistanceIndex<>(relation, distance.instantiate(relation), initialization, k);
+      return new InMemoryIDistanceIndex<>(relation, distance.instantiate(relation), initialization, k, snapshot);
     }
 
     @Override
@@ -487,6 +588,11 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
        */
       int k;
 
+      /**
+       * Snapshot file.
+       */
+      Path snapshot;
+
       @Override
       public void configure(Parameterization config) {
         new ObjectParameter<Distance<? super V>>(DISTANCE_ID, Distance.class) //
@@ -496,11 +602,14 @@ public class InMemoryIDistanceIndex<O> extends AbstractRefiningIndex<O> implemen
         new IntParameter(K_ID)//
             .addConstraint(CommonConstraints.GREATER_EQUAL_ONE_INT) //
             .grab(config, x -> k = x);
+        new FileParameter(IndexSnapshot.SNAPSHOT_ID, FileParameter.FileType.OUTPUT_FILE) //
+            .setOptional(true) //
+            .grab(config, x -> snapshot = Paths.get(x));
       }
 
       @Override
       public InMemoryIDistanceIndex.Factory<V> make() {
-        return new InMemoryIDistanceIndex.Factory<>(distance, initialization, k);
+        return new InMemoryIDistanceIndex.Factory<>(distance, initialization, k, snapshot);
       }
     }
   }
@@ -24,16 +24,21 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
 
 import elki.logging.Logging;
-import elki.logging.LoggingUtil;
 import elki.utilities.io.ByteBufferInputStream;
+import elki.utilities.io.ByteBufferSerializer;
 
 /**
  * A OnDiskArrayPageFile stores objects persistently that implement the
- * <code>Page</code> interface. For convenience each page is represented by a
- * single file. All pages are stored in a specified directory.
+ * <code>Page</code> interface, in a memory-mapped {@link OnDiskArray}, which
+ * is mapped in segments to support files larger than 2 GB.
+ * <p>
+ * Each page begins with an integer marking it as empty or filled. If a
+ * {@link ByteBufferSerializer} is given, filled pages are written in its
+ * binary format and decoded directly from the mapped buffer, without
+ * intermediate arrays or reflection. Otherwise, Java serialization is used.
+ * The file grows as pages are written, and is trimmed when closed.
  * 
  * @author Elke Achtert
  * @since 0.1
@@ -59,6 +64,16 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
    */
   private static final int FILLED_PAGE = 1;
 
+  /**
+   * Magic number of files using Java serialization.
+   */
+  private static final int MAGIC_SERIALIZED = 0;
+
+  /**
+   * Magic number of files using a binary page serializer.
+   */
+  private static final int MAGIC_BINARY = 0x42494E50;
+
   /**
    * The file name to use
    */
@@ -74,6 +89,11 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
    */
   protected PageHeader header;
 
+  /**
+   * Binary page serializer, may be {@code null}.
+   */
+  private final ByteBufferSerializer<P> serializer;
+
   /**
    * Whether or not the file originally existed
    */
@@ -86,9 +106,27 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
    * @param filename the name of the file
    */
   public OnDiskArrayPageFile(int pageSize, Path filename) {
+    this(pageSize, filename, null);
+  }
+
+  /**
+   * Creates a new OnDiskArrayPageFile, using a binary page serializer.
+   * 
+   * @param pageSize page size
+   * @param filename the name of the file
+   * @param serializer Page serializer, or {@code null} for Java serialization
+   */
+  public OnDiskArrayPageFile(int pageSize, Path filename, ByteBufferSerializer<P> serializer) {
     super(pageSize);
     this.filename = filename;
-    existed = Files.exists(filename);
+    this.serializer = serializer;
+    try {
+      // Empty files, such as temporary files, are overwritten.
+      existed = Files.exists(filename) && Files.size(filename) > 0;
+    }
+    catch(IOException e) {
+      throw new RuntimeException("IOException occurred.", e);
+    }
   }
 
   /**
@@ -120,8 +158,9 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
       super.deletePage(pageID);
       // delete from file
       countWrite();
-      byte[] array = pageToByteArray(null);
-      file.getRecordBuffer(pageID).put(array);
+      if(pageID < file.getNumRecords()) {
+        file.getRecordBuffer(pageID).putInt(EMPTY_PAGE);
+      }
     }
     catch(IOException e) {
       throw new RuntimeException(e);
@@ -136,26 +175,39 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
    */
   @Override
   public void writePage(int pageID, P page) {
-    if(page.isDirty()) {
-      try {
-        countWrite();
-        byte[] array = pageToByteArray(page);
-        file.getRecordBuffer(pageID).put(array);
-        page.setDirty(false);
-      }
-      catch(IOException e) {
-        throw new RuntimeException(e);
-      }
+    try {
+      countWrite();
+      ensureCapacity(pageID);
+      pageToByteBuffer(page, file.getRecordBuffer(pageID));
+      page.setDirty(false);
+    }
+    catch(IOException e) {
+      throw new RuntimeException(e);
     }
   }
 
   /**
-   * Closes this file.
+   * Grow the file geometrically, such that it can store the given page.
+   * 
+   * @param pageID Page id
+   * @throws IOException on IO errors
+   */
+  private void ensureCapacity(int pageID) throws IOException {
+    final int numrecs = file.getNumRecords();
+    if(pageID >= numrecs) {
+      file.ensureSize(Math.max(pageID + 1, numrecs + (numrecs >>> 1) + 16));
+    }
+  }
+
+  /**
+   * Closes this file, keeping the pages.
    */
   @Override
   public void close() {
     try {
-      super.close();
+      if(file.isWritable() && file.getNumRecords() > nextPageID) {
+        file.resizeFile(nextPageID);
+      }
       file.close();
     }
     catch(IOException e) {
@@ -177,75 +229,73 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
   }
 
   /**
-   * Reconstruct a serialized object from the specified byte array.
+   * Reconstruct a page from the specified buffer.
    * 
-   * @param buffer the buffer from which the object should be reconstructed
-   * @return a serialized object from the specified byte array
+   * @param buffer the buffer from which the page should be reconstructed
+   * @return the page, or {@code null} for empty pages
+   * @throws IOException on IO errors
    */
   @SuppressWarnings("unchecked")
-  private P byteBufferToPage(ByteBuffer buffer) {
+  private P byteBufferToPage(ByteBuffer buffer) throws IOException {
+    int type = buffer.getInt();
+    if(type == EMPTY_PAGE) {
+      return null;
+    }
+    if(type != FILLED_PAGE) {
+      throw new IllegalArgumentException("Unknown type: " + type);
+    }
+    if(serializer != null) {
+      return serializer.fromByteBuffer(buffer);
+    }
     try (InputStream bais = new ByteBufferInputStream(buffer);
         ObjectInputStream ois = new ObjectInputStream(bais)) {
-      int type = ois.readInt();
-      if(type == EMPTY_PAGE) {
-        return null;
-      }
-      else if(type == FILLED_PAGE) {
-        return (P) ois.readObject();
-      }
-      else {
-        throw new IllegalArgumentException("Unknown type: " + type);
-      }
+      return (P) ois.readObject();
     }
-    catch(IOException | ClassNotFoundException e) {
-      LoggingUtil.exception(e);
-      return null;
+    catch(ClassNotFoundException e) {
+      throw new IOException("Error deserializing page.", e);
     }
   }
 
   /**
-   * Serializes an object into a byte array.
+   * Serializes a page into the specified buffer.
    * 
-   * @param page the object to be serialized
-   * @return the byte array
+   * @param page the page to be serialized
+   * @param buffer the buffer to serialize to
+   * @throws IOException on IO errors
    */
-  private byte[] pageToByteArray(P page) {
-    try {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream oos = new ObjectOutputStream(baos);
-      if(page == null) {
-        oos.writeInt(EMPTY_PAGE);
+  private void pageToByteBuffer(P page, ByteBuffer buffer) throws IOException {
+    if(serializer != null) {
+      final int size = serializer.getByteSize(page) + Integer.BYTES;
+      if(size > pageSize) {
+        throw new IllegalArgumentException("Size of page " + page + " is greater than specified" + " pagesize: " + size + " > " + pageSize);
       }
-      else {
-        oos.writeInt(FILLED_PAGE);
-        oos.writeObject(page);
-      }
-      oos.close();
-      baos.close();
-      byte[] array = baos.toByteArray();
-      if(array.length > this.pageSize) {
-        throw new IllegalArgumentException("Size of page " + page + " is greater than specified" + " pagesize: " + array.length + " > " + pageSize);
-      }
-      return array.length == this.pageSize ? array : Arrays.copyOf(array, pageSize);
+      serializer.toByteBuffer(buffer.putInt(FILLED_PAGE), page);
+      return;
     }
-    catch(IOException e) {
-      throw new RuntimeException("IOException occurred! ", e);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
+      oos.writeObject(page);
+    }
+    byte[] array = baos.toByteArray();
+    if(array.length + Integer.BYTES > pageSize) {
+      throw new IllegalArgumentException("Size of page " + page + " is greater than specified" + " pagesize: " + (array.length + Integer.BYTES) + " > " + pageSize);
     }
+    buffer.putInt(FILLED_PAGE).put(array);
   }
 
   @Override
   public boolean initialize(PageHeader header) {
     this.header = header;
+    final int magic = serializer != null ? MAGIC_BINARY : MAGIC_SERIALIZED;
     try {
       if(existed) {
         LOG.info("Create from existing file.");
-        this.file = new OnDiskArray(filename, 0, header.size(), pageSize, true);
+        this.file = new OnDiskArray(filename, magic, header.size(), pageSize, true);
 
         header.readHeader(file.getExtraHeader());
         // reading empty nodes in Stack
         for(int i = 0; i < file.getNumRecords(); i++) {
-          ByteBuffer buffer = file.getRecordBuffer(i);
-          int type = buffer.getInt();
+          int type = file.getRecordBuffer(i).getInt();
           if(type == EMPTY_PAGE) {
             emptyPages.add(i);
           }
@@ -255,7 +305,10 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
           else {
             throw new IllegalArgumentException("Unknown type: " + type);
           }
-          i++;
+        }
+        // Trailing empty pages are allocated on demand.
+        while(!emptyPages.isEmpty() && emptyPages.get(emptyPages.size - 1) >= nextPageID) {
+          --emptyPages.size;
         }
         return true;
       }
@@ -264,7 +317,7 @@ public class OnDiskArrayPageFile<P extends Page> extends AbstractStoringPageFile
         LOG.info("Create a new file.");
 
         // init the file
-        this.file = new OnDiskArray(filename, 0, header.size(), pageSize, 0);
+        this.file = new OnDiskArray(filename, magic, header.size(), pageSize, 0);
 
         // write the header
         header.writeHeader(file.getExtraHeader());
@@ -24,12 +24,13 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 
 import elki.utilities.exceptions.AbortException;
+import elki.utilities.io.ByteBufferSerializer;
 import elki.utilities.optionhandling.OptionID;
 import elki.utilities.optionhandling.parameterization.Parameterization;
 import elki.utilities.optionhandling.parameters.FileParameter;
 
 /**
- * Page file factory for disk-based page files.
+ * Page file factory for disk-based, memory-mapped page files.
  * 
  * @author Erich Schubert
  * @since 0.6.0
@@ -56,10 +57,15 @@ public class OnDiskArrayPageFileFactory<P extends Page> extends AbstractPageFile
 
   @Override
   public PageFile<P> newPageFile(Class<P> cls) {
+    return newPageFile(cls, null);
+  }
+
+  @Override
+  public PageFile<P> newPageFile(Class<P> cls, ByteBufferSerializer<P> serializer) {
     if(fileName == null) {
       throw new AbortException("Disk-backed page file may only be instantiated once!");
     }
-    OnDiskArrayPageFile<P> pfile = new OnDiskArrayPageFile<>(pageSize, fileName);
+    OnDiskArrayPageFile<P> pfile = new OnDiskArrayPageFile<>(pageSize, fileName, serializer);
     fileName = null; // To avoid double instantiation.
     return pfile;
   }
@@ -0,0 +1,518 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.persistent;
+
+import elki.logging.Logging;
+import elki.logging.statistics.LongStatistic;
+import elki.parallel.ParallelCore;
+import elki.utilities.documentation.Reference;
+import elki.utilities.exceptions.AbortException;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+
+/**
+ * Concurrent page cache using the scan-resistant 2Q replacement policy.
+ * <p>
+ * Pages referenced once enter a small FIFO queue; only pages referenced again
+ * after leaving this queue (as remembered by a queue of page ids only) are
+ * promoted to the main LRU queue. Hence, a single large scan, such as a range
+ * query, does not evict the frequently used pages.
+ * <p>
+ * The cache is split into independently locked segments by page id, such
+ * that concurrent queries do not contend on a single lock.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ *
+ * @assoc - - - PageFile
+ *
+ * @param <P> Page type
+ */
+@Reference(authors = "T. Johnson, D. Shasha", //
+    title = "2Q: A Low Overhead High Performance Buffer Management Replacement Algorithm", //
+    booktitle = "Proc. 20th Int. Conf. on Very Large Data Bases (VLDB'94)", //
+    url = "http://www.vldb.org/conf/1994/P439.PDF", //
+    bibkey = "DBLP:conf/vldb/JohnsonS94")
+public class TwoQueuePageCache<P extends Page> extends AbstractPageFile<P> {
+  /**
+   * Our class logger.
+   */
+  private static final Logging LOG = Logging.getLogger(TwoQueuePageCache.class);
+
+  /**
+   * Minimum number of pages per segment.
+   */
+  private static final int MIN_SEGMENT_SIZE = 16;
+
+  /**
+   * Cache size in bytes.
+   */
+  protected int cacheSizeBytes;
+
+  /**
+   * The underlying file of this cache. If a page is dropped it is written to
+   * the file.
+   */
+  protected PageFile<P> file;
+
+  /**
+   * Cache segments.
+   */
+  private Segment<P>[] segments;
+
+  /**
+   * Bit mask to obtain the segment number from a hashed page id.
+   */
+  private int mask;
+
+  /**
+   * Initializes this cache with the specified parameters.
+   *
+   * @param cacheSizeBytes the maximum number of bytes for this cache
+   * @param file the underlying file of this cache, if a page is dropped it is
+   *        written to the file
+   */
+  public TwoQueuePageCache(int cacheSizeBytes, PageFile<P> file) {
+    this.file = file;
+    this.cacheSizeBytes = cacheSizeBytes;
+  }
+
+  /**
+   * Find the segment of a page.
+   *
+   * @param pageID Page id
+   * @return Segment
+   */
+  private Segment<P> segment(int pageID) {
+    // Spread the bits, as page ids are often sequential.
+    final int h = pageID * 0x9E3779B9;
+    return segments[(h ^ (h >>> 16)) & mask];
+  }
+
+  @Override
+  public P readPage(int pageID) {
+    countRead();
+    return segment(pageID).read(pageID, file);
+  }
+
+  @Override
+  public void writePage(int pageID, P page) {
+    countWrite();
+    page.setDirty(true);
+    segment(pageID).write(pageID, page, file);
+  }
+
+  @Override
+  public void deletePage(int pageID) {
+    countWrite();
+    segment(pageID).remove(pageID);
+    file.deletePage(pageID);
+  }
+
+  @Override
+  public int setPageID(P page) {
+    return file.setPageID(page);
+  }
+
+  @Override
+  public int getNextPageID() {
+    return file.getNextPageID();
+  }
+
+  @Override
+  public void setNextPageID(int nextPageID) {
+    file.setNextPageID(nextPageID);
+  }
+
+  @Override
+  public int getPageSize() {
+    return file.getPageSize();
+  }
+
+  @Override
+  public boolean initialize(PageHeader header) {
+    boolean created = file.initialize(header);
+    // Compute the actual cache size.
+    final int cacheSize = cacheSizeBytes / header.getPageSize();
+    if(cacheSize <= 0) {
+      throw new AbortException("Invalid cache size: " + cacheSizeBytes + " / " + header.getPageSize() + " = " + cacheSize);
+    }
+    // Power of two number of segments, about four per thread.
+    final int wanted = Math.min(ParallelCore.getCore().getParallelism() << 2, cacheSize / MIN_SEGMENT_SIZE);
+    final int nseg = wanted > 1 ? Integer.highestOneBit(wanted - 1) << 1 : 1;
+    @SuppressWarnings("unchecked")
+    Segment<P>[] segs = new Segment[nseg];
+    for(int i = 0; i < nseg; i++) {
+      segs[i] = new Segment<>((cacheSize + nseg - 1) / nseg);
+    }
+    this.segments = segs;
+    this.mask = nseg - 1;
+    if(LOG.isDebugging()) {
+      LOG.debug("2Q cache size is " + cacheSize + " pages in " + nseg + " segments.");
+    }
+    return created;
+  }
+
+  @Override
+  public void close() {
+    flush();
+    file.close();
+  }
+
+  /**
+   * Flushes this cache by writing all dirty pages to the underlying file.
+   */
+  public void flush() {
+    for(Segment<P> seg : segments) {
+      seg.flush(file);
+    }
+  }
+
+  /**
+   * Clears this cache.
+   */
+  @Override
+  public void clear() {
+    for(Segment<P> seg : segments) {
+      seg.clear();
+    }
+  }
+
+  @Override
+  public void logStatistics() {
+    super.logStatistics();
+    if(LOG.isStatistics()) {
+      long hits = 0, misses = 0, evictions = 0;
+      for(Segment<P> seg : segments) {
+        synchronized(seg) {
+          hits += seg.hits;
+          misses += seg.misses;
+          evictions += seg.evictions;
+        }
+      }
+      final String prefix = this.getClass().getName();
+      LOG.statistics(new LongStatistic(prefix + ".hits", hits));
+      LOG.statistics(new LongStatistic(prefix + ".misses", misses));
+      LOG.statistics(new LongStatistic(prefix + ".evictions", evictions));
+    }
+    file.logStatistics();
+  }
+
+  @Override
+  protected Logging getLogger() {
+    return LOG;
+  }
+
+  /**
+   * Cache entry, linked into one of the two queues.
+   *
+   * @author Erich Schubert
+   *
+   * @param <P> Page type
+   */
+  private static final class Entry<P> {
+    /**
+     * Page id.
+     */
+    final int id;
+
+    /**
+     * Page.
+     */
+    P page;
+
+    /**
+     * Queue neighbors.
+     */
+    Entry<P> prev, next;
+
+    /**
+     * Whether the entry is in the main queue.
+     */
+    boolean hot;
+
+    /**
+     * Constructor.
+     *
+     * @param id Page id
+     * @param page Page
+     */
+    Entry(int id, P page) {
+      this.id = id;
+      this.page = page;
+    }
+  }
+
+  /**
+   * A cache segment, with its own 2Q queues and lock.
+   *
+   * @author Erich Schubert
+   *
+   * @param <P> Page type
+   */
+  private static final class Segment<P extends Page> {
+    /**
+     * Capacity in pages, and maximum size of the FIFO queue.
+     */
+    private final int capacity, kin;
+
+    /**
+     * Resident pages.
+     */
+    private final Int2ObjectOpenHashMap<Entry<P>> map;
+
+    /**
+     * Queue heads (sentinels): FIFO of new pages, LRU of hot pages. New
+     * entries are added before the head, i.e., at the end.
+     */
+    private final Entry<P> in = new Entry<>(-1, null), main = new Entry<>(-1, null);
+
+    /**
+     * Number of pages in the FIFO queue.
+     */
+    private int inSize;
+
+    /**
+     * Ids of pages recently evicted from the FIFO queue, as ring buffer.
+     */
+    private final int[] ghost;
+
+    /**
+     * Set of the ids in the ghost queue.
+     */
+    private final IntOpenHashSet ghostSet;
+
+    /**
+     * Ring buffer position and size.
+     */
+    private int ghostPos, ghostSize;
+
+    /**
+     * Statistics.
+     */
+    long hits, misses, evictions;
+
+    /**
+     * Number of modifications of the segment, to detect stale reads.
+     */
+    private long modifications;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Capacity in pages
+     */
+    Segment(int capacity) {
+      this.capacity = capacity;
+      // Parameters as recommended by Johnson and Shasha:
+      this.kin = Math.max(1, capacity >> 2);
+      this.ghost = new int[Math.max(1, capacity >> 1)];
+      this.map = new Int2ObjectOpenHashMap<>(capacity + 1);
+      this.ghostSet = new IntOpenHashSet(ghost.length);
+      in.prev = in.next = in;
+      main.prev = main.next = main;
+    }
+
+    /**
+     * Read a page, from the cache or from the file.
+     * <p>
+     * The file is read without holding the lock, so that other pages of this
+     * segment remain accessible. If the segment was modified meanwhile, the
+     * page read may be stale, and is read again.
+     *
+     * @param pageID Page id
+     * @param file Backing file
+     * @return Page
+     */
+    P read(int pageID, PageFile<P> file) {
+      while(true) {
+        final long mods;
+        synchronized(this) {
+          Entry<P> e = map.get(pageID);
+          if(e != null) {
+            ++hits;
+            if(e.hot) { // Move to the front of the LRU queue
+              unlink(e);
+              append(main, e);
+            }
+            return e.page;
+          }
+          ++misses;
+          mods = modifications;
+        }
+        P page = file.readPage(pageID);
+        synchronized(this) {
+          Entry<P> e = map.get(pageID);
+          if(e != null) { // Loaded concurrently.
+            return e.page;
+          }
+          if(mods == modifications) {
+            if(page != null) {
+              insert(new Entry<>(pageID, page), file);
+            }
+            return page;
+          }
+        }
+      }
+    }
+
+    /**
+     * Put a page into the cache.
+     *
+     * @param pageID Page id
+     * @param page Page
+     * @param file Backing file
+     */
+    synchronized void write(int pageID, P page, PageFile<P> file) {
+      ++modifications;
+      Entry<P> e = map.get(pageID);
+      if(e != null) {
+        e.page = page;
+        if(e.hot) {
+          unlink(e);
+          append(main, e);
+        }
+        return;
+      }
+      insert(new Entry<>(pageID, page), file);
+    }
+
+    /**
+     * Insert a new entry, and evict pages if necessary.
+     *
+     * @param e New entry
+     * @param file Backing file
+     */
+    private void insert(Entry<P> e, PageFile<P> file) {
+      while(map.size() >= capacity) {
+        evict(file);
+      }
+      if(ghostSet.remove(e.id)) { // Seen recently, hot page.
+        e.hot = true;
+        append(main, e);
+      }
+      else {
+        append(in, e);
+        ++inSize;
+      }
+      map.put(e.id, e);
+    }
+
+    /**
+     * Evict a page, from the FIFO queue if it is full, otherwise from the LRU
+     * queue.
+     *
+     * @param file Backing file
+     */
+    private void evict(PageFile<P> file) {
+      Entry<P> victim;
+      if(inSize > kin || main.next == main) {
+        victim = in.next;
+        --inSize;
+        // Remember the id in the ghost queue:
+        if(ghostSize == ghost.length) {
+          ghostSet.remove(ghost[ghostPos]);
+        }
+        else {
+          ++ghostSize;
+        }
+        ghost[ghostPos] = victim.id;
+        ghostSet.add(victim.id);
+        ghostPos = ghostPos + 1 < ghost.length ? ghostPos + 1 : 0;
+      }
+      else {
+        victim = main.next;
+      }
+      unlink(victim);
+      map.remove(victim.id);
+      ++evictions;
+      if(victim.page.isDirty()) {
+        file.writePage(victim.page);
+      }
+    }
+
+    /**
+     * Remove a page from the cache, without writing it.
+     *
+     * @param pageID Page id
+     */
+    synchronized void remove(int pageID) {
+      ++modifications;
+      Entry<P> e = map.remove(pageID);
+      if(e != null) {
+        unlink(e);
+        if(!e.hot) {
+          --inSize;
+        }
+      }
+    }
+
+    /**
+     * Write all dirty pages to the file, and clear the segment.
+     *
+     * @param file Backing file
+     */
+    synchronized void flush(PageFile<P> file) {
+      for(Entry<P> e : map.values()) {
+        if(e.page.isDirty()) {
+          file.writePage(e.page);
+        }
+      }
+      clear();
+    }
+
+    /**
+     * Clear the segment.
+     */
+    synchronized void clear() {
+      ++modifications;
+      map.clear();
+      in.prev = in.next = in;
+      main.prev = main.next = main;
+      inSize = 0;
+    }
+
+    /**
+     * Append an entry at the end of a queue.
+     *
+     * @param head Queue head
+     * @param e Entry
+     */
+    private static <P> void append(Entry<P> head, Entry<P> e) {
+      e.prev = head.prev;
+      e.next = head;
+      head.prev.next = e;
+      head.prev = e;
+    }
+
+    /**
+     * Remove an entry from its queue.
+     *
+     * @param e Entry
+     */
+    private static <P> void unlink(Entry<P> e) {
+      e.prev.next = e.next;
+      e.next.prev = e.prev;
+      e.prev = e.next = null;
+    }
+  }
+}
@@ -20,6 +20,8 @@
  */
 package elki.index.idistance;
 
+import java.io.IOException;
+
 import org.junit.Test;
 
 import elki.clustering.kmeans.initialization.FarthestPoints;
@@ -28,6 +30,7 @@ import elki.database.query.knn.WrappedKNNDBIDByLookup;
 import elki.database.query.range.WrappedRangeDBIDByLookup;
 import elki.distance.minkowski.EuclideanDistance;
 import elki.index.AbstractIndexStructureTest;
+import elki.index.snapshot.IndexSnapshot;
 import elki.utilities.ELKIBuilder;
 
 /**
@@ -47,4 +50,14 @@ public class IDistanceTest extends AbstractIndexStructureTest {
     assertExactEuclidean(factory, InMemoryIDistanceIndex.IDistanceKNNSearcher.class, InMemoryIDistanceIndex.IDistanceRangeSearcher.class);
     assertSinglePoint(factory, WrappedKNNDBIDByLookup.class, WrappedRangeDBIDByLookup.class);
   }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    assertSnapshot(file -> new ELKIBuilder<>(InMemoryIDistanceIndex.Factory.class) //
+        .with(InMemoryIDistanceIndex.Factory.Par.K_ID, 4) //
+        .with(InMemoryIDistanceIndex.Factory.Par.DISTANCE_ID, EuclideanDistance.class) //
+        .with(InMemoryIDistanceIndex.Factory.Par.REFERENCE_ID, FarthestPoints.class) //
+        .with(IndexSnapshot.SNAPSHOT_ID, file.toString()) //
+        .build());
+  }
 }
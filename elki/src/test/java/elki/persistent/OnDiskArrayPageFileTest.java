@@ -0,0 +1,149 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import elki.data.DoubleVector;
+import elki.data.NumberVector;
+import elki.database.ids.DBIDUtil;
+import elki.index.AbstractIndexStructureTest;
+import elki.index.PagedIndexFactory;
+import elki.index.tree.TreeIndexHeader;
+import elki.index.tree.metrical.mtreevariants.MTreeDirectoryEntry;
+import elki.index.tree.metrical.mtreevariants.MTreeEntry;
+import elki.index.tree.metrical.mtreevariants.MTreeLeafEntry;
+import elki.index.tree.metrical.mtreevariants.mtree.MTreeFactory;
+import elki.index.tree.metrical.mtreevariants.mtree.MTreeNode;
+import elki.index.tree.metrical.mtreevariants.mtree.MTreeNodeSerializer;
+import elki.index.tree.metrical.mtreevariants.query.MTreeKNNByObject;
+import elki.index.tree.metrical.mtreevariants.query.MTreeRangeByObject;
+import elki.index.tree.spatial.rstarvariants.query.RStarTreeKNNSearcher;
+import elki.index.tree.spatial.rstarvariants.query.RStarTreeRangeSearcher;
+import elki.index.tree.spatial.rstarvariants.rstar.RStarTreeFactory;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Unit test for the memory-mapped page file, with binary page serialization.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class OnDiskArrayPageFileTest extends AbstractIndexStructureTest {
+  /**
+   * Test an R*-tree stored in a memory-mapped page file.
+   */
+  @Test
+  public void testRStarTree() throws IOException {
+    Path file = Files.createTempFile("elki-rstartree", ".bin");
+    try {
+      RStarTreeFactory<NumberVector> factory = new ELKIBuilder<>(RStarTreeFactory.class) //
+          .with(PagedIndexFactory.Par.PAGEFILE_ID, OnDiskArrayPageFileFactory.class) //
+          .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+          .with(OnDiskArrayPageFileFactory.Par.FILE_ID, file.toString()) //
+          .build();
+      assertExactEuclidean(factory, RStarTreeKNNSearcher.class, RStarTreeRangeSearcher.class);
+      assertTrue("No pages were written.", Files.size(file) > 300);
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Test an M-tree stored in a memory-mapped page file.
+   */
+  @Test
+  public void testMTree() throws IOException {
+    Path file = Files.createTempFile("elki-mtree", ".bin");
+    try {
+      MTreeFactory<DoubleVector> factory = new ELKIBuilder<>(MTreeFactory.class) //
+          .with(PagedIndexFactory.Par.PAGEFILE_ID, OnDiskArrayPageFileFactory.class) //
+          .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+          .with(OnDiskArrayPageFileFactory.Par.FILE_ID, file.toString()) //
+          .build();
+      assertExactEuclidean(factory, MTreeKNNByObject.class, MTreeRangeByObject.class);
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+   * Test that pages can be read back after reopening the file.
+   */
+  @Test
+  public void testReopen() throws IOException {
+    Path file = Files.createTempFile("elki-pagefile", ".bin");
+    try {
+      OnDiskArrayPageFile<MTreeNode<DoubleVector>> pf = new OnDiskArrayPageFile<>(200, file, new MTreeNodeSerializer<>());
+      assertFalse("New file expected.", pf.initialize(new TreeIndexHeader(200, 5, 10, 2, 2)));
+      MTreeNode<DoubleVector> leaf = new MTreeNode<>(10, true);
+      for(int i = 0; i < 10; i++) {
+        leaf.addEntry(new MTreeLeafEntry(DBIDUtil.importInteger(i), i * .5));
+      }
+      MTreeNode<DoubleVector> dir = new MTreeNode<>(5, false);
+      MTreeNode<DoubleVector> deleted = new MTreeNode<>(5, false);
+      pf.setPageID(leaf);
+      pf.setPageID(dir);
+      pf.setPageID(deleted);
+      dir.addEntry(new MTreeDirectoryEntry(DBIDUtil.importInteger(3), 0., leaf.getPageID(), 4.5));
+      pf.writePage(leaf);
+      pf.writePage(dir);
+      pf.writePage(deleted);
+      pf.deletePage(deleted.getPageID());
+      pf.close();
+
+      pf = new OnDiskArrayPageFile<>(200, file, new MTreeNodeSerializer<>());
+      assertTrue("Existing file expected.", pf.initialize(new TreeIndexHeader()));
+      assertEquals("Trailing empty pages are not reused.", 2, pf.getNextPageID());
+      assertNull("Page was not deleted.", pf.readPage(deleted.getPageID()));
+      MTreeNode<DoubleVector> leaf2 = pf.readPage(leaf.getPageID());
+      assertTrue("Not a leaf.", leaf2.isLeaf());
+      assertEquals("Number of entries.", 10, leaf2.getNumEntries());
+      for(int i = 0; i < 10; i++) {
+        MTreeEntry e = leaf2.getEntry(i);
+        assertEquals("Object id.", i, DBIDUtil.asInteger(e.getRoutingObjectID()));
+        assertEquals("Parent distance.", i * .5, e.getParentDistance(), 0.);
+      }
+      MTreeNode<DoubleVector> dir2 = pf.readPage(dir.getPageID());
+      assertEquals("Number of entries.", 1, dir2.getNumEntries());
+      assertEquals("Capacity.", 5, dir2.getCapacity());
+      MTreeDirectoryEntry e = (MTreeDirectoryEntry) dir2.getEntry(0);
+      assertEquals("Child page.", leaf.getPageID(), e.getPageID());
+      assertEquals("Routing object.", 3, DBIDUtil.asInteger(e.getRoutingObjectID()));
+      assertEquals("Covering radius.", 4.5, e.getCoveringRadius(), 0.);
+      pf.close();
+    }
+    finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * This file is part of ELKI:
+ * Environment for Developing KDD-Applications Supported by Index-Structures
+ *
+ * Copyright (C) 2019
+ * ELKI Development Team
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package elki.persistent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import elki.data.NumberVector;
+import elki.index.AbstractIndexStructureTest;
+import elki.index.PagedIndexFactory;
+import elki.index.tree.spatial.rstarvariants.query.RStarTreeKNNSearcher;
+import elki.index.tree.spatial.rstarvariants.query.RStarTreeRangeSearcher;
+import elki.index.tree.spatial.rstarvariants.rstar.RStarTreeFactory;
+import elki.utilities.ELKIBuilder;
+
+/**
+ * Unit test for the 2Q page cache.
+ *
+ * @author Erich Schubert
+ * @since 0.7.6
+ */
+public class TwoQueuePageCacheTest extends AbstractIndexStructureTest {
+  /**
+   * Page size used.
+   */
+  private static final int PAGESIZE = 100;
+
+  /**
+   * Test an R*-tree using a small cache.
+   */
+  @Test
+  public void testRStarTree() {
+    RStarTreeFactory<NumberVector> factory = new ELKIBuilder<>(RStarTreeFactory.class) //
+        .with(PagedIndexFactory.Par.PAGEFILE_ID, LRUCachePageFileFactory.class) //
+        .with(LRUCachePageFileFactory.Par.PAGEFILE_ID, MemoryPageFileFactory.class) //
+        .with(LRUCachePageFileFactory.Par.CACHE_SIZE_ID, 3000) //
+        .with(LRUCachePageFileFactory.Par.POLICY_ID, LRUCachePageFileFactory.Policy.TWO_QUEUE) //
+        .with(AbstractPageFileFactory.Par.PAGE_SIZE_ID, 300) //
+        .build();
+    assertExactEuclidean(factory, RStarTreeKNNSearcher.class, RStarTreeRangeSearcher.class);
+  }
+
+  /**
+   * Test that a scan does not evict frequently used pages.
+   */
+  @Test
+  public void testScanResistance() {
+    CountingPageFile backing = makeBackingFile(2000);
+    // 16 pages, i.e., a single segment.
+    TwoQueuePageCache<TestPage> cache = new TwoQueuePageCache<>(16 * PAGESIZE, backing);
+    cache.initialize(new DefaultPageHeader(PAGESIZE));
+    read(cache, 0, 4); // First reference
+    read(cache, 100, 116); // Push out of the FIFO queue
+    read(cache, 0, 4); // Second reference, now hot
+    read(cache, 1000, 2000); // Large scan
+    final int before = backing.reads.get();
+    read(cache, 0, 4);
+    assertEquals("Hot pages were evicted by the scan.", before, backing.reads.get());
+  }
+
+  /**
+   * Test concurrent readers.
+   */
+  @Test
+  public void testConcurrentReads() throws InterruptedException {
+    CountingPageFile backing = makeBackingFile(1000);
+    TwoQueuePageCache<TestPage> cache = new TwoQueuePageCache<>(200 * PAGESIZE, backing);
+    cache.initialize(new DefaultPageHeader(PAGESIZE));
+    AtomicInteger errors = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for(int t = 0; t < 4; t++) {
+      final Random rnd = new Random(t);
+      threads.add(new Thread(() -> {
+        for(int i = 0; i < 20000; i++) {
+          // Skewed access, to have both hits and misses.
+          int id = rnd.nextBoolean() ? rnd.nextInt(50) : rnd.nextInt(1000);
+          if(cache.readPage(id).getPageID() != id) {
+            errors.incrementAndGet();
+          }
+        }
+      }));
+    }
+    for(Thread t : threads) {
+      t.start();
+    }
+    for(Thread t : threads) {
+      t.join();
+    }
+    assertEquals("Wrong pages returned.", 0, errors.get());
+  }
+
+  /**
+   * Test that a slow read does not block other pages of the same segment, and
+   * that a page written meanwhile is not replaced by the stale read.
+   */
+  @Test(timeout = 10000)
+  public void testReadOutsideLock() throws InterruptedException {
+    CountDownLatch reading = new CountDownLatch(1), release = new CountDownLatch(1);
+    MemoryPageFile<TestPage> backing = new MemoryPageFile<TestPage>(PAGESIZE) {
+      @Override
+      public TestPage readPage(int pageID) {
+        if(pageID == 0) {
+          reading.countDown();
+          try {
+            release.await();
+          }
+          catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return super.readPage(pageID);
+      }
+    };
+    for(int i = 0; i < 10; i++) {
+      backing.writePage(new TestPage());
+    }
+    // 16 pages, i.e., a single segment.
+    TwoQueuePageCache<TestPage> cache = new TwoQueuePageCache<>(16 * PAGESIZE, backing);
+    cache.initialize(new DefaultPageHeader(PAGESIZE));
+    AtomicReference<TestPage> result = new AtomicReference<>();
+    Thread reader = new Thread(() -> result.set(cache.readPage(0)));
+    reader.start();
+    reading.await();
+    // Other pages remain accessible during the read:
+    read(cache, 1, 10);
+    TestPage update = new TestPage();
+    update.setPageID(0);
+    cache.writePage(0, update);
+    release.countDown();
+    reader.join();
+    assertSame("Stale page was returned.", update, result.get());
+    assertSame("Stale page was cached.", update, cache.readPage(0));
+  }
+
+  /**
+   * Read a range of pages.
+   *
+   * @param cache Cache
+   * @param start First page
+   * @param end End page (exclusive)
+   */
+  private static void read(PageFile<TestPage> cache, int start, int end) {
+    for(int i = start; i < end; i++) {
+      assertEquals("Wrong page.", i, cache.readPage(i).getPageID());
+    }
+  }
+
+  /**
+   * Build a backing file.
+   *
+   * @param size Number of pages
+   * @return Page file
+   */
+  private static CountingPageFile makeBackingFile(int size) {
+    CountingPageFile backing = new CountingPageFile();
+    for(int i = 0; i < size; i++) {
+      backing.writePage(new TestPage());
+    }
+    return backing;
+  }
+
+  /**
+   * Page file that counts reads, thread-safely.
+   *
+   * @author Erich Schubert
+   */
+  private static class CountingPageFile extends MemoryPageFile<TestPage> {
+    /**
+     * Number of reads.
+     */
+    AtomicInteger reads = new AtomicInteger();
+
+    /**
+     * Constructor.
+     */
+    CountingPageFile() {
+      super(PAGESIZE);
+    }
+
+    @Override
+    public synchronized TestPage readPage(int pageID) {
+      reads.incrementAndGet();
+      return super.readPage(pageID);
+    }
+  }
+
+  /**
+   * Minimal page.
+   *
+   * @author Erich Schubert
+   */
+  private static class TestPage implements Page {
+    /**
+     * Page id.
+     */
+    private int id = -1;
+
+    /**
+     * Dirty flag.
+     */
+    private boolean dirty;
+
+    @Override
+    public int getPageID() {
+      return id;
+    }
+
+    @Override
+    public void setPageID(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public boolean isDirty() {
+      return dirty;
+    }
+
+    @Override
+    public void setDirty(boolean dirty) {
+      this.dirty = dirty;
+    }
+  }
+}